@@ -0,0 +1,91 @@
+/**
+ * name: AsyncBenchmark
+ * author: crs
+ * description: JMH benchmark of transactions that wait for busy keys without blocking a thread
+ *              (TThread.doItAsync) against blocking ones (TThread.doIt).  every transaction adds a random
+ *              key, or removes it if it was there, drawn from keyRange keys: 64 keeps most transactions
+ *              waiting on each other, 65536 hardly any.  the async method keeps IN_FLIGHT transactions in
+ *              flight on a pool of POOL_THREADS threads, the blocking one needs a thread per transaction in
+ *              flight and runs BLOCKING_THREADS of them.  scores are transactions per microsecond
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.SkipListKey;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncBenchmark {
+
+    private static final int IN_FLIGHT = 1024;
+    private static final int POOL_THREADS = 2;
+    private static final int BLOCKING_THREADS = 16;
+
+    @State(Scope.Benchmark)
+    public static class Contended {
+
+        @Param({"64", "65536"})
+        int keyRange;
+
+        SkipListKey set;
+        ExecutorService pool;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+            pool = Executors.newFixedThreadPool(POOL_THREADS);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+
+        Callable<Boolean> addOrRemove(final int key) {
+            return new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return set.add(key) || set.remove(key);
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void async(Contended contended) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[IN_FLIGHT];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            futures[i] = TThread.doItAsync(contended.addOrRemove(random.nextInt(contended.keyRange)), contended.pool,
+                    TThread.UNLIMITED_ATTEMPTS, null);
+        }
+
+        CompletableFuture.allOf(futures).join();
+    }
+
+    @Benchmark
+    @Threads(BLOCKING_THREADS)
+    public Boolean blocking(Contended contended) throws Exception {
+        return TThread.doIt(contended.addOrRemove(ThreadLocalRandom.current().nextInt(contended.keyRange)),
+                TThread.UNLIMITED_ATTEMPTS, null);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * name: CheckpointBenchmark
+ * author: crs
+ * description: JMH benchmark of restarting a set of KEYS keys (10M by default, -Dcheckpoint.keys=... to
+ *              change it): restoring a Checkpoint in each Encoding against replaying the keys one add
+ *              transaction at a time, and the time to take a checkpoint.  keys are spread over four times
+ *              as many values, so gaps average 4.  single shot, each measurement builds a whole set, which is
+ *              dropped and collected between iterations so no measurement pays for collecting the one before
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.Checkpoint;
+import com.SkipListKey;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+@State(Scope.Benchmark)
+public class CheckpointBenchmark {
+
+    static final int KEYS = Integer.getInteger("checkpoint.keys", 10000000);
+
+    // keys per transaction when filling the set to checkpoint
+    private static final int FILL_BATCH = 1 << 16;
+
+    // KEYS sorted keys with random gaps of 1 to 7
+    static int[] sortedKeys() {
+        SplittableRandom random = new SplittableRandom(42);
+        int[] keys = new int[KEYS];
+        int key = 0;
+
+        for (int i = 0; i < KEYS; i++) {
+            key += 1 + random.nextInt(7);
+            keys[i] = key;
+        }
+
+        return keys;
+    }
+
+    // a primitive set holding keys, filled by applyBatch transactions.  on a thread of its own, which takes the
+    // thread-locals the fill leaves behind (the base set's search scratch points into the set) with it
+    static SkipListKey fill(final int[] keys) throws Exception {
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        final SkipListKey.OperationType[] adds = new SkipListKey.OperationType[FILL_BATCH];
+        Arrays.fill(adds, SkipListKey.OperationType.ADD);
+
+        final Exception[] failure = new Exception[1];
+        Thread filler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < keys.length; i += FILL_BATCH) {
+                        final int[] batch = Arrays.copyOfRange(keys, i, Math.min(i + FILL_BATCH, keys.length));
+
+                        TThread.doIt(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws Exception {
+                                set.applyBatch(batch, Arrays.copyOf(adds, batch.length));
+                                return true;
+                            }
+                        });
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        filler.start();
+        filler.join();
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        return set;
+    }
+
+    // a checkpoint of the keys, written once per trial
+    @State(Scope.Benchmark)
+    public static class CheckpointFile {
+
+        @Param({"RAW", "DELTA_VARINT", "BIT_PACKED"})
+        Checkpoint.Encoding encoding;
+
+        @Param({"BOXED", "PRIMITIVE"})
+        SkipListKey.Implementation implementation;
+
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            file = Files.createTempFile("checkpoint", ".bin");
+            Checkpoint.write(fill(sortedKeys()), file, encoding);
+            System.out.printf("%n%s checkpoint of %d keys: %d bytes%n", encoding, KEYS, Files.size(file));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.delete(file);
+        }
+    }
+
+    // the keys, to add one at a time
+    @State(Scope.Benchmark)
+    public static class Keys {
+
+        @Param({"BOXED", "PRIMITIVE"})
+        SkipListKey.Implementation implementation;
+
+        int[] keys;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            keys = sortedKeys();
+        }
+    }
+
+    // a set to checkpoint
+    @State(Scope.Benchmark)
+    public static class Source {
+
+        @Param({"RAW", "DELTA_VARINT", "BIT_PACKED"})
+        Checkpoint.Encoding encoding;
+
+        SkipListKey set;
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            set = fill(sortedKeys());
+            file = Files.createTempFile("checkpoint", ".bin");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.delete(file);
+        }
+    }
+
+    // the set built by the last measurement
+    private SkipListKey built;
+
+    @TearDown(Level.Iteration)
+    public void collect() {
+        built = null;
+        System.gc();
+    }
+
+    @Benchmark
+    public void restore(CheckpointFile checkpoint) throws IOException {
+        built = Checkpoint.restore(checkpoint.file, checkpoint.implementation);
+    }
+
+    @Benchmark
+    public void replayAdds(Keys keys) throws Exception {
+        final SkipListKey set = new SkipListKey(keys.implementation);
+        final int[] values = keys.keys;
+        final int[] next = new int[1];
+
+        // created once, reads the next key so no closure is allocated per transaction
+        Callable<Boolean> add = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.add(values[next[0]]);
+            }
+        };
+
+        for (; next[0] < values.length; next[0]++) {
+            TThread.doIt(add);
+        }
+
+        built = set;
+    }
+
+    @Benchmark
+    public int write(Source source) throws IOException {
+        return Checkpoint.write(source.set, source.file, source.encoding);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * name: DurabilityBenchmark
+ * author: crs
+ * description: JMH benchmark of commit throughput and latency on a durable SkipListKey, for each
+ *              WriteAheadLog.SyncPolicy and for an in-memory set as the baseline.  every thread commits
+ *              transactions that add a random key, or remove it if it was there, so every commit appends a
+ *              record.  runs with 4 threads so group commit has commits to share a force, compare -t 1 to
+ *              see a force per commit.  the log goes to a temporary file, put it on the disk to measure with
+ *              -jvmArgs -Djava.io.tmpdir=...
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.SkipListKey;
+import com.TThread;
+import com.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DurabilityBenchmark {
+
+    public enum Durability {
+        IN_MEMORY,
+        EVERY_COMMIT,
+        INTERVAL,
+        NONE
+    }
+
+    // how often SyncPolicy.INTERVAL forces the log
+    private static final long SYNC_INTERVAL_MS = 10;
+
+    private static final int KEY_RANGE = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class DurableSet {
+
+        @Param({"IN_MEMORY", "EVERY_COMMIT", "INTERVAL", "NONE"})
+        Durability durability;
+
+        SkipListKey set;
+        WriteAheadLog log;
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            if (durability == Durability.IN_MEMORY) {
+                set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+                return;
+            }
+
+            file = Files.createTempFile("durability", ".wal");
+            Files.delete(file);
+            log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.valueOf(durability.name()), SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if (log != null) {
+                System.out.printf("%n%d records, %d syncs, %.1f records per sync%n", log.getRecordCount(), log.getSyncCount(),
+                        log.getSyncCount() == 0 ? 0.0 : (double) log.getRecordCount() / log.getSyncCount());
+                log.close();
+                Files.delete(file);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+
+        int key;
+
+        // created once, reads the key field so no closure is allocated per transaction
+        Callable<Boolean> addOrRemove;
+
+        @Setup
+        public void setup(final DurableSet durable) {
+            addOrRemove = new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return durable.set.add(key) || durable.set.remove(key);
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public Boolean commit(Worker worker) throws Exception {
+        worker.key = ThreadLocalRandom.current().nextInt(KEY_RANGE);
+        return TThread.doIt(worker.addOrRemove);
+    }
+}
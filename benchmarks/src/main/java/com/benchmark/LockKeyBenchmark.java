@@ -0,0 +1,81 @@
+/**
+ * name: LockKeyBenchmark
+ * author: crs
+ * description: JMH microbenchmark for acquiring and releasing abstract locks through LockKey,
+ *              without touching any set.  measures the lock table lookup, reference counting,
+ *              the lock itself, and the release done by the commit handler.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - releases through the transaction's LockSet, as the commit handler now does
+ *
+ */
+
+package com.benchmark;
+
+import com.AbstractLock;
+import com.BoxedLockTable;
+import com.IntLockTable;
+import com.LockKey;
+import com.LockSet;
+import com.SkipListKey;
+import com.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class LockKeyBenchmark {
+
+    @Param({"BOXED", "PRIMITIVE"})
+    SkipListKey.Implementation implementation;
+
+    @Param({"SHARED", "EXCLUSIVE"})
+    AbstractLock.Mode mode;
+
+    // locks held at once before releasing them all, as a multi-operation transaction would
+    @Param({"1", "8"})
+    int locksPerTransaction;
+
+    private static final int KEY_MASK = (1 << 16) - 1;
+
+    private LockKey lockKey;
+    private int nextKey;
+
+    @Setup
+    public void setup() {
+        lockKey = new LockKey((implementation == SkipListKey.Implementation.PRIMITIVE) ? new IntLockTable() : new BoxedLockTable());
+
+        // runs on the benchmark thread, so the thread's transaction is active for the whole trial
+        Transaction.setLocal(new Transaction());
+    }
+
+    @Benchmark
+    public int lockAndRelease() throws Exception {
+        for (int i = 0; i < locksPerTransaction; i++) {
+            lockKey.lock(nextKey++ & KEY_MASK, mode);
+        }
+
+        return releaseAll();
+    }
+
+    // what TThread's commit handler does
+    private static int releaseAll() {
+        LockSet lockSet = Transaction.getLockSet();
+        int released = lockSet.size();
+
+        for (int i = 0; i < released; i++) {
+            lockSet.get(i).release();
+        }
+        lockSet.clear();
+
+        return released;
+    }
+}
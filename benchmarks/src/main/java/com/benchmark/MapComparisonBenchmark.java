@@ -0,0 +1,273 @@
+/**
+ * name: MapComparisonBenchmark
+ * author: crs
+ * description: multi-threaded JMH comparison of the transactionally-boosted map, over a ConcurrentSkipListMap
+ *              and over a ConcurrentHashMap, against a coarse-grained baseline where every operation holds
+ *              one global lock around a TreeMap or HashMap.  each @Group runs reader threads doing get and
+ *              writer threads cycling through put, compute (increment) and remove on the same map, in the
+ *              proportions given by @GroupThreads.  scale the thread counts with -tg as in
+ *              SetComparisonBenchmark, and pick maps with -p type=...
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.BoostedMap;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MapComparisonBenchmark {
+
+    public enum MapType {
+        BOOSTED_SKIP_LIST,
+        BOOSTED_HASH,
+        COARSE_GRAINED_TREE,
+        COARSE_GRAINED_HASH
+    }
+
+    // adds one to the current value, or starts at one
+    static final BiFunction<Integer, Integer, Integer> INCREMENT = new BiFunction<Integer, Integer, Integer>() {
+        @Override
+        public Integer apply(Integer key, Integer value) {
+            return (value == null) ? 1 : value + 1;
+        }
+    };
+
+    // the map under test, shared by every thread of a group
+    @State(Scope.Group)
+    public static class Maps {
+
+        @Param({"BOOSTED_SKIP_LIST", "BOOSTED_HASH", "COARSE_GRAINED_TREE", "COARSE_GRAINED_HASH"})
+        MapType type;
+
+        @Param({"1024", "1048576"})
+        int keyRange;
+
+        TestedMap map;
+
+        @Setup
+        public void setup() throws Exception {
+            switch (type) {
+                case BOOSTED_SKIP_LIST:
+                    map = new BoostedTestedMap(BoostedMap.<Integer, Integer>newSkipListMap());
+                    break;
+                case BOOSTED_HASH:
+                    map = new BoostedTestedMap(BoostedMap.<Integer, Integer>newHashMap());
+                    break;
+                case COARSE_GRAINED_TREE:
+                    map = new CoarseGrainedMap(new TreeMap<Integer, Integer>());
+                    break;
+                default:
+                    map = new CoarseGrainedMap(new HashMap<Integer, Integer>());
+                    break;
+            }
+
+            // prefill half the key range so writes both insert and overwrite
+            Operations prefill = new Operations();
+            for (int i = 0; i < keyRange; i += 2) {
+                map.put(prefill, i, i);
+            }
+        }
+    }
+
+    // per-thread operation state, the boosted map reuses these callables instead of allocating one per operation
+    @State(Scope.Thread)
+    public static class Operations {
+        BoostedMap<Integer, Integer> target;
+        Integer key;
+        Integer value;
+        int nextWrite;
+
+        final Callable<Boolean> get = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.get(key) != null;
+            }
+        };
+
+        final Callable<Boolean> put = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.put(key, value) != null;
+            }
+        };
+
+        final Callable<Boolean> compute = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.compute(key, INCREMENT) != null;
+            }
+        };
+
+        final Callable<Boolean> remove = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.remove(key) != null;
+            }
+        };
+    }
+
+    interface TestedMap {
+        boolean get(Operations ops, int key) throws Exception;
+
+        boolean put(Operations ops, int key, int value) throws Exception;
+
+        boolean compute(Operations ops, int key) throws Exception;
+
+        boolean remove(Operations ops, int key) throws Exception;
+    }
+
+    // every operation is its own transaction, as in com.Main
+    static final class BoostedTestedMap implements TestedMap {
+        private final BoostedMap<Integer, Integer> map;
+
+        BoostedTestedMap(BoostedMap<Integer, Integer> map) {
+            this.map = map;
+        }
+
+        public boolean get(Operations ops, int key) throws Exception {
+            return run(ops, ops.get, key, 0);
+        }
+
+        public boolean put(Operations ops, int key, int value) throws Exception {
+            return run(ops, ops.put, key, value);
+        }
+
+        public boolean compute(Operations ops, int key) throws Exception {
+            return run(ops, ops.compute, key, 0);
+        }
+
+        public boolean remove(Operations ops, int key) throws Exception {
+            return run(ops, ops.remove, key, 0);
+        }
+
+        private boolean run(Operations ops, Callable<Boolean> operation, int key, int value) throws Exception {
+            ops.target = map;
+            ops.key = key;
+            ops.value = value;
+            return Boolean.TRUE.equals(TThread.doIt(operation));
+        }
+    }
+
+    // same scheme as JavaConcurrentSkipList.CoarseGrained, every operation holds one global lock
+    static final class CoarseGrainedMap implements TestedMap {
+        private final Map<Integer, Integer> map;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        CoarseGrainedMap(Map<Integer, Integer> map) {
+            this.map = map;
+        }
+
+        public boolean get(Operations ops, int key) {
+            lock.lock();
+            try {
+                return map.get(key) != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean put(Operations ops, int key, int value) {
+            lock.lock();
+            try {
+                return map.put(key, value) != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean compute(Operations ops, int key) {
+            lock.lock();
+            try {
+                return map.compute(key, INCREMENT) != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean remove(Operations ops, int key) {
+            lock.lock();
+            try {
+                return map.remove(key) != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static boolean read(Maps maps, Operations ops) throws Exception {
+        return maps.map.get(ops, ThreadLocalRandom.current().nextInt(maps.keyRange));
+    }
+
+    private static boolean write(Maps maps, Operations ops) throws Exception {
+        int key = ThreadLocalRandom.current().nextInt(maps.keyRange);
+
+        switch (ops.nextWrite++ % 3) {
+            case 0:
+                return maps.map.put(ops, key, key);
+            case 1:
+                return maps.map.compute(ops, key);
+            default:
+                return maps.map.remove(ops, key);
+        }
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public boolean readHeavyGet(Maps maps, Operations ops) throws Exception {
+        return read(maps, ops);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public boolean readHeavyWrite(Maps maps, Operations ops) throws Exception {
+        return write(maps, ops);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public boolean balancedGet(Maps maps, Operations ops) throws Exception {
+        return read(maps, ops);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public boolean balancedWrite(Maps maps, Operations ops) throws Exception {
+        return write(maps, ops);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public boolean writeHeavyGet(Maps maps, Operations ops) throws Exception {
+        return read(maps, ops);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(3)
+    public boolean writeHeavyWrite(Maps maps, Operations ops) throws Exception {
+        return write(maps, ops);
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * name: ReplicationBenchmark
+ * author: crs
+ * description: JMH benchmark of commit throughput on a durable SkipListKey shipping its log to 0, 1 or 2
+ *              Replicas over loopback, in the same JVM.  every thread commits transactions that add a random
+ *              key, or remove it if it was there.  the log syncs with SyncPolicy.NONE so the disk doesn't hide
+ *              the cost of shipping.  at the end of each trial prints the replication lag percentiles (time
+ *              from shipping a frame to its acknowledgement) and how long the replicas took to catch up
+ *              once the writers stopped
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.LatencyHistogram;
+import com.Replica;
+import com.ReplicationPrimary;
+import com.SkipListKey;
+import com.TThread;
+import com.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ReplicationBenchmark {
+
+    private static final int KEY_RANGE = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class ReplicatedSet {
+
+        @Param({"0", "1", "2"})
+        int replicaCount;
+
+        SkipListKey set;
+        WriteAheadLog log;
+        ReplicationPrimary primary;
+        Replica[] replicas;
+        Path file;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            file = Files.createTempFile("replication", ".wal");
+            Files.delete(file);
+            log = new WriteAheadLog(file, WriteAheadLog.SyncPolicy.NONE, 0, TimeUnit.MILLISECONDS);
+            set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            primary = new ReplicationPrimary(set, new InetSocketAddress(loopback, 0));
+
+            replicas = new Replica[replicaCount];
+            for (int i = 0; i < replicaCount; i++) {
+                replicas[i] = new Replica(new InetSocketAddress(loopback, primary.getPort()), SkipListKey.Implementation.PRIMITIVE);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            long end = log.getSize();
+            long start = System.nanoTime();
+
+            for (Replica replica : replicas) {
+                if (!replica.awaitPosition(end, 1, TimeUnit.MINUTES)) {
+                    throw new IllegalStateException("replica didn't catch up", replica.getFailure());
+                }
+            }
+
+            if (replicaCount > 0) {
+                LatencyHistogram.Snapshot lag = primary.getLagSnapshot();
+                System.out.printf("%n%d records, %d bytes shipped, lag p50 %d us, p99 %d us, max %d us, caught up %d ms after the writers stopped%n",
+                        log.getRecordCount(), primary.getShippedBytes(),
+                        TimeUnit.NANOSECONDS.toMicros(lag.getValueAtPercentile(50)), TimeUnit.NANOSECONDS.toMicros(lag.getValueAtPercentile(99)),
+                        TimeUnit.NANOSECONDS.toMicros(lag.getMaxNanos()), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+
+            for (Replica replica : replicas) {
+                replica.close();
+            }
+            primary.close();
+            log.close();
+            Files.delete(file);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+
+        int key;
+
+        // created once, reads the key field so no closure is allocated per transaction
+        Callable<Boolean> addOrRemove;
+
+        @Setup
+        public void setup(final ReplicatedSet replicated) {
+            addOrRemove = new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return replicated.set.add(key) || replicated.set.remove(key);
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public Boolean commit(Worker worker) throws Exception {
+        worker.key = ThreadLocalRandom.current().nextInt(KEY_RANGE);
+        return TThread.doIt(worker.addOrRemove);
+    }
+}
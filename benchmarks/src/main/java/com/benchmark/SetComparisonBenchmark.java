@@ -0,0 +1,313 @@
+/**
+ * name: SetComparisonBenchmark
+ * author: crs
+ * description: multi-threaded JMH comparison of the transactionally-boosted set against the raw
+ *              ConcurrentSkipListSet it wraps and the coarse-grained (one global lock) baseline from
+ *              JavaConcurrentSkipList.CoarseGrained.  each @Group runs reader threads doing contains
+ *              and writer threads alternating add / remove on the same set, in the proportions given
+ *              by @GroupThreads.  scale the thread counts with -tg, e.g. -tg 2,6 for the readHeavy group
+ *              at 8 threads, and pick sets with -p type=...
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - the generic BoostedSet over a ConcurrentSkipListSet and over ConcurrentHashMap.newKeySet(), to compare
+ *   ordered and hash-based base structures
+ * - BOOSTED_PRIMITIVE_OPTIMISTIC, the primitive set with optimistic (version-validated) contains
+ *
+ */
+
+package com.benchmark;
+
+import com.BoostedSet;
+import com.LockKey;
+import com.SkipListKey;
+import com.TimeoutContentionManager;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SetComparisonBenchmark {
+
+    public enum SetType {
+        BOOSTED,
+        BOOSTED_PRIMITIVE,
+        BOOSTED_PRIMITIVE_OPTIMISTIC,
+        BOOSTED_GENERIC_SKIP_LIST,
+        BOOSTED_GENERIC_HASH,
+        CONCURRENT_SKIP_LIST,
+        COARSE_GRAINED
+    }
+
+    // the set under test, shared by every thread of a group
+    @State(Scope.Group)
+    public static class Sets {
+
+        @Param({"BOOSTED", "BOOSTED_PRIMITIVE", "BOOSTED_PRIMITIVE_OPTIMISTIC", "BOOSTED_GENERIC_SKIP_LIST", "BOOSTED_GENERIC_HASH", "CONCURRENT_SKIP_LIST", "COARSE_GRAINED"})
+        SetType type;
+
+        @Param({"1024", "1048576"})
+        int keyRange;
+
+        TestedSet set;
+
+        @Setup
+        public void setup() throws Exception {
+            switch (type) {
+                case BOOSTED:
+                    set = new SkipListKeySet(new SkipListKey(SkipListKey.Implementation.BOXED));
+                    break;
+                case BOOSTED_PRIMITIVE:
+                    set = new SkipListKeySet(new SkipListKey(SkipListKey.Implementation.PRIMITIVE));
+                    break;
+                case BOOSTED_PRIMITIVE_OPTIMISTIC:
+                    set = new SkipListKeySet(new SkipListKey(SkipListKey.Implementation.PRIMITIVE,
+                            new TimeoutContentionManager(), LockKey.ReadMode.OPTIMISTIC));
+                    break;
+                case BOOSTED_GENERIC_SKIP_LIST:
+                    set = new GenericSet(BoostedSet.<Integer>newSkipListSet());
+                    break;
+                case BOOSTED_GENERIC_HASH:
+                    set = new GenericSet(BoostedSet.<Integer>newHashSet());
+                    break;
+                case CONCURRENT_SKIP_LIST:
+                    set = new RawSet();
+                    break;
+                default:
+                    set = new CoarseGrainedSet();
+                    break;
+            }
+
+            // prefill half the key range so adds and removes both succeed about half the time
+            Operations prefill = new Operations();
+            for (int i = 0; i < keyRange; i += 2) {
+                set.add(prefill, i);
+            }
+        }
+    }
+
+    // per-thread operation state, the boosted set reuses these callables instead of allocating one per operation
+    @State(Scope.Thread)
+    public static class Operations {
+        SkipListKey target;
+        BoostedSet<Integer> genericTarget;
+        int key;
+        boolean addNext = true;
+
+        final Callable<Boolean> add = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.add(key);
+            }
+        };
+
+        final Callable<Boolean> remove = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.remove(key);
+            }
+        };
+
+        final Callable<Boolean> contains = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return target.contains(key);
+            }
+        };
+
+        final Callable<Boolean> genericAdd = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return genericTarget.add(key);
+            }
+        };
+
+        final Callable<Boolean> genericRemove = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return genericTarget.remove(key);
+            }
+        };
+
+        final Callable<Boolean> genericContains = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return genericTarget.contains(key);
+            }
+        };
+    }
+
+    interface TestedSet {
+        boolean add(Operations ops, int key) throws Exception;
+
+        boolean remove(Operations ops, int key) throws Exception;
+
+        boolean contains(Operations ops, int key) throws Exception;
+    }
+
+    // every operation is its own transaction, as in com.Main
+    static final class SkipListKeySet implements TestedSet {
+        private final SkipListKey set;
+
+        SkipListKeySet(SkipListKey set) {
+            this.set = set;
+        }
+
+        public boolean add(Operations ops, int key) throws Exception {
+            return run(ops, ops.add, key);
+        }
+
+        public boolean remove(Operations ops, int key) throws Exception {
+            return run(ops, ops.remove, key);
+        }
+
+        public boolean contains(Operations ops, int key) throws Exception {
+            return run(ops, ops.contains, key);
+        }
+
+        private boolean run(Operations ops, Callable<Boolean> operation, int key) throws Exception {
+            ops.target = set;
+            ops.key = key;
+            return Boolean.TRUE.equals(TThread.doIt(operation));
+        }
+    }
+
+    // the generic BoostedSet, keys are boxed like in any java.util.Set
+    static final class GenericSet implements TestedSet {
+        private final BoostedSet<Integer> set;
+
+        GenericSet(BoostedSet<Integer> set) {
+            this.set = set;
+        }
+
+        public boolean add(Operations ops, int key) throws Exception {
+            return run(ops, ops.genericAdd, key);
+        }
+
+        public boolean remove(Operations ops, int key) throws Exception {
+            return run(ops, ops.genericRemove, key);
+        }
+
+        public boolean contains(Operations ops, int key) throws Exception {
+            return run(ops, ops.genericContains, key);
+        }
+
+        private boolean run(Operations ops, Callable<Boolean> operation, int key) throws Exception {
+            ops.genericTarget = set;
+            ops.key = key;
+            return Boolean.TRUE.equals(TThread.doIt(operation));
+        }
+    }
+
+    static final class RawSet implements TestedSet {
+        private final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<>();
+
+        public boolean add(Operations ops, int key) {
+            return set.add(key);
+        }
+
+        public boolean remove(Operations ops, int key) {
+            return set.remove(key);
+        }
+
+        public boolean contains(Operations ops, int key) {
+            return set.contains(key);
+        }
+    }
+
+    // same scheme as JavaConcurrentSkipList.CoarseGrained, every operation holds one global lock
+    static final class CoarseGrainedSet implements TestedSet {
+        private final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        public boolean add(Operations ops, int key) {
+            lock.lock();
+            try {
+                return set.add(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean remove(Operations ops, int key) {
+            lock.lock();
+            try {
+                return set.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean contains(Operations ops, int key) {
+            lock.lock();
+            try {
+                return set.contains(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static boolean read(Sets sets, Operations ops) throws Exception {
+        return sets.set.contains(ops, ThreadLocalRandom.current().nextInt(sets.keyRange));
+    }
+
+    private static boolean write(Sets sets, Operations ops) throws Exception {
+        int key = ThreadLocalRandom.current().nextInt(sets.keyRange);
+        ops.addNext = !ops.addNext;
+        return ops.addNext ? sets.set.add(ops, key) : sets.set.remove(ops, key);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public boolean readHeavyContains(Sets sets, Operations ops) throws Exception {
+        return read(sets, ops);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public boolean readHeavyWrite(Sets sets, Operations ops) throws Exception {
+        return write(sets, ops);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public boolean balancedContains(Sets sets, Operations ops) throws Exception {
+        return read(sets, ops);
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(2)
+    public boolean balancedWrite(Sets sets, Operations ops) throws Exception {
+        return write(sets, ops);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public boolean writeHeavyContains(Sets sets, Operations ops) throws Exception {
+        return read(sets, ops);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(3)
+    public boolean writeHeavyWrite(Sets sets, Operations ops) throws Exception {
+        return write(sets, ops);
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * name: ShardingBenchmark
+ * author: crs
+ * description: JMH scaling benchmark of a ShardedSet (SHARDS shards, hash or range partitioned) against one
+ *              unsharded SkipListKey.  singleKey transactions add a random key, or remove it if it was
+ *              there, and stay on one shard.  transfer transactions move a key to another random key, so
+ *              most of them span two shards.  run it at every thread count from 1 to the number of cores
+ *              for the scaling curves, e.g. -t 1, -t 2, -t 4 ... -t max
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.ShardedSet;
+import com.SkipListKey;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardingBenchmark {
+
+    public enum Layout {
+        UNSHARDED,
+        HASH,
+        RANGE
+    }
+
+    private static final int SHARDS = 16;
+
+    // spread over the whole int range, so range partitioning uses every shard
+    private static final int KEYS = 1 << 20;
+    private static final int STRIDE = Integer.MAX_VALUE / KEYS * 2;
+
+    // keys per transaction when prefilling
+    private static final int FILL_BATCH = 1 << 12;
+
+    // the set under test, either one SkipListKey or a ShardedSet
+    @State(Scope.Benchmark)
+    public static class Sets {
+
+        @Param({"UNSHARDED", "HASH", "RANGE"})
+        Layout layout;
+
+        SkipListKey unsharded;
+        ShardedSet sharded;
+
+        @Setup
+        public void setup() throws Exception {
+            if (layout == Layout.UNSHARDED) {
+                unsharded = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+            }
+            else {
+                sharded = new ShardedSet(SHARDS, ShardedSet.Partitioning.valueOf(layout.name()), SkipListKey.Implementation.PRIMITIVE);
+            }
+
+            // every other key, so adds and removes both succeed about half the time
+            final SkipListKey.OperationType[] adds = new SkipListKey.OperationType[FILL_BATCH];
+            Arrays.fill(adds, SkipListKey.OperationType.ADD);
+
+            for (int i = 0; i < KEYS; i += 2 * FILL_BATCH) {
+                final int[] batch = new int[FILL_BATCH];
+                for (int j = 0; j < FILL_BATCH; j++) {
+                    batch[j] = key(i + 2 * j);
+                }
+
+                TThread.doIt(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if (unsharded != null) {
+                            unsharded.applyBatch(batch, adds);
+                        }
+                        else {
+                            sharded.applyBatch(batch, adds);
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+
+        boolean add(int key) throws Exception {
+            return (unsharded != null) ? unsharded.add(key) : sharded.add(key);
+        }
+
+        boolean remove(int key) throws Exception {
+            return (unsharded != null) ? unsharded.remove(key) : sharded.remove(key);
+        }
+    }
+
+    // per-thread keys, the callables are created once and read them
+    @State(Scope.Thread)
+    public static class Operations {
+        Sets sets;
+        int from;
+        int to;
+
+        final Callable<Boolean> singleKey = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return sets.add(from) || sets.remove(from);
+            }
+        };
+
+        final Callable<Boolean> transfer = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (sets.remove(from)) {
+                    sets.add(to);
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        @Setup
+        public void setup(Sets sets) {
+            this.sets = sets;
+        }
+
+        void pickKeys() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            from = key(random.nextInt(KEYS));
+            to = key(random.nextInt(KEYS));
+        }
+    }
+
+    private static int key(int index) {
+        return Integer.MIN_VALUE + index * STRIDE;
+    }
+
+    @Benchmark
+    public Boolean singleKey(Operations operations) throws Exception {
+        operations.pickKeys();
+        return TThread.doIt(operations.singleKey, TThread.UNLIMITED_ATTEMPTS, null);
+    }
+
+    @Benchmark
+    public Boolean transfer(Operations operations) throws Exception {
+        operations.pickKeys();
+        return TThread.doIt(operations.transfer, TThread.UNLIMITED_ATTEMPTS, null);
+    }
+}
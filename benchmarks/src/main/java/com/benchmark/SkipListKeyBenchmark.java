@@ -0,0 +1,185 @@
+/**
+ * name: SkipListKeyBenchmark
+ * author: crs
+ * description: JMH microbenchmark for single-operation transactions on SkipListKey, one thread,
+ *              keys drawn uniformly from a set prefilled to half of its key range.  each operation
+ *              runs through TThread.doIt, the way the benchmark driver runs them.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - range and ceiling, range scans over RANGE_WIDTH keys (half of them present) take a single range lock
+ * - batch and unbatched, BATCH_SIZE random adds / removes / contains as one applyBatch transaction vs. a
+ *   transaction per key.  both are reported per key
+ *
+ */
+
+package com.benchmark;
+
+import com.SkipListKey;
+import com.TThread;
+import com.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class SkipListKeyBenchmark {
+
+    // width of the key range scanned by range
+    private static final int RANGE_WIDTH = 1024;
+
+    // keys per batch
+    private static final int BATCH_SIZE = 256;
+
+    private static final SkipListKey.OperationType[] BATCH_TYPES = {
+            SkipListKey.OperationType.ADD, SkipListKey.OperationType.REMOVE, SkipListKey.OperationType.CONTAINS
+    };
+
+    @Param({"BOXED", "PRIMITIVE"})
+    SkipListKey.Implementation implementation;
+
+    @Param({"1024", "1048576"})
+    int keyRange;
+
+    private SkipListKey set;
+    private int key;
+
+    // created once, read the key field so no closure is allocated per operation
+    private Callable<Boolean> add;
+    private Callable<Boolean> remove;
+    private Callable<Boolean> contains;
+    private Callable<Boolean> range;
+    private Callable<Boolean> ceiling;
+    private Callable<Boolean> batch;
+
+    private final int[] batchKeys = new int[BATCH_SIZE];
+    private final SkipListKey.OperationType[] batchTypes = new SkipListKey.OperationType[BATCH_SIZE];
+
+    @Setup
+    public void setup() throws Exception {
+        set = new SkipListKey(implementation);
+
+        add = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.add(key);
+            }
+        };
+        remove = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.remove(key);
+            }
+        };
+        contains = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.contains(key);
+            }
+        };
+        range = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.range(key, key + RANGE_WIDTH - 1).length > 0;
+            }
+        };
+        ceiling = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.ceiling(key).isPresent();
+            }
+        };
+        batch = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.applyBatch(batchKeys, batchTypes)[0];
+            }
+        };
+
+        for (int i = 0; i < keyRange; i += 2) {
+            key = i;
+            TThread.doIt(add);
+        }
+    }
+
+    @Benchmark
+    public Boolean add() throws Exception {
+        key = ThreadLocalRandom.current().nextInt(keyRange);
+        return TThread.doIt(add);
+    }
+
+    @Benchmark
+    public Boolean remove() throws Exception {
+        key = ThreadLocalRandom.current().nextInt(keyRange);
+        return TThread.doIt(remove);
+    }
+
+    @Benchmark
+    public Boolean contains() throws Exception {
+        key = ThreadLocalRandom.current().nextInt(keyRange);
+        return TThread.doIt(contains);
+    }
+
+    @Benchmark
+    public Boolean range() throws Exception {
+        key = ThreadLocalRandom.current().nextInt(keyRange);
+        return TThread.doIt(range);
+    }
+
+    @Benchmark
+    public Boolean ceiling() throws Exception {
+        key = ThreadLocalRandom.current().nextInt(keyRange);
+        return TThread.doIt(ceiling);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Boolean batch() throws Exception {
+        fillBatch();
+        return TThread.doIt(batch);
+    }
+
+    // the same operations, each in its own transaction
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public Boolean unbatched() throws Exception {
+        fillBatch();
+
+        Boolean result = null;
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            key = batchKeys[i];
+
+            switch (batchTypes[i]) {
+                case ADD:
+                    result = TThread.doIt(add);
+                    break;
+                case REMOVE:
+                    result = TThread.doIt(remove);
+                    break;
+                default:
+                    result = TThread.doIt(contains);
+                    break;
+            }
+        }
+
+        return result;
+    }
+
+    private void fillBatch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batchKeys[i] = random.nextInt(keyRange);
+            batchTypes[i] = BATCH_TYPES[random.nextInt(BATCH_TYPES.length)];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * name: SnapshotReadBenchmark
+ * author: crs
+ * description: JMH benchmark of read-only transaction latency under write contention, reading a set that
+ *              locks its reads (LockKey.ReadMode.LOCKED) against one whose read-only transactions read a
+ *              snapshot (ReadMode.SNAPSHOT).  a reader checks READ_KEYS keys in one TThread.doItReadOnly
+ *              transaction while writers flip batches of BATCH keys from the same HOT_KEYS hot keys.  the
+ *              @Groups run one reader against one and against three writers, look at the read method's
+ *              percentiles: locked reads queue behind the writers, snapshot reads should stay flat.  scale
+ *              the writers further with -tg, e.g. -tg 1,7
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com.benchmark;
+
+import com.DeadlockDetectingContentionManager;
+import com.LockKey;
+import com.SkipListKey;
+import com.TThread;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotReadBenchmark {
+
+    private static final int HOT_KEYS = 64;
+    private static final int READ_KEYS = 8;
+    private static final int BATCH = 8;
+
+    // the set under test, shared by every thread of a group
+    @State(Scope.Group)
+    public static class HotSet {
+
+        @Param({"LOCKED", "SNAPSHOT"})
+        LockKey.ReadMode readMode;
+
+        SkipListKey set;
+
+        @Setup
+        public void setup() throws Exception {
+            set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, new DeadlockDetectingContentionManager(), readMode);
+
+            for (int i = 0; i < HOT_KEYS; i += 2) {
+                final int key = i;
+                TThread.doIt(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return set.add(key);
+                    }
+                });
+            }
+        }
+    }
+
+    // per-thread transaction state, the callables are created once and read the keys from their fields
+    @State(Scope.Thread)
+    public static class Operations {
+        final int[] keys = new int[Math.max(READ_KEYS, BATCH)];
+        final SkipListKey.OperationType[] ops = new SkipListKey.OperationType[BATCH];
+        SkipListKey set;
+
+        final Callable<Boolean> read = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                boolean any = false;
+                for (int i = 0; i < READ_KEYS; i++) {
+                    any |= set.contains(keys[i]);
+                }
+                return any;
+            }
+        };
+
+        final Callable<Boolean> write = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                set.applyBatch(Arrays.copyOf(keys, BATCH), ops);
+                return true;
+            }
+        };
+
+        @Setup
+        public void setup(HotSet hot) {
+            set = hot.set;
+        }
+
+        void pickKeys(int count) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < count; i++) {
+                keys[i] = random.nextInt(HOT_KEYS);
+            }
+        }
+    }
+
+    private static Boolean read(Operations operations) throws Exception {
+        operations.pickKeys(READ_KEYS);
+        return TThread.doItReadOnly(operations.read, TThread.UNLIMITED_ATTEMPTS, null);
+    }
+
+    // adds or removes each key of the batch, so every writer keeps changing the hot keys
+    private static Boolean write(Operations operations) throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        operations.pickKeys(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            operations.ops[i] = random.nextBoolean() ? SkipListKey.OperationType.ADD : SkipListKey.OperationType.REMOVE;
+        }
+        return TThread.doIt(operations.write, TThread.UNLIMITED_ATTEMPTS, null);
+    }
+
+    @Benchmark
+    @Group("oneWriter")
+    @GroupThreads(1)
+    public Boolean oneWriterRead(Operations operations) throws Exception {
+        return read(operations);
+    }
+
+    @Benchmark
+    @Group("oneWriter")
+    @GroupThreads(1)
+    public Boolean oneWriterWrite(Operations operations) throws Exception {
+        return write(operations);
+    }
+
+    @Benchmark
+    @Group("threeWriters")
+    @GroupThreads(1)
+    public Boolean threeWritersRead(Operations operations) throws Exception {
+        return read(operations);
+    }
+
+    @Benchmark
+    @Group("threeWriters")
+    @GroupThreads(3)
+    public Boolean threeWritersWrite(Operations operations) throws Exception {
+        return write(operations);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * name: TransactionBenchmark
+ * author: crs
+ * description: JMH microbenchmark for the transaction lifecycle driven by TThread.doIt: begin,
+ *              validate and commit an empty transaction, commit one with an undo log entry, and
+ *              begin and abort one.  no abstract locks are taken, see LockKeyBenchmark for those.
+ *
+ * extra info: the lifecycle shouldn't allocate in steady state.  main runs these benchmarks with JMH's gc
+ *             profiler and fails if any allocates more than MAX_BYTES_PER_OPERATION per transaction:
+ *
+ *                 java -cp target/benchmarks.jar com.benchmark.TransactionBenchmark
+ *
+ *             or add -prof gc to any run and look at gc.alloc.rate.norm
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - main, to check allocation per transaction
+ *
+ */
+
+package com.benchmark;
+
+import com.AbortedException;
+import com.TThread;
+import com.Transaction;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class TransactionBenchmark {
+
+    // allowance for JMH's own measurement noise, the lifecycle itself should allocate nothing
+    private static final double MAX_BYTES_PER_OPERATION = 1;
+
+    // thrown without allocating, so the abort benchmark measures the rollback and not the stack walk
+    private static final AbortedException ABORTED = new AbortedException();
+
+    private static final Callable<Boolean> NOOP = new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+            return true;
+        }
+    };
+
+    private static final Callable<Boolean> LOG_UNDO = new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+            Transaction.getLocal().logUndo(NOOP);
+            return true;
+        }
+    };
+
+    private static final Callable<Boolean> ABORT = new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+            Transaction.getLocal().logUndo(NOOP);
+            throw ABORTED;
+        }
+    };
+
+    @Benchmark
+    public Boolean beginCommit() throws Exception {
+        return TThread.doIt(NOOP);
+    }
+
+    @Benchmark
+    public Boolean beginCommitWithUndo() throws Exception {
+        return TThread.doIt(LOG_UNDO);
+    }
+
+    @Benchmark
+    public Boolean beginAbort() throws Exception {
+        return TThread.doIt(ABORT);
+    }
+
+    // runs every benchmark with the gc profiler and fails if a transaction allocates
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(TransactionBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+        boolean allocating = false;
+
+        for (RunResult result : results) {
+            Result allocated = result.getSecondaryResults().get("gc.alloc.rate.norm");
+            String name = result.getParams().getBenchmark();
+
+            System.out.printf("%s: %.2f bytes per transaction%n", name, allocated.getScore());
+            if (allocated.getScore() > MAX_BYTES_PER_OPERATION) {
+                allocating = true;
+            }
+        }
+
+        if (allocating) {
+            System.err.println("transaction lifecycle allocates");
+            System.exit(1);
+        }
+    }
+}
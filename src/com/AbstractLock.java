@@ -0,0 +1,353 @@
+/**
+ * name: AbstractLock
+ * author: crs
+ * description: abstract (semantic) lock handed out by a LockTable for a single key.  it can be held
+ *              SHARED by any number of transactions (operations that commute with each other, like
+ *              contains) or EXCLUSIVE by one (mutations).  a transaction holding it shared can upgrade
+ *              to exclusive once it is the only holder.  besides the lock itself it carries a reference
+ *              count of the transactions holding or waiting on it, so the table can reclaim the entry
+ *              as soon as nobody needs it anymore.
+ *
+ * extra info: the reference count moves 1 -> n while the lock is in use.  when the last reference is
+ *             dropped it is 0, and the table then tries to move it from 0 to -1 (dead) before removing
+ *             it.  a dead lock can never be retained again, so a transaction that raced with the removal
+ *             retries and either finds or creates the replacement entry.  this guarantees two transactions
+ *             can never hold different locks for the same key.
+ *
+ *             the lock state is an AbstractQueuedSynchronizer state: 0 free, n > 0 held shared by n
+ *             transactions, -1 held exclusively.  an upgrade is a 1 -> -1 transition.  only one holder
+ *             may wait to upgrade at a time, two shared holders that both wait to upgrade would wait on
+ *             each other forever, so the second one gets Upgrade.CONFLICT straight away and LockKey aborts
+ *             its transaction without consulting the contention manager, which releases its shared hold.
+ *             the upgrader polls rather than joining the queue, a queued writer ahead of it could
+ *             otherwise never be woken since the upgrader's own shared hold keeps the lock busy.
+ *
+ *             asynchronous transactions don't queue at all, they leave a continuation with whenReleased
+ *             and give their thread back.  continuations are a stack that stays null until one is left,
+ *             and every release that frees the lock runs all of them.  a continuation left just as the
+ *             last holder releases sees the lock free and runs straight away, so none is ever stranded.
+ *
+ * Edit History:
+ * - Created by crs on 4/21/17.
+ *
+ * Updates:
+ * - shared / exclusive modes with upgrade, built on AbstractQueuedSynchronizer instead of ReentrantLock
+ * - tracks its owning transaction and an average exclusive hold time for the ContentionManager
+ * - whenReleased, runs a continuation once the lock is free instead of blocking a thread until then
+ * - tryUpgrade tells a conflicting upgrade apart from one that timed out, so the loser aborts instead of retrying
+ * - Sync declares a serialVersionUID, AbstractQueuedSynchronizer is serializable
+ *
+ */
+
+package com;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import java.util.concurrent.locks.LockSupport;
+
+public class AbstractLock {
+
+    // lock modes, SHARED for operations that commute with each other, EXCLUSIVE for the rest
+    public enum Mode {
+        SHARED,
+        EXCLUSIVE
+    }
+
+    // outcomes of tryUpgrade
+    public enum Upgrade {
+        UPGRADED,
+        // the other holders didn't let go in time, trying again may work
+        TIMED_OUT,
+        // another holder is already waiting to upgrade, trying again never will
+        CONFLICT
+    }
+
+    private static final AtomicIntegerFieldUpdater<AbstractLock> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractLock.class, "references");
+    private static final AtomicReferenceFieldUpdater<AbstractLock, Thread> UPGRADER =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractLock.class, Thread.class, "upgrader");
+    private static final AtomicReferenceFieldUpdater<AbstractLock, Continuation> CONTINUATIONS =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractLock.class, Continuation.class, "continuations");
+
+    // arguments to Sync.tryAcquire
+    private static final int ACQUIRE = 0;
+    private static final int UPGRADE = 1;
+
+    // bounds on how long an upgrader parks between polls
+    private static final long MIN_UPGRADE_PARK_NS = 1000;
+    private static final long MAX_UPGRADE_PARK_NS = 1000000;
+
+    final int key;
+    private final LockTable table;
+    private final Sync sync;
+
+    // created already retained by the transaction that created it
+    private volatile int references = 1;
+
+    // shared holder currently waiting to upgrade, if any
+    private volatile Thread upgrader;
+
+    // transaction holding the lock exclusively, or the latest one to take it shared.  may briefly be
+    // stale after a release, so contention managers only use it as a hint
+    private volatile Transaction owner;
+
+    // when the current exclusive hold started, and a moving average of exclusive hold times
+    private volatile long acquiredAt;
+    private volatile long averageHoldNanos;
+
+    // continuations left by whenReleased, latest first.  null while nobody waits asynchronously
+    private volatile Continuation continuations;
+
+    AbstractLock(int key, LockTable table) {
+        this.key = key;
+        this.table = table;
+        this.sync = new Sync();
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public boolean tryLock(Mode mode, long timeout, TimeUnit unit) throws InterruptedException {
+        if (mode == Mode.SHARED) {
+            return sync.tryAcquireSharedNanos(1, unit.toNanos(timeout));
+        }
+        return sync.tryAcquireNanos(ACQUIRE, unit.toNanos(timeout));
+    }
+
+    // upgrades a shared hold by the current thread to exclusive.  returns CONFLICT immediately if another
+    // holder is already waiting to upgrade, since neither could ever proceed
+    public Upgrade tryUpgrade(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!UPGRADER.compareAndSet(this, null, Thread.currentThread())) {
+            return Upgrade.CONFLICT;
+        }
+
+        try {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long park = MIN_UPGRADE_PARK_NS;
+
+            while (!sync.tryAcquire(UPGRADE)) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    return Upgrade.TIMED_OUT;
+                }
+
+                LockSupport.parkNanos(this, Math.min(park, remaining));
+                park = Math.min(park * 2, MAX_UPGRADE_PARK_NS);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+
+            return Upgrade.UPGRADED;
+        } finally {
+            upgrader = null;
+
+            // readers that queued while we were upgrading may be able to go now
+            sync.releaseShared(0);
+        }
+    }
+
+    // records the transaction that now holds the lock, called by LockKey after acquiring it
+    void setOwner(Transaction transaction) {
+        owner = transaction;
+        if (sync.isHeldExclusively()) {
+            acquiredAt = System.nanoTime();
+        }
+    }
+
+    public Transaction getOwner() {
+        return owner;
+    }
+
+    // moving average of how long the lock is held exclusively, 0 until it has been released once
+    public long getAverageHoldNanos() {
+        return averageHoldNanos;
+    }
+
+    // how long the current exclusive holder has held the lock, 0 if not held exclusively
+    public long getCurrentHoldNanos() {
+        return (sync.state() < 0) ? System.nanoTime() - acquiredAt : 0;
+    }
+
+    public boolean isHeldExclusively() {
+        return sync.isHeldExclusively();
+    }
+
+    // number of transactions holding the lock shared, -1 if held exclusively
+    public int getHoldCount() {
+        return sync.state();
+    }
+
+    // unlocks whichever mode is held
+    public void unlock() {
+        if (sync.isHeldExclusively()) {
+            // exponential moving average with weight 1/8
+            long held = System.nanoTime() - acquiredAt;
+            long average = averageHoldNanos;
+            averageHoldNanos = (average == 0) ? held : average + (held - average) / 8;
+
+            owner = null;
+            sync.release(1);
+        }
+        else {
+            sync.releaseShared(1);
+            if (sync.state() == 0) {
+                owner = null;
+            }
+        }
+
+        if (continuations != null && sync.state() == 0) {
+            resumeContinuations();
+        }
+    }
+
+    // runs continuation once the lock is next free, on the thread that frees it, or now if it is free
+    // already.  the lock may be taken again before the continuation gets to it, so it should try again and
+    // leave another continuation if it has to.  continuations should only hand their work to an executor
+    public void whenReleased(Runnable continuation) {
+        Continuation head;
+        do {
+            head = continuations;
+        } while (!CONTINUATIONS.compareAndSet(this, head, new Continuation(continuation, head)));
+
+        // a release before the push didn't see it
+        if (sync.state() == 0) {
+            resumeContinuations();
+        }
+    }
+
+    // runs every continuation left so far, oldest first
+    private void resumeContinuations() {
+        Continuation latest = CONTINUATIONS.getAndSet(this, null);
+        Continuation oldest = null;
+
+        while (latest != null) {
+            Continuation next = latest.next;
+            latest.next = oldest;
+            oldest = latest;
+            latest = next;
+        }
+
+        for (; oldest != null; oldest = oldest.next) {
+            oldest.task.run();
+        }
+    }
+
+    // unlocks and hands the reference taken when the lock was acquired back to the table
+    public void release() {
+        unlock();
+        table.release(this);
+    }
+
+    // takes a reference, fails if the lock is dead and about to be removed from its table
+    boolean retain() {
+        while (true) {
+            int current = references;
+
+            if (current < 0) {
+                return false;
+            }
+
+            if (REFERENCES.compareAndSet(this, current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    // drops a reference, returns true if it was the last one
+    boolean dropReference() {
+        return REFERENCES.decrementAndGet(this) == 0;
+    }
+
+    // marks an unreferenced lock as dead, fails if it was retained again in the meantime
+    boolean kill() {
+        return REFERENCES.compareAndSet(this, 0, -1);
+    }
+
+    private static final class Continuation {
+        final Runnable task;
+        Continuation next;
+
+        Continuation(Runnable task, Continuation next) {
+            this.task = task;
+            this.next = next;
+        }
+    }
+
+    private final class Sync extends AbstractQueuedSynchronizer {
+
+        private static final long serialVersionUID = 1L;
+
+        int state() {
+            return getState();
+        }
+
+        // also called directly (without queueing) by upgraders
+        @Override
+        protected boolean tryAcquire(int arg) {
+            int expected = (arg == UPGRADE) ? 1 : 0;
+
+            if (compareAndSetState(expected, -1)) {
+                setExclusiveOwnerThread(Thread.currentThread());
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        protected boolean tryRelease(int arg) {
+            setExclusiveOwnerThread(null);
+            setState(0);
+            return true;
+        }
+
+        @Override
+        protected int tryAcquireShared(int arg) {
+            // new readers queue behind waiting writers and upgraders so they can't be starved
+            if (upgrader != null || hasQueuedPredecessors()) {
+                return -1;
+            }
+
+            while (true) {
+                int current = getState();
+
+                if (current < 0) {
+                    return -1;
+                }
+
+                if (compareAndSetState(current, current + 1)) {
+                    return 1;
+                }
+            }
+        }
+
+        // an arg of 0 releases nothing and only wakes queued threads
+        @Override
+        protected boolean tryReleaseShared(int arg) {
+            if (arg == 0) {
+                return true;
+            }
+
+            while (true) {
+                int current = getState();
+                int next = current - 1;
+
+                if (compareAndSetState(current, next)) {
+                    // only a free lock can let a queued writer in
+                    return next == 0;
+                }
+            }
+        }
+
+        @Override
+        protected boolean isHeldExclusively() {
+            return getState() < 0 && getExclusiveOwnerThread() == Thread.currentThread();
+        }
+    }
+}
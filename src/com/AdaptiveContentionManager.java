@@ -0,0 +1,49 @@
+/**
+ * name: AdaptiveContentionManager
+ * author: crs
+ * description: waits for a busy lock for a timeout derived from observed hold times instead of a
+ *              fixed one.  the timeout is a multiple of the lock's own average exclusive hold time
+ *              when it has one, or else of the average wait seen across this set's locks, clamped to
+ *              [MIN_TIMEOUT_NS, MAX_TIMEOUT_NS].  a waiter that exceeds it is very likely stuck
+ *              behind a deadlock or a stalled owner, so it aborts.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+public class AdaptiveContentionManager implements ContentionManager {
+
+    private static final long MIN_TIMEOUT_NS = 50000;
+    private static final long MAX_TIMEOUT_NS = 10000000000L;
+    private static final long INITIAL_AVERAGE_NS = 1000000;
+    private static final int HOLD_TIME_MULTIPLIER = 8;
+
+    // moving average of successful waits, racy updates only lose samples
+    private volatile long averageWaitNanos = INITIAL_AVERAGE_NS;
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        long expected = Math.max(lock.getAverageHoldNanos(), averageWaitNanos);
+        long timeout = Math.max(MIN_TIMEOUT_NS, Math.min(MAX_TIMEOUT_NS, expected * HOLD_TIME_MULTIPLIER));
+
+        if (waitedNanos >= timeout) {
+            return ABORT;
+        }
+
+        return timeout - waitedNanos;
+    }
+
+    public void onAcquired(Transaction me, AbstractLock lock, long waitedNanos) {
+        // exponential moving average with weight 1/16
+        long average = averageWaitNanos;
+        averageWaitNanos = average + (waitedNanos - average) / 16;
+    }
+
+    public long getAverageWaitNanos() {
+        return averageWaitNanos;
+    }
+}
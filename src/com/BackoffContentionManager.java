@@ -0,0 +1,52 @@
+/**
+ * name: BackoffContentionManager
+ * author: crs
+ * description: waits for a busy lock in randomized, exponentially growing slices and aborts once
+ *              a maximum number of attempts have failed.  short conflicts resolve in the first few
+ *              microseconds, long ones end in an abort instead of a multi-second stall.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BackoffContentionManager implements ContentionManager {
+
+    private static final long DEFAULT_MIN_WAIT_NS = 2000;
+    private static final long DEFAULT_MAX_WAIT_NS = 16000000;
+    private static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+    private final long minWaitNanos;
+    private final long maxWaitNanos;
+    private final int maxAttempts;
+
+    public BackoffContentionManager() {
+        this(DEFAULT_MIN_WAIT_NS, DEFAULT_MAX_WAIT_NS, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public BackoffContentionManager(long minWaitNanos, long maxWaitNanos, int maxAttempts) {
+        this.minWaitNanos = minWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        if (attempt >= maxAttempts) {
+            return ABORT;
+        }
+
+        return backoff(minWaitNanos, maxWaitNanos, attempt);
+    }
+
+    // random wait in [limit / 2, limit], limit doubling with each attempt up to max
+    static long backoff(long min, long max, int attempt) {
+        long limit = (attempt >= 62) ? max : Math.min(max, min << attempt);
+        return limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1);
+    }
+}
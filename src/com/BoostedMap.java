@@ -0,0 +1,232 @@
+/**
+ * name: BoostedMap
+ * author: crs
+ * description: transactionally-boosted map.  wraps a ConcurrentMap as the base structure and makes get, put,
+ *              putIfAbsent, remove, replace and compute transactional with an abstract lock per key, the
+ *              same way BoostedSet does for sets.  newSkipListMap() boosts a ConcurrentSkipListMap, for
+ *              ordered keys, and newHashMap() a ConcurrentHashMap.
+ *
+ * acknowledgements: transactional boosting as described by Herlihy and Koskinen
+ *
+ * extra info: every write returns (or can read) the value it replaced, so its inverse simply puts that
+ *             value back, or removes the key if there was none.  the inverse keeps a reference to the old
+ *             value, values are never copied, so callers must not mutate a value once it is in the map.
+ *             since the transaction holds the key's lock exclusively until it commits or aborts, nobody
+ *             else can have changed the entry by the time the inverse runs.
+ *
+ *             reads take the key's lock SHARED and writes EXCLUSIVE, keyed by hashCode through an
+ *             IntLockTable as in BoostedSet.  the base map does not allow null keys or values.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - defaults to the DeadlockDetectingContentionManager
+ * - records its latencies under its own OperationType rather than the sets' ones
+ *
+ */
+
+package com;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+
+public class BoostedMap<K, V> {
+
+    // map operations, timed separately from the sets' SkipListKey.OperationType
+    public enum OperationType {
+        GET,
+        PUT,
+        PUT_IF_ABSENT,
+        REMOVE,
+        REPLACE,
+        COMPUTE
+    }
+
+    private final ConcurrentMap<K, V> base;
+    private final LockKey lock;
+
+    public BoostedMap(ConcurrentMap<K, V> base) {
+        this(base, new DeadlockDetectingContentionManager());
+    }
+
+    public BoostedMap(ConcurrentMap<K, V> base, ContentionManager contentionManager) {
+        this.base = base;
+        this.lock = new LockKey(new IntLockTable(), contentionManager);
+    }
+
+    // boosted ConcurrentSkipListMap, ordered by the keys' natural ordering
+    public static <K extends Comparable<? super K>, V> BoostedMap<K, V> newSkipListMap() {
+        return newSkipListMap(new DeadlockDetectingContentionManager());
+    }
+
+    public static <K extends Comparable<? super K>, V> BoostedMap<K, V> newSkipListMap(ContentionManager contentionManager) {
+        return new BoostedMap<K, V>(new ConcurrentSkipListMap<K, V>(), contentionManager);
+    }
+
+    // boosted ConcurrentHashMap, unordered
+    public static <K, V> BoostedMap<K, V> newHashMap() {
+        return newHashMap(new DeadlockDetectingContentionManager());
+    }
+
+    public static <K, V> BoostedMap<K, V> newHashMap(ContentionManager contentionManager) {
+        return new BoostedMap<K, V>(new ConcurrentHashMap<K, V>(), contentionManager);
+    }
+
+    // number of entries in the base map, not transactional
+    public int size() {
+        return base.size();
+    }
+
+    // number of abstract locks currently in the lock table
+    public int getLockTableSize() {
+        return lock.size();
+    }
+
+    // the value for key, or null.  reads commute with each other, so the lock is taken shared
+    public V get(K key) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.SHARED);
+        V value = base.get(key);
+
+        MetricsRegistry.stopTimer(OperationType.GET, start);
+
+        return value;
+    }
+
+    public boolean containsKey(K key) throws AbortedException {
+        return get(key) != null;
+    }
+
+    // maps key to value, returns the previous value or null
+    public V put(K key, V value) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.EXCLUSIVE);
+        V previous = base.put(key, value);
+        logRestore(key, previous);
+
+        MetricsRegistry.stopTimer(OperationType.PUT, start);
+
+        return previous;
+    }
+
+    // maps key to value unless it is already mapped, returns the existing value or null
+    public V putIfAbsent(K key, V value) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.EXCLUSIVE);
+        V previous = base.putIfAbsent(key, value);
+
+        // only an insert changed the map
+        if (previous == null) {
+            logRestore(key, null);
+        }
+
+        MetricsRegistry.stopTimer(OperationType.PUT_IF_ABSENT, start);
+
+        return previous;
+    }
+
+    // removes key, returns its value or null
+    public V remove(K key) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.EXCLUSIVE);
+        V previous = base.remove(key);
+
+        if (previous != null) {
+            logRestore(key, previous);
+        }
+
+        MetricsRegistry.stopTimer(OperationType.REMOVE, start);
+
+        return previous;
+    }
+
+    // maps key to value only if it is already mapped, returns the previous value or null
+    public V replace(K key, V value) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.EXCLUSIVE);
+        V previous = base.replace(key, value);
+
+        if (previous != null) {
+            logRestore(key, previous);
+        }
+
+        MetricsRegistry.stopTimer(OperationType.REPLACE, start);
+
+        return previous;
+    }
+
+    // maps key to remapping(key, current value or null), or removes it if that returns null.  returns the
+    // new value.  remapping runs once, while the transaction holds the key's lock
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remapping) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, AbstractLock.Mode.EXCLUSIVE);
+
+        // nobody else can write key while we hold its lock, so a plain read-then-write is atomic
+        V previous = base.get(key);
+        V value = remapping.apply(key, previous);
+
+        if (value != null) {
+            base.put(key, value);
+        }
+        else if (previous != null) {
+            base.remove(key);
+        }
+
+        if (value != previous) {
+            logRestore(key, previous);
+        }
+
+        MetricsRegistry.stopTimer(OperationType.COMPUTE, start);
+
+        return value;
+    }
+
+    // records the inverse of a write to key that replaced previous (null if key was absent)
+    private void logRestore(K key, V previous) {
+        Transaction.getLocal().logUndo(new Restore<K, V>(base, key, previous));
+    }
+
+    // acquires the abstract lock for key, treating an interrupt while waiting as an abort
+    private void acquire(K key, AbstractLock.Mode mode) throws AbortedException {
+        try {
+            lock.lock(key.hashCode(), mode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted waiting for lock on " + key);
+        }
+    }
+
+    // puts the previous value of key back, or removes key if it had none.  only invoked during abort,
+    // while the transaction still holds the abstract lock for key
+    private static final class Restore<K, V> implements Callable<Boolean> {
+        private final ConcurrentMap<K, V> base;
+        private final K key;
+        private final V previous;
+
+        Restore(ConcurrentMap<K, V> base, K key, V previous) {
+            this.base = base;
+            this.key = key;
+            this.previous = previous;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            if (previous == null) {
+                return base.remove(key) != null;
+            }
+
+            base.put(key, previous);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * name: BoostedSet
+ * author: crs
+ * description: generic transactionally-boosted set.  wraps any thread-safe (linearizable) java.util.Set as
+ *              the base structure, and makes its operations transactional with abstract locks and the
+ *              inverses given by an InverseMapping, with the same abstract locking SkipListKey uses.
+ *              newSkipListSet() boosts a ConcurrentSkipListSet, for ordered keys, and newHashSet() boosts
+ *              ConcurrentHashMap.newKeySet(), for O(1) membership when ordering isn't needed.
+ *
+ * acknowledgements: transactional boosting as described by Herlihy and Koskinen
+ *
+ * extra info: abstract locks are keyed by the key's hashCode, through the same IntLockTable as SkipListKey,
+ *             so no lock is allocated per key.  two keys with the same hash share a lock; that only adds
+ *             conflicts, never misses one, since operations on different keys commute anyway.
+ *             keys must be immutable while in the set, as with any hash-based or sorted collection.
+ *
+ *             only add, remove and contains are boosted, with locked reads.  unlike SkipListKey there are no
+ *             ordered reads (range, ceiling, forEach) or applyBatch, no optimistic or snapshot reads, no
+ *             WriteAheadLog, Checkpoint or replication, no asynchronous operations, and a read-only
+ *             transaction (TThread.doItReadOnly) isn't stopped from adding or removing.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - defaults to the DeadlockDetectingContentionManager
+ *
+ */
+
+package com;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class BoostedSet<K> {
+
+    private final Set<K> base;
+    private final InverseMapping<K> inverses;
+    private final LockKey lock;
+
+    public BoostedSet(Set<K> base) {
+        this(base, new SetInverseMapping<K>(), new DeadlockDetectingContentionManager());
+    }
+
+    public BoostedSet(Set<K> base, InverseMapping<K> inverses, ContentionManager contentionManager) {
+        this.base = base;
+        this.inverses = inverses;
+        this.lock = new LockKey(new IntLockTable(), contentionManager);
+    }
+
+    // boosted ConcurrentSkipListSet, ordered by the keys' natural ordering
+    public static <K extends Comparable<? super K>> BoostedSet<K> newSkipListSet() {
+        return newSkipListSet(new DeadlockDetectingContentionManager());
+    }
+
+    public static <K extends Comparable<? super K>> BoostedSet<K> newSkipListSet(ContentionManager contentionManager) {
+        return new BoostedSet<K>(new ConcurrentSkipListSet<K>(), new SetInverseMapping<K>(), contentionManager);
+    }
+
+    // boosted ConcurrentHashMap.newKeySet(), unordered
+    public static <K> BoostedSet<K> newHashSet() {
+        return newHashSet(new DeadlockDetectingContentionManager());
+    }
+
+    public static <K> BoostedSet<K> newHashSet(ContentionManager contentionManager) {
+        return new BoostedSet<K>(ConcurrentHashMap.<K>newKeySet(), new SetInverseMapping<K>(), contentionManager);
+    }
+
+    // number of elements in the base set, not transactional
+    public int size() {
+        return base.size();
+    }
+
+    // number of abstract locks currently in the lock table
+    public int getLockTableSize() {
+        return lock.size();
+    }
+
+    public boolean add(K key) throws AbortedException {
+        return apply(SkipListKey.OperationType.ADD, key, AbstractLock.Mode.EXCLUSIVE);
+    }
+
+    public boolean remove(K key) throws AbortedException {
+        return apply(SkipListKey.OperationType.REMOVE, key, AbstractLock.Mode.EXCLUSIVE);
+    }
+
+    // contains commutes with other contains, so it only needs the lock shared
+    public boolean contains(K key) throws AbortedException {
+        return apply(SkipListKey.OperationType.CONTAINS, key, AbstractLock.Mode.SHARED);
+    }
+
+    // acquires the abstract lock for key, applies the operation to the base set, and logs its inverse
+    private boolean apply(SkipListKey.OperationType type, K key, AbstractLock.Mode mode) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+
+        acquire(key, mode);
+
+        boolean result;
+        switch (type) {
+            case ADD:
+                result = base.add(key);
+                break;
+            case REMOVE:
+                result = base.remove(key);
+                break;
+            default:
+                result = base.contains(key);
+                break;
+        }
+
+        Callable<Boolean> inverse = inverses.getInverse(base, type, key, result);
+        if (inverse != null) {
+            Transaction.getLocal().logUndo(inverse);
+        }
+
+        MetricsRegistry.stopTimer(type, start);
+
+        return result;
+    }
+
+    // acquires the abstract lock for key, treating an interrupt while waiting as an abort
+    private void acquire(K key, AbstractLock.Mode mode) throws AbortedException {
+        try {
+            lock.lock(key.hashCode(), mode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted waiting for lock on " + key);
+        }
+    }
+}
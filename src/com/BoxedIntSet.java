@@ -0,0 +1,69 @@
+/**
+ * name: BoxedIntSet
+ * author: crs
+ * description: IntSet backed by Java's ConcurrentSkipListSet<Integer>.  this is the original base
+ *              structure of SkipListKey, every operation boxes its key and every node holds an Integer.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - ceiling and range
+ *
+ */
+
+package com;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class BoxedIntSet implements IntSet {
+
+    private final ConcurrentSkipListSet<Integer> list;
+
+    public BoxedIntSet() {
+        list = new ConcurrentSkipListSet<>();
+    }
+
+    public boolean add(int v) {
+        return list.add(v);
+    }
+
+    public boolean remove(int v) {
+        return list.remove(v);
+    }
+
+    public boolean contains(int v) {
+        return list.contains(v);
+    }
+
+    public long ceiling(int v) {
+        Integer ceiling = list.ceiling(v);
+        return (ceiling == null) ? NONE : ceiling;
+    }
+
+    public int[] range(int low, int high, int limit) {
+        if (low > high) {
+            return new int[0];
+        }
+
+        int[] keys = new int[Math.min(limit, 16)];
+        int count = 0;
+
+        for (Integer key : list.subSet(low, true, high, true)) {
+            if (count == limit) {
+                break;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = key;
+        }
+
+        return (count == keys.length) ? keys : Arrays.copyOf(keys, count);
+    }
+
+    public int size() {
+        return list.size();
+    }
+}
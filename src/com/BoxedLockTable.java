@@ -0,0 +1,71 @@
+/**
+ * name: BoxedLockTable
+ * author: crs
+ * description: LockTable backed by a ConcurrentHashMap<Integer, AbstractLock>.  this is the original
+ *              lock map of LockKey, every lookup boxes its key.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - reference counted entries, removed once unused
+ * - collectExclusive for range locks
+ *
+ */
+
+package com;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BoxedLockTable implements LockTable {
+
+    private final ConcurrentHashMap<Integer, AbstractLock> map;
+
+    public BoxedLockTable() {
+        map = new ConcurrentHashMap<>();
+    }
+
+    public AbstractLock acquire(int key) {
+        while (true) {
+            AbstractLock lock = map.get(key);
+
+            // creates the lock if it does not exist
+            if (lock == null) {
+                AbstractLock newLock = new AbstractLock(key, this);
+
+                // its possible a lock was created for this element when we created one;
+                // we use the newly created lock only if it replaced null at that key.
+                lock = map.putIfAbsent(key, newLock);
+                if (lock == null) {
+                    return newLock;
+                }
+            }
+
+            if (lock.retain()) {
+                return lock;
+            }
+
+            // the lock is dead but not removed yet, help remove it and retry
+            map.remove(key, lock);
+        }
+    }
+
+    public void release(AbstractLock lock) {
+        if (lock.dropReference() && lock.kill()) {
+            map.remove(lock.key, lock);
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void collectExclusive(int low, int high, List<AbstractLock> locks) {
+        for (AbstractLock lock : map.values()) {
+            if (low <= lock.key && lock.key <= high && lock.getHoldCount() < 0) {
+                locks.add(lock);
+            }
+        }
+    }
+}
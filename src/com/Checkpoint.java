@@ -0,0 +1,428 @@
+/**
+ * name: Checkpoint
+ * author: crs
+ * description: saves the contents of a SkipListKey to a compact file, sorted, and restores a set from one by
+ *              memory-mapping the file and bulk loading the base set (see IntSet.addAllSorted), so a restart
+ *              doesn't re-add every key through transactions.  a durable set's checkpoint records how far
+ *              into the WriteAheadLog it goes, and restoring it with the log replays only the records after.
+ *
+ * extra info: a multi-version set (LockKey.ReadMode.SNAPSHOT) is copied by a read-only transaction, from a
+ *             snapshot, while writers keep committing.  a durable one first marks the end of its log, then
+ *             waits for the transactions holding exclusive locks at that moment, which includes every one
+ *             whose record is before the mark, to finish, so the snapshot holds every record before the
+ *             mark.  records after it may be in the snapshot too, replaying them again leaves each key as
+ *             its last record says.  other sets are copied inside a transaction holding one range lock over
+ *             the whole key space: every writer stalls while the keys are copied out of the set (not while
+ *             they are encoded and written), about 20 ms per million keys, logged with each checkpoint.  the
+ *             file is written next to path and moved over it once it is forced, so a crash never leaves a
+ *             torn checkpoint behind.  write must not be called inside a transaction.
+ *
+ *             the file starts with a header: magic number, format version, Encoding ordinal, key count (big
+ *             endian ints), log position (long), checksum of the log record ending there (int, see
+ *             WriteAheadLog.Mark) and a CRC32 of the rest of the file (int).  the keys follow.  version 1
+ *             files have no log checksum, restoring them reads the whole log.
+ *             the delta encodings store each key as its gap to the one before minus one, an unsigned int.
+ *             restore maps the whole file, so a checkpoint must be under 2GB, about 500M keys RAW.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - version 2 stores the log checksum, so restore replays the log from the checkpoint without reading it
+ *   from the start.  the log is synced before the checkpoint is written
+ * - multi-version sets are checkpointed from a snapshot, without stalling writers
+ *
+ */
+
+package com;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class Checkpoint {
+
+    // how the sorted keys are stored
+    public enum Encoding {
+        // 4 bytes per key
+        RAW,
+        // gaps as LEB128 varints, 1 byte per key when gaps are under 128
+        DELTA_VARINT,
+        // gaps bit-packed in blocks of BLOCK_SIZE, each at the width of its largest gap, behind a one byte width
+        BIT_PACKED
+    }
+
+    static final int MAGIC = 0x54434B50;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 32;
+    // the smallest header, of version 1 files
+    static final int VERSION_1_HEADER_BYTES = 28;
+    static final int BLOCK_SIZE = 128;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // a bit-packed block at the widest, with its width byte
+    private static final int MAX_BLOCK_BYTES = 1 + BLOCK_SIZE * 4;
+
+    private static final Encoding[] ENCODINGS = Encoding.values();
+
+    // checkpoints set to path, bit-packed.  returns the number of keys
+    public static int write(SkipListKey set, Path path) throws IOException {
+        return write(set, path, Encoding.BIT_PACKED);
+    }
+
+    // checkpoints set to path, replacing whatever is there.  returns the number of keys
+    public static int write(final SkipListKey set, Path path, Encoding encoding) throws IOException {
+        final int[][] snapshot = new int[1][];
+        final WriteAheadLog.Mark[] logPosition = new WriteAheadLog.Mark[1];
+        final WriteAheadLog log = set.getLog();
+        boolean multiVersion = set.lock.getReadMode() == LockKey.ReadMode.SNAPSHOT;
+
+        long start = System.nanoTime();
+
+        try {
+            if (multiVersion) {
+                if (log != null) {
+                    logPosition[0] = log.mark();
+                    awaitWriters(set);
+                }
+
+                TThread.doItReadOnly(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        snapshot[0] = set.range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                        return true;
+                    }
+                }, TThread.UNLIMITED_ATTEMPTS, null);
+            }
+            else {
+                TThread.doIt(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        snapshot[0] = set.range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+                        // every transaction in the log up to here is in the snapshot, everything after is not.
+                        // writers append while holding their key locks, and we hold all of them now
+                        if (log != null) {
+                            logPosition[0] = log.mark();
+                        }
+                        return true;
+                    }
+                }, TThread.UNLIMITED_ATTEMPTS, null);
+            }
+        } catch (Exception e) {
+            throw new IOException("checkpoint snapshot failed", e);
+        }
+
+        long copied = System.nanoTime();
+
+        // the checkpoint must never point past what a crash leaves of the log
+        if (log != null) {
+            log.sync();
+        }
+
+        int[] keys = snapshot[0];
+        WriteAheadLog.Mark mark = (log == null) ? new WriteAheadLog.Mark(0, 0) : logPosition[0];
+        write(keys, mark.position, mark.checksum, path, encoding);
+
+        CustomLogger.log(CustomLogger.Category.EVENT, "Checkpointed %d keys, %d ms %s, %d ms to write %s", keys.length,
+                TimeUnit.NANOSECONDS.toMillis(copied - start), multiVersion ? "snapshot" : "writers stalled",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - copied), encoding);
+
+        return keys.length;
+    }
+
+    // waits until every transaction holding an exclusive lock of set now has committed or aborted, by taking
+    // each of their keys shared in a transaction of its own
+    private static void awaitWriters(final SkipListKey set) throws Exception {
+        ArrayList<AbstractLock> writers = new ArrayList<>();
+        set.lock.collectWriters(writers);
+
+        for (AbstractLock writer : writers) {
+            final int key = writer.getKey();
+
+            TThread.doIt(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return set.contains(key);
+                }
+            }, TThread.UNLIMITED_ATTEMPTS, null);
+        }
+    }
+
+    // restores the set checkpointed to path, as an in-memory set
+    public static SkipListKey restore(Path path, SkipListKey.Implementation implementation) throws IOException {
+        return restore(path, implementation, null);
+    }
+
+    // restores the set checkpointed to path.  with a log, the set is durable: the log's records after the
+    // checkpoint are replayed on top of it, and later transactions append to it
+    public static SkipListKey restore(Path path, SkipListKey.Implementation implementation, WriteAheadLog log) throws IOException {
+        MappedByteBuffer file;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size < VERSION_1_HEADER_BYTES) {
+                throw new IOException("not a checkpoint");
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("checkpoint of " + size + " bytes is too large to map");
+            }
+
+            // stays mapped after the channel is closed
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        if (file.getInt() != MAGIC) {
+            throw new IOException("not a checkpoint");
+        }
+
+        int version = file.getInt();
+        if (version != VERSION && version != 1) {
+            throw new IOException("unsupported checkpoint version " + version);
+        }
+
+        int encoding = file.getInt();
+        int count = file.getInt();
+        long position = file.getLong();
+        WriteAheadLog.Mark logPosition = (version == 1) ? WriteAheadLog.Mark.unchecked(position) : new WriteAheadLog.Mark(position, file.getInt());
+        int checksum = file.getInt();
+
+        if (encoding < 0 || encoding >= ENCODINGS.length || count < 0) {
+            throw new IOException("corrupt checkpoint header");
+        }
+
+        ByteBuffer body = file.slice();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("corrupt checkpoint, checksum mismatch");
+        }
+
+        Decoder keys = new Decoder(body, ENCODINGS[encoding], count);
+        SkipListKey set;
+
+        try {
+            set = new SkipListKey(implementation, new DeadlockDetectingContentionManager(), LockKey.ReadMode.LOCKED, keys, log, logPosition);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("corrupt checkpoint", e);
+        }
+
+        if (keys.hasNext() || body.hasRemaining()) {
+            throw new IOException("corrupt checkpoint, " + body.remaining() + " bytes left over");
+        }
+
+        return set;
+    }
+
+    // writes keys, in ascending order, to a checkpoint at path.  logChecksum is the checksum of the log record
+    // ending at logPosition
+    static void write(int[] keys, long logPosition, int logChecksum, Path path, Encoding encoding) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            long position = HEADER_BYTES;
+
+            long previous = (long) Integer.MIN_VALUE - 1;
+
+            for (int i = 0; i < keys.length; ) {
+                if (buffer.remaining() < MAX_BLOCK_BYTES) {
+                    position = flush(channel, buffer, position, crc);
+                }
+
+                switch (encoding) {
+                    case RAW:
+                        buffer.putInt(keys[i]);
+                        i++;
+                        break;
+                    case DELTA_VARINT:
+                        putVarint(buffer, keys[i] - previous - 1);
+                        previous = keys[i];
+                        i++;
+                        break;
+                    default:
+                        int end = Math.min(i + BLOCK_SIZE, keys.length);
+                        putBlock(buffer, keys, i, end, previous);
+                        previous = keys[end - 1];
+                        i = end;
+                        break;
+                }
+            }
+
+            flush(channel, buffer, position, crc);
+
+            // the header goes in last, once the checksum is known
+            buffer.clear();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(keys.length).putLong(logPosition)
+                    .putInt(logChecksum).putInt((int) crc.getValue());
+            buffer.flip();
+            writeFully(channel, buffer, 0);
+
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // bit-packs the gaps of keys[from, to), least significant bit first
+    private static void putBlock(ByteBuffer buffer, int[] keys, int from, int to, long previous) {
+        int bits = 0;
+        long last = previous;
+        for (int i = from; i < to; i++) {
+            bits |= (int) (keys[i] - last - 1);
+            last = keys[i];
+        }
+
+        int width = 32 - Integer.numberOfLeadingZeros(bits);
+        buffer.put((byte) width);
+
+        long pending = 0;
+        int pendingBits = 0;
+        last = previous;
+
+        for (int i = from; i < to; i++) {
+            pending |= ((keys[i] - last - 1) & 0xFFFFFFFFL) << pendingBits;
+            pendingBits += width;
+            last = keys[i];
+
+            while (pendingBits >= 8) {
+                buffer.put((byte) pending);
+                pending >>>= 8;
+                pendingBits -= 8;
+            }
+        }
+
+        if (pendingBits > 0) {
+            buffer.put((byte) pending);
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while (value >= 0x80) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    // writes out buffer at position, adds it to the checksum and returns the position after it
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        position += buffer.remaining();
+        writeFully(channel, buffer, position - buffer.remaining());
+        buffer.clear();
+        return position;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // the keys of a checkpoint, decoded as the base set's bulk load asks for them
+    private static final class Decoder implements PrimitiveIterator.OfInt {
+        private final ByteBuffer body;
+        private final Encoding encoding;
+        private int remaining;
+        private long previous = (long) Integer.MIN_VALUE - 1;
+
+        // the current block of a bit-packed checkpoint
+        private final int[] block;
+        private int blockPosition;
+        private int blockLength;
+
+        Decoder(ByteBuffer body, Encoding encoding, int count) {
+            this.body = body;
+            this.encoding = encoding;
+            this.remaining = count;
+            this.block = (encoding == Encoding.BIT_PACKED) ? new int[BLOCK_SIZE] : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (remaining == 0) {
+                throw new NoSuchElementException();
+            }
+            remaining--;
+
+            switch (encoding) {
+                case RAW:
+                    return body.getInt();
+                case DELTA_VARINT:
+                    previous += getVarint() + 1;
+                    return (int) previous;
+                default:
+                    if (blockPosition == blockLength) {
+                        readBlock();
+                    }
+                    previous += (block[blockPosition++] & 0xFFFFFFFFL) + 1;
+                    return (int) previous;
+            }
+        }
+
+        private long getVarint() {
+            long value = 0;
+
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = body.get();
+                value |= (long) (b & 0x7F) << shift;
+
+                if (b >= 0) {
+                    return value;
+                }
+            }
+
+            throw new IllegalArgumentException("varint longer than 5 bytes");
+        }
+
+        // unpacks the next block, which holds the gaps of up to BLOCK_SIZE of the keys left
+        private void readBlock() {
+            int width = body.get() & 0xFF;
+            if (width > 32) {
+                throw new IllegalArgumentException("bit-packed block of width " + width);
+            }
+
+            long mask = (1L << width) - 1;
+            long pending = 0;
+            int pendingBits = 0;
+
+            blockLength = Math.min(BLOCK_SIZE, remaining + 1);
+            for (int i = 0; i < blockLength; i++) {
+                while (pendingBits < width) {
+                    pending |= (body.get() & 0xFFL) << pendingBits;
+                    pendingBits += 8;
+                }
+
+                block[i] = (int) (pending & mask);
+                pending >>>= width;
+                pendingBits -= width;
+            }
+
+            blockPosition = 0;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * name: ContentionManager
+ * author: crs
+ * description: policy LockKey consults when an abstract lock is busy.  for every failed attempt the
+ *              manager decides whether the transaction should keep waiting (and for how long before
+ *              it is consulted again) or abort.  managers may also wound the lock's owner, asking it
+ *              to abort and release its locks.  each SkipListKey has its own manager instance, so
+ *              stateful policies learn from that set's workload only.
+ *
+ * acknowledgements: policies follow Scherer and Scott, "Advanced Contention Management for Dynamic
+ *                   Software Transactional Memory", and Rosenkrantz et al. for wait-die / wound-wait.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ * - DEADLOCK_DETECTION, aborts only transactions that are part of a waits-for cycle
+ * - onGaveUp, the counterpart of onAcquired for waits that end without the lock
+ *
+ */
+
+package com;
+
+public interface ContentionManager {
+
+    // returned by resolve to abort the waiting transaction
+    long ABORT = -1;
+
+    // selectable policies, see the implementing classes for details
+    enum Policy {
+        TIMEOUT,
+        BACKOFF,
+        WAIT_DIE,
+        WOUND_WAIT,
+        KARMA,
+        ADAPTIVE,
+        DEADLOCK_DETECTION;
+
+        public ContentionManager newManager() {
+            switch (this) {
+                case BACKOFF:
+                    return new BackoffContentionManager();
+                case WAIT_DIE:
+                    return new TimestampContentionManager(false);
+                case WOUND_WAIT:
+                    return new TimestampContentionManager(true);
+                case KARMA:
+                    return new KarmaContentionManager();
+                case ADAPTIVE:
+                    return new AdaptiveContentionManager();
+                case DEADLOCK_DETECTION:
+                    return new DeadlockDetectingContentionManager();
+                default:
+                    return new TimeoutContentionManager();
+            }
+        }
+    }
+
+    // called each time me fails to get lock.  attempt counts from 0 and waitedNanos is the time
+    // spent waiting on this lock so far.  returns how many nanoseconds to wait for the lock before
+    // consulting the manager again, or ABORT
+    long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos);
+
+    // called once me gets a lock it had to wait for
+    default void onAcquired(Transaction me, AbstractLock lock, long waitedNanos) {
+    }
+
+    // called once me stops waiting for a lock without getting it: resolve aborted it, it was wounded
+    // or it was interrupted
+    default void onGaveUp(Transaction me, AbstractLock lock) {
+    }
+}
@@ -7,19 +7,47 @@
  *              uses pipes as a delimiter, can easily be parsed
  *              in excel by splitting on column and filtering by category
  *
+ * extra info: log calls never format or do I/O on the calling thread.  the category check is a
+ *             single bitmask test, and the parameterized log methods only store the format string
+ *             and its arguments, so a disabled category costs nothing beyond the call.  enabled records
+ *             are copied into preallocated slots of a lock-free ring buffer (multiple producers, one
+ *             consumer) and a background writer thread formats them and writes them out in batches.
+ *             primitive arguments are stored unboxed and only boxed by the writer.  if the buffer is
+ *             full, producers wait for the writer to free a slot rather than dropping records.
+ *
+ *             a record that can't be formatted (bad format string, an argument whose toString throws) or
+ *             written is replaced by a placeholder line or dropped, its slot is freed either way, so one bad
+ *             record can't stop the writer.  should the writer die anyway, producers finding the buffer
+ *             full drain it themselves instead of waiting for it.
+ *
  * Edit History:
  * - Created by crs on 4/7/17.
  *
  * Updates:
  * - new Categories
+ * - categories are a bitmask instead of an ArrayList
+ * - parameterized log methods that format lazily, on the writer thread
+ * - records go through a ring buffer drained by a background writer thread, with buffered output
+ *   to stdout or a file.  pending records are flushed on shutdown, or explicitly with flush()
+ * - records that fail to format or write no longer kill the writer thread, and a full buffer with no
+ *   writer is drained by the producer rather than waited on forever
+ * - setOutputFile swaps the output under the drain lock and closes the file it replaces
  *
  */
 
 package com;
 
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class CustomLogger {
 
@@ -33,25 +61,330 @@ public class CustomLogger {
         DEBUG_COARSE
     };
 
-    private static ArrayList<Category> logCategories = new ArrayList<>();
+    // must be a power of 2
+    private static final int BUFFER_SIZE = 1 << 14;
+    private static final int MAX_ARGS = 4;
+    private static final long WRITER_IDLE_PARK_NS = 1000000;
+
+    // bit i is set if the category with ordinal i is logged
+    private static volatile int logCategories = 0;
+
+    private static final Slot[] slots = new Slot[BUFFER_SIZE];
+    private static final AtomicLong tail = new AtomicLong();
+
+    // next sequence the writer will consume, only written by the writer thread
+    private static volatile long head = 0;
+
+    // the output is only swapped while holding the drain lock, CustomLogger.class
+    private static final Writer stdout = new BufferedWriter(new OutputStreamWriter(System.out));
+    private static volatile Writer out = stdout;
+    private static final Thread writer;
 
-    public static void setLogCategories(ArrayList<Category> logCategories) {
-        // empty out the list
-        CustomLogger.logCategories.removeAll(CustomLogger.logCategories);
+    static {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            slots[i] = new Slot(i);
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainForever();
+            }
+        }, "CustomLogger-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // make sure the final records, usually the metrics, make it out before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }));
+    }
+
+    // a preallocated record.  sequence implements the handoff: equal to the producer's position
+    // when the slot is free for it, position + 1 once the record is published
+    private static final class Slot {
+        volatile long sequence;
+        Category category;
+        long threadId;
+        long timeMillis;
+        String format;
+        int argCount;
+        // bit i set if argument i is the primitive in longArgs[i] rather than objectArgs[i]
+        int primitiveMask;
+        final Object[] objectArgs = new Object[MAX_ARGS];
+        final long[] longArgs = new long[MAX_ARGS];
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    public static void setLogCategories(Collection<Category> logCategories) {
+        int mask = 0;
 
         for (Category category : logCategories) {
-            CustomLogger.logCategories.add(category);
+            mask |= 1 << category.ordinal();
+        }
+
+        CustomLogger.logCategories = mask;
+    }
+
+    public static boolean isEnabled(Category category) {
+        return (logCategories & (1 << category.ordinal())) != 0;
+    }
+
+    // sends output to a file instead of stdout, appending to it.  records logged before the call go to the
+    // previous output, which is closed unless it is stdout
+    public static void setOutputFile(String path) throws IOException {
+        Writer next = new BufferedWriter(new FileWriter(path, true));
+        Writer previous;
+
+        flush();
+        synchronized (CustomLogger.class) {
+            // nothing is draining into the previous output while we hold the lock, finish what it was given
+            drain();
+            previous = out;
+            out = next;
+        }
+
+        if (previous == stdout) {
+            previous.flush();
+        }
+        else {
+            previous.close();
         }
     }
 
     public static void log(Category category, String msg) {
-        if (CustomLogger.logCategories.contains(category)) {
-            long threadId = Thread.currentThread().getId();
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss.SSS");
-            Object[] logArgs = new Object[] {sdf.format(new Date()), category, threadId, msg};
-            String output = String.format("[%s] | [%12s] | [%d] | %s", logArgs);
-            System.out.println(output);
+        if (isEnabled(category)) {
+            Slot slot = claim(category, "%s", 1);
+            slot.objectArgs[0] = msg;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, Object arg0) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 1);
+            slot.objectArgs[0] = arg0;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, Object arg0, Object arg1) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 2);
+            slot.objectArgs[0] = arg0;
+            slot.objectArgs[1] = arg1;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 3);
+            slot.objectArgs[0] = arg0;
+            slot.objectArgs[1] = arg1;
+            slot.objectArgs[2] = arg2;
+            publish(slot);
         }
     }
 
+    // primitive overloads for the hot paths, nothing is boxed on the calling thread
+    public static void log(Category category, String format, long arg0) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 1);
+            slot.primitiveMask = 1;
+            slot.longArgs[0] = arg0;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, long arg0, Object arg1) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 2);
+            slot.primitiveMask = 1;
+            slot.longArgs[0] = arg0;
+            slot.objectArgs[1] = arg1;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, Object arg0, long arg1) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 2);
+            slot.primitiveMask = 2;
+            slot.objectArgs[0] = arg0;
+            slot.longArgs[1] = arg1;
+            publish(slot);
+        }
+    }
+
+    public static void log(Category category, String format, long arg0, long arg1) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, 2);
+            slot.primitiveMask = 3;
+            slot.longArgs[0] = arg0;
+            slot.longArgs[1] = arg1;
+            publish(slot);
+        }
+    }
+
+    // any number of arguments.  the array is formatted by the writer, so callers must not reuse it
+    public static void log(Category category, String format, Object... args) {
+        if (isEnabled(category)) {
+            Slot slot = claim(category, format, -1);
+            slot.objectArgs[0] = args;
+            publish(slot);
+        }
+    }
+
+    // blocks until every record logged before the call has been written out
+    public static void flush() {
+        long target = tail.get();
+
+        while (head < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+
+        // the writer may have been killed at shutdown, drain whatever is left ourselves
+        if (!writer.isAlive()) {
+            synchronized (CustomLogger.class) {
+                drain();
+            }
+        }
+
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // nowhere left to report it
+        }
+    }
+
+    // claims the next slot, waiting for the writer if the buffer is full
+    private static Slot claim(Category category, String format, int argCount) {
+        long position = tail.getAndIncrement();
+        Slot slot = slots[(int) (position & (BUFFER_SIZE - 1))];
+
+        while (slot.sequence != position) {
+            if (!writer.isAlive()) {
+                // nobody else will ever free the slot
+                synchronized (CustomLogger.class) {
+                    drain();
+                }
+                continue;
+            }
+
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+
+        slot.category = category;
+        slot.threadId = Thread.currentThread().getId();
+        slot.timeMillis = System.currentTimeMillis();
+        slot.format = format;
+        slot.argCount = argCount;
+        slot.primitiveMask = 0;
+
+        return slot;
+    }
+
+    private static void publish(Slot slot) {
+        slot.sequence = slot.sequence + 1;
+    }
+
+    // writer thread state, only touched by whichever thread is draining
+    private static final StringBuilder line = new StringBuilder(256);
+    private static final Formatter formatter = new Formatter(line);
+    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    private static final Date date = new Date();
+
+    private static void drainForever() {
+        while (true) {
+            boolean wrote;
+
+            synchronized (CustomLogger.class) {
+                wrote = drain();
+            }
+
+            if (!wrote) {
+                LockSupport.parkNanos(WRITER_IDLE_PARK_NS);
+            }
+        }
+    }
+
+    // writes every published record, then flushes once for the whole batch.  returns false if there was nothing
+    private static boolean drain() {
+        long position = head;
+        boolean wrote = false;
+
+        while (true) {
+            Slot slot = slots[(int) (position & (BUFFER_SIZE - 1))];
+
+            if (slot.sequence != position + 1) {
+                break;
+            }
+
+            try {
+                write(slot);
+            } catch (IOException e) {
+                // logging must never take the application down, the record is lost
+            }
+
+            // free the slot for the producer one lap ahead
+            slot.format = null;
+            for (int i = 0; i < MAX_ARGS; i++) {
+                slot.objectArgs[i] = null;
+            }
+            slot.sequence = position + BUFFER_SIZE;
+
+            position++;
+            head = position;
+            wrote = true;
+        }
+
+        if (wrote) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // as above
+            }
+        }
+
+        return wrote;
+    }
+
+    private static void write(Slot slot) throws IOException {
+        line.setLength(0);
+
+        date.setTime(slot.timeMillis);
+        formatter.format("[%s] | [%12s] | [%d] | ", dateFormat.format(date), slot.category, slot.threadId);
+        int header = line.length();
+
+        try {
+            if (slot.argCount < 0) {
+                formatter.format(slot.format, (Object[]) slot.objectArgs[0]);
+            }
+            else {
+                Object[] args = new Object[slot.argCount];
+                for (int i = 0; i < slot.argCount; i++) {
+                    args[i] = ((slot.primitiveMask & (1 << i)) != 0) ? (Object) slot.longArgs[i] : slot.objectArgs[i];
+                }
+                formatter.format(slot.format, args);
+            }
+        } catch (RuntimeException e) {
+            // a bad format string, or an argument whose toString threw.  nothing of the record's arguments
+            // is touched again
+            line.setLength(header);
+            line.append("unformattable record \"").append(slot.format).append("\": ").append(e.getClass().getName());
+        }
+
+        line.append(System.lineSeparator());
+        out.append(line);
+    }
+
 }
@@ -0,0 +1,195 @@
+/**
+ * name: DeadlockDetectingContentionManager
+ * author: crs
+ * description: aborts a transaction only when it is part of a deadlock.  every waiting transaction is
+ *              registered here, and each time one is consulted it searches the waits-for graph for a cycle
+ *              through itself: T waits for U if U holds the lock T is waiting for.  a cycle gets exactly
+ *              one victim, the cheapest member under the VictimPolicy, and everyone else keeps waiting.
+ *              waits that are not part of a cycle are never timed out.
+ *
+ * acknowledgements: waits-for graph detection as in Gray and Reuter, "Transaction Processing".
+ *
+ * extra info: LockKey publishes what every transaction holds and what it is waiting for (see Transaction),
+ *             so the graph is never built, the search follows those edges directly.  only waiting
+ *             transactions can be on a cycle, so the search only looks at the registered ones.
+ *             the first member to close a cycle finds it on its first consultation, so most deadlocks are
+ *             broken without any wait at all.
+ *
+ *             the search reads other threads' state without locking, so it can see an edge that has just
+ *             gone away.  the victim is chosen and wounded under a global lock, and only if no member of
+ *             the cycle is wounded yet, so two members detecting the same cycle can't both pick a victim.
+ *             a victim that isn't the detecting transaction notices its wound at its next wait slice.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DeadlockDetectingContentionManager implements ContentionManager {
+
+    // how the victim of a deadlock is chosen, ties go to the youngest
+    public enum VictimPolicy {
+        // started last, so it has waited the least
+        YOUNGEST,
+        // holds the fewest locks
+        FEWEST_LOCKS,
+        // has the fewest operations to roll back
+        LEAST_WORK
+    }
+
+    // first wait slice, doubled on every consultation up to MAX_WAIT_SLICE_NS
+    private static final long MIN_WAIT_SLICE_NS = 50000;
+    private static final long MAX_WAIT_SLICE_NS = 5000000;
+
+    // every transaction currently waiting for a lock, across all sets
+    private static final Set<Transaction> waiting = ConcurrentHashMap.newKeySet();
+
+    private static final Object victimLock = new Object();
+
+    private final VictimPolicy victimPolicy;
+
+    public DeadlockDetectingContentionManager() {
+        this(VictimPolicy.LEAST_WORK);
+    }
+
+    public DeadlockDetectingContentionManager(VictimPolicy victimPolicy) {
+        this.victimPolicy = victimPolicy;
+    }
+
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        waiting.add(me);
+
+        long start = System.nanoTime();
+        ArrayList<Transaction> cycle = findCycle(me);
+        boolean abort = (cycle != null) && breakCycle(me, cycle);
+        MetricsRegistry.recordDeadlockDetection(System.nanoTime() - start);
+
+        if (abort) {
+            return ABORT;
+        }
+
+        // not deadlocked (yet), wait without a deadline
+        return Math.min(MIN_WAIT_SLICE_NS << Math.min(attempt, 7), MAX_WAIT_SLICE_NS);
+    }
+
+    @Override
+    public void onAcquired(Transaction me, AbstractLock lock, long waitedNanos) {
+        waiting.remove(me);
+    }
+
+    @Override
+    public void onGaveUp(Transaction me, AbstractLock lock) {
+        waiting.remove(me);
+    }
+
+    // number of transactions registered as waiting, some of which may have stopped
+    public static int getWaitingCount() {
+        return waiting.size();
+    }
+
+    // the transactions on a cycle through me, starting with me, or null if there is none
+    private static ArrayList<Transaction> findCycle(Transaction me) {
+        ArrayList<Transaction> path = new ArrayList<>();
+        path.add(me);
+
+        return search(me, me, path, new HashSet<Transaction>()) ? path : null;
+    }
+
+    // depth-first search from node, true if path (which ends with node) can be extended back to me
+    private static boolean search(Transaction me, Transaction node, ArrayList<Transaction> path, HashSet<Transaction> visited) {
+        AbstractLock lock = node.getWaitingFor();
+
+        if (lock == null) {
+            return false;
+        }
+
+        for (Transaction holder : waiting) {
+            // attempts that ended aren't waiting, and once restarted they register again
+            if (holder.getStatus() != Transaction.Status.ACTIVE) {
+                waiting.remove(holder);
+                continue;
+            }
+
+            // an upgrade waits for a lock it holds itself, that isn't an edge
+            if (holder == node || !holder.holds(lock)) {
+                continue;
+            }
+
+            if (holder == me) {
+                return true;
+            }
+
+            if (visited.add(holder)) {
+                path.add(holder);
+
+                if (search(me, holder, path, visited)) {
+                    return true;
+                }
+
+                path.remove(path.size() - 1);
+            }
+        }
+
+        return false;
+    }
+
+    // wounds the cycle's victim unless another member already broke it, true if the victim is me
+    private boolean breakCycle(Transaction me, ArrayList<Transaction> cycle) {
+        synchronized (victimLock) {
+            for (Transaction member : cycle) {
+                if (member.isWounded()) {
+                    return false;
+                }
+            }
+
+            Transaction victim = cycle.get(0);
+            for (int i = 1; i < cycle.size(); i++) {
+                if (cheaper(cycle.get(i), victim)) {
+                    victim = cycle.get(i);
+                }
+            }
+
+            // the victim may have finished in the meantime, then the cycle is already gone
+            if (!victim.wound()) {
+                return false;
+            }
+
+            MetricsRegistry.recordDeadlock();
+
+            CustomLogger.log(CustomLogger.Category.EVENT, "Deadlock between %d transactions, aborting %s", cycle.size(),
+                    (victim == me) ? "the detecting transaction" : "another member");
+
+            return victim == me;
+        }
+    }
+
+    // true if aborting a costs less than aborting b
+    private boolean cheaper(Transaction a, Transaction b) {
+        int difference;
+
+        switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                difference = Integer.compare(a.getHeldCount(), b.getHeldCount());
+                break;
+            case LEAST_WORK:
+                difference = Integer.compare(a.getUndoLogSize(), b.getUndoLogSize());
+                break;
+            default:
+                difference = 0;
+                break;
+        }
+
+        return (difference != 0) ? difference < 0 : b.isOlderThan(a);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * name: GeneratedWorkload
+ * author: crs
+ * description: randomly generated workload.  each operation is a contains, add or remove with the given
+ *              proportions (normalized, so they only need to be relative), on a key drawn from a
+ *              KeyDistribution.  operations are generated by each worker's source as they are read.
+ *
+ * extra info: every worker's source has its own random number generator, seeded from the workload's
+ *             seed and the worker index, so generating never contends and a workload built with the
+ *             same seed and split between the same number of workers produces the same operations.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.SplittableRandom;
+
+public class GeneratedWorkload implements Workload {
+
+    private final double containsProportion;
+    private final double addProportion;
+    private final double removeProportion;
+    private final KeyDistribution keys;
+    private final long operations;
+    private final long seed;
+
+    // cumulative thresholds used to pick an operation type
+    private final double containsThreshold;
+    private final double addThreshold;
+
+    // uses a random seed
+    public GeneratedWorkload(double containsProportion, double addProportion, double removeProportion,
+                             KeyDistribution keys, long operations) {
+        this(containsProportion, addProportion, removeProportion, keys, operations, System.nanoTime());
+    }
+
+    public GeneratedWorkload(double containsProportion, double addProportion, double removeProportion,
+                             KeyDistribution keys, long operations, long seed) {
+        double total = containsProportion + addProportion + removeProportion;
+
+        if (containsProportion < 0 || addProportion < 0 || removeProportion < 0 || total <= 0) {
+            throw new IllegalArgumentException("proportions must be non-negative and not all 0");
+        }
+
+        this.containsProportion = containsProportion / total;
+        this.addProportion = addProportion / total;
+        this.removeProportion = removeProportion / total;
+        this.keys = keys;
+        this.operations = operations;
+        this.seed = seed;
+
+        containsThreshold = this.containsProportion;
+        addThreshold = this.containsProportion + this.addProportion;
+    }
+
+    public long size() {
+        return operations;
+    }
+
+    public OperationSource newSource(int worker, int workers) {
+        long from = operations * worker / workers;
+        long to = operations * (worker + 1) / workers;
+
+        return new Generator(to - from, new SplittableRandom(seed ^ (0x9E3779B97F4A7C15L * (worker + 1))));
+    }
+
+    public String toString() {
+        Object[] args = new Object[] {containsProportion, addProportion, removeProportion, keys, operations};
+        return String.format("contains: %.2f, add: %.2f, remove: %.2f, keys: %s, operations: %d", args);
+    }
+
+    private final class Generator implements OperationSource {
+        private final SplittableRandom random;
+        private long remaining;
+
+        private SkipListKey.OperationType type;
+        private int key;
+
+        Generator(long operations, SplittableRandom random) {
+            this.remaining = operations;
+            this.random = random;
+        }
+
+        public boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+
+            double rand = random.nextDouble();
+
+            if (rand < containsThreshold) {
+                type = SkipListKey.OperationType.CONTAINS;
+            }
+            else if (rand < addThreshold) {
+                type = SkipListKey.OperationType.ADD;
+            }
+            else {
+                type = SkipListKey.OperationType.REMOVE;
+            }
+
+            key = keys.nextKey(random);
+            return true;
+        }
+
+        public SkipListKey.OperationType getType() {
+            return type;
+        }
+
+        public int getKey() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * name: HotspotKeyDistribution
+ * author: crs
+ * description: keys between min and max (inclusive) where a hot set, the lowest hotSetFraction of the
+ *              range, receives hotOperationFraction of the operations.  keys are uniform within the hot
+ *              set and within the rest of the range.  e.g. (0.01, 0.9) sends 90% of operations to 1%
+ *              of the keys.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.SplittableRandom;
+
+public class HotspotKeyDistribution implements KeyDistribution {
+
+    private final int min;
+    private final int max;
+    private final double hotSetFraction;
+    private final double hotOperationFraction;
+
+    // last key of the hot set
+    private final int hotMax;
+
+    public HotspotKeyDistribution(int min, int max, double hotSetFraction, double hotOperationFraction) {
+        if (hotSetFraction <= 0 || hotSetFraction > 1 || hotOperationFraction < 0 || hotOperationFraction > 1) {
+            throw new IllegalArgumentException("fractions must be between 0 and 1");
+        }
+
+        this.min = min;
+        this.max = max;
+        this.hotSetFraction = hotSetFraction;
+        this.hotOperationFraction = hotOperationFraction;
+
+        long items = (long) max - min + 1;
+        hotMax = (int) (min + Math.max(1, (long) (items * hotSetFraction)) - 1);
+    }
+
+    public int nextKey(SplittableRandom random) {
+        if (hotMax == max || random.nextDouble() < hotOperationFraction) {
+            return random.nextInt(min, hotMax + 1);
+        }
+        return random.nextInt(hotMax + 1, max + 1);
+    }
+
+    public String toString() {
+        return String.format("hotspot[%d, %d, hotSet: %.3f, hotOps: %.2f]", min, max, hotSetFraction, hotOperationFraction);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * name: IntLockTable
+ * author: crs
+ * description: LockTable keyed by primitive ints, so lookups never box the key.  the table is
+ *              split into segments, each an open-addressing (linear probing) hash table of locks.
+ *              looking up a lock that exists takes no locks at all; creating or removing a lock
+ *              takes the segment's monitor.
+ *
+ * extra info: a reader is safe without locking because slots are only ever published with a
+ *             volatile store, every lock carries its own final key, and a full resize builds a new
+ *             table before publishing it.  a reader that misses (including while a removal is
+ *             shifting entries back) falls back to the locked path, which is authoritative.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - reference counted entries, removed once unused with backward-shift deletion
+ * - collectExclusive for range locks, it walks every non-empty segment under its monitor since an
+ *   unlocked walk can miss entries that a removal shifts back behind it
+ *
+ */
+
+package com;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class IntLockTable implements LockTable {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENT_COUNT = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments;
+
+    public IntLockTable() {
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public AbstractLock acquire(int key) {
+        int h = hash(key);
+        Segment segment = segments[h & (SEGMENT_COUNT - 1)];
+
+        // fast path, the lock already exists and is alive
+        AbstractLock lock = segment.table.find(key);
+        if (lock != null && lock.retain()) {
+            return lock;
+        }
+
+        return segment.acquire(this, key);
+    }
+
+    public void release(AbstractLock lock) {
+        if (lock.dropReference() && lock.kill()) {
+            segments[hash(lock.key) & (SEGMENT_COUNT - 1)].remove(lock);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    public void collectExclusive(int low, int high, List<AbstractLock> locks) {
+        for (Segment segment : segments) {
+            segment.collectExclusive(low, high, locks);
+        }
+    }
+
+    // spreads sequential keys across segments and slots
+    static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // slot hash, uses the bits not already used to pick the segment
+    static int slot(int key) {
+        return hash(key) >>> SEGMENT_BITS;
+    }
+
+    static final class Table {
+        final AtomicReferenceArray<AbstractLock> locks;
+        final int mask;
+
+        Table(int capacity) {
+            locks = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        // returns the lock for key, or null once an empty slot ends the probe sequence
+        AbstractLock find(int key) {
+            for (int i = slot(key) & mask; ; i = (i + 1) & mask) {
+                AbstractLock lock = locks.get(i);
+                if (lock == null || lock.key == key) {
+                    return lock;
+                }
+            }
+        }
+
+        // only called with the segment's monitor held and a free slot available
+        void insert(AbstractLock lock) {
+            int i = slot(lock.key) & mask;
+            while (locks.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            locks.set(i, lock);
+        }
+
+        // only called with the segment's monitor held.  shifts later entries of the probe
+        // sequence back into the hole so no lookup ever has to skip over tombstones
+        void delete(AbstractLock lock) {
+            int hole = slot(lock.key) & mask;
+            while (locks.get(hole) != lock) {
+                if (locks.get(hole) == null) {
+                    return;
+                }
+                hole = (hole + 1) & mask;
+            }
+
+            for (int i = (hole + 1) & mask; ; i = (i + 1) & mask) {
+                AbstractLock moved = locks.get(i);
+                if (moved == null) {
+                    break;
+                }
+
+                // an entry can only move back if its home slot is not between the hole and itself
+                int home = slot(moved.key) & mask;
+                boolean reachable = (hole <= i) ? (hole < home && home <= i) : (hole < home || home <= i);
+                if (!reachable) {
+                    locks.set(hole, moved);
+                    hole = i;
+                }
+            }
+
+            locks.set(hole, null);
+        }
+    }
+
+    static final class Segment {
+        volatile Table table = new Table(INITIAL_CAPACITY);
+        volatile int count;
+
+        synchronized AbstractLock acquire(LockTable owner, int key) {
+            AbstractLock lock = table.find(key);
+            if (lock != null) {
+                if (lock.retain()) {
+                    return lock;
+                }
+
+                // dead but its releaser hasn't removed it yet, do it for them
+                table.delete(lock);
+                count--;
+            }
+
+            // keep the load factor at or below 0.75
+            if ((count + 1) * 4 > (table.mask + 1) * 3) {
+                resize();
+            }
+
+            lock = new AbstractLock(key, owner);
+            table.insert(lock);
+            count++;
+
+            return lock;
+        }
+
+        void collectExclusive(int low, int high, List<AbstractLock> locks) {
+            // count goes up before a new lock can be taken, so an empty segment has no writers to find
+            if (count == 0) {
+                return;
+            }
+
+            synchronized (this) {
+                Table current = table;
+
+                for (int i = 0; i <= current.mask; i++) {
+                    AbstractLock lock = current.locks.get(i);
+                    if (lock != null && low <= lock.key && lock.key <= high && lock.getHoldCount() < 0) {
+                        locks.add(lock);
+                    }
+                }
+            }
+        }
+
+        synchronized void remove(AbstractLock lock) {
+            if (table.find(lock.key) == lock) {
+                table.delete(lock);
+                count--;
+            }
+        }
+
+        private void resize() {
+            Table old = table;
+            Table grown = new Table((old.mask + 1) * 2);
+
+            for (int i = 0; i <= old.mask; i++) {
+                AbstractLock lock = old.locks.get(i);
+                if (lock != null) {
+                    grown.insert(lock);
+                }
+            }
+
+            table = grown;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * name: IntSet
+ * author: crs
+ * description: minimal interface for a thread-safe set of primitive ints, used as the base
+ *              data structure underneath the transactionally-boosted SkipListKey.  implementations
+ *              must be linearizable on their own; SkipListKey adds the abstract locks and inverses.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - ordered reads, ceiling and range, for SkipListKey's range scans
+ * - applySorted, for SkipListKey's batches
+ * - addAllSorted, for restoring a Checkpoint
+ *
+ */
+
+package com;
+
+import java.util.PrimitiveIterator;
+
+public interface IntSet {
+
+    // returned by ceiling when there is no such element.  outside the int range, so every int can be an element
+    long NONE = Long.MIN_VALUE;
+
+    boolean add(int v);
+
+    boolean remove(int v);
+
+    boolean contains(int v);
+
+    // the smallest element >= v, or NONE
+    long ceiling(int v);
+
+    // the elements in [low, high] in ascending order, at most limit of them.  weakly consistent, an
+    // element added or removed during the call may or may not be included
+    int[] range(int low, int high, int limit);
+
+    // number of elements, may be O(n) and is only weakly consistent under concurrent updates
+    int size();
+
+    // applies ops[i] (ADD, REMOVE or CONTAINS) to keys[i] for every i in order, and stores its result in
+    // results[i].  keys must be in ascending order, implementations can then start each search where the
+    // previous one ended.  each operation is linearizable on its own, the batch as a whole is not
+    default void applySorted(int[] keys, SkipListKey.OperationType[] ops, boolean[] results) {
+        for (int i = 0; i < keys.length; i++) {
+            switch (ops[i]) {
+                case ADD:
+                    results[i] = add(keys[i]);
+                    break;
+                case REMOVE:
+                    results[i] = remove(keys[i]);
+                    break;
+                default:
+                    results[i] = contains(keys[i]);
+                    break;
+            }
+        }
+    }
+
+    // adds every key, which must come in strictly ascending order, to the set.  a bulk load of a set no other
+    // thread is using yet, implementations can build their structure directly instead of searching for
+    // each key
+    default void addAllSorted(PrimitiveIterator.OfInt keys) {
+        while (keys.hasNext()) {
+            add(keys.nextInt());
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/**
+ * name: IntSkipListSet
+ * author: crs
+ * description: concurrent skiplist set specialized for primitive int keys.  keys are stored inline
+ *              in the nodes, so no operation boxes its argument and each element costs one node
+ *              instead of a node plus an Integer.  adds and removes lock only the predecessors of the
+ *              affected node, contains is wait-free and takes no locks.
+ *
+ * acknowledgements: LazySkipList as described in Art of Multiprocessor Programming, chapter 14.
+ *                   deviations from the book: the tail sentinel is replaced by null so the full int
+ *                   range can be stored, node locks are a single int word spun on with CAS instead
+ *                   of a ReentrantLock per node, and the preds / succs arrays are reused per thread.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - ceiling and range, walking the bottom level from the first node >= the low key
+ * - applySorted, a finger search: each search in an ascending batch starts every level from the
+ *   predecessor the previous search left there, instead of from head
+ * - addAllSorted builds an empty set bottom up in one pass, with the levels of a perfectly balanced
+ *   skiplist
+ *
+ */
+
+package com;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class IntSkipListSet implements IntSet {
+
+    // enough levels for well over 2^24 elements at p = 0.5
+    static final int MAX_LEVEL = 24;
+
+    private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+    private static final VarHandle LOCK;
+
+    static {
+        try {
+            LOCK = MethodHandles.lookup().findVarHandle(Node.class, "lockState", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // scratch space for find(), preds in [0, MAX_LEVEL) and succs in [MAX_LEVEL, 2 * MAX_LEVEL).
+    // a thread only ever runs one add / remove at a time, so this can be shared by all instances
+    private static final ThreadLocal<Node[]> scratch = new ThreadLocal<Node[]>() {
+        protected Node[] initialValue() {
+            return new Node[2 * MAX_LEVEL];
+        }
+    };
+
+    static final class Node {
+        final int key;
+        final Node[] next;
+        final int topLevel;
+        volatile boolean marked;
+        volatile boolean fullyLinked;
+        volatile int lockState;
+
+        Node(int key, int topLevel) {
+            this.key = key;
+            this.topLevel = topLevel;
+            this.next = new Node[topLevel + 1];
+        }
+
+        void lock() {
+            while (!LOCK.compareAndSet(this, 0, 1)) {
+                Thread.onSpinWait();
+            }
+        }
+
+        void unlock() {
+            LOCK.setRelease(this, 0);
+        }
+
+        Node next(int level) {
+            return (Node) NEXT.getAcquire(next, level);
+        }
+
+        void setNext(int level, Node node) {
+            NEXT.setRelease(next, level, node);
+        }
+    }
+
+    // head sentinel, its key is never compared
+    final Node head;
+
+    public IntSkipListSet() {
+        head = new Node(0, MAX_LEVEL - 1);
+        head.fullyLinked = true;
+    }
+
+    // fills preds / succs for every level and returns the highest level key was found at, or -1.
+    // with finger, nodes already holds the preds of a previous find of a smaller key in this set, and a
+    // level's walk starts from that level's pred when it is further along than the one from above
+    private int find(int key, Node[] nodes, boolean finger) {
+        int levelFound = -1;
+        Node pred = head;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            if (finger) {
+                // an unmarked pred is still linked at this level.  if it is marked right after this check it
+                // is no different from a node the walk from head reaches just before it is removed
+                Node hint = nodes[level];
+                if (hint != head && !hint.marked && hint.key < key && (pred == head || hint.key > pred.key)) {
+                    pred = hint;
+                }
+            }
+
+            Node curr = pred.next(level);
+            while (curr != null && curr.key < key) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+
+            if (levelFound == -1 && curr != null && curr.key == key) {
+                levelFound = level;
+            }
+
+            nodes[level] = pred;
+            nodes[MAX_LEVEL + level] = curr;
+        }
+
+        return levelFound;
+    }
+
+    public boolean add(int v) {
+        return add(v, scratch.get(), false);
+    }
+
+    private boolean add(int v, Node[] nodes, boolean finger) {
+        int topLevel = randomLevel();
+
+        while (true) {
+            int levelFound = find(v, nodes, finger);
+
+            if (levelFound != -1) {
+                Node found = nodes[MAX_LEVEL + levelFound];
+
+                if (!found.marked) {
+                    // another add is still linking it in, wait so we are linearized after it
+                    while (!found.fullyLinked) {
+                        Thread.onSpinWait();
+                    }
+                    return false;
+                }
+
+                // being removed, retry once it's gone
+                continue;
+            }
+
+            int highestLocked = -1;
+            try {
+                boolean valid = true;
+
+                for (int level = 0; valid && level <= topLevel; level++) {
+                    Node pred = nodes[level];
+                    Node succ = nodes[MAX_LEVEL + level];
+
+                    // the same pred can cover several consecutive levels, only lock it once
+                    if (level == 0 || pred != nodes[level - 1]) {
+                        pred.lock();
+                    }
+                    highestLocked = level;
+
+                    valid = !pred.marked && (succ == null || !succ.marked) && pred.next(level) == succ;
+                }
+
+                if (!valid) {
+                    continue;
+                }
+
+                Node node = new Node(v, topLevel);
+                for (int level = 0; level <= topLevel; level++) {
+                    node.next[level] = nodes[MAX_LEVEL + level];
+                }
+
+                // release stores publish the node's links before it becomes reachable
+                for (int level = 0; level <= topLevel; level++) {
+                    nodes[level].setNext(level, node);
+                }
+
+                node.fullyLinked = true;
+                return true;
+            } finally {
+                unlockPreds(nodes, highestLocked);
+            }
+        }
+    }
+
+    public boolean remove(int v) {
+        return remove(v, scratch.get(), false);
+    }
+
+    private boolean remove(int v, Node[] nodes, boolean finger) {
+        Node victim = null;
+        boolean isMarked = false;
+        int topLevel = -1;
+
+        while (true) {
+            int levelFound = find(v, nodes, finger);
+
+            if (levelFound != -1) {
+                victim = nodes[MAX_LEVEL + levelFound];
+            }
+
+            if (isMarked || (levelFound != -1 && victim.fullyLinked && victim.topLevel == levelFound && !victim.marked)) {
+                if (!isMarked) {
+                    topLevel = victim.topLevel;
+                    victim.lock();
+
+                    if (victim.marked) {
+                        victim.unlock();
+                        return false;
+                    }
+
+                    // logically removed from here on
+                    victim.marked = true;
+                    isMarked = true;
+                }
+
+                int highestLocked = -1;
+                try {
+                    boolean valid = true;
+
+                    for (int level = 0; valid && level <= topLevel; level++) {
+                        Node pred = nodes[level];
+
+                        if (level == 0 || pred != nodes[level - 1]) {
+                            pred.lock();
+                        }
+                        highestLocked = level;
+
+                        valid = !pred.marked && pred.next(level) == victim;
+                    }
+
+                    if (!valid) {
+                        continue;
+                    }
+
+                    // unlink top down so the node never becomes unreachable at a lower level first
+                    for (int level = topLevel; level >= 0; level--) {
+                        nodes[level].setNext(level, victim.next(level));
+                    }
+
+                    victim.unlock();
+                    return true;
+                } finally {
+                    unlockPreds(nodes, highestLocked);
+                }
+            }
+            else {
+                return false;
+            }
+        }
+    }
+
+    public boolean contains(int v) {
+        Node pred = head;
+        Node curr = null;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = pred.next(level);
+            while (curr != null && curr.key < v) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+
+            if (curr != null && curr.key == v) {
+                return curr.fullyLinked && !curr.marked;
+            }
+        }
+
+        return false;
+    }
+
+    // contains through find, so a batch's finger moves along with it.  same result as contains
+    private boolean contains(int v, Node[] nodes, boolean finger) {
+        int levelFound = find(v, nodes, finger);
+
+        if (levelFound == -1) {
+            return false;
+        }
+
+        Node found = nodes[MAX_LEVEL + levelFound];
+        return found.fullyLinked && !found.marked;
+    }
+
+    // the first search starts from head, since the scratch nodes may hold another set's preds
+    @Override
+    public void applySorted(int[] keys, SkipListKey.OperationType[] ops, boolean[] results) {
+        Node[] nodes = scratch.get();
+
+        for (int i = 0; i < keys.length; i++) {
+            boolean finger = i > 0;
+
+            switch (ops[i]) {
+                case ADD:
+                    results[i] = add(keys[i], nodes, finger);
+                    break;
+                case REMOVE:
+                    results[i] = remove(keys[i], nodes, finger);
+                    break;
+                default:
+                    results[i] = contains(keys[i], nodes, finger);
+                    break;
+            }
+        }
+    }
+
+    // appends each key behind the last node of every level it reaches, no searching or locking.  the i-th key
+    // (from 1) gets the level of i's lowest set bit, so every level holds half the nodes of the one below.
+    // the set must be empty and not yet shared with other threads
+    @Override
+    public void addAllSorted(PrimitiveIterator.OfInt keys) {
+        if (head.next(0) != null) {
+            throw new IllegalStateException("bulk load of a set that isn't empty");
+        }
+
+        Node[] last = new Node[MAX_LEVEL];
+        Arrays.fill(last, head);
+
+        long previous = Long.MIN_VALUE;
+        for (int i = 1; keys.hasNext(); i++) {
+            int key = keys.nextInt();
+
+            if (key <= previous) {
+                throw new IllegalArgumentException("bulk load keys out of order, " + key + " after " + previous);
+            }
+            previous = key;
+
+            Node node = new Node(key, Math.min(Integer.numberOfTrailingZeros(i), MAX_LEVEL - 1));
+            for (int level = 0; level <= node.topLevel; level++) {
+                last[level].next[level] = node;
+                last[level] = node;
+            }
+            node.fullyLinked = true;
+        }
+
+        // publishes the plain link stores to whoever the set is handed to next
+        VarHandle.releaseFence();
+    }
+
+    public long ceiling(int v) {
+        for (Node curr = lowerBound(v); curr != null; curr = curr.next(0)) {
+            if (curr.fullyLinked && !curr.marked) {
+                return curr.key;
+            }
+        }
+
+        return NONE;
+    }
+
+    public int[] range(int low, int high, int limit) {
+        int[] keys = new int[Math.min(limit, 16)];
+        int count = 0;
+
+        for (Node curr = lowerBound(low); curr != null && curr.key <= high && count < limit; curr = curr.next(0)) {
+            if (curr.fullyLinked && !curr.marked) {
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = curr.key;
+            }
+        }
+
+        return (count == keys.length) ? keys : Arrays.copyOf(keys, count);
+    }
+
+    // the first node at the bottom level with a key >= v, which may be marked or not fully linked yet
+    private Node lowerBound(int v) {
+        Node pred = head;
+        Node curr = null;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = pred.next(level);
+            while (curr != null && curr.key < v) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+        }
+
+        return curr;
+    }
+
+    public int size() {
+        int count = 0;
+
+        for (Node curr = head.next(0); curr != null; curr = curr.next(0)) {
+            if (curr.fullyLinked && !curr.marked) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static void unlockPreds(Node[] nodes, int highestLocked) {
+        for (int level = 0; level <= highestLocked; level++) {
+            if (level == 0 || nodes[level] != nodes[level - 1]) {
+                nodes[level].unlock();
+            }
+        }
+    }
+
+    // geometric distribution with p = 0.5, capped at MAX_LEVEL - 1
+    static int randomLevel() {
+        int bits = ThreadLocalRandom.current().nextInt() | (1 << (MAX_LEVEL - 1));
+        return Integer.numberOfTrailingZeros(bits);
+    }
+}
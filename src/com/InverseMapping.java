@@ -0,0 +1,24 @@
+/**
+ * name: InverseMapping
+ * author: crs
+ * description: maps an operation a boosted structure applied to its base structure to the operation that
+ *              undoes it.  BoostedSet records the inverse in the transaction's undo log, and abort replays
+ *              it while the transaction still holds the abstract lock for the key.
+ *
+ * acknowledgements: inverses as described by Herlihy and Koskinen
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+public interface InverseMapping<K> {
+
+    // the operation undoing type(key), which returned result, on base.  null if it left base unchanged
+    Callable<Boolean> getInverse(Set<K> base, SkipListKey.OperationType type, K key, boolean result);
+}
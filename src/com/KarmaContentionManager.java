@@ -0,0 +1,43 @@
+/**
+ * name: KarmaContentionManager
+ * author: crs
+ * description: Polka policy, Karma priorities combined with exponential backoff.  a transaction's
+ *              karma is the number of abstract locks it has acquired, kept across retries, so it
+ *              reflects the work that would be lost by aborting it.  a waiter backs off once per
+ *              point of karma it is behind the owner; when its karma plus attempts exceed the
+ *              owner's, it wounds the owner.
+ *
+ * acknowledgements: Scherer and Scott, "Advanced Contention Management for Dynamic Software
+ *                   Transactional Memory"
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+public class KarmaContentionManager implements ContentionManager {
+
+    private static final long MIN_WAIT_NS = 2000;
+    private static final long MAX_WAIT_NS = 4000000;
+
+    // upper bound on any single wait, in case a wounded owner never notices
+    private static final long MAX_TOTAL_WAIT_NS = 10000000000L;
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        if (waitedNanos > MAX_TOTAL_WAIT_NS) {
+            return ABORT;
+        }
+
+        Transaction owner = lock.getOwner();
+
+        if (owner != null && owner != me && me.getKarma() + attempt > owner.getKarma()) {
+            owner.wound();
+        }
+
+        return BackoffContentionManager.backoff(MIN_WAIT_NS, MAX_WAIT_NS, attempt);
+    }
+}
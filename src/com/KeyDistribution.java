@@ -0,0 +1,20 @@
+/**
+ * name: KeyDistribution
+ * author: crs
+ * description: distribution of the keys a GeneratedWorkload operates on.  implementations are immutable
+ *              and draw from the random number generator they are given, so one distribution can be
+ *              shared by every worker as long as each worker has its own generator.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.SplittableRandom;
+
+public interface KeyDistribution {
+
+    int nextKey(SplittableRandom random);
+}
@@ -0,0 +1,284 @@
+/**
+ * name: LatencyHistogram
+ * author: crs
+ * description: histogram of latencies in nanoseconds, cheap enough to record every operation.
+ *              each thread records into its own array of counts, and a snapshot merges the
+ *              arrays of every thread that ever recorded, so recording never contends.
+ *
+ * extra info: buckets are log-linear: values below 16 get their own bucket, above that each power
+ *             of two is split into 16 buckets, so any recorded value is reported within 1/16 (~6%)
+ *             of its real value, from nanoseconds up to Long.MAX_VALUE in under 1000 buckets.
+ *             each count has a single writer, so it is updated with a plain read and an ordered
+ *             write instead of an atomic add.  a snapshot taken while threads record is consistent
+ *             per bucket but not across buckets, which is fine for monitoring.
+ *
+ *             a thread's counts are allocated one power of two (16 buckets) at a time, the first time it
+ *             records a value of that magnitude, so a thread that only ever sees latencies from a few
+ *             microseconds to a few milliseconds holds a few hundred bytes per histogram instead of ~8 KB.
+ *
+ *             reset() never writes another thread's counts, the owner's next increment could overwrite
+ *             the zero.  it starts a new generation instead: every recorder of the old one is dropped, and
+ *             a thread whose recorder is stale starts a fresh one on its next record.  a value recorded
+ *             while reset runs may or may not be counted.
+ *
+ *             a recorder whose thread has exited is folded into the retired counts and dropped, whenever a
+ *             snapshot is taken or a new thread starts recording, so a long-running process that records
+ *             from short-lived threads keeps as many recorders as it has live recording threads.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - the counts of exited threads are folded into one array instead of keeping their recorders until reset
+ * - a thread's bucket counts are allocated per power of two, as its values first reach it
+ * - reset swaps in fresh recorders instead of zeroing counts other threads are still incrementing
+ *
+ */
+
+package com;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // a thread's buckets are allocated a row, one power of two, at a time
+    private static final int ROWS = BUCKETS / SUB_BUCKETS;
+
+    // extra slots after the buckets in a merged array, and in the same order in each thread's totals
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MAX = BUCKETS + 2;
+    private static final int SLOTS = BUCKETS + 3;
+
+    private final ThreadLocal<Recorder> localRecorder = new ThreadLocal<Recorder>();
+
+    // the recorder of every live thread (and of exited ones not retired yet), read when merging
+    private final ConcurrentLinkedQueue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+
+    // merged counts of retired recorders, guarded by itself
+    private final long[] retired = new long[SLOTS];
+
+    // bumped by every reset, written under retired's lock, recorders of an older generation are stale
+    private volatile int generation;
+
+    private static final class Recorder {
+        final Thread owner;
+        final int generation;
+        final AtomicReferenceArray<AtomicLongArray> rows = new AtomicReferenceArray<>(ROWS);
+        final AtomicLongArray totals = new AtomicLongArray(SLOTS - BUCKETS);
+
+        Recorder(Thread owner, int generation) {
+            this.owner = owner;
+            this.generation = generation;
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        Recorder recorder = recorder();
+        int bucket = bucket(nanos);
+        int index = bucket / SUB_BUCKETS;
+        int sub = bucket & (SUB_BUCKETS - 1);
+
+        // only this thread writes these slots, or publishes this row
+        AtomicLongArray row = recorder.rows.get(index);
+        if (row == null) {
+            row = new AtomicLongArray(SUB_BUCKETS);
+            recorder.rows.lazySet(index, row);
+        }
+        row.lazySet(sub, row.get(sub) + 1);
+
+        AtomicLongArray totals = recorder.totals;
+        totals.lazySet(COUNT - BUCKETS, totals.get(COUNT - BUCKETS) + 1);
+        totals.lazySet(SUM - BUCKETS, totals.get(SUM - BUCKETS) + nanos);
+        if (nanos > totals.get(MAX - BUCKETS)) {
+            totals.lazySet(MAX - BUCKETS, nanos);
+        }
+    }
+
+    // this thread's recorder, a fresh one the first time it records and after every reset
+    private Recorder recorder() {
+        Recorder recorder = localRecorder.get();
+        int current = generation;
+
+        if (recorder == null || recorder.generation != current) {
+            if (recorder != null) {
+                // reset already dropped it, unless it was added while reset ran
+                recorders.remove(recorder);
+            }
+
+            recorder = new Recorder(Thread.currentThread(), current);
+            retireExited();
+            recorders.add(recorder);
+            localRecorder.set(recorder);
+        }
+
+        return recorder;
+    }
+
+    // merges every thread's counts
+    public Snapshot snapshot() {
+        retireExited();
+
+        long[] merged;
+        synchronized (retired) {
+            merged = retired.clone();
+        }
+
+        for (Recorder recorder : recorders) {
+            merge(merged, recorder);
+        }
+
+        return new Snapshot(merged);
+    }
+
+    // forgets every count: drops all recorders, and each thread starts a fresh one when it next records
+    public void reset() {
+        int current;
+
+        synchronized (retired) {
+            current = ++generation;
+            for (int i = 0; i < SLOTS; i++) {
+                retired[i] = 0;
+            }
+        }
+
+        for (Recorder recorder : recorders) {
+            if (recorder.generation != current) {
+                recorders.remove(recorder);
+            }
+        }
+    }
+
+    // folds the recorders of exited threads, whose counts can't change anymore, into the retired counts
+    private void retireExited() {
+        for (Recorder recorder : recorders) {
+            // only the caller that removes it folds it in
+            if (!recorder.owner.isAlive() && recorders.remove(recorder)) {
+                synchronized (retired) {
+                    // a reset since it was removed has already forgotten its counts
+                    if (recorder.generation == generation) {
+                        merge(retired, recorder);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void merge(long[] merged, Recorder recorder) {
+        for (int index = 0; index < ROWS; index++) {
+            AtomicLongArray row = recorder.rows.get(index);
+
+            if (row != null) {
+                for (int sub = 0; sub < SUB_BUCKETS; sub++) {
+                    merged[index * SUB_BUCKETS + sub] += row.get(sub);
+                }
+            }
+        }
+        merged[COUNT] += recorder.totals.get(COUNT - BUCKETS);
+        merged[SUM] += recorder.totals.get(SUM - BUCKETS);
+        merged[MAX] = Math.max(merged[MAX], recorder.totals.get(MAX - BUCKETS));
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // position of the highest set bit, at least SUB_BUCKET_BITS here
+        int magnitude = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    // the largest value that falls in the bucket
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        long lowest = (SUB_BUCKETS + sub) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+    // an immutable merged copy of the histogram
+    public static final class Snapshot {
+
+        private final long[] counts;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+        }
+
+        public long getCount() {
+            return counts[COUNT];
+        }
+
+        public long getTotalNanos() {
+            return counts[SUM];
+        }
+
+        public long getMaxNanos() {
+            return counts[MAX];
+        }
+
+        public double getMeanNanos() {
+            return (getCount() == 0) ? 0 : (double) getTotalNanos() / getCount();
+        }
+
+        // the histogram of both snapshots' values together
+        public Snapshot plus(Snapshot other) {
+            long[] merged = new long[SLOTS];
+
+            for (int i = 0; i < SLOTS; i++) {
+                merged[i] = counts[i] + other.counts[i];
+            }
+            merged[MAX] = Math.max(counts[MAX], other.counts[MAX]);
+
+            return new Snapshot(merged);
+        }
+
+        // value that percentile percent of the recorded values are at or below, e.g. 99.9
+        public long getValueAtPercentile(double percentile) {
+            long count = getCount();
+
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // never report more than the largest value actually recorded
+                    return Math.min(highestValue(i), getMaxNanos());
+                }
+            }
+
+            return getMaxNanos();
+        }
+
+        @Override
+        public String toString() {
+            Object[] args = new Object[] {getCount(), getMeanNanos(), getValueAtPercentile(50), getValueAtPercentile(99),
+                    getValueAtPercentile(99.9), getMaxNanos()};
+            return String.format("count: %d, mean: %.0f, p50: %d, p99: %d, p99.9: %d, max: %d", args);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * name: LoadGenerator
+ * author: crs
+ * description: load-generating client for a SetServer.  opens a number of connections, each on its own thread,
+ *              and keeps a fixed number of requests in flight (pipelined) on each for the length of the run,
+ *              drawing keys from a KeyDistribution and operations from the same contains / add / remove mix
+ *              as Main.  reports requests per second and the latency percentiles of every request, from
+ *              writing it to reading its response.
+ *
+ * extra info: each connection reads whatever responses have arrived, replaces every one of them with a new
+ *             request and sends the replacements in one write, so its pipeline stays full without a write
+ *             per request.  the server answers a connection's requests in order, so the send time of request
+ *             id is kept in slot id % depth.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadGenerator {
+
+    // what a run did
+    public static final class Result {
+        private final long requests;
+        private final long aborted;
+        private final long failed;
+        private final long nanos;
+        private final LatencyHistogram.Snapshot latency;
+
+        Result(long requests, long aborted, long failed, long nanos, LatencyHistogram.Snapshot latency) {
+            this.requests = requests;
+            this.aborted = aborted;
+            this.failed = failed;
+            this.nanos = nanos;
+            this.latency = latency;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getAborted() {
+            return aborted;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public double getRequestsPerSecond() {
+            return requests * 1e9 / nanos;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %d ms, %.0f requests/s, %d aborted, %d failed, latency p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                    requests, TimeUnit.NANOSECONDS.toMillis(nanos), getRequestsPerSecond(), aborted, failed,
+                    TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(50)), TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99)),
+                    TimeUnit.NANOSECONDS.toMicros(latency.getValueAtPercentile(99.9)), TimeUnit.NANOSECONDS.toMicros(latency.getMaxNanos()));
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InetSocketAddress server;
+    private final int connections;
+    private final int depth;
+    private final KeyDistribution keys;
+    private final double containsProportion;
+    private final double addProportion;
+    private final int operationsPerTransaction;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    // operationsPerTransaction of 1 sends single operations, more sends TRANSACTION requests of that many
+    public LoadGenerator(InetSocketAddress server, int connections, int depth, KeyDistribution keys, double containsProportion,
+                         double addProportion, int operationsPerTransaction) {
+        if (depth < 1 || operationsPerTransaction < 1 || operationsPerTransaction > SetServer.MAX_TRANSACTION_OPERATIONS) {
+            throw new IllegalArgumentException("bad pipeline depth or transaction size");
+        }
+
+        this.server = server;
+        this.connections = connections;
+        this.depth = depth;
+        this.keys = keys;
+        this.containsProportion = containsProportion;
+        this.addProportion = addProportion;
+        this.operationsPerTransaction = operationsPerTransaction;
+    }
+
+    // runs the load for duration, then waits for the requests still in flight
+    public Result run(long duration, TimeUnit unit) throws IOException, InterruptedException {
+        latency.reset();
+        requests.reset();
+        aborted.reset();
+        failed.reset();
+
+        final long deadline = System.nanoTime() + unit.toNanos(duration);
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+
+        for (int i = 0; i < connections; i++) {
+            final long seed = i;
+
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(deadline, new SplittableRandom(seed));
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }, "LoadGenerator-" + i);
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        return new Result(requests.sum(), aborted.sum(), failed.sum(), System.nanoTime() - start, latency.snapshot());
+    }
+
+    // one connection's pipeline
+    private void drive(long deadline, SplittableRandom random) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(server)) {
+            channel.socket().setTcpNoDelay(true);
+
+            ByteBuffer out = ByteBuffer.allocate(Math.max(BUFFER_SIZE, depth * (SetServer.REQUEST_HEADER_BYTES + 2 + 5 * operationsPerTransaction)));
+            ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+            long[] sent = new long[depth];
+            int nextId = 0;
+            int inFlight = 0;
+
+            for (; inFlight < depth; inFlight++) {
+                sent[nextId % depth] = System.nanoTime();
+                encode(out, nextId++, random);
+            }
+            flush(channel, out);
+
+            while (inFlight > 0) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("server closed the connection");
+                }
+                in.flip();
+
+                long now = System.nanoTime();
+
+                while (in.remaining() >= 4 && in.remaining() >= in.getInt(in.position()) + 4) {
+                    int length = in.getInt();
+                    int end = in.position() + length;
+                    int id = in.getInt();
+                    byte status = in.get();
+                    in.position(end);
+
+                    latency.record(now - sent[id % depth]);
+                    requests.increment();
+                    inFlight--;
+
+                    if (status == SetServer.ABORTED) {
+                        aborted.increment();
+                    }
+                    else if (status == SetServer.FAILED) {
+                        failed.increment();
+                    }
+
+                    if (now < deadline) {
+                        sent[nextId % depth] = now;
+                        encode(out, nextId++, random);
+                        inFlight++;
+                    }
+                }
+
+                in.compact();
+                flush(channel, out);
+            }
+        }
+    }
+
+    private void encode(ByteBuffer out, int id, SplittableRandom random) {
+        if (operationsPerTransaction == 1) {
+            out.putInt(SetServer.REQUEST_HEADER_BYTES - 4 + 4).putInt(id).put(nextOperation(random)).putInt(keys.nextKey(random));
+            return;
+        }
+
+        out.putInt(SetServer.REQUEST_HEADER_BYTES - 4 + 2 + 5 * operationsPerTransaction).putInt(id).put(SetServer.TRANSACTION)
+                .putShort((short) operationsPerTransaction);
+
+        for (int i = 0; i < operationsPerTransaction; i++) {
+            out.put(nextOperation(random)).putInt(keys.nextKey(random));
+        }
+    }
+
+    private byte nextOperation(SplittableRandom random) {
+        double r = random.nextDouble();
+
+        if (r < containsProportion) {
+            return SetServer.CONTAINS;
+        }
+        return (r < containsProportion + addProportion) ? SetServer.ADD : SetServer.REMOVE;
+    }
+
+    private static void flush(SocketChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    // runs a load against a SetServer and prints the result.
+    // args: host port [connections [depth [seconds [operations per transaction [max key]]]]]
+    public static void main(String[] args) throws Exception {
+        String host = (args.length > 0) ? args[0] : "localhost";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 7420;
+        int connections = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 32;
+        int seconds = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+        int operationsPerTransaction = (args.length > 5) ? Integer.parseInt(args[5]) : 1;
+        int maxKey = (args.length > 6) ? Integer.parseInt(args[6]) : 1 << 20;
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(host, port), connections, depth,
+                new UniformKeyDistribution(0, maxKey), 0.50, 0.25, operationsPerTransaction);
+
+        System.out.printf("%d connections, %d in flight each, %d operations per request: %s%n", connections, depth,
+                operationsPerTransaction, generator.run(seconds, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * name: LockBusyException
+ * author: crs
+ * description: thrown by LockKey instead of waiting when an asynchronous transaction (TThread.doItAsync)
+ *              finds an abstract lock busy.  the attempt is given up like an abort, and the transaction is
+ *              resumed once the lock it ran into is released.
+ *
+ * extra info: thrown on every busy lock an asynchronous transaction meets, so it carries no stack trace.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - declared a serialVersionUID, the exception is serializable through Throwable.
+ *
+ */
+
+package com;
+
+public class LockBusyException extends AbortedException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AbstractLock lock;
+
+    public LockBusyException(AbstractLock lock) {
+        super();
+        this.lock = lock;
+    }
+
+    // the lock the transaction has to wait for
+    public AbstractLock getLock() {
+        return lock;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -5,10 +5,10 @@
  * description: provides a concurrent pool of locks that all threads attempting operations
  *              on the set must acquire.  provides lock() method that creates a new lock
  *              for the semantic key (element) if one does not exist, and attempts to lock
- *              it.  the lock has a timeout to guarantee progress.  additionally, the LockKey
- *              class manages adding locks to the Transaction's ThreadLocal lockList; when the
- *              Transaction is aborted the Transaction manages iterating through this list and releasing
- *              those locks.
+ *              it.  a ContentionManager decides how long to wait for a busy lock, to guarantee
+ *              progress.  additionally, the LockKey class manages adding locks to the Transaction's
+ *              ThreadLocal lockList; when the Transaction is aborted the Transaction manages
+ *              iterating through this list and releasing those locks.
  *
  * acknowledgements: LockKey implementation as described by Herlihy and Koskinen
  *
@@ -17,6 +17,14 @@
  *             locks on those conditions.  by acquiring a lock associated with the element of the operation,
  *             for sets we can guarantee that all transactions will commute.
  *
+ *             optimistic reads: keys hash to one of STRIPES version words, each the number of exclusive
+ *             acquisitions on the stripe (high bits) and of writers still holding them (low bits).  a
+ *             writer adds one of each when it locks a key exclusively, and takes its writer back off once
+ *             it has committed or rolled back.  a read with no writer on its stripe records the version
+ *             and reads the base structure without locking; any exclusive lock taken on the stripe after
+ *             that changes the version, so validate catches every write the read could have seen or
+ *             missed.  a stripe with a writer on it means uncommitted data, so the read locks instead.
+ *
  * Edit History:
  * - Renovated by crs on 4/7/17.
  *
@@ -24,56 +32,349 @@
  * - changes to how callables are being generated
  * - operations and inverses are now generated in advance of running the simulation for the configuration
  * - refactored method of logging
+ * - locks stay in the lock set until the whole transaction commits or aborts, so a transaction
+ *   running several operations holds every abstract lock it acquired until then
+ * - key -> lock lookups go through a pluggable LockTable, IntLockTable avoids boxing the key
+ * - locks are reference counted by the LockTable and reclaimed once no transaction holds or
+ *   waits on them, so the table stays as small as the set of locks in use
+ * - locks are taken in a mode, SHARED for operations that commute with each other and EXCLUSIVE
+ *   otherwise.  a transaction already holding a lock shared upgrades it when it asks for EXCLUSIVE
+ * - replaced the fixed 10 second timeout with a pluggable ContentionManager, consulted each time
+ *   a busy lock could not be acquired.  the default TimeoutContentionManager keeps the old behavior
+ * - records lock wait times and failed acquisitions in the MetricsRegistry
+ * - lockRange locks a whole range of keys with a single range lock from a RangeLockTable, and exclusive
+ *   key locks wait for any other transaction's range over their key, so scans see no phantoms
+ * - optional optimistic reads (ReadMode.OPTIMISTIC): readOptimistic records a stripe version in the
+ *   transaction's read set instead of locking, and validate checks it before commit
+ * - tracks which locks each transaction holds and which one it waits for, for deadlock detection.  the
+ *   default ContentionManager is now the DeadlockDetectingContentionManager
+ * - the lock set is the transaction's LockSet, and a lock only joins it once acquired, so it is exactly
+ *   the set of locks held.  the transaction is looked up once per lock call and passed down
+ * - ReadMode.SNAPSHOT, for sets whose read-only transactions read snapshots.  locks as LOCKED does
+ * - asynchronous transactions never wait on a busy lock, they throw LockBusyException
+ * - a transaction whose upgrade conflicts with another holder's aborts at once instead of retrying it
  *
  */
 
 package com;
 
-import java.util.HashSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class LockKey {
 
-    private final int LOCK_TIMEOUT = 10000;
-    private ConcurrentHashMap<Integer, Lock> map;
+    // how reads (SHARED locks) that can be made optimistic are performed
+    public enum ReadMode {
+        // reads take the key's lock shared
+        LOCKED,
+        // reads record a stripe version and are validated before commit, see readOptimistic
+        OPTIMISTIC,
+        // reads lock as LOCKED, except in read-only transactions, which read a snapshot of the set instead.
+        // the set keeps the versions they need in a VersionStore
+        SNAPSHOT
+    }
+
+    // number of version stripes, a power of two
+    static final int STRIPES = 4096;
+
+    // a stripe version is the acquisition count above WRITER_BITS and the writers holding it below
+    private static final int WRITER_BITS = 16;
+    private static final long WRITER = 1;
+    private static final long ACQUISITION = 1L << WRITER_BITS;
+    private static final long WRITERS_MASK = ACQUISITION - 1;
+
+    private final LockTable map;
+    private final ContentionManager contentionManager;
+    private final ReadMode readMode;
+    private final RangeLockTable ranges = new RangeLockTable();
+
+    // stripe versions, null unless reads are optimistic
+    private final AtomicLongArray versions;
 
     // instantiate map for key -> lock on construction
     public LockKey() {
-        map = new ConcurrentHashMap<>();
+        this(new BoxedLockTable());
+    }
+
+    public LockKey(LockTable map) {
+        this(map, new DeadlockDetectingContentionManager());
+    }
+
+    public LockKey(LockTable map, ContentionManager contentionManager) {
+        this(map, contentionManager, ReadMode.LOCKED);
+    }
+
+    public LockKey(LockTable map, ContentionManager contentionManager, ReadMode readMode) {
+        this.map = map;
+        this.contentionManager = contentionManager;
+        this.readMode = readMode;
+        this.versions = (readMode == ReadMode.OPTIMISTIC) ? new AtomicLongArray(STRIPES) : null;
     }
 
-    // attempts to acquire a lock associated with the key
+    public ReadMode getReadMode() {
+        return readMode;
+    }
+
+    public ContentionManager getContentionManager() {
+        return contentionManager;
+    }
+
+    // number of abstract locks currently held or waited on
+    public int size() {
+        return map.size();
+    }
+
+    // number of range locks currently held
+    public int getRangeCount() {
+        return ranges.size();
+    }
+
+    // the locks held exclusively right now
+    void collectWriters(List<AbstractLock> locks) {
+        map.collectExclusive(Integer.MIN_VALUE, Integer.MAX_VALUE, locks);
+    }
+
+    // attempts to acquire an exclusive lock associated with the key
     public void lock(int key) throws AbortedException, InterruptedException {
-        Lock lock = map.get(key);
-        HashSet<Lock> lockSet = Transaction.getLockSet();
+        lock(key, AbstractLock.Mode.EXCLUSIVE);
+    }
+
+    // attempts to acquire a lock associated with the key in the given mode
+    public void lock(int key, AbstractLock.Mode mode) throws AbortedException, InterruptedException {
+        // creates the lock if it does not exist, and takes a reference on it so it can't be
+        // reclaimed while we hold or wait on it
+        AbstractLock lock = map.acquire(key);
+        Transaction me = Transaction.getLocal();
+        LockSet lockSet = me.getLocks();
+
+        if (!lockSet.contains(lock)) {
+            boolean acquired = false;
+
+            try {
+                acquired = acquire(me, lock, mode, false);
+            } finally {
+                // if the contention manager gave up on the lock, hand back our reference, and abort
+                if (!acquired) {
+                    map.release(lock);
+                }
+            }
+
+            if (!acquired) {
+                abort(me);
+            }
+
+            // released along with the rest of the lock set when the transaction commits or aborts
+            lockSet.add(lock);
+
+            if (mode == AbstractLock.Mode.EXCLUSIVE) {
+                beginWrite(me, key);
+                awaitRanges(me, key);
+            }
+        }
+        else {
+            // this transaction already holds the lock and its reference
+            map.release(lock);
+
+            // read then write on the same key, upgrade.  the lock stays in the lockSet
+            // on failure, still held shared, and is released by the abort handler
+            if (mode == AbstractLock.Mode.EXCLUSIVE && !lock.isHeldExclusively()) {
+                if (!acquire(me, lock, mode, true)) {
+                    abort(me);
+                }
+
+                beginWrite(me, key);
+                awaitRanges(me, key);
+            }
+        }
+    }
+
+    // starts an optimistic read of key.  returns true, having recorded the stripe version in the transaction's
+    // read set, if nobody is writing the stripe; the caller then reads the base structure without locking.
+    // returns false if reads are LOCKED or a writer holds the stripe, and the caller has to lock the key
+    public boolean readOptimistic(int key) {
+        if (versions == null) {
+            return false;
+        }
+
+        int stripe = stripe(key);
+        long version = versions.get(stripe);
+
+        if ((version & WRITERS_MASK) != 0) {
+            return false;
+        }
+
+        Transaction.getLocal().logRead(this, stripe, version);
+        return true;
+    }
+
+    // true if the stripe is at version plus ownWrites exclusive acquisitions by the validating transaction,
+    // which still holds them
+    boolean validate(int stripe, long version, int ownWrites) {
+        return versions.get(stripe) == version + ownWrites * (ACQUISITION + WRITER);
+    }
+
+    // called once key is locked exclusively, before the base structure is modified
+    private void beginWrite(Transaction me, int key) {
+        if (versions != null) {
+            int stripe = stripe(key);
+            versions.addAndGet(stripe, ACQUISITION + WRITER);
+            me.logWrite(this, stripe);
+        }
+    }
+
+    // called by Transaction.endWrites once the write has committed or been rolled back
+    void endWrite(int stripe) {
+        versions.addAndGet(stripe, -WRITER);
+    }
+
+    private static int stripe(int key) {
+        return IntLockTable.hash(key) & (STRIPES - 1);
+    }
+
+    // locks every key in [low, high] against writes by other transactions, with a single range lock held
+    // until the transaction commits or aborts.  keys in the range that other transactions hold exclusively
+    // are waited for and then locked shared, as contains would, so the caller only reads committed keys
+    public void lockRange(int low, int high) throws AbortedException, InterruptedException {
+        Transaction me = Transaction.getLocal();
+        LockSet lockSet = me.getLocks();
+        ArrayList<AbstractLock> writers = new ArrayList<>();
+
+        while (true) {
+            // publish first, any writer locking a key in the range from here on waits for us
+            RangeLockTable.Range range = ranges.acquire(low, high);
+            lockSet.add(range);
+            onAcquired(me, range);
+            MetricsRegistry.recordLockAcquired(0);
+
+            // then look for the writers that got in before
+            writers.clear();
+            map.collectExclusive(low, high, writers);
+
+            boolean clear = true;
+            for (AbstractLock writer : writers) {
+                if (!lockSet.contains(writer)) {
+                    clear = false;
+                    break;
+                }
+            }
+
+            if (clear) {
+                return;
+            }
+
+            // a writer may already be waiting for our range, so never wait on one while the range is
+            // published.  take it down, wait for the writers, and publish it again
+            lockSet.remove(range);
+            range.release();
+
+            for (AbstractLock writer : writers) {
+                if (!lockSet.contains(writer)) {
+                    lock(writer.key, AbstractLock.Mode.SHARED);
+                }
+            }
+        }
+    }
+
+    // waits until no other transaction holds a range over key.  called once key is locked exclusively,
+    // so a range published after this returns finds our key lock and waits for us instead
+    private void awaitRanges(Transaction me, int key) throws AbortedException, InterruptedException {
+        RangeLockTable.Range[] current = ranges.getRanges();
+
+        if (current.length == 0) {
+            return;
+        }
+
+        LockSet lockSet = me.getLocks();
+
+        for (RangeLockTable.Range range : current) {
+            if (range.covers(key) && !lockSet.contains(range)) {
+                // the scan releases its range when it commits or aborts, or to let us through.
+                // we only take it to wait for that, and let go of it straight away
+                if (!acquire(me, range, AbstractLock.Mode.EXCLUSIVE, false)) {
+                    abort(me);
+                }
+                range.unlock();
+            }
+        }
+    }
 
-        // creates the lock if it does not exist
-        if (lock == null) {
-            Lock newLock = new ReentrantLock();
+    // tries the lock once, then waits for as long as the contention manager allows.
+    // returns false if the manager chose to abort, or another transaction wounded us.  an asynchronous
+    // transaction doesn't wait, it throws LockBusyException and is resumed once the lock is released.
+    // an upgrade that conflicts with another holder's aborts right away
+    private boolean acquire(Transaction me, AbstractLock lock, AbstractLock.Mode mode, boolean upgrade) throws AbortedException, InterruptedException {
+        if (tryLock(me, lock, mode, upgrade, 0)) {
+            onAcquired(me, lock);
+            MetricsRegistry.recordLockAcquired(0);
+            return true;
+        }
 
-            // its possible a lock was created for this element when we created one;
-            // we use the newly created lock only if it replaced null at that key.
-            Lock oldLock = map.putIfAbsent(key, newLock);
-            lock = (oldLock == null) ? newLock : oldLock;
+        if (me.isAsync()) {
+            throw new LockBusyException(lock);
         }
 
-        // try to add the lock to the Transaction's thread-local lock set
-        if (lockSet.add(lock)) {
+        long start = System.nanoTime();
+
+        // visible to deadlock detection while we wait
+        me.setWaitingFor(lock);
+        boolean acquired = false;
 
-            // if we can't acquire the lock in the time, remove it from the
-            // lockSet and abort
-            if (!lock.tryLock(LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        try {
+            for (int attempt = 0; !me.isWounded(); attempt++) {
+                long waited = System.nanoTime() - start;
+                long wait = contentionManager.resolve(me, lock, attempt, waited);
 
-                lockSet.remove(lock);
-                if (Transaction.getLocal() != null) {
-                    Transaction.getLocal().abort();
+                if (wait < 0) {
+                    break;
                 }
 
-                throw new AbortedException();
+                if (tryLock(me, lock, mode, upgrade, wait)) {
+                    long waitedNanos = System.nanoTime() - start;
+                    acquired = true;
+                    me.setWaitingFor(null);
+                    onAcquired(me, lock);
+                    contentionManager.onAcquired(me, lock, waitedNanos);
+                    MetricsRegistry.recordLockAcquired(waitedNanos);
+                    return true;
+                }
+            }
+        } finally {
+            me.setWaitingFor(null);
+
+            if (!acquired) {
+                contentionManager.onGaveUp(me, lock);
             }
         }
+
+        MetricsRegistry.recordLockFailure();
+        return false;
+    }
+
+    private static boolean tryLock(Transaction me, AbstractLock lock, AbstractLock.Mode mode, boolean upgrade, long waitNanos) throws AbortedException, InterruptedException {
+        if (!upgrade) {
+            return lock.tryLock(mode, waitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        AbstractLock.Upgrade result = lock.tryUpgrade(waitNanos, TimeUnit.NANOSECONDS);
+
+        // the other upgrader waits for our shared hold, so waiting for it would never end.  we give way
+        if (result == AbstractLock.Upgrade.CONFLICT) {
+            MetricsRegistry.recordLockFailure();
+            abort(me);
+        }
+
+        return result == AbstractLock.Upgrade.UPGRADED;
+    }
+
+    private static void onAcquired(Transaction me, AbstractLock lock) {
+        lock.setOwner(me);
+        me.addKarma(1);
+    }
+
+    private static void abort(Transaction me) throws AbortedException {
+        me.abort();
+        throw new AbortedException();
     }
 }
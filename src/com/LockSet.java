@@ -0,0 +1,189 @@
+/**
+ * name: LockSet
+ * author: crs
+ * description: the abstract locks a transaction holds, in the order it acquired them.  replaces the
+ *              thread-local HashSet: locks are kept in a plain array that is reused by every transaction the
+ *              thread runs, so adding a lock, checking for one and clearing the set in bulk at commit or abort
+ *              allocate nothing once the array has grown to the thread's largest transaction.
+ *
+ * extra info: transactions hold a handful of locks, so contains scans the array.  once a transaction holds more
+ *             than SCAN_LIMIT locks (range scans, batches) an open-addressing index of array positions is
+ *             built and kept up to date until the set is cleared.
+ *
+ *             only the owning thread modifies the set, but deadlock detection on other threads calls holds.
+ *             a lock is stored before the size is raised past it, and a grown array is published before the
+ *             size too, so a reader that reads the size and then the array sees every lock counted.  removed
+ *             locks leave a null behind, the set is only compacted by clear.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.Arrays;
+
+public class LockSet {
+
+    // largest set searched by scanning, larger ones use the index
+    static final int SCAN_LIMIT = 16;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private volatile AbstractLock[] locks = new AbstractLock[INITIAL_CAPACITY];
+    private volatile int size;
+
+    // array position + 1 of each lock by hash, 0 for an empty slot.  null until the set outgrows SCAN_LIMIT
+    private int[] index;
+    private boolean indexed;
+
+    // number of positions used, including those of removed locks
+    public int size() {
+        return size;
+    }
+
+    // the lock at position i, or null if it was removed
+    public AbstractLock get(int i) {
+        return locks[i];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(AbstractLock lock) {
+        return indexed ? find(lock) >= 0 : holds(lock);
+    }
+
+    // adds lock, which must not be in the set already.  only called by the owning thread
+    public void add(AbstractLock lock) {
+        AbstractLock[] current = locks;
+        int count = size;
+
+        if (count == current.length) {
+            current = Arrays.copyOf(current, count * 2);
+            locks = current;
+        }
+
+        current[count] = lock;
+        size = count + 1;
+
+        if (indexed) {
+            if ((count + 1) * 2 > index.length) {
+                rebuildIndex(count + 1);
+            }
+            else {
+                insert(lock, count);
+            }
+        }
+        else if (count + 1 > SCAN_LIMIT) {
+            rebuildIndex(count + 1);
+        }
+    }
+
+    // removes lock if it is in the set, leaving its position empty.  only called by the owning thread
+    public boolean remove(AbstractLock lock) {
+        AbstractLock[] current = locks;
+
+        if (indexed) {
+            int position = find(lock);
+            if (position < 0) {
+                return false;
+            }
+
+            current[position] = null;
+            return true;
+        }
+
+        for (int i = size - 1; i >= 0; i--) {
+            if (current[i] == lock) {
+                current[i] = null;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // empties the set, keeping its arrays for the next transaction.  only called by the owning thread
+    public void clear() {
+        int count = size;
+
+        if (count == 0) {
+            return;
+        }
+
+        size = 0;
+        Arrays.fill(locks, 0, count, null);
+
+        if (indexed) {
+            Arrays.fill(index, 0);
+            indexed = false;
+        }
+    }
+
+    // whether the set holds lock, by scanning.  safe to call from any thread
+    boolean holds(AbstractLock lock) {
+        int count = size;
+        AbstractLock[] current = locks;
+
+        for (int i = 0; i < count; i++) {
+            if (current[i] == lock) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // position of lock in the array, or -1
+    private int find(AbstractLock lock) {
+        AbstractLock[] current = locks;
+        int mask = index.length - 1;
+
+        for (int slot = IntLockTable.hash(lock.key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+
+            if (entry == 0) {
+                return -1;
+            }
+
+            if (current[entry - 1] == lock) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insert(AbstractLock lock, int position) {
+        int mask = index.length - 1;
+        int slot = IntLockTable.hash(lock.key) & mask;
+
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        index[slot] = position + 1;
+    }
+
+    // indexes the first count positions, in a table at most half full
+    private void rebuildIndex(int count) {
+        int capacity = Integer.highestOneBit(count) * 4;
+
+        if (index == null || index.length < capacity) {
+            index = new int[capacity];
+        }
+        else {
+            Arrays.fill(index, 0);
+        }
+
+        indexed = true;
+
+        AbstractLock[] current = locks;
+        for (int i = 0; i < count; i++) {
+            if (current[i] != null) {
+                insert(current[i], i);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * name: LockTable
+ * author: crs
+ * description: maps a semantic key (set element) to the abstract lock guarding it.  LockKey
+ *              looks locks up here and handles acquiring them on behalf of the transaction.
+ *              locks are reference counted, a table only keeps entries that some transaction
+ *              holds or is waiting on, so its size scales with the number of concurrent
+ *              transactions instead of the number of keys ever touched.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ * - locks are retained by acquire and handed back by release, unused locks are removed
+ * - collectExclusive finds the writers inside a key range, for range locks
+ *
+ */
+
+package com;
+
+import java.util.List;
+
+public interface LockTable {
+
+    // returns the lock for key with a reference taken on it, creating it if no lock exists yet.
+    // concurrent callers for the same key are always handed the same lock
+    AbstractLock acquire(int key);
+
+    // drops the reference taken by acquire, removing the lock once nobody references it
+    void release(AbstractLock lock);
+
+    // number of locks currently in the table
+    int size();
+
+    // adds every lock for a key in [low, high] that is held exclusively to locks.  any lock that was
+    // already held exclusively when the call started, and still is when it returns, is included
+    void collectExclusive(int low, int high, List<AbstractLock> locks);
+}
@@ -0,0 +1,26 @@
+/**
+ * name: LongSet
+ * author: crs
+ * description: minimal interface for a thread-safe set of primitive longs, the long-keyed
+ *              counterpart of IntSet.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+public interface LongSet {
+
+    boolean add(long v);
+
+    boolean remove(long v);
+
+    boolean contains(long v);
+
+    // number of elements, may be O(n) and is only weakly consistent under concurrent updates
+    int size();
+}
@@ -0,0 +1,284 @@
+/**
+ * name: LongSkipListSet
+ * author: crs
+ * description: concurrent skiplist set specialized for primitive long keys.  keys are stored inline
+ *              in the nodes, so no operation boxes its argument and each element costs one node
+ *              instead of a node plus a Long.  adds and removes lock only the predecessors of the
+ *              affected node, contains is wait-free and takes no locks.
+ *
+ * acknowledgements: LazySkipList as described in Art of Multiprocessor Programming, chapter 14.
+ *                   deviations from the book: the tail sentinel is replaced by null so the full long
+ *                   range can be stored, node locks are a single int word spun on with CAS instead
+ *                   of a ReentrantLock per node, and the preds / succs arrays are reused per thread.
+ *
+ * Edit History:
+ * - Created by crs on 4/20/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class LongSkipListSet implements LongSet {
+
+    // enough levels for well over 2^24 elements at p = 0.5
+    static final int MAX_LEVEL = 24;
+
+    private static final VarHandle NEXT = MethodHandles.arrayElementVarHandle(Node[].class);
+    private static final VarHandle LOCK;
+
+    static {
+        try {
+            LOCK = MethodHandles.lookup().findVarHandle(Node.class, "lockState", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // scratch space for find(), preds in [0, MAX_LEVEL) and succs in [MAX_LEVEL, 2 * MAX_LEVEL).
+    // a thread only ever runs one add / remove at a time, so this can be shared by all instances
+    private static final ThreadLocal<Node[]> scratch = new ThreadLocal<Node[]>() {
+        protected Node[] initialValue() {
+            return new Node[2 * MAX_LEVEL];
+        }
+    };
+
+    static final class Node {
+        final long key;
+        final Node[] next;
+        final int topLevel;
+        volatile boolean marked;
+        volatile boolean fullyLinked;
+        volatile int lockState;
+
+        Node(long key, int topLevel) {
+            this.key = key;
+            this.topLevel = topLevel;
+            this.next = new Node[topLevel + 1];
+        }
+
+        void lock() {
+            while (!LOCK.compareAndSet(this, 0, 1)) {
+                Thread.onSpinWait();
+            }
+        }
+
+        void unlock() {
+            LOCK.setRelease(this, 0);
+        }
+
+        Node next(int level) {
+            return (Node) NEXT.getAcquire(next, level);
+        }
+
+        void setNext(int level, Node node) {
+            NEXT.setRelease(next, level, node);
+        }
+    }
+
+    // head sentinel, its key is never compared
+    final Node head;
+
+    public LongSkipListSet() {
+        head = new Node(0, MAX_LEVEL - 1);
+        head.fullyLinked = true;
+    }
+
+    // fills preds / succs for every level and returns the highest level key was found at, or -1
+    private int find(long key, Node[] nodes) {
+        int levelFound = -1;
+        Node pred = head;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            Node curr = pred.next(level);
+            while (curr != null && curr.key < key) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+
+            if (levelFound == -1 && curr != null && curr.key == key) {
+                levelFound = level;
+            }
+
+            nodes[level] = pred;
+            nodes[MAX_LEVEL + level] = curr;
+        }
+
+        return levelFound;
+    }
+
+    public boolean add(long v) {
+        int topLevel = randomLevel();
+        Node[] nodes = scratch.get();
+
+        while (true) {
+            int levelFound = find(v, nodes);
+
+            if (levelFound != -1) {
+                Node found = nodes[MAX_LEVEL + levelFound];
+
+                if (!found.marked) {
+                    // another add is still linking it in, wait so we are linearized after it
+                    while (!found.fullyLinked) {
+                        Thread.onSpinWait();
+                    }
+                    return false;
+                }
+
+                // being removed, retry once it's gone
+                continue;
+            }
+
+            int highestLocked = -1;
+            try {
+                boolean valid = true;
+
+                for (int level = 0; valid && level <= topLevel; level++) {
+                    Node pred = nodes[level];
+                    Node succ = nodes[MAX_LEVEL + level];
+
+                    // the same pred can cover several consecutive levels, only lock it once
+                    if (level == 0 || pred != nodes[level - 1]) {
+                        pred.lock();
+                    }
+                    highestLocked = level;
+
+                    valid = !pred.marked && (succ == null || !succ.marked) && pred.next(level) == succ;
+                }
+
+                if (!valid) {
+                    continue;
+                }
+
+                Node node = new Node(v, topLevel);
+                for (int level = 0; level <= topLevel; level++) {
+                    node.next[level] = nodes[MAX_LEVEL + level];
+                }
+
+                // release stores publish the node's links before it becomes reachable
+                for (int level = 0; level <= topLevel; level++) {
+                    nodes[level].setNext(level, node);
+                }
+
+                node.fullyLinked = true;
+                return true;
+            } finally {
+                unlockPreds(nodes, highestLocked);
+            }
+        }
+    }
+
+    public boolean remove(long v) {
+        Node victim = null;
+        boolean isMarked = false;
+        int topLevel = -1;
+        Node[] nodes = scratch.get();
+
+        while (true) {
+            int levelFound = find(v, nodes);
+
+            if (levelFound != -1) {
+                victim = nodes[MAX_LEVEL + levelFound];
+            }
+
+            if (isMarked || (levelFound != -1 && victim.fullyLinked && victim.topLevel == levelFound && !victim.marked)) {
+                if (!isMarked) {
+                    topLevel = victim.topLevel;
+                    victim.lock();
+
+                    if (victim.marked) {
+                        victim.unlock();
+                        return false;
+                    }
+
+                    // logically removed from here on
+                    victim.marked = true;
+                    isMarked = true;
+                }
+
+                int highestLocked = -1;
+                try {
+                    boolean valid = true;
+
+                    for (int level = 0; valid && level <= topLevel; level++) {
+                        Node pred = nodes[level];
+
+                        if (level == 0 || pred != nodes[level - 1]) {
+                            pred.lock();
+                        }
+                        highestLocked = level;
+
+                        valid = !pred.marked && pred.next(level) == victim;
+                    }
+
+                    if (!valid) {
+                        continue;
+                    }
+
+                    // unlink top down so the node never becomes unreachable at a lower level first
+                    for (int level = topLevel; level >= 0; level--) {
+                        nodes[level].setNext(level, victim.next(level));
+                    }
+
+                    victim.unlock();
+                    return true;
+                } finally {
+                    unlockPreds(nodes, highestLocked);
+                }
+            }
+            else {
+                return false;
+            }
+        }
+    }
+
+    public boolean contains(long v) {
+        Node pred = head;
+        Node curr = null;
+
+        for (int level = MAX_LEVEL - 1; level >= 0; level--) {
+            curr = pred.next(level);
+            while (curr != null && curr.key < v) {
+                pred = curr;
+                curr = pred.next(level);
+            }
+
+            if (curr != null && curr.key == v) {
+                return curr.fullyLinked && !curr.marked;
+            }
+        }
+
+        return false;
+    }
+
+    public int size() {
+        int count = 0;
+
+        for (Node curr = head.next(0); curr != null; curr = curr.next(0)) {
+            if (curr.fullyLinked && !curr.marked) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static void unlockPreds(Node[] nodes, int highestLocked) {
+        for (int level = 0; level <= highestLocked; level++) {
+            if (level == 0 || nodes[level] != nodes[level - 1]) {
+                nodes[level].unlock();
+            }
+        }
+    }
+
+    // geometric distribution with p = 0.5, capped at MAX_LEVEL - 1
+    static int randomLevel() {
+        int bits = ThreadLocalRandom.current().nextInt() | (1 << (MAX_LEVEL - 1));
+        return Integer.numberOfTrailingZeros(bits);
+    }
+}
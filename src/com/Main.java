@@ -14,6 +14,27 @@
  * - changes to how callables are being generated
  * - operations and inverses are now generated in advance of running the simulation for the configuration
  * - refactored method of logging
+ * - operations are grouped into transactions of operationsPerTransaction operations each,
+ *   inverses are no longer generated up front since the set records them in the undo log
+ * - runs every configuration against each SkipListKey.Implementation and reports bytes allocated
+ *   by the worker threads and throughput alongside the duration
+ * - samples the lock table size while the simulation runs and reports its peak and final size
+ * - configurations also vary the proportion of contains operations; each configuration now runs in
+ *   runConfiguration
+ * - a second sweep compares the ContentionManager policies on a small, hot key range with multi-operation
+ *   transactions, reporting commits, aborts, abort rate and committed throughput per policy.
+ *   configuration parameters are now passed around in a Configuration
+ * - aborted transactions are retried up to maxAttempts times.  opsPerMS now only counts operations of
+ *   committed transactions, and retries and final failures are reported
+ * - registers the MetricsRegistry MBean, and reports each configuration's latency percentiles,
+ *   commit / abort rates, rollbacks and lock wait times from a MetricsRegistry snapshot
+ * - transactions run on a TransactionExecutor, whose workers claim chunks of transactions, instead
+ *   of a TThread per transaction queued into a ThreadPoolExecutor.  a third sweep runs many concurrent
+ *   clients on virtual threads where the JVM supports them
+ * - operations are no longer materialized up front.  each worker streams its share of a Workload and
+ *   runs it through a reusable OperationBatch, so no Callable is allocated per operation.  keys come from
+ *   a KeyDistribution, and a sweep compares uniform, Zipfian and hotspot keys.  setting the workload.trace
+ *   system property replays a recorded trace in every configuration instead
  *
  */
 
@@ -21,8 +42,10 @@
 package com;
 
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 // @TODO: remove references to old logger
 public class Main {
@@ -35,121 +58,274 @@ public class Main {
     private static final int [] threadCounts = {2, 4, 8};
     private static final double []  addProportions = {0.25, 0.50, 0.75};
 
+    // proportion of contains operations, addProportions then split the remaining mutations
+    private static final double []  containsProportions = {0.0, 0.50, 0.90};
+
+    private static final SkipListKey.Implementation[] implementations = {
+            SkipListKey.Implementation.BOXED,
+            SkipListKey.Implementation.PRIMITIVE
+    };
+
+    // number of set operations run inside each transaction
+    private static final int operationsPerTransaction = 1;
+
+    // attempts per transaction before giving up on it
+    private static final int maxAttempts = 10;
+
+    // contention sweep, every policy runs multi-operation transactions over a small key range
+    private static final ContentionManager.Policy[] policies = ContentionManager.Policy.values();
+    private static final int contentionOperationCount = 100000;
+    private static final int contentionOperationsPerTransaction = 4;
+    private static final int CONTENTION_MAX_VALUE = 4096;
+
+    // client sweep, many more workers than cores, each on a virtual thread if the JVM has them
+    private static final int [] clientCounts = {64, 1024};
+
     private static final long timeoutDuration = 10000;
     private static final int MIN_VALUE = 0;
     private static final int MAX_VALUE = 1000000;
 
-    public static void main(String[] args) {
-        Object[] logArgs;
-        long startTime, endTime;
+    // skew sweep, the same mix with increasingly concentrated keys
+    private static final KeyDistribution[] keyDistributions = {
+            new UniformKeyDistribution(MIN_VALUE, MAX_VALUE),
+            new ZipfianKeyDistribution(MIN_VALUE, MAX_VALUE),
+            new HotspotKeyDistribution(MIN_VALUE, MAX_VALUE, 0.01, 0.90)
+    };
 
+    public static void main(String[] args) {
         ArrayList<CustomLogger.Category> logCategories = new ArrayList<>();
         logCategories.add(CustomLogger.Category.METRIC);
         CustomLogger.setLogCategories(logCategories);
 
+        // lets jconsole / VisualVM inspect the running simulation
+        MetricsRegistry.registerMBean();
+
         CustomLogger.log(CustomLogger.Category.EVENT, "Beginning test.");
 
         // for testing purposes, we're varying the number of threads and the proportion of operations
         // for each of these configurations, we need to run operationCount operations
-        for (int threadCount : threadCounts) {
-            for (double addProportion : addProportions) {
-
-                // declare a new skiplist to start over for each configuration
-                SkipListKey transactionalSet = new SkipListKey();
-
-                logArgs = new Object[] {threadCount, addProportion, operationCount};
-                CustomLogger.log(
-                        CustomLogger.Category.EVENT,
-                        String.format("Preparing for simulation with threadCount: %d, addProportion: %f, opCount: %d", logArgs)
-                );
-
-                // prepare the operations / inverses to schedule before kicking off threads
-                Callable<Boolean>[] operations = new Callable[operationCount];
-                Callable<Boolean>[] inverses = new Callable[operationCount];
-                for (int i = 0; i < operationCount; i++) {
-                    // randomly generate operations and values
-                    SkipListKey.OperationType operationType = getOperationType(addProportion);
-                    Integer operationValue = getOperationValue();
-
-                    // @TODO: move inverse to be a ThreadLocal Callable with it intiialized to noop
-                    // generate the operations / inverses using utility classes in Transaction
-                    Callable<Boolean> operation = Transaction.getCallableOperation(operationType, operationValue, transactionalSet);
-                    Callable<Boolean> inverse   = Transaction.getCallableInverse(operationType, operationValue, transactionalSet);
-
-                    operations[i] = operation;
-                    inverses[i] = inverse;
-
-                    logArgs = new Object[] {operationType, operationValue};
-                    CustomLogger.log(
-                            CustomLogger.Category.DEBUG_FINE,
-                            String.format("New operation created: %s(%d)", logArgs)
-                    );
+        for (SkipListKey.Implementation implementation : implementations) {
+            for (int threadCount : threadCounts) {
+                for (double containsProportion : containsProportions) {
+                    for (double addProportion : addProportions) {
+                        runConfiguration(new Configuration(implementation, ContentionManager.Policy.TIMEOUT, TransactionExecutor.ThreadMode.PLATFORM,
+                                threadCount, containsProportion, addProportion, operationCount, new UniformKeyDistribution(MIN_VALUE, MAX_VALUE), operationsPerTransaction));
+                    }
                 }
+            }
+        }
 
-                // kick off fixed thread pool, it will manage scheduling threadCount threads as they finish executing
-                // we don't need to interact with its job queue
-                ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount);
+        // compare how each contention policy copes with conflicting multi-key transactions
+        for (ContentionManager.Policy policy : policies) {
+            for (int threadCount : threadCounts) {
+                runConfiguration(new Configuration(SkipListKey.Implementation.PRIMITIVE, policy, TransactionExecutor.ThreadMode.PLATFORM,
+                        threadCount, 0.50, 0.50, contentionOperationCount, new UniformKeyDistribution(MIN_VALUE, CONTENTION_MAX_VALUE),
+                        contentionOperationsPerTransaction));
+            }
+        }
 
-                CustomLogger.log(CustomLogger.Category.EVENT, "Beginning simulation.");
+        // hot keys concentrate conflicts on a few abstract locks
+        for (KeyDistribution keys : keyDistributions) {
+            for (int threadCount : threadCounts) {
+                runConfiguration(new Configuration(SkipListKey.Implementation.PRIMITIVE, ContentionManager.Policy.TIMEOUT, TransactionExecutor.ThreadMode.PLATFORM,
+                        threadCount, 0.50, 0.50, operationCount, keys, operationsPerTransaction));
+            }
+        }
 
-                startTime = System.nanoTime();
+        // lock waits park virtual threads instead of tying up a platform thread per client
+        for (int clientCount : clientCounts) {
+            runConfiguration(new Configuration(SkipListKey.Implementation.PRIMITIVE, ContentionManager.Policy.TIMEOUT, TransactionExecutor.ThreadMode.VIRTUAL,
+                    clientCount, 0.50, 0.50, operationCount, new UniformKeyDistribution(MIN_VALUE, MAX_VALUE), operationsPerTransaction));
+        }
 
-                // kick off all the operations.  this does not wait for the operation to finish, it simply initializes
-                // the thread itll run on and adds it to the thread pool
-                for (int i = 0; i < operationCount; i++) {
-                    threadPoolExecutor.execute(new TThread(operations[i], inverses[i]));
-                }
+        CustomLogger.log(CustomLogger.Category.EVENT, "Finished simulation.");
+    }
 
-                // this closes down any more tasks being scheduled for the threads to pick up
-                threadPoolExecutor.shutdown();
+    // runs the configuration's workload against a fresh set and logs its metrics
+    private static void runConfiguration(final Configuration configuration) {
+        long startTime, endTime;
 
-                try {
-                    CustomLogger.log(CustomLogger.Category.EVENT, "All operations placed in pool to be scheduled on threads.  Waiting for completion.");
+        // declare a new skiplist to start over for each configuration
+        final SkipListKey transactionalSet = new SkipListKey(configuration.implementation, configuration.policy.newManager());
 
-                    // will pause execution of this thread untill all threads in the ThreadPoolExecutor are finished
-                    threadPoolExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        // operations are generated (or replayed) by each worker as it runs them
+        final Workload workload = Workload.replayOr(configuration.getWorkload());
+        long operationCount = workload.size();
 
-                    // now finished, so end the timer.  durationMS is in ms
-                    endTime = System.nanoTime();
-                    long durationMS = (endTime - startTime) / 1000000;
+        CustomLogger.log(CustomLogger.Category.EVENT, "Preparing for simulation with %s, workload: %s", configuration, workload);
 
-                    logArgs = new Object[] {durationMS};
-                    CustomLogger.log(
-                            CustomLogger.Category.EVENT,
-                            String.format("All operations completed.  Total Time: %d", logArgs)
-                    );
+        // threadCount workers each run their share of the workload, in transactions of operationsPerTransaction operations.
+        // the worker threads report how much they allocated as they exit
+        AllocationCountingThreadFactory threadFactory = new AllocationCountingThreadFactory(TransactionExecutor.newThreadFactory(configuration.threadMode));
+        TransactionExecutor executor = new TransactionExecutor(configuration.threadCount, threadFactory);
+        final TransactionStats stats = new TransactionStats();
 
-                    logArgs = new Object[] {threadCount, addProportion, operationCount, durationMS};
-                    CustomLogger.log(
-                            CustomLogger.Category.METRIC,
-                            String.format("threadCount: %d, addProportion: %f, opCount: %d, time: %d", logArgs)
-                    );
+        CustomLogger.log(CustomLogger.Category.EVENT, "Beginning simulation.");
 
+        MetricsRegistry.reset();
+        startTime = System.nanoTime();
 
-                } catch (InterruptedException e) {
-                    CustomLogger.log(CustomLogger.Category.EXCEPTION, "Timed out waiting for operations in pool to finish.  You may need to increase the max timeout.");
+        // samples the lock table while the simulation runs, to verify it tracks concurrency, not keyspace
+        LockTableSampler sampler = new LockTableSampler(transactionalSet);
+        sampler.start();
+
+        try {
+            // will pause execution of this thread untill every transaction has committed or been given up on
+            executor.run(new TransactionExecutor.WorkerTask() {
+                @Override
+                public void run(int worker) throws Exception {
+                    OperationSource source = workload.newSource(worker, configuration.threadCount);
+                    OperationBatch batch = new OperationBatch(transactionalSet, configuration.operationsPerTransaction);
+
+                    // the batch is refilled only once doIt is done with it, retries rerun the same operations
+                    while (batch.fill(source)) {
+                        TThread.doIt(batch, maxAttempts, stats);
+                    }
                 }
+            });
+
+            // now finished, so end the timer.  durationMS is in ms
+            endTime = System.nanoTime();
+            long durationMS = (endTime - startTime) / 1000000;
+
+            CustomLogger.log(CustomLogger.Category.EVENT, "All operations completed.  Total Time: %d", durationMS);
+
+            sampler.interrupt();
+            sampler.join();
+
+            long allocatedMB = threadFactory.getAllocatedBytes() / (1024 * 1024);
+            // only operations of committed transactions count towards throughput
+            long committedOps = Math.min(operationCount, stats.getCommits() * configuration.operationsPerTransaction);
+            long opsPerMS = committedOps / Math.max(durationMS, 1);
 
+            CustomLogger.log(
+                    CustomLogger.Category.METRIC,
+                    "%s, time: %d, committedOps: %d, opsPerMS: %d, allocatedMB: %d, peakLockTableSize: %d, finalLockTableSize: %d, " +
+                            "commits: %d, aborts: %d, abortRate: %f, retries: %d, failures: %d",
+                    configuration, durationMS, committedOps, opsPerMS, allocatedMB, sampler.getPeak(), transactionalSet.getLockTableSize(),
+                    stats.getCommits(), stats.getAborts(), stats.getAbortRate(), stats.getRetries(), stats.getFailures()
+            );
+
+            CustomLogger.log(CustomLogger.Category.METRIC, "%s, %s", configuration, MetricsRegistry.snapshot());
+
+
+        } catch (InterruptedException e) {
+            CustomLogger.log(CustomLogger.Category.EXCEPTION, "Timed out waiting for operations in pool to finish.  You may need to increase the max timeout.");
+        }
+    }
+
+    // parameters of a single simulation run
+    private static class Configuration {
+        final SkipListKey.Implementation implementation;
+        final ContentionManager.Policy policy;
+        final TransactionExecutor.ThreadMode threadMode;
+        final int threadCount;
+        final double containsProportion;
+        final double addProportion;
+        final int operationCount;
+        final KeyDistribution keys;
+        final int operationsPerTransaction;
+
+        Configuration(SkipListKey.Implementation implementation, ContentionManager.Policy policy, TransactionExecutor.ThreadMode threadMode,
+                      int threadCount, double containsProportion, double addProportion, int operationCount, KeyDistribution keys,
+                      int operationsPerTransaction) {
+            this.implementation = implementation;
+            this.policy = policy;
+            this.threadMode = threadMode;
+            this.threadCount = threadCount;
+            this.containsProportion = containsProportion;
+            this.addProportion = addProportion;
+            this.operationCount = operationCount;
+            this.keys = keys;
+            this.operationsPerTransaction = operationsPerTransaction;
+        }
+
+        // containsProportion of the operations are contains, addProportion of the rest are adds,
+        // and the remainder are removes
+        Workload getWorkload() {
+            double mutations = 1 - containsProportion;
+            return new GeneratedWorkload(containsProportion, mutations * addProportion, mutations * (1 - addProportion), keys, operationCount);
+        }
+
+        public String toString() {
+            Object[] args = new Object[] {implementation, policy, threadMode, threadCount, containsProportion, addProportion,
+                    operationCount, keys, operationsPerTransaction};
+            return String.format("implementation: %s, policy: %s, threadMode: %s, threadCount: %d, containsProportion: %f, addProportion: %f, " +
+                    "opCount: %d, keys: %s, opsPerTransaction: %d", args);
+        }
+    }
+
+    // periodically samples the lock table size of a set, keeping the peak
+    private static class LockTableSampler extends Thread {
+        private static final long SAMPLE_INTERVAL_MS = 1;
+
+        private final SkipListKey transactionalSet;
+        private volatile int peak;
+
+        LockTableSampler(SkipListKey transactionalSet) {
+            this.transactionalSet = transactionalSet;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    peak = Math.max(peak, transactionalSet.getLockTableSize());
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                // done sampling
             }
         }
 
-        CustomLogger.log(CustomLogger.Category.EVENT, "Finished simulation.");
+        public int getPeak() {
+            return peak;
+        }
     }
 
-    // @TODO: change from addProporition to 3 arrays of proportions for respective operations
-    private static SkipListKey.OperationType getOperationType(double addProportion) {
-        double rand = Math.random();
+    // creates worker threads, using the given factory, that add the bytes they allocated to a shared total
+    // when they exit.  relies on the HotSpot ThreadMXBean extension; reports 0 on JVMs without it
+    private static class AllocationCountingThreadFactory implements ThreadFactory {
+        private final ThreadFactory threadFactory;
+        private final AtomicLong allocatedBytes = new AtomicLong();
+        private final ConcurrentLinkedQueue<Thread> threads = new ConcurrentLinkedQueue<>();
 
-        if (rand < addProportion) {
-            return SkipListKey.OperationType.ADD;
+        AllocationCountingThreadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
         }
-        else {
-            return SkipListKey.OperationType.REMOVE;
+
+        public Thread newThread(final Runnable r) {
+            Thread thread = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        allocatedBytes.addAndGet(getCurrentThreadAllocatedBytes());
+                    }
+                }
+            });
+            threads.add(thread);
+            return thread;
+        }
+
+        // the threads may still be reporting after the executor returns, so
+        // wait for them to finish before reading the total
+        public long getAllocatedBytes() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return allocatedBytes.get();
         }
     }
 
-    private static int getOperationValue() {
-        return ThreadLocalRandom.current().nextInt(MIN_VALUE, MAX_VALUE + 1);
+    private static long getCurrentThreadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            // -1 for threads the JVM can't measure, such as virtual threads
+            return Math.max(0, ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+        return 0;
     }
 }
 
@@ -157,21 +333,23 @@ public class Main {
  * potential refactors
  *
  * (we should most likely do this one)
- * 0. make the SkipListKey implementation generic instead of hardcoded Integer, should be
+ * 0. (done: BoostedSet<K> is the generic version, SkipListKey stays specialized for primitive ints)
+ *    make the SkipListKey implementation generic instead of hardcoded Integer, should be
  *    easy refactor
  *
  * (these would make our program realistically usable to plug in methods and get a transactional
  *  data structure from a thread-safe concurrent base obect)
- * 1. Create an interface for Transaction's static callable methods so that operations and
+ * 1. (done: BoostedSet takes an InverseMapping)
+ *    Create an interface for Transaction's static callable methods so that operations and
  *    their inverses can be plugged in.  This would require an inverse mapper as well as
  *    existing methods.
  *
- * 2. Define how commits and aborts would work for operations with multiple steps in a transaction,
- *    and fit current code to fit that multiplicity.  From there, we can extract the commit and abort
- *    methods to pluggable interfaces as well.  would require heavy refactor of how the Callables are being
- *    created and passed around.
+ * 2. (done: transactions keep an undo log and can run any number of operations)
+ *    From there, we can extract the commit and abort methods to pluggable interfaces as well.
  *
- * 3. Finally, extract out the data structure itself and its operations to a pluggable interface so
+ * 3. (done for sets and maps: BoostedSet takes any thread-safe java.util.Set as its base structure,
+ *    BoostedMap any ConcurrentMap)
+ *    Finally, extract out the data structure itself and its operations to a pluggable interface so
  *    that people can plug in new data structures with defined commits, aborts, operations, and inverses
  *    that it makes sense to place semantic locks on.
  *
@@ -0,0 +1,396 @@
+/**
+ * name: MetricsRegistry
+ * author: crs
+ * description: process-wide metrics for transactions and the boosted sets.  SkipListKey and BoostedSet record
+ *              operation latencies, SkipListKey also those of its scans and batches, BoostedMap records its
+ *              own per map operation, LockKey records lock waits, Transaction records rollbacks and TThread
+ *              records transaction outcomes and latencies.  snapshot() returns everything at once, and
+ *              registerMBean() exposes the same numbers over JMX so a running process can be inspected.
+ *
+ * extra info: counters are LongAdders and histograms are per thread (see LatencyHistogram), so recording
+ *             never contends between threads, and the cost of merging is paid by whoever reads.
+ *             timing an operation costs two System.nanoTime calls.  setEnabled(false) turns recording off, and
+ *             callers skip their timing when isEnabled() is false.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - startTimer / stopTimer, shared by the boosted sets
+ * - deadlocks broken, and the time spent searching for them, from DeadlockDetectingContentionManager
+ * - BoostedMap operations have their own histograms instead of sharing the sets' ones
+ * - ordered reads and batches have their own histograms, by BulkOperationType
+ *
+ */
+
+package com;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class MetricsRegistry {
+
+    public static final String MBEAN_NAME = "com:type=MetricsRegistry";
+
+    // operations on a boosted set that cover many keys, timed apart from SkipListKey.OperationType
+    public enum BulkOperationType {
+        // range, first, ceiling and each chunk of forEach
+        RANGE,
+        // a whole applyBatch
+        BATCH
+    }
+
+    private static volatile boolean enabled = true;
+
+    // start of the current measurement period
+    private static volatile long resetAt = System.nanoTime();
+
+    private static final LongAdder commits = new LongAdder();
+    private static final LongAdder aborts = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder rollbacks = new LongAdder();
+    private static final LongAdder rolledBackOperations = new LongAdder();
+    private static final LongAdder lockAcquisitions = new LongAdder();
+    private static final LongAdder lockFailures = new LongAdder();
+    private static final LongAdder deadlocks = new LongAdder();
+
+    private static final LatencyHistogram[] operationLatency = new LatencyHistogram[SkipListKey.OperationType.values().length];
+    private static final LatencyHistogram[] bulkOperationLatency = new LatencyHistogram[BulkOperationType.values().length];
+    private static final LatencyHistogram[] mapOperationLatency = new LatencyHistogram[BoostedMap.OperationType.values().length];
+    private static final LatencyHistogram transactionLatency = new LatencyHistogram();
+    private static final LatencyHistogram lockWait = new LatencyHistogram();
+    private static final LatencyHistogram deadlockDetection = new LatencyHistogram();
+
+    static {
+        for (int i = 0; i < operationLatency.length; i++) {
+            operationLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < bulkOperationLatency.length; i++) {
+            bulkOperationLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < mapOperationLatency.length; i++) {
+            mapOperationLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MetricsRegistry.enabled = enabled;
+    }
+
+    // start time of an operation, only measured while metrics are enabled.  0 means not timed
+    static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // records the latency of an operation started with startTimer, if it was timed
+    static void stopTimer(SkipListKey.OperationType type, long start) {
+        if (start != 0) {
+            recordOperation(type, System.nanoTime() - start);
+        }
+    }
+
+    // a completed operation on a boosted set, including the wait for its abstract lock
+    static void recordOperation(SkipListKey.OperationType type, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        operationLatency[type.ordinal()].record(nanos);
+    }
+
+    // records the latency of a scan or batch started with startTimer, if it was timed
+    static void stopTimer(BulkOperationType type, long start) {
+        if (start != 0) {
+            recordBulkOperation(type, System.nanoTime() - start);
+        }
+    }
+
+    // a completed scan or batch on a boosted set, including the waits for its abstract locks
+    static void recordBulkOperation(BulkOperationType type, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        bulkOperationLatency[type.ordinal()].record(nanos);
+    }
+
+    // records the latency of a map operation started with startTimer, if it was timed
+    static void stopTimer(BoostedMap.OperationType type, long start) {
+        if (start != 0) {
+            recordMapOperation(type, System.nanoTime() - start);
+        }
+    }
+
+    // a completed operation on a boosted map, including the wait for its abstract lock
+    static void recordMapOperation(BoostedMap.OperationType type, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        mapOperationLatency[type.ordinal()].record(nanos);
+    }
+
+    // an abstract lock was acquired, after waiting waitedNanos (0 if it was free)
+    static void recordLockAcquired(long waitedNanos) {
+        if (!enabled) {
+            return;
+        }
+
+        lockAcquisitions.increment();
+        lockWait.record(waitedNanos);
+    }
+
+    // the contention manager gave up on an abstract lock
+    static void recordLockFailure() {
+        if (!enabled) {
+            return;
+        }
+
+        lockFailures.increment();
+    }
+
+    // one search of the waits-for graph
+    static void recordDeadlockDetection(long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        deadlockDetection.record(nanos);
+    }
+
+    // a deadlock was found and its victim chosen
+    static void recordDeadlock() {
+        if (!enabled) {
+            return;
+        }
+
+        deadlocks.increment();
+    }
+
+    static void recordRollback(int operations) {
+        if (!enabled) {
+            return;
+        }
+
+        rollbacks.increment();
+        rolledBackOperations.add(operations);
+    }
+
+    // a transaction committed, nanos after its first attempt started
+    static void recordCommit(long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        commits.increment();
+        transactionLatency.record(nanos);
+    }
+
+    static void recordAbort() {
+        if (!enabled) {
+            return;
+        }
+
+        aborts.increment();
+    }
+
+    static void recordRetry() {
+        if (!enabled) {
+            return;
+        }
+
+        retries.increment();
+    }
+
+    static void recordFailure() {
+        if (!enabled) {
+            return;
+        }
+
+        failures.increment();
+    }
+
+    public static MetricsSnapshot snapshot() {
+        LatencyHistogram.Snapshot[] operations = new LatencyHistogram.Snapshot[operationLatency.length];
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = operationLatency[i].snapshot();
+        }
+        LatencyHistogram.Snapshot[] bulkOperations = new LatencyHistogram.Snapshot[bulkOperationLatency.length];
+        for (int i = 0; i < bulkOperations.length; i++) {
+            bulkOperations[i] = bulkOperationLatency[i].snapshot();
+        }
+        LatencyHistogram.Snapshot[] mapOperations = new LatencyHistogram.Snapshot[mapOperationLatency.length];
+        for (int i = 0; i < mapOperations.length; i++) {
+            mapOperations[i] = mapOperationLatency[i].snapshot();
+        }
+
+        return new MetricsSnapshot(System.nanoTime() - resetAt, commits.sum(), aborts.sum(), retries.sum(), failures.sum(),
+                rollbacks.sum(), rolledBackOperations.sum(), lockAcquisitions.sum(), lockFailures.sum(), deadlocks.sum(),
+                operations, bulkOperations, mapOperations, transactionLatency.snapshot(), lockWait.snapshot(), deadlockDetection.snapshot());
+    }
+
+    // zeroes everything and starts a new measurement period
+    public static void reset() {
+        commits.reset();
+        aborts.reset();
+        retries.reset();
+        failures.reset();
+        rollbacks.reset();
+        rolledBackOperations.reset();
+        lockAcquisitions.reset();
+        lockFailures.reset();
+        deadlocks.reset();
+
+        for (LatencyHistogram histogram : operationLatency) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : bulkOperationLatency) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : mapOperationLatency) {
+            histogram.reset();
+        }
+        transactionLatency.reset();
+        lockWait.reset();
+        deadlockDetection.reset();
+
+        resetAt = System.nanoTime();
+    }
+
+    // registers the MBean with the platform MBean server, does nothing if it already is
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            CustomLogger.log(CustomLogger.Category.WARNING, "Could not register metrics MBean: %s", e);
+        }
+    }
+
+    private static final class MBean implements MetricsRegistryMXBean {
+
+        public boolean isEnabled() {
+            return MetricsRegistry.isEnabled();
+        }
+
+        public void setEnabled(boolean enabled) {
+            MetricsRegistry.setEnabled(enabled);
+        }
+
+        public void reset() {
+            MetricsRegistry.reset();
+        }
+
+        public long getCommits() {
+            return commits.sum();
+        }
+
+        public long getAborts() {
+            return aborts.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getRollbacks() {
+            return rollbacks.sum();
+        }
+
+        public long getRolledBackOperations() {
+            return rolledBackOperations.sum();
+        }
+
+        public double getCommitsPerSecond() {
+            return snapshot().getCommitsPerSecond();
+        }
+
+        public double getAbortsPerSecond() {
+            return snapshot().getAbortsPerSecond();
+        }
+
+        public double getAbortRate() {
+            return snapshot().getAbortRate();
+        }
+
+        public long getOperationP50Nanos() {
+            return snapshot().getOperationLatency().getValueAtPercentile(50);
+        }
+
+        public long getOperationP99Nanos() {
+            return snapshot().getOperationLatency().getValueAtPercentile(99);
+        }
+
+        public long getOperationP999Nanos() {
+            return snapshot().getOperationLatency().getValueAtPercentile(99.9);
+        }
+
+        public long getTransactionP50Nanos() {
+            return transactionLatency.snapshot().getValueAtPercentile(50);
+        }
+
+        public long getTransactionP99Nanos() {
+            return transactionLatency.snapshot().getValueAtPercentile(99);
+        }
+
+        public long getTransactionP999Nanos() {
+            return transactionLatency.snapshot().getValueAtPercentile(99.9);
+        }
+
+        public long getLockAcquisitions() {
+            return lockAcquisitions.sum();
+        }
+
+        public long getLockFailures() {
+            return lockFailures.sum();
+        }
+
+        public long getLockWaitTotalNanos() {
+            return lockWait.snapshot().getTotalNanos();
+        }
+
+        public long getLockWaitP99Nanos() {
+            return lockWait.snapshot().getValueAtPercentile(99);
+        }
+
+        public long getLockWaitP999Nanos() {
+            return lockWait.snapshot().getValueAtPercentile(99.9);
+        }
+
+        public long getLockWaitMaxNanos() {
+            return lockWait.snapshot().getMaxNanos();
+        }
+
+        public long getDeadlocks() {
+            return deadlocks.sum();
+        }
+
+        public long getDeadlockDetections() {
+            return deadlockDetection.snapshot().getCount();
+        }
+
+        public long getDeadlockDetectionTotalNanos() {
+            return deadlockDetection.snapshot().getTotalNanos();
+        }
+
+        public long getDeadlockDetectionP99Nanos() {
+            return deadlockDetection.snapshot().getValueAtPercentile(99);
+        }
+    }
+}
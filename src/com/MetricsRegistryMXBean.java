@@ -0,0 +1,75 @@
+/**
+ * name: MetricsRegistryMXBean
+ * author: crs
+ * description: JMX view of the MetricsRegistry, registered as com:type=MetricsRegistry.  every
+ *              attribute is read from a fresh snapshot, latencies are in nanoseconds.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - longest lock wait, deadlocks broken and the cost of detecting them
+ *
+ */
+
+package com;
+
+public interface MetricsRegistryMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    // starts a new measurement period
+    void reset();
+
+    long getCommits();
+
+    long getAborts();
+
+    long getRetries();
+
+    long getFailures();
+
+    long getRollbacks();
+
+    long getRolledBackOperations();
+
+    double getCommitsPerSecond();
+
+    double getAbortsPerSecond();
+
+    double getAbortRate();
+
+    long getOperationP50Nanos();
+
+    long getOperationP99Nanos();
+
+    long getOperationP999Nanos();
+
+    long getTransactionP50Nanos();
+
+    long getTransactionP99Nanos();
+
+    long getTransactionP999Nanos();
+
+    long getLockAcquisitions();
+
+    long getLockFailures();
+
+    long getLockWaitTotalNanos();
+
+    long getLockWaitP99Nanos();
+
+    long getLockWaitP999Nanos();
+
+    long getLockWaitMaxNanos();
+
+    long getDeadlocks();
+
+    long getDeadlockDetections();
+
+    long getDeadlockDetectionTotalNanos();
+
+    long getDeadlockDetectionP99Nanos();
+}
@@ -0,0 +1,200 @@
+/**
+ * name: MetricsSnapshot
+ * author: crs
+ * description: immutable copy of everything in the MetricsRegistry at one point in time.  counts and
+ *              histograms cover the period since the registry was last reset, and rates are per
+ *              second over that period.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - deadlocks broken and the time spent detecting them, and the longest lock wait
+ * - latencies of BoostedMap operations, by BoostedMap.OperationType
+ * - latencies of ordered reads and batches, by MetricsRegistry.BulkOperationType
+ *
+ */
+
+package com;
+
+public class MetricsSnapshot {
+
+    private final long elapsedNanos;
+
+    private final long commits;
+    private final long aborts;
+    private final long retries;
+    private final long failures;
+    private final long rollbacks;
+    private final long rolledBackOperations;
+    private final long lockAcquisitions;
+    private final long lockFailures;
+    private final long deadlocks;
+
+    // indexed by SkipListKey.OperationType ordinal
+    private final LatencyHistogram.Snapshot[] operationLatency;
+    // indexed by MetricsRegistry.BulkOperationType ordinal
+    private final LatencyHistogram.Snapshot[] bulkOperationLatency;
+    // indexed by BoostedMap.OperationType ordinal
+    private final LatencyHistogram.Snapshot[] mapOperationLatency;
+    private final LatencyHistogram.Snapshot transactionLatency;
+    private final LatencyHistogram.Snapshot lockWait;
+    private final LatencyHistogram.Snapshot deadlockDetection;
+
+    MetricsSnapshot(long elapsedNanos, long commits, long aborts, long retries, long failures, long rollbacks,
+                    long rolledBackOperations, long lockAcquisitions, long lockFailures, long deadlocks,
+                    LatencyHistogram.Snapshot[] operationLatency, LatencyHistogram.Snapshot[] bulkOperationLatency,
+                    LatencyHistogram.Snapshot[] mapOperationLatency,
+                    LatencyHistogram.Snapshot transactionLatency,
+                    LatencyHistogram.Snapshot lockWait, LatencyHistogram.Snapshot deadlockDetection) {
+        this.elapsedNanos = elapsedNanos;
+        this.commits = commits;
+        this.aborts = aborts;
+        this.retries = retries;
+        this.failures = failures;
+        this.rollbacks = rollbacks;
+        this.rolledBackOperations = rolledBackOperations;
+        this.lockAcquisitions = lockAcquisitions;
+        this.lockFailures = lockFailures;
+        this.deadlocks = deadlocks;
+        this.operationLatency = operationLatency;
+        this.bulkOperationLatency = bulkOperationLatency;
+        this.mapOperationLatency = mapOperationLatency;
+        this.transactionLatency = transactionLatency;
+        this.lockWait = lockWait;
+        this.deadlockDetection = deadlockDetection;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // transactions committed
+    public long getCommits() {
+        return commits;
+    }
+
+    // attempts aborted, a transaction can abort several times before it commits
+    public long getAborts() {
+        return aborts;
+    }
+
+    public long getRetries() {
+        return retries;
+    }
+
+    // transactions given up on after their last attempt aborted
+    public long getFailures() {
+        return failures;
+    }
+
+    // transactions rolled back by Transaction.abort
+    public long getRollbacks() {
+        return rollbacks;
+    }
+
+    // inverses replayed by those rollbacks
+    public long getRolledBackOperations() {
+        return rolledBackOperations;
+    }
+
+    // abstract locks acquired, not counting ones the transaction already held
+    public long getLockAcquisitions() {
+        return lockAcquisitions;
+    }
+
+    // abstract locks given up on by the contention manager
+    public long getLockFailures() {
+        return lockFailures;
+    }
+
+    // waits-for cycles found and broken by aborting one member
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    public double getCommitsPerSecond() {
+        return perSecond(commits);
+    }
+
+    public double getAbortsPerSecond() {
+        return perSecond(aborts);
+    }
+
+    // fraction of attempts that aborted
+    public double getAbortRate() {
+        long attempts = commits + aborts;
+        return (attempts == 0) ? 0 : (double) aborts / attempts;
+    }
+
+    // latency of completed set operations of one type, including waiting for the abstract lock
+    public LatencyHistogram.Snapshot getOperationLatency(SkipListKey.OperationType type) {
+        return operationLatency[type.ordinal()];
+    }
+
+    // latency of completed set operations of every type
+    public LatencyHistogram.Snapshot getOperationLatency() {
+        return merge(operationLatency);
+    }
+
+    // latency of completed scans or batches of one type, including waiting for their abstract locks
+    public LatencyHistogram.Snapshot getBulkOperationLatency(MetricsRegistry.BulkOperationType type) {
+        return bulkOperationLatency[type.ordinal()];
+    }
+
+    // latency of completed scans and batches
+    public LatencyHistogram.Snapshot getBulkOperationLatency() {
+        return merge(bulkOperationLatency);
+    }
+
+    // latency of completed BoostedMap operations of one type, including waiting for the abstract lock
+    public LatencyHistogram.Snapshot getMapOperationLatency(BoostedMap.OperationType type) {
+        return mapOperationLatency[type.ordinal()];
+    }
+
+    // latency of completed BoostedMap operations of every type
+    public LatencyHistogram.Snapshot getMapOperationLatency() {
+        return merge(mapOperationLatency);
+    }
+
+    // from the start of a transaction's first attempt until it commits
+    public LatencyHistogram.Snapshot getTransactionLatency() {
+        return transactionLatency;
+    }
+
+    // time spent waiting for abstract locks that were acquired
+    public LatencyHistogram.Snapshot getLockWait() {
+        return lockWait;
+    }
+
+    // time spent searching the waits-for graph, one sample per search
+    public LatencyHistogram.Snapshot getDeadlockDetection() {
+        return deadlockDetection;
+    }
+
+    private static LatencyHistogram.Snapshot merge(LatencyHistogram.Snapshot[] histograms) {
+        LatencyHistogram.Snapshot all = histograms[0];
+        for (int i = 1; i < histograms.length; i++) {
+            all = all.plus(histograms[i]);
+        }
+        return all;
+    }
+
+    private double perSecond(long count) {
+        return (elapsedNanos <= 0) ? 0 : count * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        LatencyHistogram.Snapshot operations = getOperationLatency();
+        Object[] args = new Object[] {getCommitsPerSecond(), getAbortsPerSecond(), rollbacks, rolledBackOperations,
+                operations.getValueAtPercentile(50), operations.getValueAtPercentile(99), operations.getValueAtPercentile(99.9),
+                transactionLatency.getValueAtPercentile(50), transactionLatency.getValueAtPercentile(99), transactionLatency.getValueAtPercentile(99.9),
+                lockWait.getTotalNanos() / 1000000, lockWait.getValueAtPercentile(99), lockWait.getMaxNanos(), lockFailures,
+                deadlocks, deadlockDetection.getCount(), deadlockDetection.getTotalNanos() / 1000, deadlockDetection.getValueAtPercentile(99)};
+        return String.format("commitsPerSecond: %.0f, abortsPerSecond: %.0f, rollbacks: %d, rolledBackOperations: %d, " +
+                "operationP50: %d, operationP99: %d, operationP99.9: %d, transactionP50: %d, transactionP99: %d, transactionP99.9: %d, " +
+                "lockWaitMS: %d, lockWaitP99: %d, lockWaitMax: %d, lockFailures: %d, " +
+                "deadlocks: %d, deadlockDetections: %d, deadlockDetectionUS: %d, deadlockDetectionP99: %d", args);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * name: OperationBatch
+ * author: crs
+ * description: a reusable transaction body that runs up to capacity operations on a SkipListKey.  a worker
+ *              fills it from its OperationSource and passes it to TThread.doIt, then refills it for the
+ *              next transaction, so running a workload allocates nothing per operation.  retries of an
+ *              aborted attempt run the same operations again, since the batch is only refilled after doIt
+ *              returns.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.concurrent.Callable;
+
+public class OperationBatch implements Callable<Boolean> {
+
+    private final SkipListKey set;
+    private final SkipListKey.OperationType[] types;
+    private final int[] keys;
+    private int size;
+
+    public OperationBatch(SkipListKey set, int capacity) {
+        this.set = set;
+        this.types = new SkipListKey.OperationType[capacity];
+        this.keys = new int[capacity];
+    }
+
+    // replaces the batch with the next operations of source, returns false if there were none left
+    public boolean fill(OperationSource source) {
+        size = 0;
+
+        while (size < keys.length && source.next()) {
+            types[size] = source.getType();
+            keys[size] = source.getKey();
+            size++;
+        }
+
+        return size > 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // runs the operations in order, an AbortedException stops the transaction
+    public Boolean call() throws Exception {
+        for (int i = 0; i < size; i++) {
+            switch (types[i]) {
+                case ADD:
+                    set.add(keys[i]);
+                    break;
+                case REMOVE:
+                    set.remove(keys[i]);
+                    break;
+                case CONTAINS:
+                    set.contains(keys[i]);
+                    break;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * name: OperationSource
+ * author: crs
+ * description: a stream of set operations read by a single worker.  next() advances to the next
+ *              operation, whose type and key are then read with getType() and getKey(), so reading
+ *              an operation never allocates.  not thread-safe, each worker gets its own source.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+public interface OperationSource {
+
+    // advances to the next operation, returns false once the source is exhausted
+    boolean next();
+
+    SkipListKey.OperationType getType();
+
+    int getKey();
+}
@@ -0,0 +1,101 @@
+/**
+ * name: RangeLockTable
+ * author: crs
+ * description: abstract locks over ranges of keys, taken by range scans so no other transaction can add or
+ *              remove a key inside a range a transaction has read (no phantoms).  a range is a single lock
+ *              however many keys it covers.  LockKey.lockRange publishes ranges here, and every exclusive
+ *              key lock checks the published ranges before its write goes ahead.
+ *
+ * extra info: ranges are kept in a copy-on-write array.  scans are rare next to point operations, and a
+ *             writer that finds the array empty pays a single volatile read.
+ *
+ *             a scan publishes its range and then looks for writers inside it in the key LockTable; a
+ *             writer locks its key and then looks for ranges here.  both write before they read, so at
+ *             least one of them sees the other, LockKey decides which one waits.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.concurrent.TimeUnit;
+
+public class RangeLockTable {
+
+    private static final Range[] EMPTY = new Range[0];
+
+    private volatile Range[] ranges = EMPTY;
+
+    // lock over the keys [key, high], held SHARED by the scanning transaction and taken EXCLUSIVE only
+    // momentarily by writers waiting for the scan to finish.  it has no LockTable, it leaves this table
+    // when released
+    static final class Range extends AbstractLock {
+        final int high;
+        private final RangeLockTable table;
+
+        Range(int low, int high, RangeLockTable table) {
+            super(low, null);
+            this.high = high;
+            this.table = table;
+        }
+
+        boolean covers(int key) {
+            return this.key <= key && key <= high;
+        }
+
+        @Override
+        public void release() {
+            unlock();
+            table.remove(this);
+        }
+    }
+
+    // creates a range lock for [low, high] held shared by the calling thread, and publishes it
+    Range acquire(int low, int high) throws InterruptedException {
+        Range range = new Range(low, high, this);
+
+        // nobody else can see it yet, so this can't fail
+        range.tryLock(AbstractLock.Mode.SHARED, 0, TimeUnit.NANOSECONDS);
+
+        synchronized (this) {
+            Range[] current = ranges;
+            Range[] grown = new Range[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = range;
+            ranges = grown;
+        }
+
+        return range;
+    }
+
+    private synchronized void remove(Range range) {
+        Range[] current = ranges;
+
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == range) {
+                if (current.length == 1) {
+                    ranges = EMPTY;
+                    return;
+                }
+
+                Range[] shrunk = new Range[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                ranges = shrunk;
+                return;
+            }
+        }
+    }
+
+    // the published ranges, never modified once read
+    Range[] getRanges() {
+        return ranges;
+    }
+
+    // number of ranges currently locked
+    public int size() {
+        return ranges.length;
+    }
+}
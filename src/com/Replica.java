@@ -0,0 +1,238 @@
+/**
+ * name: Replica
+ * author: crs
+ * description: a read copy of a durable SkipListKey, kept up to date by a ReplicationPrimary.  the replica
+ *              connects to the primary, receives its write-ahead log from the beginning and applies it in
+ *              order to a local in-memory SkipListKey, which serves reads in transactions like any other set.
+ *              reports its lag behind the primary.
+ *
+ * extra info: one thread receives the frames and applies the records each one completes as a single applyBatch
+ *             transaction, so readers see whole primary transactions, and a prefix of them in commit order.
+ *             with LockKey.ReadMode.SNAPSHOT, read-only transactions (TThread.doItReadOnly) read the set
+ *             without ever waiting for the applier.  the set is the primary's copy: nothing else may write
+ *             to it.
+ *
+ *             the replica does not survive a restart, a new one replays the whole log.  if the connection
+ *             fails the replica stops where it is, see getFailure.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+public class Replica implements Closeable {
+
+    private static final SkipListKey.OperationType[] TYPES = SkipListKey.OperationType.values();
+
+    private final SkipListKey set;
+    private final SocketChannel channel;
+    private final Thread applier;
+
+    // log position applied up to, and the shippable end of the primary's log as of the last frame
+    private volatile long applied = WriteAheadLog.FILE_HEADER_BYTES;
+    private volatile long primaryEnd = WriteAheadLog.FILE_HEADER_BYTES;
+    private volatile long appliedRecords;
+
+    private final Object progress = new Object();
+    private volatile Exception failure;
+    private volatile boolean closed;
+
+    public Replica(InetSocketAddress primary, SkipListKey.Implementation implementation) throws IOException {
+        this(primary, implementation, LockKey.ReadMode.LOCKED);
+    }
+
+    public Replica(InetSocketAddress primary, SkipListKey.Implementation implementation, LockKey.ReadMode readMode) throws IOException {
+        this.set = new SkipListKey(implementation, new DeadlockDetectingContentionManager(), readMode);
+
+        channel = SocketChannel.open(primary);
+        channel.socket().setTcpNoDelay(true);
+
+        ByteBuffer hello = ByteBuffer.allocate(12);
+        hello.putInt(ReplicationPrimary.MAGIC).putLong(applied).flip();
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+
+        applier = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    applyForever();
+                } catch (Exception e) {
+                    if (!closed) {
+                        failure = e;
+                        CustomLogger.log(CustomLogger.Category.EXCEPTION, "Replica stopped: %s", e);
+                    }
+                } finally {
+                    synchronized (progress) {
+                        progress.notifyAll();
+                    }
+                }
+            }
+        }, "Replica-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    // the replicated set, for reading only
+    public SkipListKey getSet() {
+        return set;
+    }
+
+    // the primary's log position the replica has applied up to
+    public long getAppliedPosition() {
+        return applied;
+    }
+
+    // primary transactions applied
+    public long getAppliedRecordCount() {
+        return appliedRecords;
+    }
+
+    // how far behind the primary's log, as of the last frame received, the replica is
+    public long getLagBytes() {
+        return primaryEnd - applied;
+    }
+
+    // why the replica stopped, null while it is running
+    public Exception getFailure() {
+        return failure;
+    }
+
+    // waits up to timeout until the replica has applied the primary's log up to position.  false on timeout,
+    // or if the replica stopped first
+    public boolean awaitPosition(long position, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        synchronized (progress) {
+            long now;
+            while (applied < position) {
+                if (failure != null || closed || !applier.isAlive() || (now = System.nanoTime()) >= deadline) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(progress, deadline - now);
+            }
+        }
+
+        return true;
+    }
+
+    // disconnects from the primary, the set keeps what was applied
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void applyForever() throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(ReplicationPrimary.FRAME_HEADER_BYTES);
+        ByteBuffer ack = ByteBuffer.allocate(8);
+
+        // received log bytes, starting with a record the last frame cut short
+        ByteBuffer records = ByteBuffer.allocate(2 * ReplicationPrimary.MAX_FRAME_BYTES);
+
+        final int[][] keys = {new int[64]};
+        final SkipListKey.OperationType[][] ops = {new SkipListKey.OperationType[64]};
+        final int[] count = new int[1];
+
+        // applies the collected entries as one transaction
+        Callable<Boolean> apply = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                set.applyBatch(Arrays.copyOf(keys[0], count[0]), Arrays.copyOf(ops[0], count[0]));
+                return true;
+            }
+        };
+
+        while (!closed) {
+            header.clear();
+            ReplicationPrimary.readFully(channel, header);
+
+            int length = header.getInt(0) - (ReplicationPrimary.FRAME_HEADER_BYTES - 4);
+            long position = header.getLong(4);
+
+            if (length < 0 || length > ReplicationPrimary.MAX_FRAME_BYTES || position != applied + records.position()) {
+                throw new IOException("replication frame at log position " + position + " out of sequence");
+            }
+
+            // a record larger than a frame spans several
+            if (records.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(2 * (records.position() + length));
+                records.flip();
+                records = grown.put(records);
+            }
+
+            records.limit(records.position() + length);
+            ReplicationPrimary.readFully(channel, records);
+            records.flip();
+
+            // the entries of every record the frame completes
+            int offset = 0;
+            int recordCount = 0;
+            int recordLength;
+            count[0] = 0;
+
+            while ((recordLength = WriteAheadLog.recordLength(records, offset)) > 0) {
+                int entries = records.getInt(offset + 4);
+
+                if (count[0] + entries > keys[0].length) {
+                    int capacity = Math.max(2 * keys[0].length, count[0] + entries);
+                    keys[0] = Arrays.copyOf(keys[0], capacity);
+                    ops[0] = Arrays.copyOf(ops[0], capacity);
+                }
+
+                for (int i = 0, entry = offset + 8; i < entries; i++, entry += WriteAheadLog.ENTRY_BYTES) {
+                    int type = records.get(entry);
+                    if (type != SkipListKey.OperationType.ADD.ordinal() && type != SkipListKey.OperationType.REMOVE.ordinal()) {
+                        throw new IOException("corrupt replication stream, " + (type < TYPES.length ? TYPES[type] : type) + " entry");
+                    }
+
+                    ops[0][count[0]] = TYPES[type];
+                    keys[0][count[0]] = records.getInt(entry + 1);
+                    count[0]++;
+                }
+
+                offset += recordLength;
+                recordCount++;
+            }
+
+            if (count[0] > 0) {
+                TThread.doIt(apply, TThread.UNLIMITED_ATTEMPTS, null);
+            }
+
+            // keep the cut record for the next frame
+            records.position(offset);
+            records.compact();
+
+            synchronized (progress) {
+                applied += offset;
+                appliedRecords += recordCount;
+                primaryEnd = header.getLong(12);
+                progress.notifyAll();
+            }
+
+            ack.clear();
+            ack.putLong(0, applied);
+            while (ack.hasRemaining()) {
+                channel.write(ack);
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * name: ReplicationPrimary
+ * author: crs
+ * description: streams the committed transactions of a durable SkipListKey to Replicas over TCP, so other
+ *              instances get a read copy of the set without rebuilding it themselves.  what is shipped is the
+ *              set's WriteAheadLog itself: every committing transaction already appends one compact,
+ *              checksummed record of its changes to it, in commit order, and the primary sends each replica
+ *              the log's bytes as they become shippable.  a new replica starts from the beginning of the log.
+ *
+ * extra info: each replica gets a shipping thread, which waits for the log to grow and sends everything
+ *             shippable since its last frame as the next frame (up to MAX_FRAME_BYTES), so the commits of
+ *             a busy moment go out together.  shipping never holds up a commit: the log is read back from the
+ *             file.  a second thread per replica reads its acknowledgements, the log position it has applied
+ *             up to, which give each replica's lag in bytes and, per frame, the time from shipping it to its
+ *             acknowledgement.
+ *
+ *             protocol, all big-endian: the replica opens with MAGIC (int) and the log position to start at
+ *             (long), then the primary sends frames of [int length of the rest][long log position of the
+ *             bytes][long shippable end of the log][log bytes], and the replica answers each frame it applied
+ *             with the log position it has applied up to (long).  frames may cut records in two.
+ *
+ *             logs of a ShardedSet can't be shipped, their cross-shard records only commit together.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ReplicationPrimary implements Closeable {
+
+    static final int MAGIC = 0x5452504C;
+    static final int FRAME_HEADER_BYTES = 20;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+
+    // how often an idle shipping thread checks whether the primary closed
+    private static final long IDLE_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final WriteAheadLog log;
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private final CopyOnWriteArrayList<Follower> followers = new CopyOnWriteArrayList<>();
+
+    // time from shipping each frame to its acknowledgement, over every replica
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LongAdder shippedBytes = new LongAdder();
+
+    private volatile boolean closed;
+
+    // ships set's log to replicas connecting to port on every interface, 0 for any free port
+    public ReplicationPrimary(SkipListKey set, int port) throws IOException {
+        this(set, new InetSocketAddress(port));
+    }
+
+    public ReplicationPrimary(SkipListKey set, InetSocketAddress address) throws IOException {
+        this.log = set.getLog();
+
+        if (log == null) {
+            throw new IllegalArgumentException("only durable sets can be replicated");
+        }
+        if (log.getGroup() != null) {
+            throw new IllegalArgumentException("the logs of a sharded set can't be replicated");
+        }
+
+        server = ServerSocketChannel.open();
+        server.bind(address);
+
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptForever();
+            }
+        }, "ReplicationPrimary-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // the port replicas connect to
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    public int getReplicaCount() {
+        return followers.size();
+    }
+
+    // log bytes sent, over every replica
+    public long getShippedBytes() {
+        return shippedBytes.sum();
+    }
+
+    // how far the furthest behind replica is from the shippable end of the log, in bytes
+    public long getMaxLagBytes() {
+        long end = log.getShippable();
+        long lagBytes = 0;
+
+        for (Follower follower : followers) {
+            lagBytes = Math.max(lagBytes, end - follower.acked);
+        }
+
+        return lagBytes;
+    }
+
+    // how long the oldest frame still unacknowledged by any replica has been out, 0 if all are caught up
+    public long getMaxLagNanos() {
+        long now = System.nanoTime();
+        long lagNanos = 0;
+
+        for (Follower follower : followers) {
+            lagNanos = Math.max(lagNanos, follower.oldestUnacknowledged(now));
+        }
+
+        return lagNanos;
+    }
+
+    // time from shipping frames to their acknowledgement
+    public LatencyHistogram.Snapshot getLagSnapshot() {
+        return lag.snapshot();
+    }
+
+    // disconnects every replica and stops listening.  the log stays open
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+
+        for (Follower follower : followers) {
+            follower.close();
+        }
+    }
+
+    private void acceptForever() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.socket().setTcpNoDelay(true);
+
+                Follower follower = new Follower(channel);
+                followers.add(follower);
+                follower.start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                CustomLogger.log(CustomLogger.Category.EXCEPTION, "Replication accept failed: %s", e);
+            }
+        }
+    }
+
+    // one connected replica
+    private final class Follower {
+        private final SocketChannel channel;
+
+        // log position the replica has applied up to
+        private volatile long acked;
+
+        // end position and shipping time of each frame not acknowledged yet
+        private final ArrayDeque<long[]> unacknowledged = new ArrayDeque<>();
+
+        Follower(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void start() {
+            Thread shipper = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ship();
+                    } catch (IOException | InterruptedException e) {
+                        if (!closed) {
+                            CustomLogger.log(CustomLogger.Category.EVENT, "Replica %s disconnected: %s", address(), e);
+                        }
+                    } finally {
+                        close();
+                    }
+                }
+            }, "ReplicationPrimary-shipper");
+            shipper.setDaemon(true);
+            shipper.start();
+        }
+
+        private void ship() throws IOException, InterruptedException {
+            ByteBuffer hello = ByteBuffer.allocate(12);
+            readFully(channel, hello);
+
+            long position = hello.getLong(4);
+            if (hello.getInt(0) != MAGIC || position < WriteAheadLog.FILE_HEADER_BYTES || position > log.getShippable()) {
+                throw new IOException("bad replica handshake");
+            }
+            acked = position;
+
+            CustomLogger.log(CustomLogger.Category.EVENT, "Replica %s connected at log position %d", address(), position);
+
+            Thread acknowledger = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readAcknowledgements();
+                    } catch (IOException e) {
+                        // the shipping thread notices the closed channel
+                    } finally {
+                        close();
+                    }
+                }
+            }, "ReplicationPrimary-acknowledger");
+            acknowledger.setDaemon(true);
+            acknowledger.start();
+
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + MAX_FRAME_BYTES);
+
+            while (!closed && channel.isOpen()) {
+                long end = log.awaitShippable(position, IDLE_CHECK_NANOS);
+                if (end <= position) {
+                    continue;
+                }
+
+                frame.clear();
+                frame.position(FRAME_HEADER_BYTES);
+                frame.limit(FRAME_HEADER_BYTES + (int) Math.min(MAX_FRAME_BYTES, end - position));
+
+                int read = log.read(frame, position);
+                frame.flip();
+                frame.putInt(0, FRAME_HEADER_BYTES - 4 + read).putLong(4, position).putLong(12, end);
+
+                synchronized (unacknowledged) {
+                    unacknowledged.add(new long[] {position + read, System.nanoTime()});
+                }
+
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+
+                position += read;
+                shippedBytes.add(read);
+            }
+        }
+
+        private void readAcknowledgements() throws IOException {
+            ByteBuffer ack = ByteBuffer.allocate(8);
+
+            while (true) {
+                ack.clear();
+                readFully(channel, ack);
+                acked = ack.getLong(0);
+
+                long now = System.nanoTime();
+                synchronized (unacknowledged) {
+                    while (!unacknowledged.isEmpty() && unacknowledged.peek()[0] <= acked) {
+                        lag.record(now - unacknowledged.poll()[1]);
+                    }
+                }
+            }
+        }
+
+        long oldestUnacknowledged(long now) {
+            synchronized (unacknowledged) {
+                return unacknowledged.isEmpty() ? 0 : now - unacknowledged.peek()[1];
+            }
+        }
+
+        Object address() {
+            try {
+                return channel.getRemoteAddress();
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        void close() {
+            followers.remove(this);
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    // reads until buffer is full
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("connection closed");
+            }
+        }
+    }
+}
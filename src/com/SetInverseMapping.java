@@ -0,0 +1,44 @@
+/**
+ * name: SetInverseMapping
+ * author: crs
+ * description: inverses of the set operations: a successful add is undone by removing the key, a successful
+ *              remove by adding it back.  contains, and adds or removes that returned false, did not change
+ *              the set and have nothing to undo.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+public class SetInverseMapping<K> implements InverseMapping<K> {
+
+    public Callable<Boolean> getInverse(final Set<K> base, SkipListKey.OperationType type, final K key, boolean result) {
+        if (!result) {
+            return null;
+        }
+
+        switch (type) {
+            case ADD:
+                return new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return base.remove(key);
+                    }
+                };
+            case REMOVE:
+                return new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return base.add(key);
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+}
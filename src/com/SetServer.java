@@ -0,0 +1,525 @@
+/**
+ * name: SetServer
+ * author: crs
+ * description: serves a SkipListKey over TCP, so clients outside the JVM can run add / remove / contains and
+ *              multi-operation transactions against it.  a compact binary protocol over non-blocking NIO: one
+ *              selector thread accepts connections, reads requests and writes responses, and a pool of
+ *              workers runs the transactions.  clients may pipeline, sending any number of requests without
+ *              waiting for the responses.  see LoadGenerator for a client.
+ *
+ * extra info: protocol, all big-endian.  a request is [int length of the rest][int request id][byte opcode]
+ *             and then a key (int) for ADD / REMOVE / CONTAINS, or for TRANSACTION an operation count
+ *             (unsigned short) followed by one (opcode byte, key int) pair per operation, run as one
+ *             applyBatch transaction.  a response is [int length of the rest][int request id][byte status]
+ *             and, if the status is OK, the result: one byte (0 or 1) for a single operation, the count
+ *             (unsigned short) and then the results as a bitmap (least significant bit first) for a
+ *             transaction.  ABORTED means the transaction gave up after maxAttempts attempts, FAILED that it
+ *             threw.  a malformed request closes the connection.
+ *
+ *             requests on one connection run one at a time, in order, each as a transaction of its own, so a
+ *             client sees its own writes.  connections run in parallel.  every request the selector finds in
+ *             a read is handed to a worker at once, which runs them back to back and then hands all their
+ *             responses to the selector together, so a pipelined burst costs one task and one write.  a
+ *             connection stops being read while MAX_BACKLOG_BYTES of its requests or responses are waiting.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - a request is parsed whole, from a slice bounded by its length, before it runs, so a malformed request
+ *   never changes the set
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SetServer implements Closeable {
+
+    public static final byte ADD = 1;
+    public static final byte REMOVE = 2;
+    public static final byte CONTAINS = 3;
+    public static final byte TRANSACTION = 4;
+
+    public static final byte OK = 0;
+    public static final byte ABORTED = 1;
+    public static final byte FAILED = 2;
+
+    // length, request id and opcode / status
+    static final int REQUEST_HEADER_BYTES = 9;
+    static final int RESPONSE_HEADER_BYTES = 9;
+    static final int MAX_TRANSACTION_OPERATIONS = 0xFFFF;
+    static final int MAX_REQUEST_BYTES = REQUEST_HEADER_BYTES + 2 + MAX_TRANSACTION_OPERATIONS * 5;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_BACKLOG_BYTES = 1 << 20;
+
+    private final SkipListKey set;
+    private final int maxAttempts;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+
+    // connections with responses for the selector to write, or that can be read again
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder requests = new LongAdder();
+    private volatile boolean closed;
+
+    // serves set on address, running transactions on workers threads, each retried until it commits
+    public SetServer(SkipListKey set, InetSocketAddress address, int workers) throws IOException {
+        this(set, address, workers, TThread.UNLIMITED_ATTEMPTS);
+    }
+
+    public SetServer(SkipListKey set, InetSocketAddress address, int workers, int maxAttempts) throws IOException {
+        this.set = set;
+        this.maxAttempts = maxAttempts;
+        this.workers = Executors.newFixedThreadPool(workers, TransactionExecutor.newThreadFactory(TransactionExecutor.ThreadMode.PLATFORM));
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    selectForever();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (!closed) {
+                        CustomLogger.log(CustomLogger.Category.EXCEPTION, "Set server stopped: %s", e);
+                    }
+                }
+            }
+        }, "SetServer-selector");
+        selectorThread.start();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    // requests run since the server started
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    // stops accepting, closes every connection and waits for the workers to finish what they are running
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+
+        try {
+            selectorThread.join();
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void selectForever() throws IOException {
+        while (!closed) {
+            selector.select();
+
+            Connection connection;
+            while ((connection = ready.poll()) != null) {
+                connection.resume();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    // one client.  the selector thread reads requests into pending and writes responses out of out, a worker
+    // swaps pending for spare and runs what it took.  pending, out and running are guarded by the connection
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // bytes read, the last request possibly incomplete.  only the selector thread touches it
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // whole requests waiting for a worker, and the buffer the worker hands back in exchange
+        private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // responses waiting to be written
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // whether a worker is running this connection's requests, and whether one asked the selector to close
+        // the connection
+        private boolean running;
+        private boolean closing;
+
+        // the responses to the requests a worker is running
+        private ByteBuffer responses = ByteBuffer.allocate(BUFFER_SIZE);
+
+        // the request the worker is running, read by the callables, which are created once per connection
+        private byte opcode;
+        private int key1;
+        private int[] batchKeys;
+        private SkipListKey.OperationType[] batchOps;
+        private boolean[] batchResults;
+
+        private final Callable<Boolean> single = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                switch (opcode) {
+                    case ADD:
+                        return set.add(key1);
+                    case REMOVE:
+                        return set.remove(key1);
+                    default:
+                        return set.contains(key1);
+                }
+            }
+        };
+
+        private final Callable<Boolean> batch = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                batchResults = set.applyBatch(batchKeys, batchOps);
+                return true;
+            }
+        };
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // selector thread: reads what the client sent and hands every whole request to a worker
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+
+            in.flip();
+            int whole = 0;
+
+            while (in.remaining() - whole >= 4) {
+                int length = in.getInt(in.position() + whole) + 4;
+                if (length < REQUEST_HEADER_BYTES || length > MAX_REQUEST_BYTES) {
+                    throw new IOException("bad request length " + length);
+                }
+                if (in.remaining() - whole < length) {
+                    // make room for the rest of a large request
+                    if (length > in.capacity()) {
+                        ByteBuffer grown = ByteBuffer.allocate(length);
+                        grown.put(in);
+                        grown.flip();
+                        in = grown;
+                        whole = 0;
+                        continue;
+                    }
+                    break;
+                }
+                whole += length;
+            }
+
+            if (whole > 0) {
+                boolean start;
+
+                synchronized (this) {
+                    if (pending.remaining() < whole) {
+                        ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + whole));
+                        pending.flip();
+                        pending = grown.put(pending);
+                    }
+
+                    int limit = in.limit();
+                    in.limit(in.position() + whole);
+                    pending.put(in);
+                    in.limit(limit);
+
+                    start = !running;
+                    running = true;
+
+                    if (pending.position() > MAX_BACKLOG_BYTES) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                }
+
+                if (start) {
+                    workers.execute(this);
+                }
+            }
+
+            in.compact();
+        }
+
+        // worker: runs the requests handed over so far, then any that arrived meanwhile
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer requests;
+
+                    synchronized (this) {
+                        if (pending.position() == 0) {
+                            running = false;
+                            return;
+                        }
+                        requests = pending;
+                        pending = spare;
+                    }
+
+                    requests.flip();
+                    responses.clear();
+
+                    while (requests.hasRemaining()) {
+                        execute(requests);
+                    }
+
+                    requests.clear();
+                    responses.flip();
+
+                    synchronized (this) {
+                        spare = requests;
+
+                        if (out.remaining() < responses.remaining()) {
+                            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + responses.remaining()));
+                            out.flip();
+                            out = grown.put(out);
+                        }
+                        out.put(responses);
+                    }
+
+                    ready.add(this);
+                    selector.wakeup();
+                }
+            } catch (IOException e) {
+                CustomLogger.log(CustomLogger.Category.EXCEPTION, "Closing connection after a bad request: %s", e);
+                synchronized (this) {
+                    running = false;
+                    pending.clear();
+                }
+                closeLater();
+            }
+        }
+
+        // runs the request at requests' position and appends its response to responses.  the request is parsed
+        // whole from a slice bounded by its length before anything runs, so a malformed request never reaches
+        // the set: one shorter than its contents underflows the slice instead of reading the next request
+        private void execute(ByteBuffer requests) throws IOException {
+            int bytes = requests.getInt();
+            ByteBuffer request = requests.slice();
+            request.limit(bytes);
+            requests.position(requests.position() + bytes);
+
+            int id;
+            int count = 0;
+
+            try {
+                id = request.getInt();
+                opcode = request.get();
+
+                if (opcode == ADD || opcode == REMOVE || opcode == CONTAINS) {
+                    key1 = request.getInt();
+                }
+                else if (opcode == TRANSACTION) {
+                    count = request.getShort() & 0xFFFF;
+                    batchKeys = new int[count];
+                    batchOps = new SkipListKey.OperationType[count];
+
+                    for (int i = 0; i < count; i++) {
+                        batchOps[i] = operation(request.get());
+                        batchKeys[i] = request.getInt();
+                    }
+                }
+                else {
+                    throw new IOException("unknown opcode " + opcode);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("request shorter than its contents", e);
+            }
+
+            if (request.hasRemaining()) {
+                throw new IOException("request longer than its contents");
+            }
+
+            byte status;
+
+            try {
+                if (opcode == TRANSACTION) {
+                    status = (TThread.doIt(batch, maxAttempts, null) == null) ? ABORTED : OK;
+                }
+                else {
+                    Boolean result = TThread.doIt(single, maxAttempts, null);
+                    status = (result == null) ? ABORTED : OK;
+                    count = (result != null && result) ? 1 : 0;
+                }
+            } catch (Exception e) {
+                status = FAILED;
+            }
+
+            SetServer.this.requests.increment();
+
+            int length = RESPONSE_HEADER_BYTES;
+            if (status == OK) {
+                length += (opcode == TRANSACTION) ? 2 + (count + 7) / 8 : 1;
+            }
+
+            if (responses.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * responses.capacity(), responses.position() + length));
+                responses.flip();
+                responses = grown.put(responses);
+            }
+
+            responses.putInt(length - 4).putInt(id).put(status);
+
+            if (status == OK && opcode == TRANSACTION) {
+                responses.putShort((short) count);
+                for (int i = 0; i < count; i += 8) {
+                    int bits = 0;
+                    for (int j = i; j < Math.min(i + 8, count); j++) {
+                        bits |= (batchResults[j] ? 1 : 0) << (j - i);
+                    }
+                    responses.put((byte) bits);
+                }
+            }
+            else if (status == OK) {
+                responses.put((byte) count);
+            }
+        }
+
+        // selector thread: writes what responses it can, and reads again once the backlog is down
+        void resume() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            try {
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                if (closing) {
+                    close();
+                    return;
+                }
+
+                out.flip();
+                channel.write(out);
+                out.compact();
+
+                int ops = (out.position() > 0) ? SelectionKey.OP_WRITE : 0;
+                if (pending.position() <= MAX_BACKLOG_BYTES && out.position() <= MAX_BACKLOG_BYTES) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        // a worker can't close the channel under the selector, it asks the selector to
+        private void closeLater() {
+            synchronized (this) {
+                closing = true;
+            }
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        void close() {
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+
+    static SkipListKey.OperationType operation(byte opcode) throws IOException {
+        switch (opcode) {
+            case ADD:
+                return SkipListKey.OperationType.ADD;
+            case REMOVE:
+                return SkipListKey.OperationType.REMOVE;
+            case CONTAINS:
+                return SkipListKey.OperationType.CONTAINS;
+            default:
+                throw new IOException("unknown opcode " + opcode + " in a transaction");
+        }
+    }
+
+    // runs a server on a port until the process is killed.  args: port [workers [PRIMITIVE|BOXED]]
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7420;
+        int workerCount = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        SkipListKey.Implementation implementation = (args.length > 2) ? SkipListKey.Implementation.valueOf(args[2]) : SkipListKey.Implementation.PRIMITIVE;
+
+        SetServer server = new SetServer(new SkipListKey(implementation), new InetSocketAddress(port), workerCount);
+        CustomLogger.log(CustomLogger.Category.EVENT, "Serving a %s set on port %d with %d workers", implementation, server.getPort(), workerCount);
+    }
+}
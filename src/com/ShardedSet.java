@@ -0,0 +1,305 @@
+/**
+ * name: ShardedSet
+ * author: crs
+ * description: a transactional set of ints partitioned across independent SkipListKey shards, each with its
+ *              own base set and its own LockKey lock table, so threads working on different shards never
+ *              touch the same skip list head or lock table.  keys are partitioned by hash or by range.
+ *              operations run in the current transaction like those of any SkipListKey, and a transaction
+ *              may use any number of shards (and other sets) at once.
+ *
+ * extra info: a key's operations go straight to its shard, so a transaction on one shard costs what it costs
+ *             on an unsharded set.  every shard shares the one ContentionManager, and deadlock detection
+ *             follows waits across shards as it does across sets.
+ *
+ *             durable sharded sets have one WriteAheadLog per shard.  a transaction changing one shard
+ *             appends a plain record to its log; one changing several commits in two phases, preparing a
+ *             record in each shard's log (see WriteAheadLog) and only then committing, so recovery replays
+ *             it on every shard or on none.
+ *
+ *             range partitioning keeps each shard's keys contiguous, so range / ceiling / forEach only visit
+ *             the shards the range overlaps, in order.  hash partitioning spreads neighbouring keys, so those
+ *             visit every shard and merge, and forEach reads (and locks) the whole range up front.  applyBatch
+ *             splits the batch by shard and applies each part in ascending shard order, so two batches still
+ *             lock in one global order and can't deadlock.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - joins the shards' logs with WriteAheadLog.Group.join
+ *
+ */
+
+package com;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.function.IntPredicate;
+
+public class ShardedSet {
+
+    // how keys are assigned to shards
+    public enum Partitioning {
+        // by a multiplicative hash of the key, spreading runs of keys over every shard
+        HASH,
+        // by which of shardCount equal slices of the int range the key falls in
+        RANGE
+    }
+
+    private final SkipListKey[] shards;
+    private final Partitioning partitioning;
+
+    public ShardedSet(int shardCount, Partitioning partitioning, SkipListKey.Implementation implementation) {
+        this(shardCount, partitioning, implementation, new DeadlockDetectingContentionManager(), LockKey.ReadMode.LOCKED);
+    }
+
+    public ShardedSet(int shardCount, Partitioning partitioning, SkipListKey.Implementation implementation,
+                      ContentionManager contentionManager, LockKey.ReadMode readMode) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("a sharded set needs at least one shard, not " + shardCount);
+        }
+
+        this.partitioning = partitioning;
+        this.shards = new SkipListKey[shardCount];
+
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new SkipListKey(implementation, contentionManager, readMode);
+        }
+    }
+
+    // a durable set with one shard per log.  the shards start out as the logs left them, replaying every
+    // transaction committed to them before whose records all reached their logs.  logs must be opened on
+    // the same files, in the same order, every time
+    public ShardedSet(Partitioning partitioning, SkipListKey.Implementation implementation, WriteAheadLog[] logs) throws IOException {
+        this(partitioning, implementation, new DeadlockDetectingContentionManager(), LockKey.ReadMode.LOCKED, logs);
+    }
+
+    public ShardedSet(Partitioning partitioning, SkipListKey.Implementation implementation, ContentionManager contentionManager,
+                      LockKey.ReadMode readMode, WriteAheadLog[] logs) throws IOException {
+        if (logs.length < 1) {
+            throw new IllegalArgumentException("a sharded set needs at least one shard");
+        }
+
+        this.partitioning = partitioning;
+        this.shards = new SkipListKey[logs.length];
+
+        // the group must know every log's prepared records before any shard replays
+        WriteAheadLog.Group.join(logs);
+
+        for (int i = 0; i < logs.length; i++) {
+            shards[i] = new SkipListKey(implementation, contentionManager, readMode, logs[i]);
+        }
+    }
+
+    public Partitioning getPartitioning() {
+        return partitioning;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // the shard holding key
+    public int shardOf(int key) {
+        if (partitioning == Partitioning.HASH) {
+            // fibonacci hashing, the high bits of the product pick the shard
+            return (int) (((key * 0x9E3779B9) & 0xFFFFFFFFL) * shards.length >>> 32);
+        }
+
+        return (int) (((long) key - Integer.MIN_VALUE) * shards.length >>> 32);
+    }
+
+    // number of elements in every shard's base set, not transactional
+    public int size() {
+        int size = 0;
+        for (SkipListKey shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    // number of abstract locks currently in the shards' lock tables
+    public int getLockTableSize() {
+        int size = 0;
+        for (SkipListKey shard : shards) {
+            size += shard.getLockTableSize();
+        }
+        return size;
+    }
+
+    public boolean add(int v) throws AbortedException {
+        return shards[shardOf(v)].add(v);
+    }
+
+    public boolean remove(int v) throws AbortedException {
+        return shards[shardOf(v)].remove(v);
+    }
+
+    public boolean contains(int v) throws AbortedException {
+        return shards[shardOf(v)].contains(v);
+    }
+
+    // SkipListKey.applyBatch across shards.  a batch on one shard goes to it whole
+    public boolean[] applyBatch(int[] keys, SkipListKey.OperationType[] ops) throws AbortedException {
+        if (keys.length != ops.length) {
+            throw new IllegalArgumentException("batch has " + keys.length + " keys but " + ops.length + " operations");
+        }
+
+        int n = keys.length;
+        int[] shardOfKey = new int[n];
+        int[] counts = new int[shards.length];
+        int used = 0;
+
+        for (int i = 0; i < n; i++) {
+            shardOfKey[i] = shardOf(keys[i]);
+            if (counts[shardOfKey[i]]++ == 0) {
+                used++;
+            }
+        }
+
+        if (used == 1) {
+            return shards[shardOfKey[0]].applyBatch(keys, ops);
+        }
+
+        boolean[] results = new boolean[n];
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (counts[shard] == 0) {
+                continue;
+            }
+
+            // the shard's part of the batch, in batch order
+            int[] partKeys = new int[counts[shard]];
+            SkipListKey.OperationType[] partOps = new SkipListKey.OperationType[counts[shard]];
+            int[] positions = new int[counts[shard]];
+            int count = 0;
+
+            for (int i = 0; i < n; i++) {
+                if (shardOfKey[i] == shard) {
+                    partKeys[count] = keys[i];
+                    partOps[count] = ops[i];
+                    positions[count] = i;
+                    count++;
+                }
+            }
+
+            boolean[] partResults = shards[shard].applyBatch(partKeys, partOps);
+            for (int i = 0; i < count; i++) {
+                results[positions[i]] = partResults[i];
+            }
+        }
+
+        return results;
+    }
+
+    // SkipListKey.range across shards, the keys in [low, high] in ascending order
+    public int[] range(int low, int high) throws AbortedException {
+        if (low > high) {
+            return new int[0];
+        }
+
+        if (partitioning == Partitioning.RANGE) {
+            int first = shardOf(low);
+            int last = shardOf(high);
+
+            if (first == last) {
+                return shards[first].range(low, high);
+            }
+
+            int[][] parts = new int[last - first + 1][];
+            for (int shard = first; shard <= last; shard++) {
+                parts[shard - first] = shards[shard].range(Math.max(low, lowest(shard)), Math.min(high, highest(shard)));
+            }
+            return concatenate(parts);
+        }
+
+        int[][] parts = new int[shards.length][];
+        for (int shard = 0; shard < shards.length; shard++) {
+            parts[shard] = shards[shard].range(low, high);
+        }
+
+        int[] keys = concatenate(parts);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    public OptionalInt first() throws AbortedException {
+        return ceiling(Integer.MIN_VALUE);
+    }
+
+    // SkipListKey.ceiling across shards.  range partitioning stops at the first shard with a key >= v,
+    // hash partitioning asks every shard and takes the smallest answer
+    public OptionalInt ceiling(int v) throws AbortedException {
+        if (partitioning == Partitioning.RANGE) {
+            for (int shard = shardOf(v); shard < shards.length; shard++) {
+                OptionalInt found = shards[shard].ceiling(Math.max(v, lowest(shard)));
+                if (found.isPresent()) {
+                    return found;
+                }
+            }
+            return OptionalInt.empty();
+        }
+
+        OptionalInt smallest = OptionalInt.empty();
+        for (SkipListKey shard : shards) {
+            OptionalInt found = shard.ceiling(v);
+            if (found.isPresent() && (!smallest.isPresent() || found.getAsInt() < smallest.getAsInt())) {
+                smallest = found;
+            }
+        }
+        return smallest;
+    }
+
+    // SkipListKey.forEach across shards, in ascending order
+    public boolean forEach(int low, int high, IntPredicate action) throws AbortedException {
+        if (low > high) {
+            return true;
+        }
+
+        if (partitioning == Partitioning.RANGE) {
+            for (int shard = shardOf(low); shard <= shardOf(high); shard++) {
+                if (!shards[shard].forEach(Math.max(low, lowest(shard)), Math.min(high, highest(shard)), action)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        for (int key : range(low, high)) {
+            if (!action.test(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the smallest key of a range-partitioned shard, the first k with shardOf(k) == shard
+    private int lowest(int shard) {
+        long offset = ((long) shard << 32) / shards.length;
+        if (offset * shards.length < (long) shard << 32) {
+            offset++;
+        }
+        return (int) (Integer.MIN_VALUE + offset);
+    }
+
+    // the largest key of a range-partitioned shard
+    private int highest(int shard) {
+        return (shard == shards.length - 1) ? Integer.MAX_VALUE : lowest(shard + 1) - 1;
+    }
+
+    private static int[] concatenate(int[][] parts) {
+        int length = 0;
+        for (int[] part : parts) {
+            length += part.length;
+        }
+
+        int[] keys = new int[length];
+        int count = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, keys, count, part.length);
+            count += part.length;
+        }
+        return keys;
+    }
+}
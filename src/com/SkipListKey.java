@@ -17,104 +17,584 @@
  * Updates:
  * - now using flag to determine if inverse operation should be invoked on abort
  *   not sure how abort handler was implemented in paper
+ * - operations now record their inverse in the transaction's undo log instead of setting a flag,
+ *   so a transaction can run any number of operations.  inverses act directly on the base skiplist
+ *   since the transaction already holds the abstract lock.
+ * - operations now throw AbortedException instead of swallowing it, so the enclosing transaction
+ *   stops at the first failed lock acquisition and rolls back.
+ * - the base set and lock table are selected by Implementation.  PRIMITIVE uses IntSkipListSet and
+ *   IntLockTable so no operation boxes its key; BOXED is the original ConcurrentSkipListSet<Integer>.
+ * - exposes the lock table size
+ * - contains takes its abstract lock SHARED, so concurrent lookups of the same key no longer
+ *   serialize.  add and remove take it EXCLUSIVE, upgrading if the transaction read the key first
+ * - each instance can be given its own ContentionManager for busy abstract locks
+ * - records the latency of each completed operation in the MetricsRegistry
+ * - operation timing shared with BoostedSet through MetricsRegistry.startTimer / stopTimer.  the two only
+ *   share their locking; BoostedSet has none of the features below
+ * - ordered reads: range, first, ceiling and forEach.  they take range locks instead of a lock per key,
+ *   so a scan costs one lock operation (or one per ITERATION_CHUNK keys for forEach) and concurrent adds
+ *   and removes can't create phantoms inside what it read
+ * - optional optimistic contains (LockKey.ReadMode.OPTIMISTIC), validated against stripe versions before
+ *   commit instead of locking the key
+ * - defaults to the DeadlockDetectingContentionManager
+ * - applyBatch, many adds / removes / contains in the current transaction.  locks are taken in ascending
+ *   key order, once per key, and the base set is updated in one ascending pass
+ * - durable sets: given a WriteAheadLog, the set replays it when created and its committed adds and removes
+ *   are appended to it
+ * - can be restored from a Checkpoint, bulk loading the base set
+ * - multi-version sets (LockKey.ReadMode.SNAPSHOT): writers push versions of the keys they change to a
+ *   VersionStore, and read-only transactions read contains / range / ceiling / forEach from their snapshot
+ *   without locking.  read-only transactions can't add or remove
+ * - addAsync / removeAsync / containsAsync, single-operation transactions that return a CompletableFuture
+ *   and wait for busy keys without blocking a thread
+ * - ordered reads and batches are timed under MetricsRegistry.BulkOperationType instead of OperationType,
+ *   which logs, traces and replicas read back as operations
  *
  */
 
 package com;
 
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.OptionalInt;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 public class SkipListKey {
 
-    // describes type of operation being performed
+    // describes type of operation being performed.  also the operation codes of write-ahead logs, traces and
+    // replication, so it only holds operations that can be replayed; scans and batches are timed under
+    // MetricsRegistry.BulkOperationType
     public enum OperationType {
         CONTAINS,
         ADD,
         REMOVE
     }
 
-    ConcurrentSkipListSet<Integer> list;
+    // selects the base set and lock table
+    public enum Implementation {
+        // ConcurrentSkipListSet<Integer> with a ConcurrentHashMap<Integer, Lock> lock table
+        BOXED,
+        // IntSkipListSet with an IntLockTable, no boxing on any operation
+        PRIMITIVE
+    }
+
+    // keys forEach reads, and range locks, at a time
+    static final int ITERATION_CHUNK = 1024;
+
+    IntSet list;
     LockKey lock;
 
+    // null unless the set is durable
+    private final WriteAheadLog log;
+
+    // null unless the set is multi-version
+    private VersionStore versions;
+
     // initializes underling skiplist and its lockkey
     public SkipListKey() {
-        list = new ConcurrentSkipListSet<>();
-        lock = new LockKey();
+        this(Implementation.BOXED);
+    }
+
+    public SkipListKey(Implementation implementation) {
+        this(implementation, new DeadlockDetectingContentionManager());
+    }
+
+    public SkipListKey(Implementation implementation, ContentionManager contentionManager) {
+        this(implementation, contentionManager, LockKey.ReadMode.LOCKED);
+    }
+
+    public SkipListKey(Implementation implementation, ContentionManager contentionManager, LockKey.ReadMode readMode) {
+        this.log = null;
+        create(implementation, contentionManager, readMode);
+    }
+
+    // a durable set.  the set starts out as log left it, replaying every transaction committed to it before, and
+    // every transaction that changes it appends to it from now on.  a log belongs to one set
+    public SkipListKey(Implementation implementation, WriteAheadLog log) throws IOException {
+        this(implementation, new DeadlockDetectingContentionManager(), LockKey.ReadMode.LOCKED, log);
+    }
+
+    public SkipListKey(Implementation implementation, ContentionManager contentionManager, LockKey.ReadMode readMode,
+                       WriteAheadLog log) throws IOException {
+        this(implementation, contentionManager, readMode, IntStream.empty().iterator(), log, WriteAheadLog.Mark.unchecked(0));
+    }
+
+    // a set restored from a Checkpoint.  keys, in ascending order, are loaded straight into the base set, then
+    // log (null unless the set is durable) is replayed from logPosition on
+    SkipListKey(Implementation implementation, ContentionManager contentionManager, LockKey.ReadMode readMode,
+                PrimitiveIterator.OfInt keys, WriteAheadLog log, WriteAheadLog.Mark logPosition) throws IOException {
+        this.log = log;
+        create(implementation, contentionManager, readMode);
+        list.addAllSorted(keys);
+
+        if (log != null) {
+            log.replay(list, logPosition);
+        }
+    }
+
+    private void create(Implementation implementation, ContentionManager contentionManager, LockKey.ReadMode readMode) {
+        switch (implementation) {
+            case PRIMITIVE:
+                list = new IntSkipListSet();
+                lock = new LockKey(new IntLockTable(), contentionManager, readMode);
+                break;
+            default:
+                list = new BoxedIntSet();
+                lock = new LockKey(new BoxedLockTable(), contentionManager, readMode);
+                break;
+        }
+
+        versions = (readMode == LockKey.ReadMode.SNAPSHOT) ? new VersionStore() : null;
+    }
+
+    // the set's log, null unless it is durable
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    // number of keys with versions kept for snapshots, 0 unless the set is multi-version
+    public int getVersionedKeyCount() {
+        return (versions == null) ? 0 : versions.size();
+    }
+
+    // number of elements in the base set, not transactional
+    public int size() {
+        return list.size();
+    }
+
+    // number of abstract locks currently in the lock table, scales with the
+    // number of concurrent transactions rather than the number of keys
+    public int getLockTableSize() {
+        return lock.size();
     }
 
     // transaction-boosted wrapper for add
-    public boolean add(final int v) {
-        boolean result = false;
+    public boolean add(final int v) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+        Transaction me = writer();
 
-        try {
-            // acquire semantic lock for key to ensure all other concurrent transactions will commute
-            lock.lock(v);
+        // acquire semantic lock for key to ensure all other concurrent transactions will commute
+        acquire(v, AbstractLock.Mode.EXCLUSIVE);
+
+        // attempt to add to skiplist, can succeed or fail based on state of skiplist
+        boolean result = write(me, OperationType.ADD, v);
 
-            // attempt to add to skiplist, can succeed or fail based on state of skiplist
-            result = list.add(v);
+        // formatted lazily by the logger, nothing is allocated here
+        CustomLogger.log(CustomLogger.Category.TRANSACTION, "adding %d to the set (status: %s)", v, result ? "COMPLETED" : "FAILED");
 
-            Object[] logArgs = new Object[] {v, result ? "COMPLETED" : "FAILED"};
-            CustomLogger.log(CustomLogger.Category.TRANSACTION, String.format("adding %d to the set (status: %s)", logArgs));
+        // if we successfully added it to the list, if we abort, we need to
+        // remove it again, which is driven by the undo log
+        if (result) {
+            me.logUndo(getBaseRemove(v));
 
-            // if we successfully added it to the list, if we abort, we need to
-            // invoke the inverse operation, which is driven by this flag being set here
-            if (result) {
-                Transaction.getLocal().setUseInverse();
+            if (log != null) {
+                me.logRedo(log, OperationType.ADD, v);
             }
-        } catch (Exception e) {
-            // do nothing, operation will be marked as failed
         }
 
+        MetricsRegistry.stopTimer(OperationType.ADD, start);
+
         // return whether add was successful
         return result;
     }
 
     // transaction-boosted wrapper for remove
-    public boolean remove(final int v) {
-        boolean result = false;
+    public boolean remove(final int v) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+        Transaction me = writer();
 
-        try {
-            // acquire semantic lock for key to ensure all other concurrent transactions will commute
-            lock.lock(v);
+        // acquire semantic lock for key to ensure all other concurrent transactions will commute
+        acquire(v, AbstractLock.Mode.EXCLUSIVE);
 
-            // attempt to remove from skiplist, can succeed or fail based on state of skiplist
-            result = list.remove(v);
+        // attempt to remove from skiplist, can succeed or fail based on state of skiplist
+        boolean result = write(me, OperationType.REMOVE, v);
 
-            Object[] logArgs = new Object[] {v, result ? "COMPLETED" : "FAILED"};
-            CustomLogger.log(CustomLogger.Category.TRANSACTION, String.format("removing %d from the set (status: %s)", logArgs));
+        CustomLogger.log(CustomLogger.Category.TRANSACTION, "removing %d from the set (status: %s)", v, result ? "COMPLETED" : "FAILED");
 
-            // if we successfully removed it to the list, if we abort, we need to
-            // invoke the inverse operation, which is driven by this flag being set here
-            if (result) {
-                Transaction.getLocal().setUseInverse();
+        // if we successfully removed it from the list, if we abort, we need to
+        // add it back, which is driven by the undo log
+        if (result) {
+            me.logUndo(getBaseAdd(v));
+
+            if (log != null) {
+                me.logRedo(log, OperationType.REMOVE, v);
             }
-        } catch (Exception e) {
-            // do nothing, operation will be marked as failed
         }
 
+        MetricsRegistry.stopTimer(OperationType.REMOVE, start);
+
         return result;
     }
 
     // transaction-boosted wrapper for contains
-    public boolean contains(final int v) {
-        boolean result = false;
+    public boolean contains(final int v) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
 
-        try {
-            // acquire semantic lock for key to ensure all other concurrent transactions will commute
-            lock.lock(v);
+        // a read-only transaction reads its snapshot, no lock needed
+        long snapshot = snapshot();
+        if (snapshot != VersionStore.NO_SNAPSHOT) {
+            boolean result = versions.contains(list, v, snapshot);
+            MetricsRegistry.stopTimer(OperationType.CONTAINS, start);
+            return result;
+        }
+
+        // acquire shared semantic lock for key, contains commutes with other contains.  an optimistic
+        // read skips the lock and is validated when the transaction commits
+        if (!lock.readOptimistic(v)) {
+            acquire(v, AbstractLock.Mode.SHARED);
+        }
+
+        // checks if skiplist contains key, can succeed or fail based on state of skiplist.
+        // nothing was modified, so there is nothing to undo
+        boolean result = list.contains(v);
+
+        MetricsRegistry.stopTimer(OperationType.CONTAINS, start);
+
+        return result;
+    }
+
+    // add as a transaction of its own, run by TThread.doItAsync on its shared pool.  the future completes with
+    // what add returned once the transaction commits, or null if it aborted.  a busy key doesn't hold up a
+    // thread, the transaction waits for it as a continuation on its lock
+    public CompletableFuture<Boolean> addAsync(final int v) {
+        return TThread.doItAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return add(v);
+            }
+        });
+    }
+
+    // remove as a transaction of its own, see addAsync
+    public CompletableFuture<Boolean> removeAsync(final int v) {
+        return TThread.doItAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return remove(v);
+            }
+        });
+    }
+
+    // contains as a transaction of its own, see addAsync
+    public CompletableFuture<Boolean> containsAsync(final int v) {
+        return TThread.doItAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return contains(v);
+            }
+        });
+    }
+
+    // transaction-boosted batch.  applies ops[i] (ADD, REMOVE or CONTAINS) to keys[i] for every i as part of the
+    // current transaction and returns each one's result, as add / remove / contains would.  operations on the
+    // same key take effect in the order given.  every lock is taken before anything is applied, once per
+    // distinct key, exclusively if the batch writes the key, and in ascending key order, so batches can't
+    // deadlock on each other (only on locks their transactions took before the batch).  the base set is then
+    // updated in one pass in key order
+    public boolean[] applyBatch(int[] keys, OperationType[] ops) throws AbortedException {
+        if (keys.length != ops.length) {
+            throw new IllegalArgumentException("batch has " + keys.length + " keys but " + ops.length + " operations");
+        }
+
+        long start = MetricsRegistry.startTimer();
+        Transaction me = writer();
+        int n = keys.length;
+
+        // key in the high half and position in the low half, so sorting orders by key and then by position
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            if (ops[i] != OperationType.ADD && ops[i] != OperationType.REMOVE && ops[i] != OperationType.CONTAINS) {
+                throw new IllegalArgumentException("batches only add, remove or contains, not " + ops[i]);
+            }
 
-            // checks if skiplist contains key, can succeed or fail based on state of skiplist
-            result = list.contains(v);
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int[] sortedKeys = new int[n];
+        OperationType[] sortedOps = new OperationType[n];
+        for (int i = 0; i < n; i++) {
+            int position = (int) order[i];
+            sortedKeys[i] = keys[position];
+            sortedOps[i] = ops[position];
+        }
+
+        for (int i = 0; i < n; ) {
+            int key = sortedKeys[i];
+            boolean write = false;
+
+            int next = i;
+            while (next < n && sortedKeys[next] == key) {
+                write |= sortedOps[next] != OperationType.CONTAINS;
+                next++;
+            }
+
+            if (write) {
+                acquire(key, AbstractLock.Mode.EXCLUSIVE);
+
+                if (versions != null) {
+                    beforeBatchWrite(me, key, sortedOps, i, next);
+                }
+            }
+            else if (!lock.readOptimistic(key)) {
+                acquire(key, AbstractLock.Mode.SHARED);
+            }
 
-            // this is mostly for symmetry, this will just invoke a noop
-            if (result) {
-                Transaction.getLocal().setUseInverse();
+            i = next;
+        }
+
+        boolean[] sortedResults = new boolean[n];
+        list.applySorted(sortedKeys, sortedOps, sortedResults);
+
+        // inverses are logged in the order the operations were applied, so abort undoes them in reverse.
+        // a durable set's log replays them in that order too
+        boolean[] results = new boolean[n];
+
+        for (int i = 0; i < n; i++) {
+            results[(int) order[i]] = sortedResults[i];
+
+            if (sortedResults[i] && sortedOps[i] != OperationType.CONTAINS) {
+                if (sortedOps[i] == OperationType.ADD) {
+                    me.logUndo(getBaseRemove(sortedKeys[i]));
+                }
+                else {
+                    me.logUndo(getBaseAdd(sortedKeys[i]));
+                }
+
+                if (log != null) {
+                    me.logRedo(log, sortedOps[i], sortedKeys[i]);
+                }
             }
-        } catch (Exception e) {
-            // do nothing, operation will be marked as failed
         }
 
+        CustomLogger.log(CustomLogger.Category.TRANSACTION, "batch of %d operations on the set", n);
+
+        MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.BATCH, start);
+
+        return results;
+    }
+
+    // transaction-boosted range scan, the keys in [low, high] in ascending order.  the whole range is
+    // covered by a single range lock, so no other transaction can add or remove a key in it until
+    // this one commits or aborts
+    public int[] range(int low, int high) throws AbortedException {
+        if (low > high) {
+            return new int[0];
+        }
+
+        long start = MetricsRegistry.startTimer();
+        long snapshot = snapshot();
+        int[] result;
+
+        if (snapshot != VersionStore.NO_SNAPSHOT) {
+            result = versions.range(list, low, high, snapshot);
+        }
+        else {
+            acquireRange(low, high);
+            result = list.range(low, high, Integer.MAX_VALUE);
+        }
+
+        CustomLogger.log(CustomLogger.Category.TRANSACTION, "range [%d, %d] of the set", low, high);
+
+        MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.RANGE, start);
+
         return result;
     }
 
+    // transaction-boosted first, the smallest key in the set.  see ceiling
+    public OptionalInt first() throws AbortedException {
+        return ceiling(Integer.MIN_VALUE);
+    }
+
+    // transaction-boosted ceiling, the smallest key >= v.  locks the gap from v up to and including the
+    // key found, so no smaller key can be added and the key found can't be removed.  an empty result
+    // locks everything from v up
+    public OptionalInt ceiling(int v) throws AbortedException {
+        long start = MetricsRegistry.startTimer();
+        int low = v;
+
+        long snapshot = snapshot();
+        if (snapshot != VersionStore.NO_SNAPSHOT) {
+            long found = versions.ceiling(list, v, snapshot);
+            MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.RANGE, start);
+            return (found == IntSet.NONE) ? OptionalInt.empty() : OptionalInt.of((int) found);
+        }
+
+        while (true) {
+            long next = list.ceiling(low);
+            int high = (next == IntSet.NONE) ? Integer.MAX_VALUE : (int) next;
+
+            acquireRange(low, high);
+
+            // everything in [v, high] is locked now, so what we find there stays
+            long found = list.ceiling(v);
+
+            if (found != IntSet.NONE && found <= high) {
+                MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.RANGE, start);
+                return OptionalInt.of((int) found);
+            }
+
+            if (high == Integer.MAX_VALUE) {
+                MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.RANGE, start);
+                return OptionalInt.empty();
+            }
+
+            // the key we saw was removed before we locked it, keep going past it
+            low = high + 1;
+        }
+    }
+
+    // transaction-boosted iteration over the keys in [low, high] in ascending order, until action
+    // returns false.  keys are range locked ITERATION_CHUNK at a time as the iteration reaches them,
+    // so stopping early leaves the rest of the range unlocked.  returns false if action stopped it
+    public boolean forEach(int low, int high, IntPredicate action) throws AbortedException {
+        // a snapshot holds still, it can be read in one go
+        if (snapshot() != VersionStore.NO_SNAPSHOT) {
+            for (int key : range(low, high)) {
+                if (!action.test(key)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int cursor = low;
+
+        while (cursor <= high) {
+            long start = MetricsRegistry.startTimer();
+
+            // the chunk ends at the ITERATION_CHUNK-th key from the cursor, or at high
+            int[] ahead = list.range(cursor, high, ITERATION_CHUNK);
+            int chunkHigh = (ahead.length == ITERATION_CHUNK) ? ahead[ITERATION_CHUNK - 1] : high;
+
+            acquireRange(cursor, chunkHigh);
+            int[] keys = list.range(cursor, chunkHigh, Integer.MAX_VALUE);
+
+            MetricsRegistry.stopTimer(MetricsRegistry.BulkOperationType.RANGE, start);
+
+            for (int key : keys) {
+                if (!action.test(key)) {
+                    return false;
+                }
+            }
+
+            if (chunkHigh == high) {
+                break;
+            }
+            cursor = chunkHigh + 1;
+        }
+
+        return true;
+    }
+
+    // number of range locks currently held
+    public int getRangeLockCount() {
+        return lock.getRangeCount();
+    }
+
+    // the calling transaction, which must be allowed to write
+    private static Transaction writer() {
+        Transaction me = Transaction.getLocal();
+
+        if (me.isReadOnly()) {
+            throw new IllegalStateException("read-only transactions can't add or remove");
+        }
+
+        return me;
+    }
+
+    // the snapshot the calling transaction reads this set at, or VersionStore.NO_SNAPSHOT if it locks
+    private long snapshot() {
+        if (versions == null) {
+            return VersionStore.NO_SNAPSHOT;
+        }
+
+        Transaction me = Transaction.getLocal();
+        return me.isReadOnly() ? me.getSnapshot() : VersionStore.NO_SNAPSHOT;
+    }
+
+    // adds (type ADD) or removes v in the base set.  a multi-version set first pushes the new state as a
+    // pending version, if there is a change.  we hold v's exclusive lock, so only we can change it
+    private boolean write(Transaction me, OperationType type, int v) {
+        boolean add = type == OperationType.ADD;
+
+        if (versions != null) {
+            if (list.contains(v) == add) {
+                return false;
+            }
+
+            VersionStore.Chain chain = versions.beforeWrite(v, !add, add);
+            if (chain != null) {
+                me.logVersion(chain);
+            }
+        }
+
+        return add ? list.add(v) : list.remove(v);
+    }
+
+    // pushes the state key will have after sortedOps[from, to) as a pending version, if any of them changes it
+    private void beforeBatchWrite(Transaction me, int key, OperationType[] sortedOps, int from, int to) {
+        boolean before = list.contains(key);
+        boolean after = before;
+        boolean changes = false;
+
+        for (int i = from; i < to; i++) {
+            if (sortedOps[i] != OperationType.CONTAINS && after != (sortedOps[i] == OperationType.ADD)) {
+                after = !after;
+                changes = true;
+            }
+        }
+
+        if (changes) {
+            VersionStore.Chain chain = versions.beforeWrite(key, before, after);
+            if (chain != null) {
+                me.logVersion(chain);
+            }
+        }
+    }
+
+    // acquires the abstract lock for v, treating an interrupt while waiting as an abort
+    private void acquire(int v, AbstractLock.Mode mode) throws AbortedException {
+        try {
+            lock.lock(v, mode);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted waiting for lock on " + v);
+        }
+    }
+
+    // acquires a range lock over [low, high], treating an interrupt while waiting as an abort
+    private void acquireRange(int low, int high) throws AbortedException {
+        try {
+            lock.lockRange(low, high);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("interrupted waiting for range lock on [" + low + ", " + high + "]");
+        }
+    }
+
+    // inverses operate on the base skiplist directly.  they are only invoked during abort,
+    // while the transaction still holds the abstract lock for v
+    private Callable<Boolean> getBaseAdd(final int v) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return list.add(v);
+            }
+        };
+    }
+
+    private Callable<Boolean> getBaseRemove(final int v) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return list.remove(v);
+            }
+        };
+    }
+
 }
@@ -1,7 +1,8 @@
 /**
  * name: TThread
  * author: crs
- * description: provides implementation for transaction-compatible thread
+ * description: provides implementation for transaction-compatible thread.  despite the name (kept from
+ *              TinyTM) a TThread is a lightweight Runnable task, not a Thread
  *
  * Edit History:
  * - Renovated by crs on 4/8/17.
@@ -12,33 +13,74 @@
  * The commit and abort implementations are influenced by Herlihy and Koskinen
  *
  * Updates:
+ * - a TThread now runs a single transaction body, which may perform any number of operations
+ *   on boosted structures.  inverses are recorded by the operations in the transaction's undo log.
+ * - commit / abort handlers unlock every held lock and clear the lock set in bulk, instead of
+ *   removing from the set while iterating it
+ * - handlers release locks back to their LockTable so unused locks are reclaimed
+ * - validation fails for a transaction wounded by a ContentionManager
+ * - optionally counts commits and aborts into a TransactionStats
+ * - doIt retries aborted transactions up to maxAttempts times with randomized exponential backoff
+ *   between attempts, instead of returning after the first abort.  retries keep the first attempt's
+ *   timestamp and karma so contention managers favor them.  a transaction body that throws something
+ *   other than AbortedException is now rolled back and its locks released before rethrowing
+ * - doIt reports outcomes, and the latency of committed transactions across all their attempts,
+ *   to the MetricsRegistry
+ * - no longer extends Thread, so a task doesn't carry a whole Thread object.  batches of transactions
+ *   are better run through a TransactionExecutor, which calls doIt directly
+ * - validation checks the versions seen by optimistic reads, and the commit / abort handlers end the
+ *   transaction's versioned writes before releasing its locks
+ * - doIt restarts the thread's own Transaction instead of allocating one per attempt, and looks it up
+ *   once; the handlers release the transaction's LockSet by index.  begin / validate / commit / abort
+ *   no longer allocate
+ * - a validated transaction writes its changes to durable sets' WriteAheadLogs, and waits for them as their
+ *   sync policies require, before it commits and releases its locks.  an io error rolls it back and is
+ *   rethrown
+ * - doItReadOnly runs a read-only transaction, which reads multi-version sets as of a snapshot taken when it
+ *   starts, without locking them
+ * - doItAsync runs a transaction on an executor and returns a CompletableFuture of its result.  instead of
+ *   blocking its thread on a busy lock, the transaction gives up the attempt and leaves a continuation with
+ *   the lock, which hands it back to the executor once the lock is released
  *
  */
 
 package com;
 
-import java.util.HashSet;
+import java.io.IOException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class TThread extends java.lang.Thread {
+public class TThread implements Runnable {
 
-    // stores operation and inverse as instance variables for
-    // when void run() method is invoked by ThreadPoolExecutor.
+    // attempts made by doIt when none are given, and the value meaning no limit
+    public static final int DEFAULT_MAX_ATTEMPTS = 1;
+    public static final int UNLIMITED_ATTEMPTS = 0;
+
+    // bounds on the randomized exponential backoff between attempts
+    private static final long MIN_RETRY_BACKOFF_NS = 1000;
+    private static final long MAX_RETRY_BACKOFF_NS = 1000000;
+
+    // stores the transaction body as an instance variable for
+    // when void run() method is invoked by an executor.
     // this allows us to send it into the static doIt implementation
     // that drives the transaction's behaviors
-    private final Callable<Boolean> operation;
-    private final Callable<Boolean> inverse;
+    private final Callable<Boolean> transaction;
+    private final int maxAttempts;
+    private final TransactionStats stats;
 
     // clear locks as part of abort step, as per Herlihy and Koskinen
     static Runnable onAbort = new Runnable() {
         @Override
         public void run() {
-            HashSet<Lock> lockSet = Transaction.getLockSet();
-            for (Lock l : lockSet) {
-                l.unlock();
-                lockSet.remove(l);
-            }
+            releaseLocks(Transaction.getLocal());
         }
     };
 
@@ -46,11 +88,7 @@ public class TThread extends java.lang.Thread {
     static Runnable onCommit = new Runnable() {
         @Override
         public void run() {
-            HashSet<Lock> lockSet = Transaction.getLockSet();
-            for (Lock l : lockSet) {
-                l.unlock();
-                lockSet.remove(l);
-            }
+            releaseLocks(Transaction.getLocal());
         }
     };
 
@@ -63,72 +101,358 @@ public class TThread extends java.lang.Thread {
     // before commiting you must check the timestamp of the write location
     // and ensure the local read val is greater.  if our transaction is active,
     // then we have the abstract lock associated with the key, and know that it commutes still.
+    // optimistic reads hold no lock, so they are the one thing left to check: the transaction
+    // commits only if no other transaction wrote what it read since it read it
     static Callable<Boolean> onValidate = new Callable<Boolean>() {
         @Override
         public Boolean call() throws Exception {
-            Transaction transaction = Transaction.getLocal();
+            return validate(Transaction.getLocal());
+        }
+    };
 
-            switch (transaction.getStatus()) {
-                case ABORTED:
-                    return false;
-                case COMMITTED:
-                    return true;
-                case ACTIVE:
-                    return true;
-            }
+    // the handlers, for a transaction the caller already looked up
+    static boolean validate(Transaction transaction) {
+        switch (transaction.getStatus()) {
+            case ABORTED:
+                return false;
+            case COMMITTED:
+                return true;
+            case ACTIVE:
+                // a contention manager asked us to give way to an older or higher priority transaction
+                return !transaction.isWounded() && transaction.validateReads();
+        }
 
-            return false;
+        return false;
+    }
+
+    // ends the transaction's versioned writes, then releases every lock it holds and clears the lock set
+    static void releaseLocks(Transaction transaction) {
+        transaction.endWrites();
+
+        LockSet lockSet = transaction.getLocks();
+        for (int i = 0; i < lockSet.size(); i++) {
+            AbstractLock l = lockSet.get(i);
+
+            // removed before the transaction ended
+            if (l != null) {
+                l.release();
+            }
         }
-    };
+        lockSet.clear();
+    }
 
-    // initializes TThread with the operation and inverse
-    public TThread (Callable<Boolean> operation, Callable<Boolean> inverse) {
+    // initializes TThread with the transaction body
+    public TThread (Callable<Boolean> transaction) {
+        this(transaction, DEFAULT_MAX_ATTEMPTS, null);
+    }
+
+    // initializes TThread with the transaction body, how many times to attempt it,
+    // and the stats its outcome is counted in (may be null)
+    public TThread (Callable<Boolean> transaction, int maxAttempts, TransactionStats stats) {
         // we set these as instance variables so they can be referenced from the void run method,
-        // where the transactions are actually being created (which we'll give the operation and inverse to)
-        this.operation = operation;
-        this.inverse = inverse;
+        // where the transactions are actually being created
+        this.transaction = transaction;
+        this.maxAttempts = maxAttempts;
+        this.stats = stats;
     }
 
-    // targeted by the ThreadPoolExecutor when running a thread
+    // targeted by the executor running the task
     public void run() {
         try {
-            doIt(this.operation, this.inverse);
+            doIt(this.transaction, this.maxAttempts, this.stats);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // runs the transaction once, see doIt(Callable, int, TransactionStats)
+    public static Boolean doIt(Callable<Boolean> transaction) throws Exception {
+        return doIt(transaction, DEFAULT_MAX_ATTEMPTS, null);
+    }
+
     // @TODO: get page number that this if from
     // implementation from Art of MultiProcessorProgramming on page [pageNumber]
-    // retries the transaction if aborted until it succeeds, or if there is an exception
-    // other than abort triggered by the thread return out.
-    public static Boolean doIt(Callable<Boolean> operation, Callable<Boolean> inverse) throws Exception {
-        Boolean result = null;
+    // retries the transaction if aborted until it succeeds or maxAttempts attempts (UNLIMITED_ATTEMPTS for no limit)
+    // have aborted, in which case it returns null.  if there is an exception other than abort triggered by the
+    // transaction, it's rolled back and the exception is rethrown.
+    // the body may run any number of operations; they all commit or abort together, and the
+    // abstract locks they acquire are held until then.
+    public static Boolean doIt(Callable<Boolean> transaction, int maxAttempts, TransactionStats stats) throws Exception {
+        return run(transaction, maxAttempts, stats, false);
+    }
+
+    // runs the read-only transaction once, see doItReadOnly(Callable, int, TransactionStats)
+    public static Boolean doItReadOnly(Callable<Boolean> transaction) throws Exception {
+        return doItReadOnly(transaction, DEFAULT_MAX_ATTEMPTS, null);
+    }
+
+    // doIt, for a transaction that only reads.  sets in LockKey.ReadMode.SNAPSHOT are read as of a snapshot
+    // taken when the attempt starts, without locks, so those reads never wait for or abort because of a
+    // writer.  other sets are read as in any transaction.  adding to or removing from a set throws
+    public static Boolean doItReadOnly(Callable<Boolean> transaction, int maxAttempts, TransactionStats stats) throws Exception {
+        return run(transaction, maxAttempts, stats, true);
+    }
 
-        while (true) {
-            Transaction me = new Transaction(operation, inverse);
+    // runs the transaction once on the shared asynchronous pool, see doItAsync(Callable, Executor, int, TransactionStats)
+    public static CompletableFuture<Boolean> doItAsync(Callable<Boolean> transaction) {
+        return doItAsync(transaction, getAsyncExecutor(), DEFAULT_MAX_ATTEMPTS, null);
+    }
+
+    // doIt, without blocking the calling thread or any other.  the transaction runs on executor, and the future
+    // completes with what doIt would return, or exceptionally with what doIt would throw.  where doIt would
+    // wait for a busy lock, the attempt is rolled back instead, its locks released, and the transaction is
+    // handed back to executor to start over once the lock is free.  that doesn't count as an attempt.  so a
+    // few threads can keep any number of transactions in flight, and a waiting transaction holds no lock.
+    // the body may run again after any lock it takes, like a retried one, so it shouldn't do anything it
+    // can't repeat.  waits for durable sets' logs still block, as in doIt
+    public static CompletableFuture<Boolean> doItAsync(Callable<Boolean> transaction, Executor executor, int maxAttempts, TransactionStats stats) {
+        AsyncTransaction async = new AsyncTransaction(transaction, executor, maxAttempts, stats);
+        async.dispatch(executor);
+        return async.future;
+    }
+
+    // a daemon thread per processor, shared by every asynchronous transaction not given an executor
+    public static Executor getAsyncExecutor() {
+        return AsyncPool.EXECUTOR;
+    }
+
+    // runs tasks on the calling thread
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static final class AsyncPool {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "TThread-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // a transaction run by doItAsync, one attempt (or the part of it before a busy lock) per run.  its
+    // Transaction is its own, and stands in for the thread's while an attempt runs
+    private static final class AsyncTransaction implements Runnable {
+        private final Callable<Boolean> body;
+        private final Executor executor;
+        private final int maxAttempts;
+        private final TransactionStats stats;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        private final Transaction me = new Transaction(true);
+        private final long start = MetricsRegistry.isEnabled() ? System.nanoTime() : 0;
+
+        // attempts aborted so far, and whether the transaction began
+        private int attempt;
+        private boolean begun;
+
+        // the outcome, for completing the future once the thread has its own transaction back
+        private Boolean result;
+        private Exception failure;
+
+        // hands the transaction back to executor.  left with a busy lock, where it runs on the thread releasing it
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                dispatch(executor);
+            }
+        };
+
+        AsyncTransaction(Callable<Boolean> body, Executor executor, int maxAttempts, TransactionStats stats) {
+            this.body = body;
+            this.executor = executor;
+            this.maxAttempts = maxAttempts;
+            this.stats = stats;
+        }
+
+        void dispatch(Executor next) {
+            try {
+                next.execute(this);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            Transaction previous = Transaction.getLocal();
             Transaction.setLocal(me);
+            boolean finished;
 
             try {
-                result = operation.call();
+                finished = attempt();
+            } finally {
+                Transaction.setLocal(previous);
+            }
+
+            // dependent stages may run transactions of their own on this thread
+            if (finished && failure != null) {
+                future.completeExceptionally(failure);
+            }
+            else if (finished) {
+                future.complete(result);
+            }
+        }
+
+        // TThread.run's loop body, for one attempt.  returns true once the transaction is over, false if it
+        // was handed on to run again, maybe already running on another thread
+        private boolean attempt() {
+            // retries and resumed attempts inherit the first attempt's priority
+            if (!begun) {
+                me.begin();
+                begun = true;
+            }
+            else {
+                me.retry();
+            }
+
+            try {
+                result = body.call();
+            } catch (LockBusyException e) {
+                me.abort();
+                releaseLocks(me);
+
+                // last, the continuation may run the next attempt straight away
+                e.getLock().whenReleased(resume);
+                return false;
             } catch (AbortedException e) {
 
             } catch (Exception e) {
+                me.abort();
+                releaseLocks(me);
+                failure = e;
+                return true;
+            }
+
+            if (validate(me)) {
+                try {
+                    me.writeRedo();
+                } catch (IOException e) {
+                    me.abort();
+                    releaseLocks(me);
+                    failure = e;
+                    return true;
+                }
+
+                if (me.commit()) {
+                    releaseLocks(me);
+
+                    if (stats != null) {
+                        stats.recordCommit();
+                    }
+                    MetricsRegistry.recordCommit((start != 0) ? System.nanoTime() - start : 0);
+                    return true;
+                }
+            }
+
+            me.abort();
+            releaseLocks(me);
+
+            if (stats != null) {
+                stats.recordAbort();
+            }
+            MetricsRegistry.recordAbort();
+
+            attempt++;
+            if (maxAttempts != UNLIMITED_ATTEMPTS && attempt >= maxAttempts) {
+                if (stats != null) {
+                    stats.recordFailure();
+                }
+                MetricsRegistry.recordFailure();
+                result = null;
+                return true;
+            }
+
+            if (stats != null) {
+                stats.recordRetry();
+            }
+            MetricsRegistry.recordRetry();
+
+            // the backoff doIt would park for, without holding up the thread
+            long backoff = BackoffContentionManager.backoff(MIN_RETRY_BACKOFF_NS, MAX_RETRY_BACKOFF_NS, attempt - 1);
+            CompletableFuture.delayedExecutor(backoff, TimeUnit.NANOSECONDS, DIRECT).execute(resume);
+            return false;
+        }
+    }
+
+    private static Boolean run(Callable<Boolean> transaction, int maxAttempts, TransactionStats stats, boolean readOnly) throws Exception {
+        Boolean result = null;
+        Transaction me = Transaction.getLocal();
+        long start = MetricsRegistry.isEnabled() ? System.nanoTime() : 0;
+
+        for (int attempt = 0; maxAttempts == UNLIMITED_ATTEMPTS || attempt < maxAttempts; attempt++) {
+            if (attempt > 0) {
+                if (stats != null) {
+                    stats.recordRetry();
+                }
+                MetricsRegistry.recordRetry();
+
+                // give the transaction that beat us time to finish before trying again
+                LockSupport.parkNanos(BackoffContentionManager.backoff(MIN_RETRY_BACKOFF_NS, MAX_RETRY_BACKOFF_NS, attempt - 1));
+            }
+
+            // retries inherit the first attempt's priority
+            if (attempt == 0 && readOnly) {
+                me.beginReadOnly();
+            }
+            else if (attempt == 0) {
+                me.begin();
+            }
+            else {
+                me.retry();
+            }
+
+            try {
+                result = transaction.call();
+            } catch (AbortedException e) {
+
+            } catch (Exception e) {
+                me.abort();
+                releaseLocks(me);
                 throw new Exception(e);
             }
 
-            if (onValidate.call()) {
+            if (validate(me)) {
+                // still holding the locks, so conflicting transactions are logged in commit order
+                try {
+                    me.writeRedo();
+                } catch (IOException e) {
+                    me.abort();
+                    releaseLocks(me);
+                    throw new Exception(e);
+                }
+
                 if (me.commit()) {
-                    onCommit.run();
+                    releaseLocks(me);
+
+                    if (stats != null) {
+                        stats.recordCommit();
+                    }
+                    MetricsRegistry.recordCommit((start != 0) ? System.nanoTime() - start : 0);
                     return result;
                 }
             }
 
             me.abort();
-            onAbort.run();
+            releaseLocks(me);
+
+            if (stats != null) {
+                stats.recordAbort();
+            }
+            MetricsRegistry.recordAbort();
+        }
 
-            return null;
+        if (stats != null) {
+            stats.recordFailure();
         }
+        MetricsRegistry.recordFailure();
+        return null;
     }
 
 }
@@ -0,0 +1,35 @@
+/**
+ * name: TimeoutContentionManager
+ * author: crs
+ * description: the original LockKey policy, waits up to a fixed timeout for a busy lock and
+ *              then aborts.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+import java.util.concurrent.TimeUnit;
+
+public class TimeoutContentionManager implements ContentionManager {
+
+    private static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    private final long timeoutNanos;
+
+    public TimeoutContentionManager() {
+        this(DEFAULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public TimeoutContentionManager(long timeout, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        return (attempt == 0) ? timeoutNanos : ABORT;
+    }
+}
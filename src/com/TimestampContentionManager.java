@@ -0,0 +1,60 @@
+/**
+ * name: TimestampContentionManager
+ * author: crs
+ * description: timestamp-priority policies, the older transaction always wins a conflict.
+ *              wait-die: an older transaction waits for a younger owner, a younger one aborts.
+ *              wound-wait: an older transaction wounds a younger owner and waits for it to release,
+ *              a younger one waits.
+ *              neither can deadlock since waits only go one way in timestamp order.
+ *
+ * extra info: waits happen in short slices so the manager can re-check the owner, which may change
+ *             while we wait.  the owner is only a hint when the lock is held shared by several
+ *             transactions, in which case we compare against the latest one to take it.
+ *             retries keep their first attempt's timestamp (see TThread.doIt), so an aborted
+ *             transaction eventually becomes the oldest and can't starve.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ *
+ */
+
+package com;
+
+public class TimestampContentionManager implements ContentionManager {
+
+    private static final long WAIT_SLICE_NS = 1000000;
+
+    // upper bound on any single wait, in case an owner never releases
+    private static final long MAX_WAIT_NS = 10000000000L;
+
+    private final boolean wound;
+
+    // wound is true for wound-wait, false for wait-die
+    public TimestampContentionManager(boolean wound) {
+        this.wound = wound;
+    }
+
+    public long resolve(Transaction me, AbstractLock lock, int attempt, long waitedNanos) {
+        if (waitedNanos > MAX_WAIT_NS) {
+            return ABORT;
+        }
+
+        Transaction owner = lock.getOwner();
+
+        // released in the meantime, or we're the owner waiting to upgrade
+        if (owner == null || owner == me) {
+            return WAIT_SLICE_NS;
+        }
+
+        if (me.isOlderThan(owner)) {
+            if (wound) {
+                owner.wound();
+            }
+            return WAIT_SLICE_NS;
+        }
+
+        return wound ? WAIT_SLICE_NS : ABORT;
+    }
+}
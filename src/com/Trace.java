@@ -0,0 +1,106 @@
+/**
+ * name: Trace
+ * author: crs
+ * description: a recorded workload loaded into memory, replayed by splitting it into one contiguous slice
+ *              per worker.  operations are held in two primitive arrays, 5 bytes each.  record() saves any
+ *              Workload to a trace file, worker by worker, so replaying it with the same number of workers
+ *              gives each worker the same operations it generated.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class Trace implements Workload {
+
+    private static final SkipListKey.OperationType[] TYPES = SkipListKey.OperationType.values();
+
+    private final String name;
+    private final byte[] types;
+    private final int[] keys;
+
+    private Trace(String name, byte[] types, int[] keys) {
+        this.name = name;
+        this.types = types;
+        this.keys = keys;
+    }
+
+    public static Trace load(String path) throws IOException {
+        byte[] types = new byte[1024];
+        int[] keys = new int[1024];
+        int count = 0;
+
+        try (TraceReader reader = new TraceReader(path)) {
+            while (reader.next()) {
+                if (count == keys.length) {
+                    types = Arrays.copyOf(types, count * 2);
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+
+                types[count] = (byte) reader.getType().ordinal();
+                keys[count] = reader.getKey();
+                count++;
+            }
+        }
+
+        return new Trace(path, Arrays.copyOf(types, count), Arrays.copyOf(keys, count));
+    }
+
+    // writes every operation of the workload, split between workers, to a trace file.  returns how many were written
+    public static long record(Workload workload, int workers, String path) throws IOException {
+        try (TraceWriter writer = new TraceWriter(path)) {
+            for (int worker = 0; worker < workers; worker++) {
+                OperationSource source = workload.newSource(worker, workers);
+
+                while (source.next()) {
+                    writer.write(source.getType(), source.getKey());
+                }
+            }
+
+            return writer.getCount();
+        }
+    }
+
+    public long size() {
+        return keys.length;
+    }
+
+    public OperationSource newSource(int worker, int workers) {
+        return new Replay((int) ((long) keys.length * worker / workers), (int) ((long) keys.length * (worker + 1) / workers));
+    }
+
+    public String toString() {
+        return String.format("trace: %s, operations: %d", name, keys.length);
+    }
+
+    private final class Replay implements OperationSource {
+        private final int end;
+        private int position;
+
+        Replay(int start, int end) {
+            this.position = start - 1;
+            this.end = end;
+        }
+
+        public boolean next() {
+            if (position + 1 >= end) {
+                return false;
+            }
+            position++;
+            return true;
+        }
+
+        public SkipListKey.OperationType getType() {
+            return TYPES[types[position]];
+        }
+
+        public int getKey() {
+            return keys[position];
+        }
+    }
+}
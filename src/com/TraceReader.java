@@ -0,0 +1,127 @@
+/**
+ * name: TraceReader
+ * author: crs
+ * description: streams the operations of a trace file written by TraceWriter, in order, without loading
+ *              the whole trace.  for splitting a trace between workers, load it into a Trace instead.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+public class TraceReader implements OperationSource, Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final SkipListKey.OperationType[] TYPES = SkipListKey.OperationType.values();
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private SkipListKey.OperationType type;
+    private int key;
+
+    public TraceReader(String path) throws IOException {
+        this(new FileInputStream(path));
+    }
+
+    public TraceReader(InputStream in) throws IOException {
+        this.in = in;
+
+        if (readInt() != TraceWriter.MAGIC) {
+            throw new IOException("not a trace file");
+        }
+
+        int version = readInt();
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("unsupported trace version " + version);
+        }
+    }
+
+    // io errors are rethrown unchecked, since OperationSource.next can't throw IOException
+    public boolean next() {
+        try {
+            int b = read();
+            if (b < 0) {
+                return false;
+            }
+
+            long record = 0;
+            int shift = 0;
+
+            while ((b & 0x80) != 0) {
+                record |= (long) (b & 0x7F) << shift;
+                shift += 7;
+
+                b = read();
+                if (b < 0 || shift >= 7 * TraceWriter.MAX_RECORD_BYTES) {
+                    throw new IOException("corrupt or truncated trace");
+                }
+            }
+            record |= (long) b << shift;
+
+            // the 2-bit type field has room for one more value than there are operation types
+            int ordinal = (int) (record & 3);
+            if (ordinal >= TYPES.length) {
+                throw new IOException("corrupt trace, operation type " + ordinal);
+            }
+
+            int zigzag = (int) (record >>> 2);
+            type = TYPES[ordinal];
+            key = (zigzag >>> 1) ^ -(zigzag & 1);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public SkipListKey.OperationType getType() {
+        return type;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int readInt() throws IOException {
+        int value = 0;
+
+        for (int i = 0; i < 4; i++) {
+            int b = read();
+            if (b < 0) {
+                throw new IOException("not a trace file");
+            }
+            value = (value << 8) | b;
+        }
+
+        return value;
+    }
+
+    // next byte, or -1 at the end of the file
+    private int read() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, BUFFER_SIZE);
+            position = 0;
+
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+
+        return buffer[position++] & 0xFF;
+    }
+}
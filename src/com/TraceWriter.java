@@ -0,0 +1,89 @@
+/**
+ * name: TraceWriter
+ * author: crs
+ * description: records set operations to a binary trace file, which a Trace or TraceReader can replay.
+ *              an application can record its real operations with it, or Trace.record can save a
+ *              whole Workload.
+ *
+ * extra info: the file starts with a magic number and a format version (two big-endian ints), followed
+ *             by one record per operation: the zigzag-encoded key shifted left by 2, or'd with the
+ *             operation type ordinal, written as an unsigned LEB128 varint.  keys under 2^19 take
+ *             3 bytes.  writes go through an in-memory buffer, so write() is cheap and the file is
+ *             only complete once close() returns.  write() is synchronized so several threads can
+ *             record into one trace.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class TraceWriter implements Closeable {
+
+    static final int MAGIC = 0x54535452;
+    static final int VERSION = 1;
+
+    // a record is at most 5 bytes for a 32 bit key, plus 2 bits of type
+    static final int MAX_RECORD_BYTES = 5;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private long count;
+
+    public TraceWriter(String path) throws IOException {
+        this(new FileOutputStream(path));
+    }
+
+    public TraceWriter(OutputStream out) throws IOException {
+        this.out = out;
+        writeInt(MAGIC);
+        writeInt(VERSION);
+    }
+
+    public synchronized void write(SkipListKey.OperationType type, int key) throws IOException {
+        if (position + MAX_RECORD_BYTES > BUFFER_SIZE) {
+            flushBuffer();
+        }
+
+        // zigzag so negative keys stay short, then make room for the type
+        long record = (((long) ((key << 1) ^ (key >> 31)) & 0xFFFFFFFFL) << 2) | type.ordinal();
+
+        while ((record & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((record & 0x7F) | 0x80);
+            record >>>= 7;
+        }
+        buffer[position++] = (byte) record;
+
+        count++;
+    }
+
+    // number of operations written so far
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+
+    private void writeInt(int value) throws IOException {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
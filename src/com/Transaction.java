@@ -27,93 +27,497 @@
  * - extension on abort to conditionally perform inverse operation to correctly mock onAbort handler
  * - static util methods to generate add, remove, contains, and noop callables for private use
  * - static util methods to generate operations and inverses for calling application
+ * - replaced the single operation / inverse pair with a per-transaction undo log.  boosted operations
+ *   record their inverse with logUndo() when they modify the base structure, and abort replays the
+ *   log in reverse.  this lets one TThread.doIt body run any number of operations as a single transaction.
+ * - removed getCallableInverse, inverses are now recorded by the boosted set itself
+ * - added getCallableSequence to run several operations in one transaction
+ * - added a start timestamp, a karma count of locks acquired, and a wounded flag, used by the
+ *   ContentionManager policies to pick which of two conflicting transactions gives way
+ * - abort counts the rollback and the inverses it replays in the MetricsRegistry
+ * - a read set of stripe versions recorded by optimistic reads, checked by validateReads before commit,
+ *   and a write set of the stripes the transaction is writing, released by endWrites
+ * - publishes the locks it holds and the lock it is waiting for, so other threads can build the waits-for
+ *   graph for deadlock detection.  wound reports whether it was the call that wounded the transaction
+ * - each thread reuses one Transaction for every transaction it runs, restarted by begin / retry, so the
+ *   lifecycle allocates nothing.  status and the wounded flag are packed in one int updated by CAS, and
+ *   the lock set is a LockSet owned by the transaction instead of a thread-local HashSet.  a stale owner
+ *   hint (see AbstractLock.getOwner) can now name its thread's next transaction, so a contention manager
+ *   acting on one can at worst wound a transaction that doesn't hold the lock, a spurious abort
+ * - a redo set of the changes made to durable sets, appended to their WriteAheadLogs by writeRedo
+ *   before the transaction commits
+ * - read-only transactions read a snapshot of the multi-version sets (see VersionStore) as of beginReadOnly.
+ *   transactions writing to those sets keep their pending versions, which commit and abort stamp
+ * - writeRedo prepares a record in each shard's log for transactions across the shards of a ShardedSet
+ * - asynchronous transactions, owned by a TThread.doItAsync task rather than a thread, never wait on a lock
+ * - removed the Transaction(previous) constructor, retry is the only way to start a retry
  *
  */
 
 package com;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
 
 public class Transaction {
     public enum Status {ABORTED, ACTIVE, COMMITTED};
 
+    private static final Status[] STATUSES = Status.values();
+
+    // state holds the Status ordinal in its low bits and the wounded flag above them
+    private static final int STATUS_MASK = 3;
+    private static final int WOUNDED = 4;
+    private static final int ACTIVE = Status.ACTIVE.ordinal();
+
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(Transaction.class, "state", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     // @TODO: identify why having a default COMMITTED transaction is necessary according to the book
     public static Transaction COMMITTED = new Transaction(Status.COMMITTED);
 
-    // these drive aborting / committing and correctly invoking the inverse operation
-    private final AtomicReference<Status> status;
-    private final AtomicReference<Boolean> useInverseOperation;
-    private final Callable<Boolean> operation;
-    private final Callable<Boolean> inverse;
+    // these drive aborting / committing and correctly invoking the inverse operations.
+    // the undo log holds the inverse of every operation that changed the base structure,
+    // in the order the operations were applied
+    private volatile int state;
+    private final ArrayList<Callable<Boolean>> undoLog = new ArrayList<>();
+
+    // contention management state.  smaller timestamps are older transactions, karma counts
+    // the abstract locks acquired, and the wounded flag in state is set by another transaction that
+    // wants us to give up our locks.  only the owning thread ever aborts the transaction
+    private volatile long timestamp;
+    private volatile int karma;
+
+    // the abstract locks held, released by the commit / abort handlers
+    private final LockSet lockSet = new LockSet();
+
+    // the lock the transaction is blocked on, null while it isn't waiting
+    private volatile AbstractLock waitingFor;
+
+    // optimistic reads, the version of each stripe read and how many writes the transaction had logged
+    // at the time, so validateReads can tell its own later writes to the stripe from other transactions'.
+    // allocated on the first optimistic read / versioned write
+    private LockKey[] readOwners;
+    private int[] readStripes;
+    private long[] readVersions;
+    private int[] readWriteCounts;
+    private int readCount;
+
+    // stripes written, in the order their exclusive locks were acquired
+    private LockKey[] writeOwners;
+    private int[] writeStripes;
+    private int writeCount;
+
+    // successful adds / removes on sets with a WriteAheadLog, in the order they were applied, and the log of
+    // each.  allocated on the first one
+    private WriteAheadLog[] redoLogs;
+    private SkipListKey.OperationType[] redoTypes;
+    private int[] redoKeys;
+    private int redoCount;
+
+    // the distinct logs of the redo set and the positions of their records, filled by writeRedo
+    private WriteAheadLog[] participants;
+    private long[] participantPositions;
+
+    // read-only transactions read multi-version sets as of snapshot, VersionStore.NO_SNAPSHOT otherwise.
+    // registeredReader is set while VersionStore counts the transaction among its active readers
+    private boolean readOnly;
+    private volatile long snapshot = VersionStore.NO_SNAPSHOT;
+    private boolean registeredReader;
+
+    // run by TThread.doItAsync, which binds it to whichever thread runs each attempt.  a busy lock throws
+    // LockBusyException at it instead of blocking the thread
+    private final boolean async;
+
+    // chains of multi-version sets the transaction pushed a pending version onto, stamped when it ends
+    private VersionStore.Chain[] versionChains;
+    private int versionCount;
 
     // declare and intialize ThreadLocal variables to be statically available
-    // to the currently executing thread.  see the getters / setters for access to internal vars
+    // to the currently executing thread.  see the getters / setters for access to internal vars.
+    // the thread's transaction is restarted by begin / retry for every transaction it runs
     static ThreadLocal<Transaction> localTransaction = new ThreadLocal<Transaction>(){
         protected Transaction initialValue(){
             return new Transaction(Status.COMMITTED);
         }
     };
 
-    static ThreadLocal<HashSet<Lock>> localLockSet = new ThreadLocal<HashSet<Lock>>(){
-        protected HashSet<Lock> initialValue(){
-            return new HashSet<>();
-        }
-    };
 
-
-    public Transaction(Callable<Boolean> operation, Callable<Boolean> inverse) {
-        status = new AtomicReference<>(Status.ACTIVE);
-        useInverseOperation = new AtomicReference<>(false);
-        this.operation = operation;
-        this.inverse = inverse;
+    public Transaction() {
+        this(Status.ACTIVE);
     }
 
+    // an asynchronous transaction, started by begin
+    Transaction(boolean async) {
+        this(Status.COMMITTED, async);
+    }
 
     private Transaction(Transaction.Status myStatus){
-        status = new AtomicReference<Status>(myStatus);
-        useInverseOperation = new AtomicReference<>(false);
-        this.operation = Transaction.getNoopOperation();
-        this.inverse = Transaction.getNoopOperation();
+        this(myStatus, false);
     }
 
+    private Transaction(Transaction.Status myStatus, boolean async){
+        timestamp = System.nanoTime();
+        state = myStatus.ordinal();
+        this.async = async;
+    }
+
+    // starts a new transaction on this one once it has committed or aborted.  only called by the owning
+    // thread, after the commit / abort handlers released its locks
+    void begin() {
+        reset();
+        readOnly = false;
+        timestamp = System.nanoTime();
+        karma = 0;
+        state = ACTIVE;
+    }
+
+    // begin, for a read-only transaction reading a snapshot taken now
+    void beginReadOnly() {
+        begin();
+        readOnly = true;
+        VersionStore.beginSnapshot(this);
+    }
+
+    // starts a retry of this aborted transaction.  it keeps its timestamp and karma, so the contention
+    // managers see it as the same, increasingly important, transaction
+    void retry() {
+        reset();
+        state = ACTIVE;
+
+        if (readOnly) {
+            VersionStore.beginSnapshot(this);
+        }
+    }
+
+    // the lock set is left alone, the handlers empty it.  locks taken outside any transaction stay in it
+    // and are released along with the next transaction's
+    private void reset() {
+        undoLog.clear();
+        readCount = 0;
+        writeCount = 0;
+        redoCount = 0;
+        versionCount = 0;
+        waitingFor = null;
+    }
 
     public Status getStatus() {
-        return status.get();
+        return STATUSES[state & STATUS_MASK];
+    }
+
+    // records the inverse of an operation that modified the base structure.  the caller must
+    // still hold the abstract lock for the affected element, which is guaranteed as locks are
+    // only released once the transaction commits or aborts
+    public void logUndo(Callable<Boolean> inverse) {
+        undoLog.add(inverse);
+    }
+
+    public int getUndoLogSize() {
+        return undoLog.size();
+    }
+
+    // records that an optimistic read of stripe of owner saw version
+    void logRead(LockKey owner, int stripe, long version) {
+        if (readOwners == null) {
+            readOwners = new LockKey[8];
+            readStripes = new int[8];
+            readVersions = new long[8];
+            readWriteCounts = new int[8];
+        }
+        else if (readCount == readOwners.length) {
+            readOwners = Arrays.copyOf(readOwners, readCount * 2);
+            readStripes = Arrays.copyOf(readStripes, readCount * 2);
+            readVersions = Arrays.copyOf(readVersions, readCount * 2);
+            readWriteCounts = Arrays.copyOf(readWriteCounts, readCount * 2);
+        }
+
+        readOwners[readCount] = owner;
+        readStripes[readCount] = stripe;
+        readVersions[readCount] = version;
+        readWriteCounts[readCount] = writeCount;
+        readCount++;
+    }
+
+    // records that the transaction began writing stripe of owner, ended by endWrites
+    void logWrite(LockKey owner, int stripe) {
+        if (writeOwners == null) {
+            writeOwners = new LockKey[8];
+            writeStripes = new int[8];
+        }
+        else if (writeCount == writeOwners.length) {
+            writeOwners = Arrays.copyOf(writeOwners, writeCount * 2);
+            writeStripes = Arrays.copyOf(writeStripes, writeCount * 2);
+        }
+
+        writeOwners[writeCount] = owner;
+        writeStripes[writeCount] = stripe;
+        writeCount++;
+    }
+
+    // true if no other transaction has written a stripe since we read it optimistically.  our own writes
+    // to the stripe after the read are expected, those before it made the read lock instead
+    public boolean validateReads() {
+        for (int i = 0; i < readCount; i++) {
+            LockKey owner = readOwners[i];
+            int stripe = readStripes[i];
+            int ownWrites = 0;
+
+            for (int j = readWriteCounts[i]; j < writeCount; j++) {
+                if (writeOwners[j] == owner && writeStripes[j] == stripe) {
+                    ownWrites++;
+                }
+            }
+
+            if (!owner.validate(stripe, readVersions[i], ownWrites)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // ends every write in the write set, called by the commit / abort handlers before the locks are released
+    void endWrites() {
+        for (int i = 0; i < writeCount; i++) {
+            writeOwners[i].endWrite(writeStripes[i]);
+        }
+        writeCount = 0;
+    }
+
+    // records that the transaction changed key of the set logged to log by an add or remove (type)
+    void logRedo(WriteAheadLog log, SkipListKey.OperationType type, int key) {
+        if (redoLogs == null) {
+            redoLogs = new WriteAheadLog[8];
+            redoTypes = new SkipListKey.OperationType[8];
+            redoKeys = new int[8];
+        }
+        else if (redoCount == redoLogs.length) {
+            redoLogs = Arrays.copyOf(redoLogs, redoCount * 2);
+            redoTypes = Arrays.copyOf(redoTypes, redoCount * 2);
+            redoKeys = Arrays.copyOf(redoKeys, redoCount * 2);
+        }
+
+        redoLogs[redoCount] = log;
+        redoTypes[redoCount] = type;
+        redoKeys[redoCount] = key;
+        redoCount++;
+    }
+
+    // appends one record of the redo set to each log it touches, then waits for each as its sync policy
+    // requires.  called once the transaction validated, while it still holds its locks, so the records of
+    // conflicting transactions are appended in the order they commit.  a transaction touching several logs
+    // of one WriteAheadLog.Group prepares a record in each of them instead, see WriteAheadLog
+    void writeRedo() throws IOException {
+        if (redoCount == 0) {
+            return;
+        }
+
+        // the first entry for each log appends that log's whole record
+        int count = 0;
+        boolean grouped = redoLogs[0].getGroup() != null;
+
+        for (int i = 0; i < redoCount; i++) {
+            WriteAheadLog log = redoLogs[i];
+
+            boolean first = true;
+            for (int j = 0; j < count && first; j++) {
+                first = participants[j] != log;
+            }
+
+            if (first) {
+                if (participants == null) {
+                    participants = new WriteAheadLog[4];
+                    participantPositions = new long[4];
+                }
+                else if (count == participants.length) {
+                    participants = Arrays.copyOf(participants, count * 2);
+                    participantPositions = Arrays.copyOf(participantPositions, count * 2);
+                }
+
+                grouped &= log.getGroup() == redoLogs[0].getGroup();
+                participants[count++] = log;
+            }
+        }
+
+        // the single-log fast path writes a plain record, so does a transaction across groups
+        long id = (count > 1 && grouped) ? redoLogs[0].getGroup().nextTransactionId() : 0;
+        int prepared = (id == 0) ? 0 : count;
+
+        // every record is appended before waiting for any, so another committer flushing one log can take
+        // ours along while we wait on another
+        for (int i = 0; i < count; i++) {
+            participantPositions[i] = participants[i].append(redoLogs, redoTypes, redoKeys, redoCount, id, prepared);
+        }
+
+        for (int i = 0; i < count; i++) {
+            participants[i].await(participantPositions[i]);
+            participants[i] = null;
+        }
+    }
+
+    // true for a transaction run by TThread.doItAsync
+    public boolean isAsync() {
+        return async;
+    }
+
+    // true for a transaction started by TThread.doItReadOnly
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    long getSnapshot() {
+        return snapshot;
+    }
+
+    void setSnapshot(long snapshot) {
+        this.snapshot = snapshot;
     }
 
-    public Boolean useInverse() {
-        return useInverseOperation.get();
+    boolean isRegisteredReader() {
+        return registeredReader;
     }
 
-    public boolean setUseInverse() {
-        return useInverseOperation.compareAndSet(false, true);
+    void setRegisteredReader() {
+        registeredReader = true;
+    }
+
+    void clearRegisteredReader() {
+        registeredReader = false;
+    }
+
+    // records that the transaction pushed a pending version onto chain
+    void logVersion(VersionStore.Chain chain) {
+        if (versionChains == null) {
+            versionChains = new VersionStore.Chain[8];
+        }
+        else if (versionCount == versionChains.length) {
+            versionChains = Arrays.copyOf(versionChains, versionCount * 2);
+        }
+
+        versionChains[versionCount++] = chain;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // true if this transaction started before other
+    public boolean isOlderThan(Transaction other) {
+        return timestamp - other.timestamp < 0;
+    }
+
+    public int getKarma() {
+        return karma;
+    }
+
+    // only called by the owning thread
+    public void addKarma(int amount) {
+        karma += amount;
+    }
+
+    public boolean isWounded() {
+        return (state & WOUNDED) != 0;
+    }
+
+    // asks the transaction to abort.  it notices the next time it waits on a lock or validates.
+    // returns false if it had already been wounded or is no longer active
+    public boolean wound() {
+        while (true) {
+            int current = state;
+
+            if ((current & (STATUS_MASK | WOUNDED)) != ACTIVE) {
+                return false;
+            }
+
+            if (STATE.compareAndSet(this, current, current | WOUNDED)) {
+                return true;
+            }
+        }
+    }
+
+    // moves an active transaction to status, false if it already committed or aborted
+    private boolean finish(Status status) {
+        while (true) {
+            int current = state;
+
+            if ((current & STATUS_MASK) != ACTIVE) {
+                return false;
+            }
+
+            if (STATE.compareAndSet(this, current, (current & WOUNDED) | status.ordinal())) {
+                return true;
+            }
+        }
+    }
+
+    public LockSet getLocks() {
+        return lockSet;
+    }
+
+    // whether the transaction holds lock, may be called from any thread
+    public boolean holds(AbstractLock lock) {
+        return lockSet.holds(lock);
+    }
+
+    // number of locks acquired so far, including any released early
+    public int getHeldCount() {
+        return lockSet.size();
+    }
+
+    public AbstractLock getWaitingFor() {
+        return waitingFor;
+    }
+
+    void setWaitingFor(AbstractLock lock) {
+        waitingFor = lock;
     }
 
     public boolean commit() {
-        return status.compareAndSet(Status.ACTIVE, Status.COMMITTED);
+        if (finish(Status.COMMITTED)) {
+            // nothing will ever need to be undone
+            undoLog.clear();
+
+            VersionStore.stamp(versionChains, versionCount, false);
+            endSnapshot();
+            return true;
+        }
+
+        return false;
     }
 
-    // modified abort to correctly perform inverse operations on completed (but not committed) operations.
-    // because we're working with a set, our operations are naturally 1 operation long, so only
-    // 0 or 1 operations need the inversees invoked (indicated by the useInverse flag we're maintaining)
+    // replays the undo log in reverse so each inverse sees the state its operation left behind.
+    // we still hold every abstract lock the transaction acquired, so no other transaction can
+    // observe the intermediate states
     public boolean abort() {
-        if (status.compareAndSet(Status.ACTIVE, Status.ABORTED)) {
-            // if we aborted, may need to call inverse operation
-            if (Transaction.getLocal().useInverse()) {
+        if (finish(Status.ABORTED)) {
+            MetricsRegistry.recordRollback(undoLog.size());
+
+            for (int i = undoLog.size() - 1; i >= 0; i--) {
                 try {
-                    this.inverse.call();
+                    undoLog.get(i).call();
                 } catch (Exception e) {
-                    // don't need to take action here.  inverse operation will retry while aborted,
-                    // if the list was affected (which it must be if useInverse is set), and we still have the
-                    // abstract lock for the affected element, we will be able to successfully run the inverse
-                    String logMsg = String.format("Exception calling inverse in abort: %s", e.getStackTrace().toString());
-                    CustomLogger.log(CustomLogger.Category.EXCEPTION, logMsg);
+                    // don't need to take action here.  inverses operate directly on the base structure
+                    // while we still hold the abstract lock for the affected element, so they can't conflict
+                    CustomLogger.log(CustomLogger.Category.EXCEPTION, "Exception calling inverse in abort: %s", e);
                 }
             }
 
+            undoLog.clear();
+
+            // the keys are back to their old state, their versions say so too
+            VersionStore.stamp(versionChains, versionCount, true);
+            endSnapshot();
+
             // successfully aborted
             return true;
         }
@@ -123,6 +527,13 @@ public class Transaction {
         }
     }
 
+    // lets multi-version sets collect the versions the snapshot kept alive
+    private void endSnapshot() {
+        if (snapshot != VersionStore.NO_SNAPSHOT) {
+            VersionStore.endSnapshot(this);
+        }
+    }
+
     public static Transaction getLocal() {
         return localTransaction.get();
     }
@@ -131,8 +542,8 @@ public class Transaction {
         localTransaction.set(transaction);
     }
 
-    public static HashSet<Lock> getLockSet() {
-        return localLockSet.get();
+    public static LockSet getLockSet() {
+        return getLocal().lockSet;
     }
 
     private static Callable<Boolean> getAddOperation(SkipListKey.OperationType operationType, final int operationValue, final SkipListKey transactionalSet) {
@@ -195,28 +606,22 @@ public class Transaction {
         return operation;
     }
 
-    // generates inverse operation based on operationType, for operationValue into transactionalSet.
-    // the input parameters must be taken as final, as they are
-    // used in the generated Callable (all variables used locally in callable must be final).
-    public static Callable<Boolean> getCallableInverse(SkipListKey.OperationType operationType, final int operationValue, final SkipListKey transactionalSet) {
-        Callable<Boolean> operation;
+    // wraps several operations into a single callable so they run inside one transaction.
+    // stops at the first AbortedException, which is rethrown so TThread.doIt can roll back.
+    // returns true only if every operation returned true
+    public static Callable<Boolean> getCallableSequence(final Callable<Boolean>[] operations) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                boolean result = true;
 
-        switch (operationType) {
-            case ADD:
-                operation = getRemoveOperation(operationType, operationValue, transactionalSet);
-                break;
-            case REMOVE:
-                operation = getAddOperation(operationType, operationValue, transactionalSet);
-                break;
-            case CONTAINS:
-                operation = getNoopOperation();
-                break;
-            default:
-                operation = getNoopOperation();
-                break;
-        }
+                for (Callable<Boolean> operation : operations) {
+                    result &= operation.call();
+                }
 
-        return operation;
+                return result;
+            }
+        };
     }
 
 
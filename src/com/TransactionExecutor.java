@@ -0,0 +1,114 @@
+/**
+ * name: TransactionExecutor
+ * author: crs
+ * description: runs transactions on a fixed number of workers.  each worker runs a WorkerTask, given its
+ *              index, that streams its own share of the transactions through TThread.doIt, so no Runnable
+ *              or queue offer is paid per transaction.
+ *
+ * extra info: workers come from a ThreadFactory, newThreadFactory(ThreadMode.VIRTUAL) returns one that
+ *             creates virtual threads, so thousands of workers (clients) can block on abstract locks
+ *             without each holding a platform thread.  virtual threads are only available on JDK 21+,
+ *             so they are looked up reflectively and the factory falls back to platform threads on
+ *             older JVMs.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - run(WorkerTask) hands each worker its index instead of a batch of transactions, so workers can
+ *   stream their own share of a Workload
+ * - removed run(Callable[], ...), every caller streams its transactions through a WorkerTask
+ *
+ */
+
+package com;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class TransactionExecutor {
+
+    // what kind of thread each worker runs on
+    public enum ThreadMode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private final int workers;
+    private final ThreadFactory threadFactory;
+
+    public TransactionExecutor(int workers) {
+        this(workers, newThreadFactory(ThreadMode.PLATFORM));
+    }
+
+    public TransactionExecutor(int workers, ThreadFactory threadFactory) {
+        this.workers = workers;
+        this.threadFactory = threadFactory;
+    }
+
+    // the work of a single worker
+    public interface WorkerTask {
+        // worker is the index of the worker running it, from 0 to getWorkers() - 1
+        void run(int worker) throws Exception;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    // runs task once on every worker and returns once all are done.  a task that throws is logged
+    public void run(final WorkerTask task) throws InterruptedException {
+        Thread[] threads = new Thread[workers];
+
+        for (int i = 0; i < workers; i++) {
+            final int worker = i;
+
+            threads[i] = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(worker);
+                    } catch (Exception e) {
+                        CustomLogger.log(CustomLogger.Category.EXCEPTION, "Worker %d failed: %s", worker, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // whether this JVM can run workers on virtual threads
+    public static boolean isVirtualThreadSupported() {
+        return getVirtualThreadFactory() != null;
+    }
+
+    // a factory for the given mode.  VIRTUAL falls back to platform threads if this JVM has no virtual threads
+    public static ThreadFactory newThreadFactory(ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL) {
+            ThreadFactory factory = getVirtualThreadFactory();
+
+            if (factory != null) {
+                return factory;
+            }
+
+            CustomLogger.log(CustomLogger.Category.WARNING, "Virtual threads are not available on Java %s, using platform threads",
+                    System.getProperty("java.version"));
+        }
+
+        return Executors.defaultThreadFactory();
+    }
+
+    // Thread.ofVirtual().factory(), or null before JDK 21
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
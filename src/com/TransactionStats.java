@@ -0,0 +1,67 @@
+/**
+ * name: TransactionStats
+ * author: crs
+ * description: counts transaction outcomes for a benchmark run.  counters are LongAdders so
+ *              the worker threads don't contend on a shared cache line.
+ *              commits and failures count transactions, aborts and retries count attempts:
+ *              every transaction ends in exactly one commit or failure, after any number of
+ *              aborted attempts.
+ *
+ * Edit History:
+ * - Created by crs on 4/22/17.
+ *
+ * Updates:
+ * - counts retries and final failures separately from aborted attempts
+ *
+ */
+
+package com;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class TransactionStats {
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public void recordCommit() {
+        commits.increment();
+    }
+
+    public void recordAbort() {
+        aborts.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    // the transaction aborted on its final attempt and was given up on
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    // fraction of attempts that aborted
+    public double getAbortRate() {
+        long attempts = getCommits() + getAborts();
+        return (attempts == 0) ? 0 : (double) getAborts() / attempts;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * name: UniformKeyDistribution
+ * author: crs
+ * description: every key between min and max (inclusive) is equally likely.  the distribution the
+ *              drivers have always used.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.SplittableRandom;
+
+public class UniformKeyDistribution implements KeyDistribution {
+
+    private final int min;
+    private final int max;
+
+    public UniformKeyDistribution(int min, int max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    public int nextKey(SplittableRandom random) {
+        return random.nextInt(min, max + 1);
+    }
+
+    public String toString() {
+        return String.format("uniform[%d, %d]", min, max);
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * name: VersionStore
+ * author: crs
+ * description: committed versions of the keys of a multi-version SkipListKey (LockKey.ReadMode.SNAPSHOT), so
+ *              read-only transactions (TThread.doItReadOnly) can read the set as of the moment they started
+ *              without taking any abstract lock.  writers are unaffected: they still lock, and still update the
+ *              base set in place.  a key only has versions here while a writer is changing it or a reader may
+ *              still need its older state, every other key's committed state is simply what the base set holds.
+ *
+ * acknowledgements: snapshot isolation over in-place updates with per-key version chains, in the style of
+ *                   Bernstein, Hadzilacos and Goodman, "Concurrency Control and Recovery in Database Systems".
+ *
+ * extra info: commit versions come from one global clock shared by every store, so a read-only transaction
+ *             sees one snapshot across all the multi-version sets it reads.  a transaction that changed keys
+ *             takes the next version under a global lock when it commits, stamps its pending versions with it
+ *             and only then publishes it; a snapshot is the last published version, so it never includes
+ *             part of a commit.  an abort stamps its versions too, with the state the key went back to, which
+ *             keeps the version numbers of a chain increasing and lets it be collected like any other.
+ *
+ *             a writer holding a key's exclusive lock first pushes a pending version onto the key's chain,
+ *             creating the chain (with the key's committed state as its oldest version) if there is none, and
+ *             only then changes the base set.  a reader reads the base set first and the chain second: if the
+ *             key has a chain it answers from the chain, otherwise nobody has changed the key since before
+ *             the reader started, and the base set's answer stands.
+ *
+ *             garbage collection: a version older than the newest one every active snapshot can see is never
+ *             read again and is unlinked, and a chain whose newest version every active snapshot can see is
+ *             removed.  a commit collects the chains of its own keys, and every SWEEP_INTERVAL versions it
+ *             stamps one commit sweeps the whole store for chains left behind by readers that have since finished.
+ *             a chain is removed by marking its head dead first, so a writer racing the removal starts a new
+ *             chain instead of pushing onto the removed one.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - a reader is deregistered when its snapshot ends, so collection only scans the readers that are active
+ *
+ */
+
+package com;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VersionStore {
+
+    // the version of a change not committed yet, newer than every snapshot
+    static final long PENDING = Long.MAX_VALUE;
+
+    // the snapshot of a transaction that isn't reading one
+    static final long NO_SNAPSHOT = Long.MAX_VALUE;
+
+    // versions stamped between sweeps of the whole store
+    static final int SWEEP_INTERVAL = 1024;
+
+    private static final VarHandle HEAD;
+
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(Chain.class, "head", Version.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // the last version handed out, and the last one whose changes are all stamped.  clock is only
+    // touched under commitLock
+    private static final Object commitLock = new Object();
+    private static long clock;
+    private static volatile long published;
+
+    // the transactions reading a snapshot right now.  registered by beginSnapshot, removed by endSnapshot
+    private static final Set<Transaction> readers = ConcurrentHashMap.newKeySet();
+
+    // one state of a key, newest first.  present and version are written before the version is published
+    static final class Version {
+        volatile long version;
+        volatile boolean present;
+        volatile Version older;
+        final boolean dead;
+
+        Version(long version, boolean present, Version older, boolean dead) {
+            this.version = version;
+            this.present = present;
+            this.older = older;
+            this.dead = dead;
+        }
+    }
+
+    // the versions of one key
+    static final class Chain {
+        final int key;
+        final VersionStore store;
+        volatile Version head;
+
+        Chain(int key, VersionStore store, boolean present) {
+            this.key = key;
+            this.store = store;
+            // committed before anything still tracked, visible to every snapshot
+            this.head = new Version(0, present, null, false);
+        }
+
+        // whether the key was in the set as of snapshot
+        boolean presentAt(long snapshot) {
+            for (Version v = head; v != null; v = v.older) {
+                if (v.version <= snapshot) {
+                    return v.present;
+                }
+            }
+
+            // collection never unlinks the version an active snapshot needs
+            throw new IllegalStateException("no version of " + key + " as of " + snapshot);
+        }
+    }
+
+    private final ConcurrentSkipListMap<Integer, Chain> chains = new ConcurrentSkipListMap<>();
+    private final AtomicInteger commits = new AtomicInteger();
+
+    // number of keys with versions
+    public int size() {
+        return chains.size();
+    }
+
+    // the last published commit version
+    public static long getPublishedVersion() {
+        return published;
+    }
+
+    // takes a snapshot for transaction and registers it, so no version it can see is collected.  the snapshot
+    // is published again after it is registered, so a collection that missed the registration used a
+    // version no newer than the snapshot
+    static long beginSnapshot(Transaction transaction) {
+        if (!transaction.isRegisteredReader()) {
+            transaction.setRegisteredReader();
+            readers.add(transaction);
+        }
+
+        while (true) {
+            long snapshot = published;
+            transaction.setSnapshot(snapshot);
+
+            if (published == snapshot) {
+                return snapshot;
+            }
+        }
+    }
+
+    // deregisters transaction once it no longer reads its snapshot
+    static void endSnapshot(Transaction transaction) {
+        transaction.setSnapshot(NO_SNAPSHOT);
+
+        if (transaction.isRegisteredReader()) {
+            transaction.clearRegisteredReader();
+            readers.remove(transaction);
+        }
+    }
+
+    // the oldest snapshot an active or future reader can have
+    static long oldestSnapshot() {
+        long oldest = published;
+
+        for (Transaction reader : readers) {
+            oldest = Math.min(oldest, reader.getSnapshot());
+        }
+
+        return oldest;
+    }
+
+    // called by a writer holding key's exclusive lock, before it changes key in the base set from present to
+    // next.  returns the key's chain if this pushed the transaction's pending version onto it, or null if
+    // the transaction had already changed the key and its pending version was updated instead
+    Chain beforeWrite(int key, boolean present, boolean next) {
+        while (true) {
+            Chain chain = chains.get(key);
+
+            if (chain == null) {
+                chain = new Chain(key, this, present);
+                Chain raced = chains.putIfAbsent(key, chain);
+                if (raced != null) {
+                    chain = raced;
+                }
+            }
+
+            Version head = chain.head;
+
+            // our own earlier change, no one else pushes while we hold the lock
+            if (head.version == PENDING) {
+                head.present = next;
+                return null;
+            }
+
+            if (head.dead) {
+                chains.remove(key, chain);
+                continue;
+            }
+
+            if (HEAD.compareAndSet(chain, head, new Version(PENDING, next, head, false))) {
+                return chain;
+            }
+        }
+    }
+
+    // whether key is in list as of snapshot
+    boolean contains(IntSet list, int key, long snapshot) {
+        boolean present = list.contains(key);
+        Chain chain = chains.get(key);
+
+        return (chain == null) ? present : chain.presentAt(snapshot);
+    }
+
+    // the keys of list in [low, high] as of snapshot, in ascending order
+    int[] range(IntSet list, int low, int high, long snapshot) {
+        int[] current = list.range(low, high, Integer.MAX_VALUE);
+        ConcurrentNavigableMap<Integer, Chain> changed = chains.subMap(low, true, high, true);
+
+        if (changed.isEmpty()) {
+            return current;
+        }
+
+        // merge the base set's keys with the changed ones, which answer for themselves
+        int[] keys = new int[current.length + changed.size()];
+        int count = 0;
+        int i = 0;
+
+        for (Map.Entry<Integer, Chain> entry : changed.entrySet()) {
+            int key = entry.getKey();
+
+            while (i < current.length && current[i] < key) {
+                keys = append(keys, count++, current[i++]);
+            }
+            if (i < current.length && current[i] == key) {
+                i++;
+            }
+
+            if (entry.getValue().presentAt(snapshot)) {
+                keys = append(keys, count++, key);
+            }
+        }
+
+        while (i < current.length) {
+            keys = append(keys, count++, current[i++]);
+        }
+
+        return (count == keys.length) ? keys : Arrays.copyOf(keys, count);
+    }
+
+    // the smallest key of list >= v as of snapshot, or IntSet.NONE
+    long ceiling(IntSet list, int v, long snapshot) {
+        // the smallest key in the base set that is in the snapshot
+        long found = list.ceiling(v);
+        while (found != IntSet.NONE) {
+            Chain chain = chains.get((int) found);
+
+            if (chain == null || chain.presentAt(snapshot)) {
+                break;
+            }
+
+            found = (found == Integer.MAX_VALUE) ? IntSet.NONE : list.ceiling((int) found + 1);
+        }
+
+        // a smaller one removed from the base set since the snapshot
+        for (Chain chain : chains.tailMap(v, true).values()) {
+            if (found != IntSet.NONE && chain.key >= found) {
+                break;
+            }
+
+            if (chain.presentAt(snapshot)) {
+                return chain.key;
+            }
+        }
+
+        return found;
+    }
+
+    // stamps the transaction's pending versions with the next commit version and publishes it.  after an
+    // abort each key is back to its previous state, and its version says so.  then collects the chains.
+    // called while the transaction still holds its locks
+    static void stamp(Chain[] pending, int count, boolean aborted) {
+        if (count == 0) {
+            return;
+        }
+
+        synchronized (commitLock) {
+            long version = ++clock;
+
+            for (int i = 0; i < count; i++) {
+                Version head = pending[i].head;
+
+                if (aborted) {
+                    head.present = head.older.present;
+                }
+                head.version = version;
+            }
+
+            published = version;
+        }
+
+        long oldest = oldestSnapshot();
+
+        for (int i = 0; i < count; i++) {
+            Chain chain = pending[i];
+            chain.store.collect(chain, oldest);
+
+            if (chain.store.commits.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                chain.store.sweep();
+            }
+        }
+    }
+
+    // collects every chain in the store
+    public void sweep() {
+        long oldest = oldestSnapshot();
+
+        for (Iterator<Chain> i = chains.values().iterator(); i.hasNext(); ) {
+            collect(i.next(), oldest);
+        }
+    }
+
+    // removes chain if every snapshot from oldest on sees its newest version, otherwise unlinks the versions
+    // older than the newest one oldest sees
+    private void collect(Chain chain, long oldest) {
+        Version head = chain.head;
+
+        if (head.dead || head.version == PENDING) {
+            return;
+        }
+
+        if (head.version <= oldest) {
+            if (HEAD.compareAndSet(chain, head, new Version(head.version, head.present, null, true))) {
+                chains.remove(chain.key, chain);
+            }
+            return;
+        }
+
+        for (Version v = head; v != null; v = v.older) {
+            if (v.version <= oldest) {
+                v.older = null;
+                return;
+            }
+        }
+    }
+
+    private static int[] append(int[] keys, int count, int key) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(16, count * 2));
+        }
+        keys[count] = key;
+        return keys;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * name: Workload
+ * author: crs
+ * description: a fixed number of set operations to split between workers.  each worker reads its share
+ *              through its own OperationSource, so operations are produced as they are run instead of
+ *              being materialized up front.  GeneratedWorkload generates them randomly from an operation
+ *              mix and a KeyDistribution, a Trace replays recorded ones.
+ *
+ * extra info: setting the workload.trace system property to a trace file makes the drivers replay that
+ *             trace instead of generating their workloads, see replayOr.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+public interface Workload {
+
+    String TRACE_PROPERTY = "workload.trace";
+
+    // total number of operations across every worker's source
+    long size();
+
+    // the share of operations for worker (0 based) out of workers.  every worker's share is disjoint
+    // and together they cover the whole workload
+    OperationSource newSource(int worker, int workers);
+
+    // the trace named by the workload.trace system property if it is set, otherwise generated
+    static Workload replayOr(Workload generated) {
+        String path = System.getProperty(TRACE_PROPERTY);
+
+        if (path == null) {
+            return generated;
+        }
+
+        try {
+            return Trace.load(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not load trace " + path, e);
+        }
+    }
+}
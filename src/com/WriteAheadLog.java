@@ -0,0 +1,766 @@
+/**
+ * name: WriteAheadLog
+ * author: crs
+ * description: makes a SkipListKey durable.  every committed transaction that changed the set appends one
+ *              record of its successful adds and removes to the log, through a FileChannel, before it
+ *              releases its locks, and a set created on an existing log first replays it.  how long commit
+ *              waits for its record is set by the SyncPolicy.
+ *
+ * extra info: the file starts with a magic number and a format version (two big-endian ints), followed by
+ *             one record per transaction: the record's length, its entry count, one (operation type
+ *             ordinal byte, key int) pair per entry and a CRC32 of the count and entries.  a record is
+ *             only replayed if it is complete and its checksum matches; recovering the log (replay, or
+ *             joining a Group) truncates it after the last good record, dropping whatever a crash left half
+ *             written.  opening it only reads the file header, so a replay from a Checkpoint's Mark reads
+ *             the records after the mark and nothing before it: a restart costs the records since the last
+ *             checkpoint, not the log's whole history.  the mark's checksum, that of the record it follows,
+ *             tells a mark of this log from a position that falls inside a record or belongs to another log.
+ *
+ *             group commit: committers only copy their record into a shared buffer under a short lock.
+ *             writing the buffer out (and forcing it) is done by whichever waiting committer gets the
+ *             flush lock first, for every record appended so far, so while one force is in progress the
+ *             next batch of commits piles up behind it and is made durable by a single force too.
+ *             records reach the file in the order they were appended, and a transaction appends while it
+ *             still holds its locks, so two transactions that touched the same key are logged in the order
+ *             they committed.
+ *
+ *             after an io error the log fails every later commit, since what reached the disk is unknown.
+ *
+ *             cross-shard commit: the shards of a durable ShardedSet have a log each, joined in a Group.  a
+ *             transaction that changes keys of several of them writes a prepared record to each, tagged with
+ *             a transaction id unique in the group and the number of logs it wrote to, and waits for all of
+ *             them (phase one).  it is committed once every one of them is as safe as its log's policy
+ *             promises, and then releases its locks (phase two, nothing more is written).  recovery joins the
+ *             logs again: a prepared record is replayed only if the group's logs hold all of the
+ *             transaction's records, so a crash between the logs undoes it everywhere.  under EVERY_COMMIT
+ *             nothing that committed is dropped; the other policies can lose the tail of each log.
+ *             transactions spanning logs of different groups (or none) still write a plain record to each,
+ *             atomic per log only.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ * Updates:
+ * - format version 2: prepared records of cross-shard transactions, and Group to recover them.  version 1
+ *   logs are still read
+ * - followers (see ReplicationPrimary) can wait for records to become shippable and read them back
+ * - opening no longer scans the log, replay does, and a replay from a Mark starts reading there
+ * - a Group is formed with Group.join, which says at the call site that every log is attached to it
+ *
+ */
+
+package com;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog implements Closeable {
+
+    // when a commit returns relative to its record reaching the disk
+    public enum SyncPolicy {
+        // commit returns once its record is forced to the disk, nothing committed is lost
+        EVERY_COMMIT,
+        // commit returns once its record is written to the file, a background thread forces the file every
+        // interval.  a crash of the process loses nothing, a crash of the machine up to one interval
+        INTERVAL,
+        // commit returns once its record is written to the file, which is only forced on close
+        NONE
+    }
+
+    static final int MAGIC = 0x5457414C;
+    static final int VERSION = 2;
+    static final int FILE_HEADER_BYTES = 8;
+
+    // record length and entry count in front, checksum behind
+    static final int RECORD_OVERHEAD = 12;
+    static final int ENTRY_BYTES = 5;
+
+    // set in the entry count of a prepared record, which has its transaction id (long) and number of
+    // participant logs (int) before the entries
+    static final int PREPARED = 0x80000000;
+    static final int PREPARED_BYTES = 12;
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private static final SkipListKey.OperationType[] TYPES = SkipListKey.OperationType.values();
+
+    private final FileChannel channel;
+    private final SyncPolicy syncPolicy;
+    private final long intervalNanos;
+
+    // records appended but not yet handed to a flush, and the log position after them
+    private final Object appendLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appended;
+    private final CRC32 checksum = new CRC32();
+
+    // held by the committer writing out the buffer.  spare is the buffer it hands back in exchange
+    private final Object flushLock = new Object();
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    // log positions everything before which is written to the file / forced to the disk
+    private volatile long written;
+    private volatile long forced;
+
+    // checksum of the last record appended, under appendLock
+    private int lastChecksum;
+
+    // good records found by the last scan, and the checksum of the last of them
+    private long scanned;
+    private int scannedChecksum;
+
+    // set once the end of the log is known, by create or recover.  nothing is appended before
+    private volatile boolean recovered;
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+    private boolean replayed;
+
+    // the group the log was joined to, null if none
+    private volatile Group group;
+
+    // threads waiting in awaitShippable, woken by every flush
+    private final Object shippable = new Object();
+    private volatile int followers;
+
+    private final Thread syncer;
+
+    // records appended, and calls to force
+    private final LongAdder records = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    // opens the log at path, creating it if needed, forcing every commit
+    public WriteAheadLog(Path path) throws IOException {
+        this(path, SyncPolicy.EVERY_COMMIT, 0, TimeUnit.MILLISECONDS);
+    }
+
+    // opens the log at path, creating it if needed.  interval is only used by SyncPolicy.INTERVAL
+    public WriteAheadLog(Path path, SyncPolicy syncPolicy, long interval, TimeUnit unit) throws IOException {
+        if (syncPolicy == SyncPolicy.INTERVAL && interval <= 0) {
+            throw new IllegalArgumentException("sync interval must be positive, not " + interval);
+        }
+
+        this.syncPolicy = syncPolicy;
+        this.intervalNanos = unit.toNanos(interval);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(header, 0);
+                channel.force(true);
+                recover(FILE_HEADER_BYTES, 0);
+            }
+            else {
+                // the records are read by replay, or by the group the log joins
+                readHeader(ByteBuffer.allocate(FILE_HEADER_BYTES));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            syncer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    syncForever();
+                }
+            }, "WriteAheadLog-syncer");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+        else {
+            syncer = null;
+        }
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    Group getGroup() {
+        return group;
+    }
+
+    // a position between two records of a log, and the checksum of the record before it (0 at the start), so
+    // a replay can start reading there.  an unchecked mark only has the position, a replay from it reads the
+    // whole log to find it
+    static final class Mark {
+        final long position;
+        final int checksum;
+        final boolean checked;
+
+        Mark(long position, int checksum) {
+            this(position, checksum, true);
+        }
+
+        private Mark(long position, int checksum, boolean checked) {
+            this.position = position;
+            this.checksum = checksum;
+            this.checked = checked;
+        }
+
+        static Mark unchecked(long position) {
+            return new Mark(position, 0, false);
+        }
+    }
+
+    // the end of the log, including records not written out yet
+    Mark mark() {
+        synchronized (appendLock) {
+            return new Mark(appended, lastChecksum);
+        }
+    }
+
+    // applies every record in the log to set, in order, and returns the number of records.  called once, by
+    // the durable set being created on the log, before any transaction commits to it
+    synchronized long replay(IntSet set) throws IOException {
+        return replay(set, Mark.unchecked(FILE_HEADER_BYTES));
+    }
+
+    // replay, of the records from the mark on.  a Checkpoint already holds the ones before it
+    synchronized long replay(IntSet set, Mark from) throws IOException {
+        if (replayed) {
+            throw new IllegalStateException("write-ahead log was already replayed, each log belongs to one set");
+        }
+        replayed = true;
+
+        long start = System.nanoTime();
+        long end;
+
+        if (from.checked && from.position > FILE_HEADER_BYTES) {
+            // the record before the mark must end there with the mark's checksum
+            ByteBuffer checksum = ByteBuffer.allocate(4);
+            if (from.position > channel.size()) {
+                throw new IOException("write-ahead log ends at " + channel.size() + ", before the checkpoint's position " + from.position);
+            }
+
+            readFully(checksum, from.position - 4, 4);
+            if (checksum.getInt(0) != from.checksum) {
+                throw new IOException("log position " + from.position + " doesn't end a record of this write-ahead log, the checkpoint belongs to another log");
+            }
+
+            scannedChecksum = from.checksum;
+            end = scan(set, from.position, from.position, null);
+        }
+        else {
+            scannedChecksum = 0;
+            end = scan(set, FILE_HEADER_BYTES, from.position, null);
+        }
+
+        if (end < from.position) {
+            throw new IOException("write-ahead log ends at " + end + ", before the checkpoint's position " + from.position);
+        }
+
+        recover(end, scannedChecksum);
+
+        CustomLogger.log(CustomLogger.Category.EVENT, "Replayed %d write-ahead log records in %d ms", scanned,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        return scanned;
+    }
+
+    // drops a record a crash cut short, new records go right after the last good one, which ends at end
+    private void recover(long end, int checksum) throws IOException {
+        if (end < channel.size()) {
+            CustomLogger.log(CustomLogger.Category.EVENT, "Truncating %d bytes of incomplete records from the write-ahead log",
+                    channel.size() - end);
+            channel.truncate(end);
+            channel.force(true);
+        }
+
+        synchronized (appendLock) {
+            appended = end;
+            lastChecksum = checksum;
+        }
+        written = end;
+        forced = end;
+        recovered = true;
+    }
+
+    // appends a record of the entries i with owners[i] == this, returning the log position after it.  the
+    // record is not in the file yet, see await
+    long append(WriteAheadLog[] owners, SkipListKey.OperationType[] types, int[] keys, int count) throws IOException {
+        return append(owners, types, keys, count, 0, 0);
+    }
+
+    // append, of a prepared record of transaction id if participants isn't 0
+    long append(WriteAheadLog[] owners, SkipListKey.OperationType[] types, int[] keys, int count, long id,
+                int participants) throws IOException {
+        checkUsable();
+
+        if (!recovered) {
+            throw new IllegalStateException("write-ahead log must be replayed before it is written to");
+        }
+
+        int entries = 0;
+        for (int i = 0; i < count; i++) {
+            if (owners[i] == this) {
+                entries++;
+            }
+        }
+
+        int length = RECORD_OVERHEAD + ((participants == 0) ? 0 : PREPARED_BYTES) + entries * ENTRY_BYTES;
+
+        synchronized (appendLock) {
+            if (pending.remaining() < length) {
+                int capacity = pending.capacity();
+                while (capacity - pending.position() < length) {
+                    capacity *= 2;
+                }
+
+                ByteBuffer grown = ByteBuffer.allocate(capacity);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+
+            int start = pending.position();
+            pending.putInt(length - 4);
+
+            if (participants == 0) {
+                pending.putInt(entries);
+            }
+            else {
+                pending.putInt(entries | PREPARED).putLong(id).putInt(participants);
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (owners[i] == this) {
+                    pending.put((byte) types[i].ordinal()).putInt(keys[i]);
+                }
+            }
+
+            // covers everything between the length and the checksum
+            checksum.reset();
+            checksum.update(pending.array(), start + 4, length - 8);
+            lastChecksum = (int) checksum.getValue();
+            pending.putInt(lastChecksum);
+
+            appended += length;
+            records.increment();
+            return appended;
+        }
+    }
+
+    // waits until the record ending at position is as safe as the sync policy promises
+    void await(long position) throws IOException {
+        boolean force = syncPolicy == SyncPolicy.EVERY_COMMIT;
+
+        while ((force ? forced : written) < position) {
+            synchronized (flushLock) {
+                // a flush we waited for may have covered us
+                if ((force ? forced : written) >= position) {
+                    break;
+                }
+
+                checkUsable();
+                flush(force);
+            }
+        }
+    }
+
+    // the log position up to which records can be shipped to replicas: everything written to the file, or
+    // under EVERY_COMMIT everything forced, so a replica never applies a commit the primary could lose
+    long getShippable() {
+        return (syncPolicy == SyncPolicy.EVERY_COMMIT) ? forced : written;
+    }
+
+    // waits up to timeout for records after position to become shippable, returns getShippable()
+    long awaitShippable(long position, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+
+        synchronized (shippable) {
+            followers++;
+
+            try {
+                long now;
+                while (getShippable() <= position && !closed && (now = System.nanoTime()) < deadline) {
+                    TimeUnit.NANOSECONDS.timedWait(shippable, deadline - now);
+                }
+            } finally {
+                followers--;
+            }
+        }
+
+        return getShippable();
+    }
+
+    // reads the log from position into buffer, as much as fits, and returns the number of bytes read
+    int read(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - start);
+            if (read < 0) {
+                break;
+            }
+        }
+
+        return buffer.position() - start;
+    }
+
+    // the length of the plain record at offset in buffer, or 0 if the buffer doesn't hold all of it yet
+    static int recordLength(ByteBuffer buffer, int offset) throws IOException {
+        if (offset + 4 > buffer.limit()) {
+            return 0;
+        }
+
+        int length = buffer.getInt(offset) + 4;
+        if (length < RECORD_OVERHEAD) {
+            throw new IOException("corrupt write-ahead log record of " + length + " bytes");
+        }
+        if (offset + length > buffer.limit()) {
+            return 0;
+        }
+
+        int entries = buffer.getInt(offset + 4);
+        if ((entries & PREPARED) != 0) {
+            throw new IOException("cross-shard write-ahead log records can't be shipped");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + offset + 4, length - 8);
+
+        if (length - RECORD_OVERHEAD != (long) entries * ENTRY_BYTES || buffer.getInt(offset + length - 4) != (int) crc.getValue()) {
+            throw new IOException("corrupt write-ahead log record");
+        }
+
+        return length;
+    }
+
+    // writes out everything appended, and forces the file to the disk
+    public void sync() throws IOException {
+        synchronized (flushLock) {
+            checkUsable();
+            flush(true);
+        }
+    }
+
+    // records appended since the log was opened
+    public long getRecordCount() {
+        return records.sum();
+    }
+
+    // times the file was forced since the log was opened.  records / syncs is the average group commit size
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+
+    // size of the log, including records not written out yet
+    public long getSize() {
+        synchronized (appendLock) {
+            return appended;
+        }
+    }
+
+    // forces everything appended to the disk and closes the file
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                if (failure == null) {
+                    flush(true);
+                }
+            } finally {
+                closed = true;
+                channel.close();
+            }
+        }
+
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+
+        synchronized (shippable) {
+            shippable.notifyAll();
+        }
+    }
+
+    // hands the pending buffer to the caller, who must hold the flush lock, and writes it out
+    private void flush(boolean force) throws IOException {
+        ByteBuffer batch;
+        long end;
+
+        synchronized (appendLock) {
+            batch = pending;
+            pending = spare;
+            end = appended;
+        }
+
+        try {
+            batch.flip();
+            writeFully(batch, written);
+            written = end;
+
+            if (force && forced < end) {
+                channel.force(false);
+                forced = end;
+                syncs.increment();
+            }
+
+            if (followers > 0) {
+                synchronized (shippable) {
+                    shippable.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            batch.clear();
+            spare = batch;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("write-ahead log failed earlier, its contents are unknown", failure);
+        }
+
+        if (closed) {
+            throw new IOException("write-ahead log is closed");
+        }
+    }
+
+    // the background thread of SyncPolicy.INTERVAL.  commits write their own records, this only forces them
+    private void syncForever() {
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (flushLock) {
+                if (closed || failure != null) {
+                    return;
+                }
+
+                try {
+                    flush(true);
+                } catch (IOException e) {
+                    CustomLogger.log(CustomLogger.Category.EXCEPTION, "Write-ahead log sync failed: %s", e);
+                    return;
+                }
+            }
+        }
+    }
+
+    // checks the file header
+    private void readHeader(ByteBuffer buffer) throws IOException {
+        readFully(buffer, 0, Math.min(channel.size(), FILE_HEADER_BYTES));
+        if (buffer.remaining() < FILE_HEADER_BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("not a write-ahead log");
+        }
+
+        int version = buffer.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported write-ahead log version " + version);
+        }
+    }
+
+    // reads the log from position start, which must begin a record, applying each good record from position
+    // from on to set if it isn't null, and returns the position after the last good record.  counts the
+    // records applied in scanned, and leaves the checksum of the last good record in scannedChecksum (as it
+    // was if there is none).  a prepared record is only applied if the log's group says its transaction
+    // committed.  with a joining group, counts every prepared record into it instead
+    private long scan(IntSet set, long start, long from, Group joining) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long size = channel.size();
+
+        readHeader(buffer);
+
+        long position = start;
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        buffer.limit(0);
+        scanned = 0;
+
+        while (position + 4 <= size) {
+            if (offset + 4 > buffer.limit()) {
+                readFully(buffer, position, Math.min(size - position, buffer.capacity()));
+                offset = 0;
+            }
+
+            // a torn length runs past the end of the file
+            int length = buffer.getInt(offset) + 4;
+            if (length < RECORD_OVERHEAD || length > size - position) {
+                break;
+            }
+
+            // the record must be whole in the buffer, one larger than the buffer gets a buffer of its own
+            if (offset + length > buffer.limit()) {
+                if (length > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(length);
+                }
+                readFully(buffer, position, Math.min(size - position, buffer.capacity()));
+                offset = 0;
+            }
+
+            int entries = buffer.getInt(offset + 4);
+            boolean prepared = (entries & PREPARED) != 0;
+            int body = length - RECORD_OVERHEAD - (prepared ? PREPARED_BYTES : 0);
+            entries &= ~PREPARED;
+
+            crc.reset();
+            crc.update(buffer.array(), offset + 4, length - 8);
+
+            if (body < 0 || body != (long) entries * ENTRY_BYTES || buffer.getInt(offset + length - 4) != (int) crc.getValue()) {
+                break;
+            }
+            scannedChecksum = (int) crc.getValue();
+
+            if (position < from && position + length > from) {
+                throw new IOException("log position " + from + " is inside a write-ahead log record, it belongs to another log");
+            }
+
+            int first = offset + 8;
+            if (prepared) {
+                first += PREPARED_BYTES;
+            }
+
+            if (joining != null && prepared) {
+                joining.count(buffer.getLong(offset + 8), buffer.getInt(offset + 16));
+            }
+
+            if (position >= from && set != null && prepared && group == null) {
+                throw new IOException("write-ahead log holds cross-shard transactions, open it with its ShardedSet");
+            }
+
+            // a transaction some other log of the group lost is dropped
+            if (position >= from && (set == null || !prepared || group.isCommitted(buffer.getLong(offset + 8)))) {
+                if (set != null) {
+                    apply(set, buffer, first, entries);
+                }
+                scanned++;
+            }
+            offset += length;
+            position += length;
+        }
+
+        return position;
+    }
+
+    private static void apply(IntSet set, ByteBuffer buffer, int offset, int entries) throws IOException {
+        for (int i = 0; i < entries; i++, offset += ENTRY_BYTES) {
+            int type = buffer.get(offset);
+            int key = buffer.getInt(offset + 1);
+
+            if (type == SkipListKey.OperationType.ADD.ordinal()) {
+                set.add(key);
+            }
+            else if (type == SkipListKey.OperationType.REMOVE.ordinal()) {
+                set.remove(key);
+            }
+            else {
+                throw new IOException("corrupt write-ahead log, " + (type < TYPES.length ? TYPES[type] : type) + " entry");
+            }
+        }
+    }
+
+    // the logs of the shards of one ShardedSet.  joining them scans every log for prepared records, so each
+    // one's replay knows which cross-shard transactions all their logs hold, and hands out transaction ids
+    // after the largest one found
+    static final class Group {
+
+        // prepared records found of each transaction, and how many logs it wrote to
+        private final Map<Long, int[]> prepared = new HashMap<>();
+        private final AtomicLong ids;
+
+        // scans the logs and attaches the group to every one of them, before any of them is replayed
+        static Group join(WriteAheadLog[] logs) throws IOException {
+            return new Group(logs);
+        }
+
+        private Group(WriteAheadLog[] logs) throws IOException {
+            long largest = 0;
+
+            for (int i = 0; i < logs.length; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (logs[j] == logs[i]) {
+                        throw new IllegalArgumentException("a write-ahead log can only hold one shard");
+                    }
+                }
+            }
+
+            for (WriteAheadLog log : logs) {
+                synchronized (log) {
+                    if (log.group != null || log.replayed) {
+                        throw new IllegalStateException("write-ahead log already belongs to a set");
+                    }
+                    log.scannedChecksum = 0;
+                    log.recover(log.scan(null, FILE_HEADER_BYTES, 0, this), log.scannedChecksum);
+                }
+            }
+
+            for (Long id : prepared.keySet()) {
+                largest = Math.max(largest, id);
+            }
+            ids = new AtomicLong(largest);
+
+            for (WriteAheadLog log : logs) {
+                log.group = this;
+            }
+        }
+
+        long nextTransactionId() {
+            return ids.incrementAndGet();
+        }
+
+        private void count(long id, int participants) {
+            int[] found = prepared.get(id);
+            if (found == null) {
+                prepared.put(id, new int[] {1, participants});
+            }
+            else {
+                found[0]++;
+            }
+        }
+
+        // whether every log transaction id wrote to holds its record
+        boolean isCommitted(long id) {
+            int[] found = prepared.get(id);
+            return found != null && found[0] == found[1];
+        }
+    }
+
+    // reads count bytes from position into buffer, flipped for reading
+    private void readFully(ByteBuffer buffer, long position, long count) throws IOException {
+        buffer.clear();
+        buffer.limit((int) count);
+
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+
+        buffer.flip();
+    }
+}
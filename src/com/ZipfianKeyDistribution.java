@@ -0,0 +1,85 @@
+/**
+ * name: ZipfianKeyDistribution
+ * author: crs
+ * description: keys between min and max (inclusive) with Zipfian popularity, the key of rank i (min has
+ *              rank 0) is drawn with probability proportional to 1 / (i + 1)^theta.  with the usual
+ *              theta of 0.99 a handful of keys get most of the operations, like real access patterns.
+ *
+ * acknowledgements: the constant time sampling algorithm is from Gray et al., "Quickly Generating
+ *                   Billion-Record Synthetic Databases", as used by YCSB
+ *
+ * extra info: the normalization constant zeta(n, theta) is summed once at construction, O(n), after
+ *             that each key takes a single random draw and a pow.  popular keys are the lowest ones,
+ *             which are next to each other in an ordered set.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.SplittableRandom;
+
+public class ZipfianKeyDistribution implements KeyDistribution {
+
+    public static final double DEFAULT_THETA = 0.99;
+
+    private final int min;
+    private final int max;
+    private final double theta;
+
+    private final long items;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+
+    public ZipfianKeyDistribution(int min, int max) {
+        this(min, max, DEFAULT_THETA);
+    }
+
+    public ZipfianKeyDistribution(int min, int max, double theta) {
+        if (theta <= 0 || theta == 1) {
+            throw new IllegalArgumentException("theta must be positive and not 1: " + theta);
+        }
+
+        this.min = min;
+        this.max = max;
+        this.theta = theta;
+
+        items = (long) max - min + 1;
+        zetan = zeta(items, theta);
+        alpha = 1 / (1 - theta);
+        eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        halfPowTheta = 1 + Math.pow(0.5, theta);
+    }
+
+    public int nextKey(SplittableRandom random) {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+
+        if (uz < 1) {
+            return min;
+        }
+
+        if (uz < halfPowTheta) {
+            return min + 1;
+        }
+
+        long rank = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return (int) (min + Math.min(rank, items - 1));
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    public String toString() {
+        return String.format("zipfian[%d, %d, theta: %.2f]", min, max, theta);
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * name: AsyncTransactionTest
+ * author: crs
+ * description: asynchronous transactions (TThread.doItAsync).  one that meets a busy key gives its thread back
+ *              and resumes once the key is released, failures complete the future exceptionally after rolling
+ *              back, and concurrent async and blocking transactions keep the set consistent.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.add;
+import static com.TestTransactions.transfer;
+
+@Timeout(60)
+public class AsyncTransactionTest {
+
+    private ExecutorService pool;
+
+    @BeforeEach
+    public void start() {
+        // one thread: an async transaction that blocked it would stall every other one
+        pool = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void busyKeyDoesNotHoldTheThread() throws Exception {
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Exception[] failure = new Exception[1];
+
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TThread.doIt(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            set.add(1);
+                            holding.countDown();
+                            release.await();
+                            return true;
+                        }
+                    });
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        holder.start();
+        holding.await();
+
+        CompletableFuture<Boolean> waiting = TThread.doItAsync(add(set, 1), pool, TThread.DEFAULT_MAX_ATTEMPTS, null);
+
+        // the pool's only thread is free for transactions on other keys
+        assertTrue(TThread.doItAsync(add(set, 2), pool, TThread.DEFAULT_MAX_ATTEMPTS, null).get(10, TimeUnit.SECONDS));
+        assertFalse(waiting.isDone());
+
+        release.countDown();
+        holder.join();
+
+        // resumed after the holder committed, and sees its add
+        assertFalse(waiting.get(10, TimeUnit.SECONDS));
+        assertNull(failure[0]);
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void failureRollsBackAndCompletesExceptionally() throws Exception {
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+
+        final CompletableFuture<Boolean> failed = TThread.doItAsync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                set.add(5);
+                throw new IllegalStateException("fails after adding");
+            }
+        }, pool, TThread.DEFAULT_MAX_ATTEMPTS, null);
+
+        CompletionException e = assertThrows(CompletionException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                failed.join();
+            }
+        });
+        assertInstanceOf(IllegalStateException.class, rootCause(e));
+        assertEquals(0, set.size());
+        assertEquals(0, set.getLockTableSize());
+    }
+
+    @Test
+    public void asyncAndBlockingTransactionsConserveTokens() throws Exception {
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        final int keys = 16;
+        for (int i = 0; i < keys; i += 2) {
+            TThread.doIt(add(set, i));
+        }
+
+        final Exception[] failure = new Exception[1];
+        Thread blocking = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        TThread.doIt(transfer(set, random.nextInt(keys), random.nextInt(keys)), TThread.UNLIMITED_ATTEMPTS, null);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        blocking.start();
+
+        Random random = new Random(2);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+        for (int i = 0; i < 5000; i++) {
+            futures.add(TThread.doItAsync(transfer(set, random.nextInt(keys), random.nextInt(keys)), pool, TThread.UNLIMITED_ATTEMPTS, null));
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        blocking.join();
+
+        assertNull(failure[0]);
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.get());
+        }
+        assertEquals(keys / 2, set.size());
+        assertEquals(0, set.getLockTableSize());
+    }
+
+    @Test
+    public void singleOperationFutures() throws Exception {
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.BOXED);
+
+        assertTrue(set.addAsync(3).get(10, TimeUnit.SECONDS));
+        assertFalse(set.addAsync(3).get(10, TimeUnit.SECONDS));
+        assertTrue(set.containsAsync(3).get(10, TimeUnit.SECONDS));
+        assertTrue(set.removeAsync(3).get(10, TimeUnit.SECONDS));
+        assertFalse(set.containsAsync(3).get(10, TimeUnit.SECONDS));
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while (e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+}
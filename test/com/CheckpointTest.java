@@ -0,0 +1,250 @@
+/**
+ * name: CheckpointTest
+ * author: crs
+ * description: checkpoints decode to the keys they were written from in every encoding, reject corrupt files
+ *              and logs of other sets, and restore durable sets from the checkpoint plus the log after it,
+ *              also when writers were running while the checkpoint was taken.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.add;
+import static com.TestTransactions.keys;
+import static com.TestTransactions.remove;
+
+@Timeout(60)
+public class CheckpointTest {
+
+    @TempDir
+    Path dir;
+
+    @ParameterizedTest
+    @EnumSource(Checkpoint.Encoding.class)
+    public void decodesWhatWasEncoded(Checkpoint.Encoding encoding) throws Exception {
+        // extremes, negatives, runs of neighbours, and gaps wide enough for every width
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        Random random = new Random(7);
+        expected.add(Integer.MIN_VALUE);
+        expected.add(Integer.MAX_VALUE);
+        expected.add(-1);
+        expected.add(0);
+        for (int i = 0; i < 5000; i++) {
+            expected.add(100000 + i);
+        }
+        for (int i = 0; i < 5000; i++) {
+            expected.add(random.nextInt());
+        }
+        for (int i = 0; i < 500; i++) {
+            expected.add(random.nextInt(1 << 20) * 64);
+        }
+
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        for (int key : expected) {
+            set.list.add(key);
+        }
+
+        Path path = dir.resolve("set.ckpt");
+        assertEquals(expected.size(), Checkpoint.write(set, path, encoding));
+
+        SkipListKey restored = Checkpoint.restore(path, SkipListKey.Implementation.BOXED);
+        assertArrayEquals(toArray(expected), keys(restored));
+    }
+
+    @ParameterizedTest
+    @EnumSource(Checkpoint.Encoding.class)
+    public void decodesEmptySet(Checkpoint.Encoding encoding) throws Exception {
+        Path path = dir.resolve("empty.ckpt");
+        assertEquals(0, Checkpoint.write(new SkipListKey(SkipListKey.Implementation.PRIMITIVE), path, encoding));
+        assertEquals(0, Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE).size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(Checkpoint.Encoding.class)
+    public void rejectsCorruptCheckpoint(Checkpoint.Encoding encoding) throws Exception {
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        for (int i = 0; i < 1000; i++) {
+            set.list.add(i * 3);
+        }
+
+        final Path path = dir.resolve("set.ckpt");
+        Checkpoint.write(set, path, encoding);
+        flipByte(path, Checkpoint.HEADER_BYTES + 10);
+
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws Throwable {
+                Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE);
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(Checkpoint.Encoding.class)
+    public void restoresDurableSetFromCheckpointAndLogTail(Checkpoint.Encoding encoding) throws Exception {
+        Path logPath = dir.resolve("set.wal");
+        Path path = dir.resolve("set.ckpt");
+
+        WriteAheadLog log = new WriteAheadLog(logPath);
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < 200; i++) {
+            TThread.doIt(add(set, i));
+        }
+        Checkpoint.write(set, path, encoding);
+
+        // after the checkpoint, only in the log
+        for (int i = 0; i < 50; i++) {
+            TThread.doIt(remove(set, i * 2));
+        }
+        TThread.doIt(add(set, -7));
+        int[] expected = keys(set);
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(logPath);
+        SkipListKey restored = Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE, reopened);
+        assertArrayEquals(expected, keys(restored));
+
+        // the restored set keeps appending to the log
+        TThread.doIt(add(restored, 5000));
+        reopened.close();
+
+        // the records before the checkpoint aren't read again: damaging the first one changes nothing
+        flipByte(logPath, WriteAheadLog.FILE_HEADER_BYTES + 6);
+
+        WriteAheadLog again = new WriteAheadLog(logPath);
+        SkipListKey last = Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE, again);
+        assertEquals(expected.length + 1, last.size());
+        assertTrue(last.list.contains(5000));
+        again.close();
+    }
+
+    @Test
+    public void rejectsLogOfAnotherSet() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("set.wal"));
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < 100; i++) {
+            TThread.doIt(add(set, i));
+        }
+        final Path path = dir.resolve("set.ckpt");
+        Checkpoint.write(set, path);
+        log.close();
+
+        WriteAheadLog otherLog = new WriteAheadLog(dir.resolve("other.wal"));
+        SkipListKey other = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, otherLog);
+        for (int i = 0; i < 500; i++) {
+            TThread.doIt(add(other, -i));
+        }
+        otherLog.close();
+
+        final WriteAheadLog wrong = new WriteAheadLog(dir.resolve("other.wal"));
+        try {
+            assertThrows(IOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE, wrong);
+                }
+            });
+        } finally {
+            wrong.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(value = LockKey.ReadMode.class, names = {"LOCKED", "SNAPSHOT"})
+    public void checkpointTakenUnderLoadRestoresFinalState(LockKey.ReadMode readMode) throws Exception {
+        Path logPath = dir.resolve("set.wal");
+        Path path = dir.resolve("set.ckpt");
+
+        WriteAheadLog log = new WriteAheadLog(logPath, WriteAheadLog.SyncPolicy.NONE, 0, TimeUnit.MILLISECONDS);
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, new DeadlockDetectingContentionManager(), readMode, log);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Exception[] failure = new Exception[1];
+
+        Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; t++) {
+            final Random random = new Random(t);
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            final int key = random.nextInt(4096);
+                            final int other = random.nextInt(4096);
+                            TThread.doIt(new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                    set.add(other);
+                                    return set.add(key) || set.remove(key);
+                                }
+                            }, TThread.UNLIMITED_ATTEMPTS, null);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            writers[t].start();
+        }
+
+        Thread.sleep(100);
+        Checkpoint.write(set, path);
+        Thread.sleep(100);
+        stop.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertNull(failure[0]);
+
+        int[] expected = keys(set);
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(logPath);
+        assertArrayEquals(expected, keys(Checkpoint.restore(path, SkipListKey.Implementation.PRIMITIVE, reopened)));
+        reopened.close();
+    }
+
+    private static void flipByte(Path path, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0));
+            b.rewind();
+            channel.write(b, position);
+        }
+    }
+
+    private static int[] toArray(TreeSet<Integer> keys) {
+        int[] array = new int[keys.size()];
+        int i = 0;
+        for (int key : keys) {
+            array[i++] = key;
+        }
+        return array;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * name: IntSetTest
+ * author: crs
+ * description: the base sets behind SkipListKey, IntSkipListSet and BoxedIntSet, checked against a TreeSet for
+ *              every IntSet operation, and under concurrent updates to disjoint keys.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+@Timeout(60)
+public class IntSetTest {
+
+    private static IntSet newSet(SkipListKey.Implementation implementation) {
+        return (implementation == SkipListKey.Implementation.PRIMITIVE) ? new IntSkipListSet() : new BoxedIntSet();
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void matchesTreeSet(SkipListKey.Implementation implementation) {
+        IntSet set = newSet(implementation);
+        TreeSet<Integer> model = new TreeSet<Integer>();
+        Random random = new Random(11);
+
+        for (int i = 0; i < 20000; i++) {
+            // a narrow range so operations hit present keys, and now and then the extremes
+            int key = (random.nextInt(50) == 0) ? (random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE) : random.nextInt(512) - 256;
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(model.add(key), set.add(key));
+                    break;
+                case 1:
+                    assertEquals(model.remove(key), set.remove(key));
+                    break;
+                case 2:
+                    assertEquals(model.contains(key), set.contains(key));
+                    break;
+                default:
+                    Integer ceiling = model.ceiling(key);
+                    assertEquals((ceiling == null) ? IntSet.NONE : ceiling, set.ceiling(key));
+                    break;
+            }
+        }
+
+        assertEquals(model.size(), set.size());
+        assertArrayEquals(toArray(model), set.range(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertArrayEquals(toArray(model.subSet(-100, true, 100, true)), set.range(-100, 100, Integer.MAX_VALUE));
+
+        int[] limited = set.range(-100, 100, 5);
+        assertArrayEquals(Arrays.copyOf(toArray(model.subSet(-100, true, 100, true)), limited.length), limited);
+        assertEquals(Math.min(5, model.subSet(-100, true, 100, true).size()), limited.length);
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void batchesMatchSingleOperations(SkipListKey.Implementation implementation) {
+        IntSet set = newSet(implementation);
+        TreeSet<Integer> model = new TreeSet<Integer>();
+        Random random = new Random(5);
+
+        for (int round = 0; round < 200; round++) {
+            int[] keys = new int[1 + random.nextInt(64)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(1000);
+            }
+            Arrays.sort(keys);
+
+            SkipListKey.OperationType[] ops = new SkipListKey.OperationType[keys.length];
+            boolean[] expected = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ops[i] = SkipListKey.OperationType.values()[random.nextInt(3)];
+                expected[i] = (ops[i] == SkipListKey.OperationType.ADD) ? model.add(keys[i])
+                        : (ops[i] == SkipListKey.OperationType.REMOVE) ? model.remove(keys[i]) : model.contains(keys[i]);
+            }
+
+            boolean[] results = new boolean[keys.length];
+            set.applySorted(keys, ops, results);
+            assertArrayEquals(expected, results);
+        }
+
+        assertArrayEquals(toArray(model), set.range(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void bulkLoadsSortedKeys(SkipListKey.Implementation implementation) {
+        IntSet set = newSet(implementation);
+        int[] keys = new int[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * 7 - 30000;
+        }
+
+        set.addAllSorted(Arrays.stream(keys).iterator());
+
+        assertEquals(keys.length, set.size());
+        assertArrayEquals(keys, set.range(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(-29993, set.ceiling(-29999));
+
+        // still an ordinary set afterwards
+        set.add(1);
+        set.remove(-30000);
+        assertEquals(-29993, set.ceiling(Integer.MIN_VALUE));
+        assertEquals(1, set.ceiling(0));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void concurrentUpdatesOfDisjointKeys(SkipListKey.Implementation implementation) throws Exception {
+        final IntSet set = newSet(implementation);
+        final Throwable[] failure = new Throwable[1];
+
+        // thread t owns the keys k with k % threads == t: adds them all, removes the odd multiples
+        final int threads = 4;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int owner = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = owner; k < 20000; k += threads) {
+                            if (!set.add(k)) {
+                                throw new AssertionError("lost add of " + k);
+                            }
+                        }
+                        for (int k = owner; k < 20000; k += threads) {
+                            if ((k / threads) % 2 == 1 && !set.remove(k)) {
+                                throw new AssertionError("lost remove of " + k);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure[0]);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int k = 0; k < 20000; k++) {
+            if ((k / threads) % 2 == 0) {
+                expected.add(k);
+            }
+        }
+        assertArrayEquals(toArray(expected), set.range(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    private static int[] toArray(NavigableSet<Integer> keys) {
+        int[] array = new int[keys.size()];
+        int i = 0;
+        for (int key : keys) {
+            array[i++] = key;
+        }
+        return array;
+    }
+}
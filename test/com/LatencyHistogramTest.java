@@ -0,0 +1,81 @@
+/**
+ * name: LatencyHistogramTest
+ * author: crs
+ * description: latency histograms keep what every thread recorded, including threads that have since
+ *              exited, and reset forgets all of it.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+public class LatencyHistogramTest {
+
+    @Test
+    public void keepsRecordsOfExitedThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // short-lived threads, each retired by a later snapshot or a later thread's first record
+        for (int round = 0; round < 20; round++) {
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final long nanos = TimeUnit.MICROSECONDS.toNanos(round * 10 + t + 1);
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 100; i++) {
+                            histogram.record(nanos);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (round % 3 == 0) {
+                assertEquals((round + 1) * 400, histogram.snapshot().getCount());
+            }
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(20 * 400, snapshot.getCount());
+        assertTrue(snapshot.getMaxNanos() >= TimeUnit.MICROSECONDS.toNanos(194));
+        // and a second snapshot counts the retired threads once, not again
+        assertEquals(20 * 400, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void resetForgetsEveryThread() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                histogram.record(2000);
+            }
+        });
+        other.start();
+        other.join();
+        assertEquals(2, histogram.snapshot().getCount());
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+
+        histogram.record(3000);
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+}
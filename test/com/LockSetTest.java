@@ -0,0 +1,99 @@
+/**
+ * name: LockSetTest
+ * author: crs
+ * description: the per-thread set of held locks.  add, contains, remove and clear agree with a plain set both
+ *              while contains scans and once the set has outgrown SCAN_LIMIT and uses its index, and a cleared
+ *              set starts over scanning.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+public class LockSetTest {
+
+    private final LockTable table = new IntLockTable();
+
+    @Test
+    public void keepsAcquisitionOrder() {
+        LockSet set = new LockSet();
+        List<AbstractLock> locks = locks(LockSet.SCAN_LIMIT * 4);
+
+        for (AbstractLock lock : locks) {
+            set.add(lock);
+        }
+
+        assertEquals(locks.size(), set.size());
+        for (int i = 0; i < locks.size(); i++) {
+            assertSame(locks.get(i), set.get(i));
+        }
+
+        // a removed lock leaves its position empty
+        assertTrue(set.remove(locks.get(3)));
+        assertFalse(set.remove(locks.get(3)));
+        assertNull(set.get(3));
+        assertEquals(locks.size(), set.size());
+    }
+
+    @Test
+    public void matchesHashSetAcrossTheScanLimit() {
+        List<AbstractLock> locks = locks(200);
+        LockSet set = new LockSet();
+        Random random = new Random(9);
+
+        // sizes on both sides of SCAN_LIMIT, with the set reused after each clear
+        for (int round = 0; round < 50; round++) {
+            Set<AbstractLock> model = new HashSet<AbstractLock>();
+            int size = 1 + random.nextInt((round % 2 == 0) ? LockSet.SCAN_LIMIT : locks.size());
+
+            for (int i = 0; i < size; i++) {
+                AbstractLock lock = locks.get(random.nextInt(locks.size()));
+                if (model.add(lock)) {
+                    set.add(lock);
+                }
+            }
+            for (int i = 0; i < size / 3; i++) {
+                AbstractLock lock = locks.get(random.nextInt(locks.size()));
+                assertEquals(model.remove(lock), set.remove(lock));
+            }
+
+            for (AbstractLock lock : locks) {
+                assertEquals(model.contains(lock), set.contains(lock));
+                assertEquals(model.contains(lock), set.holds(lock));
+            }
+
+            set.clear();
+            assertTrue(set.isEmpty());
+            assertEquals(0, set.size());
+            for (AbstractLock lock : model) {
+                assertFalse(set.contains(lock));
+            }
+        }
+    }
+
+    private List<AbstractLock> locks(int count) {
+        List<AbstractLock> locks = new ArrayList<AbstractLock>();
+        for (int key = 0; key < count; key++) {
+            locks.add(table.acquire(key));
+        }
+        return locks;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * name: LockTableTest
+ * author: crs
+ * description: the lock tables, IntLockTable and BoxedLockTable.  every caller of acquire gets the same lock
+ *              for a key while it is referenced, a lock leaves the table with its last reference, and under
+ *              concurrent acquire and release each lock still excludes every other holder.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+public class LockTableTest {
+
+    private static LockTable newTable(SkipListKey.Implementation implementation) {
+        return (implementation == SkipListKey.Implementation.PRIMITIVE) ? new IntLockTable() : new BoxedLockTable();
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void sharesLockWhileReferenced(SkipListKey.Implementation implementation) {
+        LockTable table = newTable(implementation);
+
+        AbstractLock first = table.acquire(42);
+        AbstractLock second = table.acquire(42);
+        assertSame(first, second);
+        assertEquals(42, first.getKey());
+        assertNotSame(first, table.acquire(43));
+        assertEquals(2, table.size());
+
+        // one reference left, the lock stays
+        table.release(first);
+        assertSame(second, table.acquire(42));
+        table.release(second);
+        table.release(second);
+        assertEquals(1, table.size());
+
+        // the last reference is gone, a new acquire creates a new lock
+        AbstractLock again = table.acquire(42);
+        assertNotSame(first, again);
+        table.release(again);
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void emptiesOnceEveryLockIsReleased(SkipListKey.Implementation implementation) {
+        LockTable table = newTable(implementation);
+        List<AbstractLock> locks = new ArrayList<AbstractLock>();
+
+        // enough keys to grow the tables, negative ones and the extremes too
+        for (int key = -5000; key < 5000; key++) {
+            locks.add(table.acquire(key * 31));
+        }
+        locks.add(table.acquire(Integer.MIN_VALUE));
+        locks.add(table.acquire(Integer.MAX_VALUE));
+        assertEquals(10002, table.size());
+
+        for (int i = 0; i < locks.size(); i += 2) {
+            table.release(locks.get(i));
+        }
+        assertEquals(5001, table.size());
+        for (int i = 1; i < locks.size(); i += 2) {
+            assertSame(locks.get(i), table.acquire(locks.get(i).getKey()));
+            table.release(locks.get(i));
+            table.release(locks.get(i));
+        }
+        assertEquals(0, table.size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void collectsExclusiveLocksInRange(SkipListKey.Implementation implementation) throws Exception {
+        LockTable table = newTable(implementation);
+        AbstractLock[] locks = new AbstractLock[10];
+        for (int key = 0; key < locks.length; key++) {
+            locks[key] = table.acquire(key);
+        }
+        assertTrue(locks[2].tryLock(AbstractLock.Mode.EXCLUSIVE, 0, TimeUnit.SECONDS));
+        assertTrue(locks[5].tryLock(AbstractLock.Mode.SHARED, 0, TimeUnit.SECONDS));
+        assertTrue(locks[7].tryLock(AbstractLock.Mode.EXCLUSIVE, 0, TimeUnit.SECONDS));
+        assertTrue(locks[9].tryLock(AbstractLock.Mode.EXCLUSIVE, 0, TimeUnit.SECONDS));
+
+        List<AbstractLock> collected = new ArrayList<AbstractLock>();
+        table.collectExclusive(1, 8, collected);
+
+        assertEquals(2, collected.size());
+        assertTrue(collected.contains(locks[2]));
+        assertTrue(collected.contains(locks[7]));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void locksExcludeUnderConcurrentAcquireAndRelease(SkipListKey.Implementation implementation) throws Exception {
+        final LockTable table = newTable(implementation);
+        final int keys = 8;
+        // holders of each key's lock right now: exclusive holders count 1000, shared ones 1
+        final AtomicIntegerArray holders = new AtomicIntegerArray(keys);
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000; i++) {
+                            int key = random.nextInt(keys);
+                            boolean exclusive = random.nextBoolean();
+                            AbstractLock lock = table.acquire(key);
+
+                            if (!lock.tryLock(exclusive ? AbstractLock.Mode.EXCLUSIVE : AbstractLock.Mode.SHARED, 10, TimeUnit.SECONDS)) {
+                                throw new AssertionError("timed out on a lock of key " + key);
+                            }
+
+                            int now = holders.addAndGet(key, exclusive ? 1000 : 1);
+                            if (exclusive ? now != 1000 : now >= 1000) {
+                                throw new AssertionError("key " + key + " held by " + now);
+                            }
+                            holders.addAndGet(key, exclusive ? -1000 : -1);
+
+                            lock.release();
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure[0]);
+        assertEquals(0, table.size());
+    }
+
+    @ParameterizedTest
+    @EnumSource(SkipListKey.Implementation.class)
+    public void exclusiveLockTimesOut(SkipListKey.Implementation implementation) throws Exception {
+        LockTable table = newTable(implementation);
+        final AbstractLock lock = table.acquire(1);
+        assertTrue(lock.tryLock(AbstractLock.Mode.EXCLUSIVE, 0, TimeUnit.SECONDS));
+        assertTrue(lock.isHeldExclusively());
+
+        final boolean[] acquired = new boolean[2];
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = lock.tryLock(AbstractLock.Mode.SHARED, 10, TimeUnit.MILLISECONDS);
+                    acquired[1] = lock.tryLock(AbstractLock.Mode.EXCLUSIVE, 10, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        other.start();
+        other.join();
+
+        assertFalse(acquired[0]);
+        assertFalse(acquired[1]);
+        lock.release();
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * name: LongSkipListSetTest
+ * author: crs
+ * description: the long-keyed skiplist, checked against a TreeSet over keys that need all 64 bits, and under
+ *              concurrent updates to disjoint keys.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@Timeout(60)
+public class LongSkipListSetTest {
+
+    @Test
+    public void matchesTreeSet() {
+        LongSkipListSet set = new LongSkipListSet();
+        TreeSet<Long> model = new TreeSet<Long>();
+        Random random = new Random(13);
+
+        for (int i = 0; i < 20000; i++) {
+            // keys beyond the int range that only differ in their high bits, and now and then the extremes
+            long key = (random.nextInt(50) == 0) ? (random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE)
+                    : ((long) (random.nextInt(512) - 256) << 32) | random.nextInt(2);
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(model.add(key), set.add(key));
+                    break;
+                case 1:
+                    assertEquals(model.remove(key), set.remove(key));
+                    break;
+                default:
+                    assertEquals(model.contains(key), set.contains(key));
+                    break;
+            }
+        }
+
+        assertEquals(model.size(), set.size());
+        for (long key : model) {
+            assertTrue(set.contains(key));
+            // a key that only matches in its low 32 bits is a different key
+            assertEquals(model.contains((long) (int) key), set.contains((long) (int) key));
+        }
+    }
+
+    @Test
+    public void concurrentUpdatesOfDisjointKeys() throws Exception {
+        final LongSkipListSet set = new LongSkipListSet();
+        final Throwable[] failure = new Throwable[1];
+
+        // thread t owns the keys k << 33 with k % threads == t: adds them all, removes the odd multiples
+        final int threads = 4;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int owner = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long k = owner; k < 20000; k += threads) {
+                            if (!set.add(k << 33)) {
+                                throw new AssertionError("lost add of " + k);
+                            }
+                        }
+                        for (long k = owner; k < 20000; k += threads) {
+                            if ((k / threads) % 2 == 1 && !set.remove(k << 33)) {
+                                throw new AssertionError("lost remove of " + k);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertNull(failure[0]);
+        assertEquals(10000, set.size());
+        for (long k = 0; k < 20000; k++) {
+            assertEquals((k / threads) % 2 == 0, set.contains(k << 33));
+        }
+        assertFalse(set.contains(1));
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * name: ReplicaTest
+ * author: crs
+ * description: replication over loopback.  replicas that connect before or after the primary's commits catch
+ *              up to the same keys, and readers of a replica only ever see whole primary transactions.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.add;
+import static com.TestTransactions.keys;
+import static com.TestTransactions.transfer;
+
+@Timeout(60)
+public class ReplicaTest {
+
+    private static final int KEYS = 64;
+    private static final int TOKENS = 16;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replicasCatchUpWithPrimary() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("primary.wal"));
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < 500; i++) {
+            TThread.doIt(add(set, i * 3));
+        }
+
+        ReplicationPrimary primary = new ReplicationPrimary(set, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), primary.getPort());
+
+        // one replica follows the later commits as they happen, the other connects once they're done
+        Replica early = new Replica(address, SkipListKey.Implementation.PRIMITIVE);
+        Random random = new Random(4);
+        for (int i = 0; i < 2000; i++) {
+            TThread.doIt(transfer(set, random.nextInt(1500), random.nextInt(1500)));
+        }
+        Replica late = new Replica(address, SkipListKey.Implementation.BOXED);
+
+        long end = log.getShippable();
+        assertTrue(early.awaitPosition(end, 30, TimeUnit.SECONDS));
+        assertTrue(late.awaitPosition(end, 30, TimeUnit.SECONDS));
+
+        assertArrayEquals(keys(set), keys(early.getSet()));
+        assertArrayEquals(keys(set), keys(late.getSet()));
+        assertEquals(log.getRecordCount(), late.getAppliedRecordCount());
+        assertNull(early.getFailure());
+        assertNull(late.getFailure());
+
+        early.close();
+        late.close();
+        primary.close();
+        log.close();
+    }
+
+    @Test
+    public void replicaReadersSeeWholeTransactions() throws Exception {
+        WriteAheadLog log = new WriteAheadLog(dir.resolve("primary.wal"), WriteAheadLog.SyncPolicy.NONE, 0, TimeUnit.MILLISECONDS);
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < TOKENS; i++) {
+            TThread.doIt(add(set, i * 4));
+        }
+
+        ReplicationPrimary primary = new ReplicationPrimary(set, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Replica replica = new Replica(new InetSocketAddress(InetAddress.getLoopbackAddress(), primary.getPort()),
+                SkipListKey.Implementation.PRIMITIVE, LockKey.ReadMode.SNAPSHOT);
+        final SkipListKey copy = replica.getSet();
+
+        // every primary transaction moves a token, so a replica reader that saw half of one would miscount
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(8);
+                try {
+                    while (!stop.get()) {
+                        TThread.doIt(transfer(set, random.nextInt(KEYS), random.nextInt(KEYS)));
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        writer.start();
+
+        final AtomicInteger inconsistent = new AtomicInteger();
+        Callable<Boolean> countTokens = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (copy.range(0, KEYS).length != TOKENS) {
+                    inconsistent.incrementAndGet();
+                }
+                return true;
+            }
+        };
+
+        // the replica may still be replaying the initial adds, wait for them first
+        assertTrue(replica.awaitPosition(log.getShippable(), 30, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        int reads = 0;
+        while (System.nanoTime() < deadline) {
+            TThread.doItReadOnly(countTokens);
+            reads++;
+        }
+
+        stop.set(true);
+        writer.join();
+        assertTrue(replica.awaitPosition(log.getShippable(), 30, TimeUnit.SECONDS));
+
+        assertNull(failure[0]);
+        assertTrue(reads > 0);
+        assertEquals(0, inconsistent.get());
+        assertArrayEquals(keys(set), keys(copy));
+
+        replica.close();
+        primary.close();
+        log.close();
+    }
+}
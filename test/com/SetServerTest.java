@@ -0,0 +1,195 @@
+/**
+ * name: SetServerTest
+ * author: crs
+ * description: round trips to a SetServer over loopback.  single operations and transactions get the
+ *              results the set gives, pipelined requests are answered in order, and a malformed request
+ *              closes the connection without changing the set.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.keys;
+
+@Timeout(60)
+public class SetServerTest {
+
+    private SkipListKey set;
+    private SetServer server;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    @BeforeEach
+    public void start() throws IOException {
+        set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE);
+        server = new SetServer(set, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void singleOperationsRoundTrip() throws IOException {
+        assertTrue(call(1, SetServer.ADD, 5));
+        assertFalse(call(2, SetServer.ADD, 5));
+        assertTrue(call(3, SetServer.CONTAINS, 5));
+        assertTrue(call(4, SetServer.REMOVE, 5));
+        assertFalse(call(5, SetServer.CONTAINS, 5));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void transactionRoundTrip() throws IOException {
+        byte[] opcodes = {SetServer.ADD, SetServer.ADD, SetServer.CONTAINS, SetServer.REMOVE, SetServer.ADD};
+        int[] keys = {1, 2, 1, 3, 1};
+
+        sendTransaction(7, opcodes, keys);
+        out.flush();
+
+        assertArrayEquals(new boolean[] {true, true, true, false, false}, readTransaction(7));
+        assertArrayEquals(new int[] {1, 2}, keys(set));
+    }
+
+    @Test
+    public void pipelinedRequestsAnswerInOrder() throws IOException {
+        Random random = new Random(3);
+        TreeSet<Integer> model = new TreeSet<Integer>();
+        int requests = 2000;
+        boolean[] expected = new boolean[requests];
+
+        // everything goes out before the first response is read
+        for (int id = 0; id < requests; id++) {
+            byte opcode = (byte) (SetServer.ADD + random.nextInt(3));
+            int key = random.nextInt(100);
+
+            send(id, opcode, key);
+            expected[id] = (opcode == SetServer.ADD) ? model.add(key) : (opcode == SetServer.REMOVE) ? model.remove(key) : model.contains(key);
+        }
+        out.flush();
+
+        for (int id = 0; id < requests; id++) {
+            assertEquals(expected[id], readSingle(id));
+        }
+        assertEquals(model.size(), set.size());
+        assertEquals(requests, server.getRequestCount());
+    }
+
+    @Test
+    public void malformedRequestClosesConnection() throws IOException {
+        out.writeInt(9);
+        out.writeInt(1);
+        out.writeByte(9);
+        out.writeInt(1);
+        out.flush();
+
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void shortRequestNeverChangesTheSet() throws IOException {
+        // an ADD whose length leaves out its key, pipelined ahead of a valid request
+        out.writeInt(4 + 1);
+        out.writeInt(1);
+        out.writeByte(SetServer.ADD);
+        send(2, SetServer.CONTAINS, 5);
+        out.flush();
+
+        assertEquals(-1, in.read());
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void shortTransactionNeverChangesTheSet() throws IOException {
+        // a transaction whose length stops one byte short of its second key
+        out.writeInt(4 + 1 + 2 + 5 + 1 + 3);
+        out.writeInt(1);
+        out.writeByte(SetServer.TRANSACTION);
+        out.writeShort(2);
+        out.writeByte(SetServer.ADD);
+        out.writeInt(7);
+        out.writeByte(SetServer.ADD);
+        out.write(new byte[] {0, 0, 1});
+        send(2, SetServer.CONTAINS, 5);
+        out.flush();
+
+        assertEquals(-1, in.read());
+        assertEquals(0, set.size());
+    }
+
+    private boolean call(int id, byte opcode, int key) throws IOException {
+        send(id, opcode, key);
+        out.flush();
+        return readSingle(id);
+    }
+
+    private void send(int id, byte opcode, int key) throws IOException {
+        out.writeInt(4 + 1 + 4);
+        out.writeInt(id);
+        out.writeByte(opcode);
+        out.writeInt(key);
+    }
+
+    private void sendTransaction(int id, byte[] opcodes, int[] keys) throws IOException {
+        out.writeInt(4 + 1 + 2 + 5 * opcodes.length);
+        out.writeInt(id);
+        out.writeByte(SetServer.TRANSACTION);
+        out.writeShort(opcodes.length);
+        for (int i = 0; i < opcodes.length; i++) {
+            out.writeByte(opcodes[i]);
+            out.writeInt(keys[i]);
+        }
+    }
+
+    private boolean readSingle(int id) throws IOException {
+        assertEquals(4 + 1 + 1, in.readInt());
+        assertEquals(id, in.readInt());
+        assertEquals(SetServer.OK, in.readByte());
+        return in.readByte() == 1;
+    }
+
+    private boolean[] readTransaction(int id) throws IOException {
+        int length = in.readInt();
+        assertEquals(id, in.readInt());
+        assertEquals(SetServer.OK, in.readByte());
+
+        int count = in.readUnsignedShort();
+        byte[] bitmap = new byte[length - 4 - 1 - 2];
+        in.readFully(bitmap);
+
+        boolean[] results = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = ((bitmap[i / 8] >> (i % 8)) & 1) == 1;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * name: ShardedSetTest
+ * author: crs
+ * description: sharded sets answer like one set.  single operations, batches split across shards and the
+ *              ordered reads that merge or walk the shards are checked against a TreeSet, for both
+ *              partitionings, and transactions spanning shards keep the set consistent under contention.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.OptionalInt;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.add;
+import static com.TestTransactions.keys;
+
+@Timeout(60)
+public class ShardedSetTest {
+
+    private static final int SHARDS = 4;
+
+    @ParameterizedTest
+    @EnumSource(ShardedSet.Partitioning.class)
+    public void matchesTreeSet(ShardedSet.Partitioning partitioning) throws Exception {
+        final ShardedSet set = new ShardedSet(SHARDS, partitioning, SkipListKey.Implementation.PRIMITIVE);
+        final TreeSet<Integer> model = new TreeSet<Integer>();
+        final Random random = new Random(17);
+
+        for (int round = 0; round < 300; round++) {
+            // keys from every shard under either partitioning, now and then the extremes of the int range
+            final int[] keys = new int[1 + random.nextInt(16)];
+            final SkipListKey.OperationType[] ops = new SkipListKey.OperationType[keys.length];
+            final boolean[] expected = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key(random);
+                ops[i] = SkipListKey.OperationType.values()[random.nextInt(3)];
+                expected[i] = apply(model, keys[i], ops[i]);
+            }
+
+            final boolean single = random.nextBoolean();
+            final boolean[][] results = new boolean[1][];
+            TThread.doIt(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    if (!single) {
+                        results[0] = set.applyBatch(keys, ops);
+                        return true;
+                    }
+
+                    results[0] = new boolean[keys.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        results[0][i] = (ops[i] == SkipListKey.OperationType.ADD) ? set.add(keys[i])
+                                : (ops[i] == SkipListKey.OperationType.REMOVE) ? set.remove(keys[i]) : set.contains(keys[i]);
+                    }
+                    return true;
+                }
+            });
+            assertArrayEquals(expected, results[0]);
+
+            final int low = key(random);
+            final int high = random.nextBoolean() ? key(random) : Integer.MAX_VALUE;
+            checkOrderedReads(set, model, Math.min(low, high), Math.max(low, high));
+        }
+
+        assertEquals(model.size(), set.size());
+        assertArrayEquals(toArray(model), keys(set));
+        assertEquals(0, set.getLockTableSize());
+    }
+
+    @ParameterizedTest
+    @EnumSource(ShardedSet.Partitioning.class)
+    public void forEachStopsWhenAsked(ShardedSet.Partitioning partitioning) throws Exception {
+        final ShardedSet set = new ShardedSet(SHARDS, partitioning, SkipListKey.Implementation.BOXED);
+        // spread over every shard under range partitioning
+        for (int i = -8; i < 8; i++) {
+            TThread.doIt(add(set, i * (Integer.MAX_VALUE / 8)));
+        }
+
+        final int[] seen = new int[5];
+        final int[] count = new int[1];
+        boolean finished = TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.forEach(Integer.MIN_VALUE, Integer.MAX_VALUE, new IntPredicate() {
+                    @Override
+                    public boolean test(int key) {
+                        seen[count[0]++] = key;
+                        return count[0] < seen.length;
+                    }
+                });
+            }
+        });
+
+        assertTrue(!finished);
+        assertArrayEquals(Arrays.copyOf(keys(set), seen.length), seen);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ShardedSet.Partitioning.class)
+    public void transactionsAcrossShardsConserveTokens(ShardedSet.Partitioning partitioning) throws Exception {
+        final ShardedSet set = new ShardedSet(SHARDS, partitioning, SkipListKey.Implementation.PRIMITIVE);
+        // keys spaced so range partitioning also puts them on different shards
+        final int spacing = Integer.MAX_VALUE / 32;
+        final int tokens = 8;
+        for (int i = 0; i < tokens; i++) {
+            TThread.doIt(add(set, (i * 4 - 32) * spacing));
+        }
+
+        final Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            final int from = (random.nextInt(32) - 16) * spacing * 2;
+                            final int to = (random.nextInt(32) - 16) * spacing * 2;
+                            TThread.doIt(new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                    // a batch moves the token, the read checks every shard at once
+                                    if (from != to && set.contains(from) && !set.contains(to)) {
+                                        set.applyBatch(new int[] {from, to},
+                                                new SkipListKey.OperationType[] {SkipListKey.OperationType.REMOVE, SkipListKey.OperationType.ADD});
+                                    }
+                                    if (set.range(Integer.MIN_VALUE, Integer.MAX_VALUE).length != tokens) {
+                                        throw new IllegalStateException("a transaction saw a token missing");
+                                    }
+                                    return true;
+                                }
+                            }, TThread.UNLIMITED_ATTEMPTS, null);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure[0]);
+        assertEquals(tokens, set.size());
+        assertEquals(0, set.getLockTableSize());
+    }
+
+    private static void checkOrderedReads(final ShardedSet set, NavigableSet<Integer> model, final int low, final int high) throws Exception {
+        final int[] range = toArray(model.subSet(low, true, high, true));
+        final Integer first = model.isEmpty() ? null : model.first();
+        final Integer ceiling = model.ceiling(low);
+
+        assertTrue(TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final int[] iterated = new int[range.length];
+                final int[] count = new int[1];
+                set.forEach(low, high, new IntPredicate() {
+                    @Override
+                    public boolean test(int key) {
+                        iterated[count[0]++] = key;
+                        return true;
+                    }
+                });
+
+                OptionalInt setFirst = set.first();
+                OptionalInt setCeiling = set.ceiling(low);
+                return Arrays.equals(range, set.range(low, high)) && Arrays.equals(range, iterated) && count[0] == range.length
+                        && ((first == null) ? !setFirst.isPresent() : setFirst.isPresent() && setFirst.getAsInt() == first)
+                        && ((ceiling == null) ? !setCeiling.isPresent() : setCeiling.isPresent() && setCeiling.getAsInt() == ceiling);
+            }
+        }), "ordered reads of [" + low + ", " + high + "]");
+    }
+
+    private static int key(Random random) {
+        switch (random.nextInt(20)) {
+            case 0:
+                return Integer.MIN_VALUE;
+            case 1:
+                return Integer.MAX_VALUE;
+            default:
+                // a few hundred keys spread over the whole int range
+                return (random.nextInt(400) - 200) * (Integer.MAX_VALUE / 200);
+        }
+    }
+
+    private static boolean apply(NavigableSet<Integer> model, int key, SkipListKey.OperationType op) {
+        switch (op) {
+            case ADD:
+                return model.add(key);
+            case REMOVE:
+                return model.remove(key);
+            default:
+                return model.contains(key);
+        }
+    }
+
+    private static int[] toArray(NavigableSet<Integer> keys) {
+        int[] array = new int[keys.size()];
+        int i = 0;
+        for (int key : keys) {
+            array[i++] = key;
+        }
+        return array;
+    }
+}
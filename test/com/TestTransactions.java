@@ -0,0 +1,95 @@
+/**
+ * name: TestTransactions
+ * author: crs
+ * description: single-operation transactions and whole-set reads shared by the tests.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import java.util.concurrent.Callable;
+
+final class TestTransactions {
+
+    private TestTransactions() {
+    }
+
+    static Callable<Boolean> add(final SkipListKey set, final int key) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.add(key);
+            }
+        };
+    }
+
+    static Callable<Boolean> remove(final SkipListKey set, final int key) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.remove(key);
+            }
+        };
+    }
+
+    static Callable<Boolean> contains(final SkipListKey set, final int key) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.contains(key);
+            }
+        };
+    }
+
+    static Callable<Boolean> add(final ShardedSet set, final int key) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.add(key);
+            }
+        };
+    }
+
+    static Callable<Boolean> contains(final ShardedSet set, final int key) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.contains(key);
+            }
+        };
+    }
+
+    // moves a token from one key to another if from holds one and to doesn't, so the key count never changes
+    static Callable<Boolean> transfer(final SkipListKey set, final int from, final int to) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                if (from != to && set.contains(from) && !set.contains(to)) {
+                    set.remove(from);
+                    set.add(to);
+                }
+                return true;
+            }
+        };
+    }
+
+    // every key of set, read from the base set outside any transaction
+    static int[] keys(SkipListKey set) {
+        return set.list.range(Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    static int[] keys(final ShardedSet set) throws Exception {
+        final int[][] keys = new int[1][];
+        TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                keys[0] = set.range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                return true;
+            }
+        });
+        return keys[0];
+    }
+}
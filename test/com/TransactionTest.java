@@ -0,0 +1,152 @@
+/**
+ * name: TransactionTest
+ * author: crs
+ * description: commit and abort of boosted transactions.  an abort replays the undo log so the sets and maps
+ *              it touched are left as they were, and of two transactions that read a key and then both try
+ *              to upgrade its lock, one gives way at once instead of waiting on the other.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static com.TestTransactions.add;
+import static com.TestTransactions.keys;
+
+@Timeout(60)
+public class TransactionTest {
+
+    @Test
+    public void abortUndoesEveryOperationOfTheTransaction() throws Exception {
+        for (SkipListKey.Implementation implementation : SkipListKey.Implementation.values()) {
+            final SkipListKey set = new SkipListKey(implementation);
+            TThread.doIt(add(set, 1));
+            TThread.doIt(add(set, 4));
+
+            try {
+                TThread.doIt(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        set.add(2);
+                        set.remove(1);
+                        set.add(3);
+                        set.remove(2);
+                        set.add(1);
+                        set.remove(4);
+                        set.applyBatch(new int[] {5, 6, 3}, new SkipListKey.OperationType[] {
+                                SkipListKey.OperationType.ADD, SkipListKey.OperationType.ADD, SkipListKey.OperationType.REMOVE});
+                        throw new IllegalStateException("fails after changing the set");
+                    }
+                });
+                fail("the transaction didn't fail");
+            } catch (Exception e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+
+            assertArrayEquals(new int[] {1, 4}, keys(set), implementation.toString());
+            assertEquals(0, set.getLockTableSize());
+        }
+    }
+
+    @Test
+    public void abortRestoresBoostedMap() throws Exception {
+        final BoostedMap<Integer, String> map = BoostedMap.newSkipListMap();
+        TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                map.put(1, "one");
+                map.put(2, "two");
+                return true;
+            }
+        });
+
+        try {
+            TThread.doIt(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    map.put(1, "uno");
+                    map.remove(2);
+                    map.putIfAbsent(3, "three");
+                    map.replace(1, "eins");
+                    map.compute(4, new BiFunction<Integer, String, String>() {
+                        @Override
+                        public String apply(Integer key, String value) {
+                            return "four";
+                        }
+                    });
+                    throw new IllegalStateException("fails after changing the map");
+                }
+            });
+            fail("the transaction didn't fail");
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals(2, map.size());
+        assertTrue(TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return "one".equals(map.get(1)) && "two".equals(map.get(2)) && map.get(3) == null && map.get(4) == null;
+            }
+        }));
+    }
+
+    @Test
+    public void secondUpgraderAbortsWithoutWaiting() throws Exception {
+        // a contention manager that would keep a waiting upgrader around far longer than the test runs
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, new TimeoutContentionManager(1, TimeUnit.HOURS));
+        final CyclicBarrier bothRead = new CyclicBarrier(2);
+        final Boolean[] results = new Boolean[2];
+        final Exception[] failure = new Exception[1];
+
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = TThread.doIt(new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws Exception {
+                                // both hold the key shared before either upgrades
+                                boolean present = set.contains(7);
+                                bothRead.await();
+                                return !present && set.add(7);
+                            }
+                        });
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue(!thread.isAlive(), "an upgrader is still waiting");
+        }
+
+        assertNull(failure[0]);
+        // exactly one committed, the other gave up its single attempt
+        assertTrue((results[0] == null) != (results[1] == null));
+        assertTrue(Boolean.TRUE.equals(results[0]) || Boolean.TRUE.equals(results[1]));
+        assertArrayEquals(new int[] {7}, keys(set));
+    }
+}
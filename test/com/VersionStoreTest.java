@@ -0,0 +1,213 @@
+/**
+ * name: VersionStoreTest
+ * author: crs
+ * description: read-only transactions on multi-version sets see one consistent snapshot while writers keep
+ *              changing the set, keep seeing it after a writer commits over what they read, can't write, and
+ *              leave no versions behind once they and the writers are done.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+import static com.TestTransactions.add;
+import static com.TestTransactions.keys;
+import static com.TestTransactions.remove;
+import static com.TestTransactions.transfer;
+
+@Timeout(60)
+public class VersionStoreTest {
+
+    private static final int KEYS = 64;
+    private static final int TOKENS = 16;
+
+    @Test
+    public void snapshotReadsRacingWritersSeeEveryToken() throws Exception {
+        final SkipListKey set = multiVersionSet();
+        for (int i = 0; i < TOKENS; i++) {
+            TThread.doIt(add(set, i * 4));
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger inconsistent = new AtomicInteger();
+        final Exception[] failure = new Exception[1];
+
+        // writers move tokens between keys, so every snapshot holds exactly TOKENS keys
+        Thread[] writers = new Thread[2];
+        for (int t = 0; t < writers.length; t++) {
+            final Random random = new Random(t);
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            TThread.doIt(transfer(set, random.nextInt(KEYS), random.nextInt(KEYS)), TThread.UNLIMITED_ATTEMPTS, null);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            writers[t].start();
+        }
+
+        Callable<Boolean> countTokens = new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                int found = 0;
+                for (int key = 0; key < KEYS; key++) {
+                    if (set.contains(key)) {
+                        found++;
+                    }
+                    // let the writers run between our reads
+                    Thread.yield();
+                }
+
+                final int[] iterated = new int[1];
+                set.forEach(0, KEYS, new IntPredicate() {
+                    @Override
+                    public boolean test(int key) {
+                        iterated[0]++;
+                        return true;
+                    }
+                });
+
+                if (found != TOKENS || set.range(0, KEYS).length != TOKENS || iterated[0] != TOKENS) {
+                    inconsistent.incrementAndGet();
+                }
+                return true;
+            }
+        };
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (System.nanoTime() < deadline) {
+            // a snapshot read never waits for or aborts because of a writer
+            assertTrue(TThread.doItReadOnly(countTokens));
+            reads.incrementAndGet();
+        }
+
+        stop.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertNull(failure[0]);
+        assertTrue(reads.get() > 0);
+        assertEquals(0, inconsistent.get());
+        assertEquals(TOKENS, set.size());
+    }
+
+    @Test
+    public void snapshotOutlivesCommittedChange() throws Exception {
+        final SkipListKey set = multiVersionSet();
+        TThread.doIt(add(set, 1));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch changed = new CountDownLatch(1);
+        final boolean[] seen = new boolean[2];
+        final Exception[] failure = new Exception[1];
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TThread.doItReadOnly(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            seen[0] = set.contains(1) && !set.contains(2);
+                            started.countDown();
+                            changed.await();
+                            seen[1] = set.contains(1) && !set.contains(2);
+                            return true;
+                        }
+                    });
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        reader.start();
+        started.await();
+
+        // committed while the reader is still in its snapshot
+        TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.remove(1) && set.add(2);
+            }
+        });
+        assertTrue(set.getVersionedKeyCount() > 0);
+        changed.countDown();
+        reader.join();
+
+        assertNull(failure[0]);
+        assertTrue(seen[0]);
+        assertTrue(seen[1]);
+
+        // a new snapshot sees the change
+        assertTrue(TThread.doItReadOnly(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return !set.contains(1) && set.contains(2);
+            }
+        }));
+
+        // with no snapshot left that needs them, the next commit to the keys collects their old versions
+        TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.remove(2) && set.add(1);
+            }
+        });
+        assertEquals(0, set.getVersionedKeyCount());
+        assertEquals(1, keys(set)[0]);
+    }
+
+    @Test
+    public void versionsAreCollectedOnceWritersFinish() throws Exception {
+        final SkipListKey set = multiVersionSet();
+        for (int i = 0; i < 2000; i++) {
+            TThread.doIt(add(set, i % KEYS));
+            TThread.doItReadOnly(TestTransactions.contains(set, i % KEYS));
+            TThread.doIt(remove(set, (i * 7) % KEYS));
+        }
+
+        assertEquals(0, set.getVersionedKeyCount());
+    }
+
+    @Test
+    public void readOnlyTransactionCannotWrite() throws Exception {
+        SkipListKey set = multiVersionSet();
+
+        try {
+            TThread.doItReadOnly(add(set, 1));
+            fail("a read-only transaction added a key");
+        } catch (Exception e) {
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+        assertEquals(0, set.size());
+    }
+
+    private static SkipListKey multiVersionSet() {
+        return new SkipListKey(SkipListKey.Implementation.PRIMITIVE, new DeadlockDetectingContentionManager(), LockKey.ReadMode.SNAPSHOT);
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * name: WriteAheadLogTest
+ * author: crs
+ * description: durable sets come back as they were committed.  covers replay after a clean close, a record
+ *              torn by a crash, and cross-shard transactions of a ShardedSet whose crash left their prepared
+ *              record in some of the shards' logs but not all of them.
+ *
+ * Edit History:
+ * - Created by crs on 4/23/17.
+ *
+ */
+
+package com;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.TestTransactions.add;
+import static com.TestTransactions.contains;
+import static com.TestTransactions.keys;
+
+@Timeout(60)
+public class WriteAheadLogTest {
+
+    private static final int SHARDS = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replaysCommittedTransactions() throws Exception {
+        Path path = dir.resolve("set.wal");
+
+        WriteAheadLog log = new WriteAheadLog(path);
+        final SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < 100; i++) {
+            TThread.doIt(add(set, i));
+        }
+        TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                set.remove(3);
+                set.remove(4);
+                return set.add(1000);
+            }
+        });
+        int[] before = keys(set);
+        assertEquals(101, log.getRecordCount());
+        log.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(path);
+        SkipListKey back = new SkipListKey(SkipListKey.Implementation.BOXED, reopened);
+        assertArrayEquals(before, keys(back));
+        reopened.close();
+    }
+
+    @Test
+    public void dropsRecordTornByCrash() throws Exception {
+        Path path = dir.resolve("set.wal");
+
+        WriteAheadLog log = new WriteAheadLog(path);
+        SkipListKey set = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, log);
+        for (int i = 0; i < 10; i++) {
+            TThread.doIt(add(set, i));
+        }
+        int[] before = keys(set);
+        TThread.doIt(add(set, 10));
+        log.close();
+
+        truncate(path, 3);
+
+        WriteAheadLog reopened = new WriteAheadLog(path);
+        SkipListKey back = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, reopened);
+        assertArrayEquals(before, keys(back));
+
+        // the torn bytes are gone, new records follow the last good one
+        TThread.doIt(add(back, 11));
+        reopened.close();
+
+        WriteAheadLog again = new WriteAheadLog(path);
+        SkipListKey last = new SkipListKey(SkipListKey.Implementation.PRIMITIVE, again);
+        assertTrue(last.list.contains(11));
+        assertFalse(last.list.contains(10));
+        again.close();
+    }
+
+    @Test
+    public void dropsCrossShardTransactionTornInOneShard() throws Exception {
+        Path[] paths = paths();
+        WriteAheadLog[] logs = open(paths);
+        ShardedSet set = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        fill(set);
+        int[] before = keys(set);
+
+        final int from = before[0];
+        final int to = keyOnOtherShard(set, from);
+        transfer(set, from, to);
+        close(logs);
+
+        // the crash cut the prepared record in to's shard short
+        truncate(paths[set.shardOf(to)], 3);
+
+        logs = open(paths);
+        ShardedSet back = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        assertArrayEquals(before, keys(back));
+        close(logs);
+    }
+
+    @Test
+    public void dropsCrossShardTransactionMissingFromOneShard() throws Exception {
+        Path[] paths = paths();
+        WriteAheadLog[] logs = open(paths);
+        ShardedSet set = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        fill(set);
+        int[] before = keys(set);
+
+        final int from = before[0];
+        final int to = keyOnOtherShard(set, from);
+        long sizeBefore = logs[set.shardOf(to)].getSize();
+        transfer(set, from, to);
+        assertNotEquals(sizeBefore, logs[set.shardOf(to)].getSize());
+        close(logs);
+
+        // the crash came after from's shard prepared, before to's did
+        try (FileChannel channel = FileChannel.open(paths[set.shardOf(to)], StandardOpenOption.WRITE)) {
+            channel.truncate(sizeBefore);
+        }
+
+        logs = open(paths);
+        ShardedSet back = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        assertArrayEquals(before, keys(back));
+
+        // and recovery leaves the logs consistent for the next restart
+        transfer(back, from, to);
+        close(logs);
+
+        logs = open(paths);
+        ShardedSet again = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        assertFalse(TThread.doIt(contains(again, from)));
+        assertTrue(TThread.doIt(contains(again, to)));
+        close(logs);
+    }
+
+    @Test
+    public void shardLogIsNotReplayedAlone() throws Exception {
+        Path[] paths = paths();
+        WriteAheadLog[] logs = open(paths);
+        ShardedSet set = new ShardedSet(ShardedSet.Partitioning.HASH, SkipListKey.Implementation.PRIMITIVE, logs);
+        fill(set);
+        int from = keys(set)[0];
+        transfer(set, from, keyOnOtherShard(set, from));
+        close(logs);
+
+        // a prepared record can't be recovered without the rest of its group
+        final WriteAheadLog shard = new WriteAheadLog(paths[set.shardOf(from)]);
+        try {
+            assertThrows(IOException.class, new Executable() {
+                @Override
+                public void execute() throws Throwable {
+                    new SkipListKey(SkipListKey.Implementation.PRIMITIVE, shard);
+                }
+            });
+        } finally {
+            shard.close();
+        }
+    }
+
+    private Path[] paths() {
+        Path[] paths = new Path[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            paths[i] = dir.resolve("shard" + i + ".wal");
+        }
+        return paths;
+    }
+
+    private static WriteAheadLog[] open(Path[] paths) throws IOException {
+        WriteAheadLog[] logs = new WriteAheadLog[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            logs[i] = new WriteAheadLog(paths[i]);
+        }
+        return logs;
+    }
+
+    private static void close(WriteAheadLog[] logs) throws IOException {
+        for (WriteAheadLog log : logs) {
+            log.close();
+        }
+    }
+
+    private static void fill(ShardedSet set) throws Exception {
+        for (int i = 0; i < 64; i++) {
+            TThread.doIt(add(set, i));
+        }
+    }
+
+    private static int keyOnOtherShard(ShardedSet set, int key) {
+        for (int candidate = 1000; ; candidate++) {
+            if (set.shardOf(candidate) != set.shardOf(key)) {
+                return candidate;
+            }
+        }
+    }
+
+    private static void transfer(final ShardedSet set, final int from, final int to) throws Exception {
+        Boolean committed = TThread.doIt(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return set.remove(from) && set.add(to);
+            }
+        });
+        assertTrue(committed);
+    }
+
+    private static void truncate(Path path, int bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+}